@@ -0,0 +1,118 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpMethod;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Per-request cost of preparing the {@link HttpClient} towards a backend in {@link ProxyRequestsManager#forward},
+ * up to the request sender: building the client for each request, as it used to be done,
+ * against looking up the client built once per backend and connection pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientSetupBenchmark {
+
+    private static final HttpProtocol[] PROTOCOLS = {HttpProtocol.H2C, HttpProtocol.HTTP11};
+
+    private final EndpointKey endpoint = new EndpointKey("localhost", 8080);
+    private final ConnectionPoolConfiguration connectionConfig = new RuntimeServerConfiguration().getDefaultConnectionPool();
+    private final AtomicLong totalRequests = new AtomicLong();
+    private final AtomicLong lastActivity = new AtomicLong();
+    private final Map<ClientKey, HttpClient> clients = new ConcurrentHashMap<>();
+    private EventLoopGroup eventLoopGroup;
+    private ConnectionProvider connectionProvider;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        eventLoopGroup = new NioEventLoopGroup(1);
+        connectionProvider = ConnectionProvider.create("benchmark", 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connectionProvider.dispose();
+        eventLoopGroup.shutdownGracefully();
+    }
+
+    @Benchmark
+    public Object buildPerRequest() {
+        return buildClient(endpoint, connectionConfig).request(HttpMethod.GET).uri("/index.html");
+    }
+
+    @Benchmark
+    public Object cachedPerBackend() {
+        final ClientKey key = new ClientKey(endpoint, connectionConfig, connectionProvider, PROTOCOLS);
+        final HttpClient cached = clients.get(key);
+        final HttpClient client = cached != null ? cached : clients.computeIfAbsent(key, k -> buildClient(k.endpoint(), k.connectionConfig()));
+        return client.request(HttpMethod.GET).uri("/index.html");
+    }
+
+    private HttpClient buildClient(final EndpointKey key, final ConnectionPoolConfiguration config) {
+        return HttpClient.create(connectionProvider)
+                .host(key.host())
+                .port(key.port())
+                .protocol(PROTOCOLS)
+                .followRedirect(false)
+                .runOn(eventLoopGroup)
+                .compress(true)
+                .responseTimeout(Duration.ofMillis(config.getStuckRequestTimeout()))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectTimeout())
+                .option(ChannelOption.SO_KEEPALIVE, config.isKeepAlive())
+                .httpResponseDecoder(option -> option.maxHeaderSize(8_192))
+                .doOnRequest((req, conn) -> {
+                    totalRequests.incrementAndGet();
+                    lastActivity.set(System.currentTimeMillis());
+                })
+                .doAfterRequest((req, conn) -> lastActivity.set(System.currentTimeMillis()))
+                .doAfterResponseSuccess((resp, conn) -> lastActivity.set(System.currentTimeMillis()));
+    }
+
+    private record ClientKey(EndpointKey endpoint, ConnectionPoolConfiguration connectionConfig, ConnectionProvider connectionProvider, HttpProtocol[] protocols) {
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FileUtils;
+import org.carapaceproxy.utils.RawHttpServer;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end latency of a request over loopback, through the proxy towards a {@link RawHttpServer} backend,
+ * and straight to the backend as a baseline; each thread keeps its connections alive.
+ * <p>
+ * The difference between {@link #proxied} and {@link #direct} is what the proxy costs on a request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProxyLoopbackBenchmark {
+
+    private static final String PATH = "/index.html";
+    private static final byte[] BODY = ("<html><body>" + "it <b>works</b> !! ".repeat(50) + "</body></html>").getBytes(StandardCharsets.UTF_8);
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        @Param({"false", "true"})
+        public boolean cache;
+
+        private RawHttpServer backend;
+        private File baseDir;
+        private HttpProxyServer proxy;
+        private int backendPort;
+        private int proxyPort;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            backend = new RawHttpServer(new HttpServlet() {
+                @Override
+                protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                    resp.setContentType("text/html");
+                    resp.setContentLength(BODY.length);
+                    resp.getOutputStream().write(BODY);
+                }
+            });
+            backendPort = backend.start();
+            baseDir = Files.createTempDirectory("loopback-benchmark").toFile();
+            proxy = HttpProxyServer.buildForTests("localhost", 0, parent -> new TestEndpointMapper("localhost", backendPort, cache, false), baseDir);
+            proxy.start();
+            proxyPort = proxy.getLocalPort();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            proxy.close();
+            backend.close();
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Clients {
+
+        private HttpClient client;
+        private HttpRequest direct;
+        private HttpRequest proxied;
+
+        @Setup(Level.Trial)
+        public void setup(final Servers servers) {
+            client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            direct = HttpRequest.newBuilder(URI.create("http://localhost:" + servers.backendPort + PATH)).build();
+            proxied = HttpRequest.newBuilder(URI.create("http://localhost:" + servers.proxyPort + PATH)).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] direct(final Clients clients) throws IOException, InterruptedException {
+        return send(clients.client, clients.direct);
+    }
+
+    @Benchmark
+    public byte[] proxied(final Clients clients) throws IOException, InterruptedException {
+        return send(clients.client, clients.proxied);
+    }
+
+    private static byte[] send(final HttpClient client, final HttpRequest request) throws IOException, InterruptedException {
+        final HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != HttpServletResponse.SC_OK) {
+            throw new IOException("unexpected response " + response.statusCode());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import io.netty.handler.codec.http.HttpMethod;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.server.mapper.MapResult;
+import org.carapaceproxy.utils.BenchmarkRequests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of an access log line: capturing the {@link RequestsLogger.Entry} on the event loop,
+ * and rendering it with the default format on the writer thread, into a reused buffer as {@link RequestsLogger} does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestsLoggerEntryBenchmark {
+
+    private final StringBuilder line = new StringBuilder();
+    private AccessLogTemplate template;
+    private ProxyRequest request;
+    private RequestsLogger.Entry entry;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        template = AccessLogTemplate.compile(new RuntimeServerConfiguration());
+        request = BenchmarkRequests.request(HttpMethod.GET, "www.example.com", "/products/index.html?page=2&sort=desc");
+        final long now = System.currentTimeMillis();
+        request.setStartTs(now - 35);
+        request.setBackendStartTs(now - 30);
+        request.setLastActivity(now);
+        request.setUserId("user-42");
+        request.setSessionId("0123456789ABCDEF");
+        request.setAction(MapResult.builder()
+                .action(MapResult.Action.PROXY)
+                .routeId("site-products")
+                .host("10.0.0.1")
+                .port(8080)
+                .build());
+        entry = RequestsLogger.Entry.capture(request, template);
+    }
+
+    @Benchmark
+    public RequestsLogger.Entry capture() {
+        return RequestsLogger.Entry.capture(request, template);
+    }
+
+    @Benchmark
+    public int render() {
+        line.setLength(0);
+        template.render(entry, line);
+        return line.length();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.core.ProxyRequest;
+import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.utils.BenchmarkRequests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.netty.http.client.HttpClientResponse;
+
+/**
+ * Lookups and stores in the {@link ContentsCache}, filled with a given number of contents.
+ * <p>
+ * Stores replace contents already in the cache, so that its size doesn't change across iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentsCacheBenchmark {
+
+    @Param({"1000", "10000"})
+    public int entries;
+
+    @Param({"2048"})
+    public int contentSize;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private ContentsCache cache;
+    private ProxyRequest[] requests;
+    private ProxyRequest missing;
+    private HttpClientResponse response;
+    private ByteBuf chunk;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = new ContentsCache(new RuntimeServerConfiguration());
+        final HttpHeaders headers = new DefaultHttpHeaders()
+                .add(HttpHeaderNames.CONTENT_TYPE, "text/css")
+                .add(HttpHeaderNames.CONTENT_LENGTH, contentSize);
+        response = BenchmarkRequests.response(HttpResponseStatus.OK, headers);
+        chunk = Unpooled.directBuffer(contentSize).writeZero(contentSize);
+        requests = new ProxyRequest[entries];
+        for (int i = 0; i < entries; i++) {
+            requests[i] = BenchmarkRequests.request(HttpMethod.GET, "www.example.com", "/static/css/style" + i + ".css");
+            store(requests[i]);
+        }
+        missing = BenchmarkRequests.request(HttpMethod.GET, "www.example.com", "/static/css/missing.css");
+        if (cache.getCacheSize() != entries) {
+            throw new IllegalStateException("cached " + cache.getCacheSize() + " contents out of " + entries);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.clear();
+        cache.close();
+        chunk.release();
+    }
+
+    @Benchmark
+    public ContentsCache.ContentSender getHit() {
+        return cache.getCacheSender(nextRequest());
+    }
+
+    @Benchmark
+    public ContentsCache.ContentSender getMiss() {
+        return cache.getCacheSender(missing);
+    }
+
+    @Benchmark
+    public void put() {
+        store(nextRequest());
+    }
+
+    private ProxyRequest nextRequest() {
+        final ProxyRequest request = requests[next];
+        next = next + 1 == requests.length ? 0 : next + 1;
+        return request;
+    }
+
+    private void store(final ProxyRequest request) {
+        final ContentsCache.ContentReceiver receiver = cache.createCacheReceiver(request);
+        receiver.receivedFromRemote(response);
+        receiver.receivedFromRemote(chunk.duplicate(), allocator);
+        cache.cacheContent(receiver);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.filters;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the query string of a request by {@link UrlEncodedQueryString#parse(CharSequence)},
+ * then looked up as the mapper does for the forced director and backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlEncodedQueryStringBenchmark {
+
+    private static final Map<String, String> QUERIES = Map.of(
+            "short", "id=42",
+            "tracking", "q=carapace+proxy&page=2&sort=desc&utm_source=newsletter&utm_medium=email&utm_campaign=spring&utm_content=header",
+            "encoded", "redirect=https%3A%2F%2Fwww.example.com%2Fcheckout%3Fstep%3D2&name=J%C3%BCrgen+M%C3%BCller&tags=a;tags=b;tags=c"
+    );
+
+    @Param({"short", "tracking", "encoded"})
+    public String query;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = QUERIES.get(query);
+    }
+
+    @Benchmark
+    public UrlEncodedQueryString parse() {
+        return UrlEncodedQueryString.parse(text);
+    }
+
+    @Benchmark
+    public boolean parseAndLookup() {
+        final UrlEncodedQueryString queryString = UrlEncodedQueryString.parse(text);
+        return queryString.contains("x-backend") || queryString.contains("x-director");
+    }
+}
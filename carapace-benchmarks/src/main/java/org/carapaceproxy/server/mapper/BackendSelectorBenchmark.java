@@ -0,0 +1,105 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.SafeBackendSelector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Choice of the backends of a director by the {@link BackendSelector backend selectors}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackendSelectorBenchmark {
+
+    private static final String DIRECTOR = "pool";
+
+    @Param({"2", "16", "128"})
+    public int backends;
+
+    @Param({"safe", "random"})
+    public String selector;
+
+    private File baseDir;
+    private HttpProxyServer server;
+    private BackendSelector backendSelector;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        baseDir = Files.createTempDirectory("selector-benchmark").toFile();
+        server = HttpProxyServer.buildForTests("localhost", 0, parent -> {
+            final StandardEndpointMapper mapper = new StandardEndpointMapper(parent);
+            final DirectorConfiguration director = new DirectorConfiguration(DIRECTOR);
+            for (int i = 0; i < backends; i++) {
+                mapper.addBackend(new BackendConfiguration("backend" + i, "10.0.0." + (i + 1), 8080, "/", -1));
+                director.addBackend("backend" + i);
+            }
+            mapper.addDirector(director);
+            return mapper;
+        }, baseDir);
+        backendSelector = switch (selector) {
+            case "safe" -> new SafeBackendSelector(server.getMapper());
+            case "random" -> RandomBackendSelector.build(server.getMapper());
+            default -> throw new IllegalArgumentException(selector);
+        };
+        // spread the connections, as the safe selector sorts by them
+        for (int i = 0; i < backends; i++) {
+            for (int c = 0; c < i % 5; c++) {
+                server.getBackendHealthManager().getBackendStatus("backend" + i).incrementConnections();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Benchmark
+    public List<String> selectBackends() {
+        return backendSelector.selectBackends("user", "session", DIRECTOR);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.HttpMethod;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.core.ProxyRequest;
+import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.SafeBackendSelector;
+import org.carapaceproxy.utils.BenchmarkRequests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing of a request by {@link StandardEndpointMapper#map}, over a route table shaped like the ones of a shared proxy:
+ * for each virtual host there are routes for static contents, for APIs and for the rest of the site,
+ * followed by a few global routes matching on the uri only.
+ * <p>
+ * Requests cycle over the first, a middle and the last virtual host, the global routes and an unknown host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StandardEndpointMapperBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int virtualHosts;
+
+    @Param({"safe", "random"})
+    public String selector;
+
+    private File baseDir;
+    private HttpProxyServer server;
+    private EndpointMapper mapper;
+    private ProxyRequest[] requests;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final PropertiesConfigurationStore configuration = new PropertiesConfigurationStore(routeTable(virtualHosts));
+        final BackendSelector.SelectorFactory selectorFactory = switch (selector) {
+            case "safe" -> SafeBackendSelector::new;
+            case "random" -> RandomBackendSelector::build;
+            default -> throw new IllegalArgumentException(selector);
+        };
+        baseDir = Files.createTempDirectory("mapper-benchmark").toFile();
+        server = HttpProxyServer.buildForTests("localhost", 0, parent -> {
+            final StandardEndpointMapper standardMapper = new StandardEndpointMapper(parent, selectorFactory);
+            standardMapper.configure(configuration);
+            return standardMapper;
+        }, baseDir);
+        mapper = server.getMapper();
+
+        final int middle = virtualHosts / 2;
+        final int last = virtualHosts - 1;
+        requests = new ProxyRequest[]{
+                BenchmarkRequests.request(HttpMethod.GET, "site0.example.com", "/static/css/main.css"),
+                BenchmarkRequests.request(HttpMethod.GET, "site" + middle + ".example.com", "/api/v1/orders/42?expand=items"),
+                BenchmarkRequests.request(HttpMethod.GET, "site" + last + ".example.com", "/products/index.html?page=2"),
+                BenchmarkRequests.request(HttpMethod.POST, "site" + last + ".example.com", "/api/v1/cart"),
+                BenchmarkRequests.request(HttpMethod.GET, "legacy.example.com", "/cgi/index.php?id=7"),
+                BenchmarkRequests.request(HttpMethod.GET, "unknown.example.org", "/index.html")
+        };
+        for (final ProxyRequest request : requests) {
+            if (mapper.map(request) == null) {
+                throw new IllegalStateException("no result for " + request.getUri());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Benchmark
+    public MapResult map() {
+        final ProxyRequest request = requests[next];
+        next = next + 1 == requests.length ? 0 : next + 1;
+        return mapper.map(request);
+    }
+
+    static Properties routeTable(final int virtualHosts) {
+        final Properties properties = new Properties();
+        int route = 0;
+        for (int i = 0; i < virtualHosts; i++) {
+            final String host = "site" + i + ".example.com";
+            for (final String backend : new String[]{"a", "b"}) {
+                final String prefix = "backend." + (2 * i + ("a".equals(backend) ? 0 : 1)) + ".";
+                properties.put(prefix + "id", "site" + i + "-" + backend);
+                properties.put(prefix + "enabled", "true");
+                properties.put(prefix + "host", "10.0." + (i / 200) + "." + (i % 200 + ("a".equals(backend) ? 0 : 50)));
+                properties.put(prefix + "port", "8080");
+            }
+            properties.put("director." + i + ".id", "site" + i);
+            properties.put("director." + i + ".backends", "site" + i + "-a,site" + i + "-b");
+            properties.put("director." + i + ".enabled", "true");
+            properties.put("action." + (2 * i) + ".id", "proxy-site" + i);
+            properties.put("action." + (2 * i) + ".type", "proxy");
+            properties.put("action." + (2 * i) + ".director", "site" + i);
+            properties.put("action." + (2 * i) + ".enabled", "true");
+            properties.put("action." + (2 * i + 1) + ".id", "cache-site" + i);
+            properties.put("action." + (2 * i + 1) + ".type", "cache");
+            properties.put("action." + (2 * i + 1) + ".director", "site" + i);
+            properties.put("action." + (2 * i + 1) + ".enabled", "true");
+
+            route = route(properties, route, "static-site" + i, "cache-site" + i,
+                    "request.headers.host = \"" + host + "\" and request.uri ~ \"/static/.*\"");
+            route = route(properties, route, "api-site" + i, "proxy-site" + i,
+                    "request.headers.host = \"" + host + "\" and request.uri ~ \"/api/.*\" and not request.method = \"OPTIONS\"");
+            route = route(properties, route, "site" + i, "proxy-site" + i,
+                    "request.headers.host = \"" + host + "\"");
+        }
+        // the global routes are served by the backends of the first site
+        final int legacyAction = 2 * virtualHosts;
+        properties.put("action." + legacyAction + ".id", "proxy-legacy");
+        properties.put("action." + legacyAction + ".type", "proxy");
+        properties.put("action." + legacyAction + ".director", "site0");
+        properties.put("action." + legacyAction + ".enabled", "true");
+        route = route(properties, route, "legacy-php", "proxy-legacy", "request.uri ~ \".*\\.php.*\"");
+        route = route(properties, route, "robots", "proxy-legacy", "request.uri ~ \"/robots\\.txt\"");
+        route(properties, route, "health", "proxy-legacy", "request.uri ~ \"/health\" and request.method = \"GET\"");
+        return properties;
+    }
+
+    private static int route(final Properties properties, final int index, final String id, final String action, final String match) {
+        properties.put("route." + index + ".id", id);
+        properties.put("route." + index + ".action", action);
+        properties.put("route." + index + ".match", match);
+        properties.put("route." + index + ".enabled", "true");
+        return index + 1;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import io.netty.handler.codec.http.HttpMethod;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.core.ProxyRequest;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import org.carapaceproxy.utils.BenchmarkRequests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of parsed {@link RequestMatcher} trees against a request, both when they match and when they don't.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestMatcherBenchmark {
+
+    private static final Map<String, String> CONDITIONS = Map.of(
+            "all", "all",
+            "regexp", "request.uri ~ \".*\\.html.*\"",
+            "host-and-uri", "request.headers.host = \"www.example.com\" and request.uri ~ \"/static/.*\"",
+            "headers", "request.headers.cookie ~ \".*JSESSIONID=.*\" and not request.headers.user-agent ~ \".*(bot|crawler|spider).*\"",
+            "nested", "(request.headers.host = \"www.example.com\" or request.headers.host = \"example.com\")"
+                    + " and (request.method = \"GET\" or request.method = \"HEAD\")"
+                    + " and not secure and request.uri ~ \"/(static|assets)/.*\\.(css|js|png)\""
+    );
+
+    @Param({"all", "regexp", "host-and-uri", "headers", "nested"})
+    public String condition;
+
+    private RequestMatcher matcher;
+    private ProxyRequest matching;
+    private ProxyRequest notMatching;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        matcher = new RequestMatchParser(CONDITIONS.get(condition)).parse();
+        matching = BenchmarkRequests.request(HttpMethod.GET, "www.example.com", "/static/css/index.html.css");
+        notMatching = BenchmarkRequests.request(HttpMethod.POST, "api.example.com", "/api/v1/orders?format=json");
+    }
+
+    @Benchmark
+    public boolean matching() {
+        return matcher.matches(matching);
+    }
+
+    @Benchmark
+    public boolean notMatching() {
+        return matcher.matches(notMatching);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import org.carapaceproxy.core.EndpointKey;
+import org.carapaceproxy.core.ProxyRequest;
+import reactor.netty.http.client.HttpClientResponse;
+import reactor.netty.http.server.HttpServerRequest;
+
+/**
+ * Requests and responses to feed the benchmarks with, without a real connection.
+ * <p>
+ * The underlying {@link HttpServerRequest} and {@link HttpClientResponse} only answer
+ * the accessors the proxy reads on the request path, with values computed once; any other call fails, so that a benchmark silently depending on it is noticed.
+ */
+public final class BenchmarkRequests {
+
+    private static final EndpointKey LISTENER = new EndpointKey("localhost", 8080);
+    private static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress("127.0.0.1", 8080);
+    private static final InetSocketAddress REMOTE_ADDRESS = new InetSocketAddress("127.0.0.1", 54321);
+
+    private BenchmarkRequests() {
+    }
+
+    /**
+     * Build an HTTP/1.1 request.
+     *
+     * @param method the method
+     * @param host   the value of the {@code Host} header
+     * @param uri    the request uri, including the query string
+     * @return the request
+     */
+    public static ProxyRequest request(final HttpMethod method, final String host, final String uri) {
+        final HttpHeaders headers = new DefaultHttpHeaders()
+                .add(HttpHeaderNames.HOST, host)
+                .add(HttpHeaderNames.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0")
+                .add(HttpHeaderNames.ACCEPT, "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                .add(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, br")
+                .add(HttpHeaderNames.ACCEPT_LANGUAGE, "en-US,en;q=0.5")
+                .add(HttpHeaderNames.COOKIE, "JSESSIONID=0123456789ABCDEF; theme=dark");
+        final int query = uri.indexOf('?');
+        final Map<String, Object> answers = Map.of(
+                "protocol", HttpVersion.HTTP_1_1.text(),
+                "version", HttpVersion.HTTP_1_1,
+                "method", method,
+                "uri", uri,
+                "fullPath", query < 0 ? uri : uri.substring(0, query),
+                "scheme", "http",
+                "hostName", host,
+                "requestHeaders", headers,
+                "hostAddress", LOCAL_ADDRESS,
+                "remoteAddress", REMOTE_ADDRESS
+        );
+        final HttpServerRequest request = stub(HttpServerRequest.class, answers);
+        return new ProxyRequest(request, null, LISTENER);
+    }
+
+    /**
+     * Build the response of a backend.
+     *
+     * @param status  the status
+     * @param headers the response headers
+     * @return the response
+     */
+    public static HttpClientResponse response(final HttpResponseStatus status, final HttpHeaders headers) {
+        return stub(HttpClientResponse.class, Map.of(
+                "status", status,
+                "version", HttpVersion.HTTP_1_1,
+                "responseHeaders", headers
+        ));
+    }
+
+    private static <T> T stub(final Class<T> type, final Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(
+                BenchmarkRequests.class.getClassLoader(),
+                new Class<?>[]{type},
+                (proxy, invoked, args) -> {
+                    final String name = invoked.getName();
+                    return switch (name) {
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        case "toString" -> type.getSimpleName() + answers;
+                        // there is no channel, hence no TLS
+                        case "withConnection" -> proxy;
+                        default -> {
+                            final Object answer = answers.get(name);
+                            if (answer == null) {
+                                throw new UnsupportedOperationException(type.getSimpleName() + "." + name);
+                            }
+                            yield answer;
+                        }
+                    };
+                }));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.utils;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removal of the hop-by-hop headers by {@link HttpUtils#stripHopByHopHeaders}, on a copy of the headers of a browser request.
+ * <p>
+ * As headers are stripped in place, {@link #copy()} measures the copy alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StripHopByHopHeadersBenchmark {
+
+    @Param({"keep-alive", "nominated"})
+    public String connection;
+
+    private HttpHeaders headers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        headers = new DefaultHttpHeaders()
+                .add(HttpHeaderNames.HOST, "www.example.com")
+                .add(HttpHeaderNames.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0")
+                .add(HttpHeaderNames.ACCEPT, "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                .add(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, br")
+                .add(HttpHeaderNames.ACCEPT_LANGUAGE, "en-US,en;q=0.5")
+                .add(HttpHeaderNames.COOKIE, "JSESSIONID=0123456789ABCDEF; theme=dark")
+                .add(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.MAX_AGE + "=0");
+        switch (connection) {
+            case "keep-alive" -> headers.add(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            case "nominated" -> headers
+                    .add(HttpHeaderNames.CONNECTION, "keep-alive, Upgrade, X-Session-Token")
+                    .add(HttpHeaderNames.KEEP_ALIVE, "timeout=5, max=1000")
+                    .add(HttpHeaderNames.UPGRADE, "h2c")
+                    .add("X-Session-Token", "abcdef");
+            default -> throw new IllegalArgumentException(connection);
+        }
+    }
+
+    @Benchmark
+    public HttpHeaders copy() {
+        return headers.copy();
+    }
+
+    @Benchmark
+    public HttpHeaders copyAndStrip() {
+        final HttpHeaders copy = headers.copy();
+        HttpUtils.stripHopByHopHeaders(copy);
+        return copy;
+    }
+}
@@ -23,15 +23,21 @@ import java.util.HashMap;
 import java.util.Map;
 import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
 import lombok.Data;
 import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.api.response.SimpleResponse;
 import org.carapaceproxy.core.EndpointKey;
 import org.carapaceproxy.core.HttpProxyServer;
 import org.carapaceproxy.core.HttpProxyServer.ConnectionPoolStats;
 import org.carapaceproxy.server.backends.BackendHealthCheck;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.ConfigurationChangeInProgressException;
 
 /**
  * Access to backends status
@@ -51,6 +57,7 @@ public class BackendsResource {
         private final String id;
         private final String host;
         private final int port;
+        private int weight;
         private long openConnections;
         private long totalRequests;
         private long lastActivityTs;
@@ -58,6 +65,8 @@ public class BackendsResource {
         private boolean available;
         private boolean reportedAsUnreachable;
         private long reportedAsUnreachableTs;
+        private boolean ejected;
+        private long ejectedUntilTs;
         private String lastProbePath;
         private long lastProbeTs;
         private boolean lastProbeSuccess;
@@ -82,6 +91,7 @@ public class BackendsResource {
             String id = backendConf.id();
             BackendBean bean = new BackendBean(id, backendConf.host(), backendConf.port());
             bean.lastProbePath = backendConf.probePath();
+            bean.weight = server.getMapper().getBackendWeight(id);
             EndpointKey key = backendConf.hostPort();
             Map<String, ConnectionPoolStats> poolsStats = server.getConnectionPoolsStats().get(key);
             if (poolsStats != null) {
@@ -97,9 +107,11 @@ public class BackendsResource {
             BackendHealthStatus bhs = backendsSnapshot.get(key);
             if (bhs != null) {
                 final BackendHealthStatus.Snapshot snap = bhs.snapshot();
-                bean.available = snap.status() != BackendHealthStatus.Status.DOWN;
+                bean.available = snap.status() != BackendHealthStatus.Status.DOWN && snap.status() != BackendHealthStatus.Status.EJECTED;
                 bean.reportedAsUnreachable = snap.status() == BackendHealthStatus.Status.DOWN;
                 bean.reportedAsUnreachableTs = snap.unreachableSince();
+                bean.ejected = snap.status() == BackendHealthStatus.Status.EJECTED;
+                bean.ejectedUntilTs = snap.ejectedUntil();
                 BackendHealthCheck lastProbe = bhs.getLastProbe();
                 if (lastProbe != null) {
                     bean.lastProbeTs = lastProbe.endTs();
@@ -114,4 +126,28 @@ public class BackendsResource {
         return res;
     }
 
+    /**
+     * The weight is saved in the dynamic configuration, so it is applied by all the peers.
+     */
+    @Path("/{backendId}/weight")
+    @POST
+    public Response setWeight(@PathParam("backendId") String backendId, @QueryParam("weight") Integer weight) {
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        try {
+            if (weight == null) {
+                throw new IllegalArgumentException("missing weight");
+            }
+            server.updateBackendWeight(backendId, weight);
+        } catch (IllegalArgumentException | ConfigurationChangeInProgressException err) {
+            return SimpleResponse.error(err);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return SimpleResponse.error(err);
+        }
+        Map<String, Object> res = new HashMap<>();
+        res.put("result", "ok");
+        res.put("weight", weight);
+        return Response.ok(res).build();
+    }
+
 }
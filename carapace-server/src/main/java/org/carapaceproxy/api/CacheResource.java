@@ -19,14 +19,25 @@
  */
 package org.carapaceproxy.api;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import javax.servlet.ServletContext;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.carapaceproxy.api.response.SimpleResponse;
 import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.cache.CachePurge;
 import org.carapaceproxy.server.cache.CacheStats;
 import org.carapaceproxy.server.cache.ContentsCache;
 
@@ -39,6 +50,8 @@ import org.carapaceproxy.server.cache.ContentsCache;
 @Produces("application/json")
 public class CacheResource {
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     @javax.ws.rs.core.Context
     ServletContext context;
 
@@ -72,11 +85,73 @@ public class CacheResource {
         return res;
     }
     
+    /**
+     * Purges are applied by all the peers of the cluster, the count is of the contents dropped locally.
+     */
+    @Path("/purge/host")
+    @POST
+    public Response purgeHost(@QueryParam("host") String host) {
+        return purge(() -> CachePurge.byHost(host));
+    }
+
+    @Path("/purge/prefix")
+    @POST
+    public Response purgePrefix(@QueryParam("prefix") String prefix, @QueryParam("host") String host) {
+        return purge(() -> CachePurge.byPrefix(host, prefix));
+    }
+
+    @Path("/purge/regex")
+    @POST
+    public Response purgeRegex(@QueryParam("regex") String regex, @QueryParam("host") String host) {
+        return purge(() -> CachePurge.byRegex(host, regex));
+    }
+
+    @Path("/purge/tag")
+    @POST
+    public Response purgeTag(@QueryParam("tag") String tag) {
+        return purge(() -> CachePurge.byTag(tag));
+    }
+
+    private Response purge(Supplier<CachePurge> request) {
+        CachePurge purge;
+        try {
+            purge = request.get();
+        } catch (IllegalArgumentException err) {
+            return SimpleResponse.error(err);
+        }
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        int count = server.purgeCache(purge);
+        Map<String, Object> res = new HashMap<>();
+        res.put("result", "ok");
+        res.put("purged", count);
+        return Response.ok(res).build();
+    }
+
+    /**
+     * The contents in memory, sorted by URI and written as they are walked.
+     */
     @Path("/inspect")
     @GET
-    public List<Map<String, Object>> inspect() {
+    public StreamingOutput inspect(
+            @QueryParam("host") String host,
+            @QueryParam("offset") @DefaultValue("0") int offset,
+            @QueryParam("limit") @DefaultValue("" + Integer.MAX_VALUE) int limit) {
         HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
         ContentsCache cache = server.getCache();
-        return cache.inspectCache();
+        return output -> {
+            try (JsonGenerator json = MAPPER.getFactory().createGenerator(output)) {
+                json.writeStartArray();
+                cache.inspectCache(host, Math.max(offset, 0), limit, entry -> {
+                    try {
+                        json.writeObject(entry);
+                    } catch (IOException err) {
+                        throw new UncheckedIOException(err);
+                    }
+                });
+                json.writeEndArray();
+            } catch (UncheckedIOException err) {
+                throw err.getCause();
+            }
+        };
     }
 }
@@ -57,6 +57,23 @@ public interface GroupMembershipHandler {
      */
     void fireEvent(String eventId, Map<String, Object> data);
 
+    /**
+     * Register a callback to be called for every event fired with {@link #fireSequentialEvent(String, Map)}.
+     *
+     * @param eventId
+     * @param callback
+     */
+    void watchSequentialEvent(String eventId, EventCallback callback);
+
+    /**
+     * Notify an event on the group. Unlike {@link #fireEvent(String, Map)}, events fired back-to-back are not merged:
+     * the peers are notified of each of them, in order.
+     *
+     * @param eventId
+     * @param data
+     */
+    void fireSequentialEvent(String eventId, Map<String, Object> data);
+
     /**
      * To execute code in mutual exclusion to other peers.
      *
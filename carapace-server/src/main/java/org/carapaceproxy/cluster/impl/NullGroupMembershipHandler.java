@@ -49,6 +49,16 @@ public class NullGroupMembershipHandler implements GroupMembershipHandler {
         // nothing to do, 'cause self events have to be ignored.
     }
 
+    @Override
+    public void watchSequentialEvent(String eventId, EventCallback callback) {
+        // nothing to do, 'cause self events have to be ignored.
+    }
+
+    @Override
+    public void fireSequentialEvent(String eventId, Map<String, Object> data) {
+        // nothing to do, 'cause self events have to be ignored.
+    }
+
     @Override
     public List<String> getPeers() {
         return Collections.emptyList();
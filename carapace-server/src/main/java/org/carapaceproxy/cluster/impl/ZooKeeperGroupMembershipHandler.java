@@ -21,7 +21,9 @@ package org.carapaceproxy.cluster.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -45,6 +47,7 @@ import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.ZookeeperFactory;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
@@ -72,6 +75,7 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
 
     private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperGroupMembershipHandler.class);
     private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int SEQUENTIAL_EVENTS_RETENTION = 100; // per event type, enough for peers lagging behind
 
     private final CuratorFramework client;
     private final String peerId; // of the local one
@@ -208,18 +212,7 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
                 LOG.info("ZK event {} at {}", pcce, path);
                 ChildData data = pcce.getData();
                 if (data != null && eventpath.equals(data.getPath())) {
-                    byte[] content = data.getData();
-                    LOG.info("ZK event content {}", new String(content, StandardCharsets.UTF_8));
-                    if (content != null) {
-                        Map<String, Object> info = MAPPER.readValue(new ByteArrayInputStream(content), Map.class);
-                        String origin = info.remove("origin") + "";
-                        if (peerId.equals(origin)) {
-                            LOG.info("discard self originated event {}", origin);
-                        } else {
-                            LOG.info("handle event {}", info);
-                            callback.eventFired(eventId, info);
-                        }
-                    }
+                    handleEvent(eventId, data.getData(), callback);
                 } else if (pcce.getType() == PathChildrenCacheEvent.Type.CONNECTION_RECONNECTED) {
                     callback.reconnected();
                 }
@@ -236,21 +229,9 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
 
         try {
             final String path = "/proxy/events/" + eventId;
-            Stat exists = client.checkExists().creatingParentsIfNeeded()
-                    .forPath(path);
-            if (exists == null) {
-                client.create()
-                        .creatingParentsIfNeeded()
-                        .withMode(CreateMode.PERSISTENT)
-                        .forPath(path);
-            }
+            ensureEventPath(path);
             LOG.info("Fire event {}", path);
-            Map<String, Object> info = new HashMap<>();
-            info.put("origin", peerId);
-            if (data != null) {
-                info.putAll(data);
-            }
-            byte[] content = MAPPER.writeValueAsBytes(info);
+            byte[] content = eventContent(data);
             // perform an update
             client.setData()
                     .forPath(path, content);
@@ -260,6 +241,99 @@ public class ZooKeeperGroupMembershipHandler implements GroupMembershipHandler,
 
     }
 
+    @Override
+    public void watchSequentialEvent(String eventId, EventCallback callback) {
+        try {
+            final String path = "/proxy/events/" + eventId;
+            ensureEventPath(path);
+
+            LOG.info("watching {}", path);
+            PathChildrenCache cache = new PathChildrenCache(client, path, true);
+            // hold a strong reference to the PathChildrenCache
+            watchedEvents.add(cache);
+            cache.getListenable().addListener((PathChildrenCacheListener) (CuratorFramework cf, PathChildrenCacheEvent pcce) -> {
+                LOG.info("ZK event {} at {}", pcce, path);
+                // every event is a child node of its own, created once and never updated
+                if (pcce.getType() == PathChildrenCacheEvent.Type.CHILD_ADDED) {
+                    handleEvent(eventId, pcce.getData().getData(), callback);
+                } else if (pcce.getType() == PathChildrenCacheEvent.Type.CONNECTION_RECONNECTED) {
+                    callback.reconnected();
+                }
+            }, callbacksExecutor);
+            cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void fireSequentialEvent(String eventId, Map<String, Object> data) {
+        try {
+            final String path = "/proxy/events/" + eventId;
+            ensureEventPath(path);
+            String node = client.create()
+                    .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                    .forPath(path + "/event-", eventContent(data));
+            LOG.info("Fire event {}", node);
+            pruneSequentialEvents(path);
+        } catch (Exception ex) {
+            LOG.error("Cannot fire event {}", eventId, ex);
+        }
+    }
+
+    private void pruneSequentialEvents(String path) throws Exception {
+        // sequence numbers are zero-padded, so the natural order is the firing one
+        List<String> events = new ArrayList<>(client.getChildren().forPath(path));
+        Collections.sort(events);
+        for (String event : events.subList(0, Math.max(0, events.size() - SEQUENTIAL_EVENTS_RETENTION))) {
+            try {
+                client.delete().forPath(path + "/" + event);
+            } catch (KeeperException.NoNodeException ex) {
+                // already pruned by another peer
+            }
+        }
+    }
+
+    private void ensureEventPath(String path) throws Exception {
+        Stat exists = client.checkExists().creatingParentsIfNeeded()
+                .forPath(path);
+        if (exists == null) {
+            try {
+                client.create()
+                        .creatingParentsIfNeeded()
+                        .withMode(CreateMode.PERSISTENT)
+                        .forPath(path);
+            } catch (KeeperException.NodeExistsException ex) {
+                // created by another peer in the meantime
+            }
+        }
+    }
+
+    private byte[] eventContent(Map<String, Object> data) throws IOException {
+        Map<String, Object> info = new HashMap<>();
+        info.put("origin", peerId);
+        if (data != null) {
+            info.putAll(data);
+        }
+        return MAPPER.writeValueAsBytes(info);
+    }
+
+    private void handleEvent(String eventId, byte[] content, EventCallback callback) throws IOException {
+        if (content == null) {
+            return;
+        }
+        LOG.info("ZK event content {}", new String(content, StandardCharsets.UTF_8));
+        Map<String, Object> info = MAPPER.readValue(new ByteArrayInputStream(content), Map.class);
+        String origin = info.remove("origin") + "";
+        if (peerId.equals(origin)) {
+            LOG.info("discard self originated event {}", origin);
+        } else {
+            LOG.info("handle event {}", info);
+            callback.eventFired(eventId, info);
+        }
+    }
+
     @Override
     public List<String> getPeers() {
         try {
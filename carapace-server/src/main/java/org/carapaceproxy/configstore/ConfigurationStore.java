@@ -21,8 +21,11 @@ package org.carapaceproxy.configstore;
 
 import herddb.utils.BooleanHolder;
 import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
@@ -102,7 +105,13 @@ public interface ConfigurationStore extends AutoCloseable {
         if (values.isBlank()) {
             return defaultValue;
         }
-        return Set.of(values.replaceAll(" ", "").split(PROPERTY_VALUES_SEPARATOR));
+        // in the configured order, as it matters for instance for the backends of a director
+        final var list = Arrays.asList(values.replaceAll(" ", "").split(PROPERTY_VALUES_SEPARATOR));
+        final var set = new LinkedHashSet<>(list);
+        if (set.size() != list.size()) {
+            throw new ConfigurationNotValidException("Invalid value '" + values + "' for parameter '" + key + "' : duplicate values");
+        }
+        return Collections.unmodifiableSequencedSet(set);
     }
 
     default String getClassname(String key, String defaultValue) throws ConfigurationNotValidException {
@@ -0,0 +1,150 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compiled form of the {@code accesslog.format} template.
+ * <p>
+ * The template is parsed once per configuration into a flat list of segments, each one either a literal
+ * or a writer of a single field of a {@link RequestsLogger.Entry}.
+ * Placeholders use the StringTemplate {@code <name>} syntax;
+ * unknown placeholders render as empty strings, as StringTemplate does with missing attributes.
+ */
+final class AccessLogTemplate {
+
+    private static final String NOT_AVAILABLE = "n/a";
+    private static final String CACHED = "CACHED";
+
+    private static final Map<String, Segment> FIELDS = Map.ofEntries(
+            Map.entry("client_ip", (e, t, out) -> append(out, e.clientIp())),
+            Map.entry("server_ip", (e, t, out) -> append(out, e.serverIp())),
+            Map.entry("method", (e, t, out) -> append(out, e.method())),
+            Map.entry("host", (e, t, out) -> append(out, e.host())),
+            Map.entry("uri", (e, t, out) -> append(out, e.uri())),
+            Map.entry("timestamp", (e, t, out) -> t.timestampFormatter.formatTo(Instant.ofEpochMilli(e.startTs()), out)),
+            Map.entry("total_time", (e, t, out) -> out.append(e.lastActivity() - e.startTs())),
+            Map.entry("action_id", (e, t, out) -> append(out, e.actionId())),
+            Map.entry("route_id", (e, t, out) -> append(out, e.routeId())),
+            Map.entry("user_id", (e, t, out) -> append(out, e.userId())),
+            Map.entry("session_id", (e, t, out) -> append(out, e.sessionId())),
+            Map.entry("http_protocol_version", (e, t, out) -> append(out, e.httpProtocolVersion())),
+            Map.entry("backend_id", (e, t, out) -> {
+                if (e.servedFromCache()) {
+                    out.append(CACHED);
+                } else {
+                    append(out, e.backendHost());
+                    out.append(':').append(e.backendPort());
+                }
+            }),
+            Map.entry("backend_time", (e, t, out) -> out.append(e.servedFromCache() ? 0 : e.backendStartTs() - e.startTs())),
+            Map.entry("tls_protocol", (e, t, out) -> out.append(e.tlsProtocol() != null ? e.tlsProtocol() : NOT_AVAILABLE)),
+            Map.entry("tls_cipher_suite", (e, t, out) -> out.append(e.tlsCipherSuite() != null ? e.tlsCipherSuite() : NOT_AVAILABLE))
+    );
+
+    private final DateTimeFormatter timestampFormatter;
+    private final Segment[] segments;
+
+    private AccessLogTemplate(final DateTimeFormatter timestampFormatter, final Segment[] segments) {
+        this.timestampFormatter = timestampFormatter;
+        this.segments = segments;
+    }
+
+    static AccessLogTemplate compile(final RuntimeServerConfiguration configuration) {
+        return compile(configuration.getAccessLogFormat(), configuration.getAccessLogTimestampFormat());
+    }
+
+    static AccessLogTemplate compile(final String format, final String timestampFormat) {
+        final DateTimeFormatter timestampFormatter = DateTimeFormatter
+                .ofPattern(timestampFormat)
+                .withLocale(Locale.getDefault())
+                .withZone(ZoneId.systemDefault());
+        return new AccessLogTemplate(timestampFormatter, parse(format));
+    }
+
+    private static Segment[] parse(final String format) {
+        final List<Segment> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < format.length()) {
+            final char c = format.charAt(i);
+            if (c == '\\' && i + 1 < format.length() && (format.charAt(i + 1) == '<' || format.charAt(i + 1) == '>')) {
+                // escaped delimiter
+                literal.append(format.charAt(i + 1));
+                i += 2;
+                continue;
+            }
+            final int end = c == '<' ? format.indexOf('>', i + 1) : -1;
+            if (end < 0) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (!literal.isEmpty()) {
+                segments.add(literal(literal.toString()));
+                literal.setLength(0);
+            }
+            final Segment field = FIELDS.get(format.substring(i + 1, end).trim());
+            if (field != null) {
+                segments.add(field);
+            }
+            i = end + 1;
+        }
+        if (!literal.isEmpty()) {
+            segments.add(literal(literal.toString()));
+        }
+        return segments.toArray(Segment[]::new);
+    }
+
+    /**
+     * Render an entry, appending it to the given buffer.
+     *
+     * @param entry the entry to render
+     * @param out   the buffer to append to
+     */
+    void render(final RequestsLogger.Entry entry, final StringBuilder out) {
+        for (final Segment segment : segments) {
+            segment.write(entry, this, out);
+        }
+    }
+
+    private static void append(final StringBuilder out, final String value) {
+        if (value != null) {
+            out.append(value);
+        }
+    }
+
+    private static Segment literal(final String text) {
+        return (e, t, out) -> out.append(text);
+    }
+
+    @FunctionalInterface
+    private interface Segment {
+
+        void write(RequestsLogger.Entry entry, AccessLogTemplate template, StringBuilder out);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.carapaceproxy.utils.PrometheusUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * An adaptive limit of the requests in flight towards a backend.
+ * <p>
+ * The limit follows the latency of the backend with a gradient algorithm: the recent latency is compared with its long-term average;
+ * while they are close the limit grows by about its square root, when the backend queues requests and slows down the limit shrinks
+ * proportionally.
+ * Timeouts and connection errors cut it by a tenth.
+ * <p>
+ * The requests over the limit wait for a free slot in a bounded queue, in arrival order, up to a deadline;
+ * when the queue is full, or the deadline expires, the request is shed and can be answered at once with a 503.
+ * This keeps the latency bounded under overload, instead of piling up requests towards a slow backend
+ * until they time out.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Gauge LIMIT_GAUGE = PrometheusUtils.createGauge(
+            "backends", "concurrency_limit", "current adaptive limit of the requests in flight", "host"
+    ).register();
+    private static final Gauge IN_FLIGHT_GAUGE = PrometheusUtils.createGauge(
+            "backends", "concurrency_inflight", "requests in flight under the adaptive limit", "host"
+    ).register();
+    private static final Gauge QUEUED_GAUGE = PrometheusUtils.createGauge(
+            "backends", "concurrency_queued", "requests waiting for the adaptive limit", "host"
+    ).register();
+    private static final Counter SHED_COUNTER = PrometheusUtils.createCounter(
+            "backends", "concurrency_shed_total", "requests rejected by the adaptive limit", "host", "reason"
+    ).register();
+
+    // how much the recent latency can exceed the long-term one before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // weight of the new estimate of the limit
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final double SHORT_ALPHA = 2.0 / (10 + 1);
+    private static final double LONG_ALPHA = 2.0 / (600 + 1);
+
+    /**
+     * The configuration of the limiters.
+     *
+     * @param initialLimit       the limit before any response
+     * @param minLimit           the lowest limit
+     * @param maxLimit           the highest limit
+     * @param maxQueued          the maximum number of requests waiting for a slot, 0 to shed at once
+     * @param queueTimeoutMillis the maximum time a request waits for a slot
+     */
+    public record Settings(int initialLimit, int minLimit, int maxLimit, int maxQueued, long queueTimeoutMillis) {
+    }
+
+    private final String label;
+    private final Gauge.Child limitGauge;
+    private final Gauge.Child inFlightGauge;
+    private final Gauge.Child queuedGauge;
+    private final Counter.Child queueFullCounter;
+    private final Counter.Child timeoutCounter;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private volatile Settings settings;
+    private volatile int limit;
+    // guarded by this
+    private double estimate;
+    private double shortRtt = Double.NaN;
+    private double longRtt = Double.NaN;
+
+    public ConcurrencyLimiter(final EndpointKey endpoint, final Settings settings) {
+        this.label = endpoint.host() + "_" + endpoint.port();
+        this.limitGauge = LIMIT_GAUGE.labels(label);
+        this.inFlightGauge = IN_FLIGHT_GAUGE.labels(label);
+        this.queuedGauge = QUEUED_GAUGE.labels(label);
+        this.queueFullCounter = SHED_COUNTER.labels(label, "queue_full");
+        this.timeoutCounter = SHED_COUNTER.labels(label, "timeout");
+        this.settings = settings;
+        this.estimate = clamp(settings.initialLimit(), settings);
+        this.limit = (int) estimate;
+        limitGauge.set(limit);
+    }
+
+    /**
+     * Apply a new configuration, keeping the limit learnt so far within the new bounds.
+     *
+     * @param settings the new configuration
+     */
+    public void setSettings(final Settings settings) {
+        synchronized (this) {
+            this.settings = settings;
+            estimate = clamp(estimate, settings);
+            limit = (int) estimate;
+        }
+        limitGauge.set(limit);
+        drain();
+    }
+
+    /**
+     * Remove the metrics of the backend, when it is not configured anymore.
+     * The requests still holding a slot can end normally.
+     */
+    public void close() {
+        LIMIT_GAUGE.remove(label);
+        IN_FLIGHT_GAUGE.remove(label);
+        QUEUED_GAUGE.remove(label);
+        SHED_COUNTER.remove(label, "queue_full");
+        SHED_COUNTER.remove(label, "timeout");
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Get a slot for a request, waiting in the queue if there are none.
+     *
+     * @return a permit to {@link Permit#release release} when the request ends, or an empty publisher if the request is shed
+     */
+    public Mono<Permit> acquire() {
+        // the queued requests come first
+        if (waiters.isEmpty() && tryReserve()) {
+            return Mono.just(new Permit());
+        }
+        final Settings current = settings;
+        if (queued.incrementAndGet() > current.maxQueued()) {
+            queued.decrementAndGet();
+            queueFullCounter.inc();
+            return Mono.empty();
+        }
+        final Waiter waiter = new Waiter();
+        return Mono.<Permit>create(sink -> {
+                    waiter.sink = sink;
+                    sink.onCancel(waiter::cancel);
+                    waiters.add(waiter);
+                    queuedGauge.set(queued.get());
+                    // a slot could have been freed in the meantime
+                    drain();
+                })
+                .timeout(Duration.ofMillis(current.queueTimeoutMillis()), Mono.fromRunnable(timeoutCounter::inc));
+    }
+
+    private boolean tryReserve() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                inFlightGauge.set(current + 1);
+                return true;
+            }
+        }
+    }
+
+    private void free() {
+        inFlightGauge.set(inFlight.decrementAndGet());
+    }
+
+    /**
+     * Hand the free slots to the waiting requests.
+     */
+    private void drain() {
+        while (!waiters.isEmpty() && tryReserve()) {
+            final Waiter waiter = waiters.poll();
+            if (waiter == null) {
+                free();
+                continue;
+            }
+            queuedGauge.set(queued.decrementAndGet());
+            if (!waiter.grant()) {
+                // timed out or cancelled
+                free();
+            }
+        }
+    }
+
+    private synchronized void update(final long rttMillis, final int inFlightAtStart, final boolean dropped) {
+        final Settings current = settings;
+        if (dropped) {
+            estimate = clamp(estimate * BACKOFF, current);
+        } else {
+            // a floor, for the backends answering in less than a millisecond
+            final double rtt = Math.max(rttMillis, 1);
+            if (Double.isNaN(shortRtt)) {
+                shortRtt = rtt;
+                longRtt = rtt;
+            } else {
+                shortRtt += (rtt - shortRtt) * SHORT_ALPHA;
+                longRtt += (rtt - longRtt) * LONG_ALPHA;
+            }
+            if (longRtt / shortRtt > 2) {
+                // the backend got much faster, let the average catch up
+                longRtt *= 0.95;
+            }
+            if (inFlightAtStart < estimate / 2) {
+                // the limit was not reached, the latency says nothing about it
+                return;
+            }
+            final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+            final double next = estimate * gradient + Math.sqrt(estimate);
+            estimate = clamp(estimate * (1 - SMOOTHING) + next * SMOOTHING, current);
+        }
+        limit = (int) estimate;
+        limitGauge.set(limit);
+    }
+
+    private static double clamp(final double value, final Settings settings) {
+        return Math.max(settings.minLimit(), Math.min(settings.maxLimit(), value));
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private final class Waiter {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile MonoSink<Permit> sink;
+        private volatile Permit granted;
+
+        private boolean grant() {
+            granted = new Permit();
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            sink.success(granted);
+            return true;
+        }
+
+        private void cancel() {
+            if (done.compareAndSet(false, true)) {
+                if (waiters.remove(this)) {
+                    queuedGauge.set(queued.decrementAndGet());
+                }
+            } else {
+                // cancelled while being granted, the permit will not be delivered
+                granted.release(-1);
+            }
+        }
+    }
+
+    /**
+     * A slot taken by a request.
+     */
+    public final class Permit {
+
+        private final int inFlightAtStart = inFlight.get();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        /**
+         * Free the slot, learning from the time the backend took to answer.
+         *
+         * @param rttMillis the time to the response headers, or a negative value if the backend did not answer
+         *                  for reasons not depending on it (e.g. the client went away)
+         */
+        public void release(final long rttMillis) {
+            release(rttMillis, false);
+        }
+
+        /**
+         * Free the slot of a request that the backend failed, because of a timeout or a connection error.
+         */
+        public void dropped() {
+            release(-1, true);
+        }
+
+        private void release(final long rttMillis, final boolean dropped) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            free();
+            if (dropped || rttMillis >= 0) {
+                update(rttMillis, inFlightAtStart, dropped);
+            }
+            drain();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.prometheus.client.Counter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
+import org.carapaceproxy.utils.PrometheusUtils;
+
+/**
+ * Compiled form of the {@link ConnectionPoolConfiguration#getDomain() domains} of the connection pools.
+ * <p>
+ * The first pool in configuration order whose domain pattern matches the whole host name is selected,
+ * falling back to the default pool.
+ * The patterns are compiled once per configuration; host names equal to the literal text of a pattern,
+ * e.g. {@code localhost} or {@code www.example.com}, only need to check the pools that come before it.
+ * Results are kept in a bounded per-hostname cache, as host names come from the clients.
+ */
+final class ConnectionPoolMatcher {
+
+    static final int CACHE_SIZE = 10_000;
+
+    private static final Counter SELECTIONS_COUNTER = PrometheusUtils.createCounter(
+            "connectionpools", "selections_total", "requests assigned to each connection pool", "pool"
+    ).register();
+
+    private final Entry[] entries;
+    private final Map<String, Integer> exactHosts;
+    private final ConnectionPoolConfiguration defaultPool;
+    private final Counter.Child defaultPoolSelections;
+    private final Cache<String, Entry> cache = Caffeine.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    ConnectionPoolMatcher(final Collection<ConnectionPoolConfiguration> pools, final ConnectionPoolConfiguration defaultPool) {
+        final List<Entry> compiled = new ArrayList<>(pools.size());
+        final Map<String, Integer> exact = new HashMap<>();
+        for (final ConnectionPoolConfiguration pool : pools) {
+            final String literal = literalText(pool.getDomain());
+            if (literal != null) {
+                exact.putIfAbsent(literal, compiled.size());
+            }
+            compiled.add(new Entry(pool, Pattern.compile(pool.getDomain()), SELECTIONS_COUNTER.labels(pool.getId())));
+        }
+        this.entries = compiled.toArray(Entry[]::new);
+        this.exactHosts = Map.copyOf(exact);
+        this.defaultPool = defaultPool;
+        this.defaultPoolSelections = defaultPool != null ? SELECTIONS_COUNTER.labels(defaultPool.getId()) : null;
+    }
+
+    /**
+     * Select the connection pool for a host name, and count the selection.
+     *
+     * @param hostName the host name
+     * @return the configuration of the pool, or the default one if none matches
+     */
+    ConnectionPoolConfiguration select(final String hostName) {
+        final Entry entry = cache.get(hostName, this::match);
+        if (entry == Entry.NONE) {
+            if (defaultPoolSelections != null) {
+                defaultPoolSelections.inc();
+            }
+            return defaultPool;
+        }
+        entry.selections().inc();
+        return entry.pool();
+    }
+
+    private Entry match(final String hostName) {
+        // an equal literal matches for sure, only the pools that come first can take precedence
+        final Integer exact = exactHosts.get(hostName);
+        final int limit = exact != null ? exact : entries.length;
+        for (int i = 0; i < limit; i++) {
+            if (entries[i].pattern().matcher(hostName).matches()) {
+                return entries[i];
+            }
+        }
+        return exact != null ? entries[exact] : Entry.NONE;
+    }
+
+    /**
+     * The text of a pattern that certainly matches it, if it is made of literal characters only;
+     * an unescaped dot is accepted, as it matches itself too.
+     *
+     * @param regex the pattern
+     * @return the literal text, or null if the pattern uses any other construct
+     */
+    static String literalText(final String regex) {
+        final StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // character classes, back references and quoting
+                    return null;
+                }
+                literal.append(regex.charAt(++i));
+            } else if ("[](){}*+?^$|".indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    private record Entry(ConnectionPoolConfiguration pool, Pattern pattern, Counter.Child selections) {
+
+        static final Entry NONE = new Entry(null, null, null);
+    }
+}
@@ -1,30 +1,50 @@
 package org.carapaceproxy.core;
 
 import static reactor.netty.Metrics.CONNECTION_PROVIDER_PREFIX;
+import static reactor.netty.Metrics.NAME;
 import io.micrometer.core.instrument.Metrics;
 import java.net.InetSocketAddress;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.netty.resources.ConnectionProvider;
 
+/**
+ * Connection pools towards the backends.
+ * <p>
+ * On {@link #reloadConfiguration reload} only the pools whose configuration changed are rebuilt;
+ * the providers they replace, as the ones of dropped pools, are disposed gracefully according to their
+ * {@link ConnectionPoolConfiguration#getDisposeTimeout() dispose timeout}, while new requests already go to the new ones.
+ * The connections kept alive towards unchanged pools and backends survive the reload.
+ */
 public class ConnectionsManager implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionsManager.class);
-    private final Map<ConnectionPoolConfiguration, ConnectionProvider> connectionPools = new ConcurrentHashMap<>();
+    private volatile Map<ConnectionPoolConfiguration, ConnectionProvider> connectionPools = Map.of();
     private volatile ConnectionPoolConfiguration defaultConnectionPoolConfiguration;
     private volatile ConnectionProvider defaultConnectionPoolProvider;
+    private volatile Set<EndpointKey> endpoints = Set.of();
+    private volatile ConnectionPoolMatcher connectionPoolMatcher = new ConnectionPoolMatcher(List.of(), null);
 
-    public void reloadConfiguration(RuntimeServerConfiguration newConfiguration, Collection<BackendConfiguration> newEndpoints) {
-        close();
+    public synchronized void reloadConfiguration(RuntimeServerConfiguration newConfiguration, Collection<BackendConfiguration> newEndpoints) {
+        // providers by pool id, to be matched against the new configuration
+        final Map<String, Map.Entry<ConnectionPoolConfiguration, ConnectionProvider>> previousProviders = new LinkedHashMap<>();
+        connectionPools.entrySet().forEach(e -> previousProviders.put(e.getKey().getId(), e));
+        if (defaultConnectionPoolProvider != null) {
+            previousProviders.put(defaultConnectionPoolConfiguration.getId(), Map.entry(defaultConnectionPoolConfiguration, defaultConnectionPoolProvider));
+        }
 
         // custom pools
         final var connectionPoolsCopy = new ArrayList<>(newConfiguration.getConnectionPools().values());
@@ -32,49 +52,105 @@ public class ConnectionsManager implements AutoCloseable {
         // default pool
         connectionPoolsCopy.add(newConfiguration.getDefaultConnectionPool());
 
-        connectionPoolsCopy.forEach(connectionPool -> {
+        final Map<ConnectionPoolConfiguration, ConnectionProvider> newConnectionPools = new LinkedHashMap<>();
+        final List<ConnectionProvider> toDispose = new ArrayList<>();
+        int built = 0;
+        for (final ConnectionPoolConfiguration connectionPool : connectionPoolsCopy) {
             if (!connectionPool.isEnabled()) {
-                return;
+                continue;
+            }
+            final var previous = previousProviders.remove(connectionPool.getId());
+            final ConnectionProvider provider;
+            if (previous != null && previous.getKey().equals(connectionPool)) {
+                provider = previous.getValue();
+            } else {
+                if (previous != null) {
+                    LOGGER.info("Connection pool {} changed, replacing its provider", connectionPool.getId());
+                    toDispose.add(previous.getValue());
+                }
+                provider = buildConnectionProvider(connectionPool, newEndpoints);
+                built++;
             }
-
-            ConnectionProvider.Builder builder = ConnectionProvider.builder(connectionPool.getId())
-                    .disposeTimeout(Duration.ofMillis(connectionPool.getDisposeTimeout()));
-
-            // max connections per endpoint limit setup
-            newEndpoints.forEach(be -> {
-                LOGGER.debug(
-                        "Setup max connections per endpoint {}:{} = {} for connectionpool {}", be.host(), be.port(), connectionPool.getMaxConnectionsPerEndpoint(), connectionPool.getId());
-                builder.forRemoteHost(InetSocketAddress.createUnresolved(be.host(), be.port()), spec -> {
-                    spec.maxConnections(connectionPool.getMaxConnectionsPerEndpoint());
-                    spec.pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()));
-                    spec.maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()));
-                    spec.maxLifeTime(Duration.ofMillis(connectionPool.getMaxLifeTime()));
-                    spec.evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2L));
-                    spec.metrics(true);
-                    spec.lifo();
-                });
-            });
 
             if (connectionPool.getId().equals("*")) {
                 defaultConnectionPoolConfiguration = connectionPool;
-                defaultConnectionPoolProvider = builder.build();
+                defaultConnectionPoolProvider = provider;
             } else {
-                connectionPools.put(connectionPool, builder.build());
+                newConnectionPools.put(connectionPool, provider);
             }
+        }
+        connectionPools = Collections.unmodifiableMap(newConnectionPools);
+        connectionPoolMatcher = new ConnectionPoolMatcher(newConnectionPools.keySet(), defaultConnectionPoolConfiguration);
+        previousProviders.values().forEach(e -> {
+            LOGGER.info("Connection pool {} dropped", e.getKey().getId());
+            toDispose.add(e.getValue());
         });
+
+        // close the connections towards dropped backends
+        final Set<EndpointKey> newEndpointKeys = newEndpoints.stream()
+                .map(BackendConfiguration::hostPort)
+                .collect(Collectors.toUnmodifiableSet());
+        final Set<EndpointKey> droppedEndpoints = new HashSet<>(endpoints);
+        droppedEndpoints.removeAll(newEndpointKeys);
+        endpoints = newEndpointKeys;
+        for (final EndpointKey endpoint : droppedEndpoints) {
+            LOGGER.debug("Endpoint {} dropped, disposing its connections", endpoint);
+            final var address = InetSocketAddress.createUnresolved(endpoint.host(), endpoint.port());
+            newConnectionPools.values().forEach(provider -> provider.disposeWhen(address));
+            if (defaultConnectionPoolProvider != null) {
+                defaultConnectionPoolProvider.disposeWhen(address);
+            }
+        }
+
+        toDispose.forEach(ConnectionsManager::disposeGracefully);
+        LOGGER.info("Connection pools reloaded: {} built, {} disposed, {} dropped endpoints", built, toDispose.size(), droppedEndpoints.size());
     }
 
-    @Override
-    public void close() {
-        connectionPools.values().forEach(ConnectionProvider::dispose); // graceful shutdown according to disposeTimeout
-        connectionPools.clear();
+    private static ConnectionProvider buildConnectionProvider(final ConnectionPoolConfiguration connectionPool, final Collection<BackendConfiguration> endpoints) {
+        // the pool-wide spec applies to backends added by later reloads, without rebuilding the provider
+        final ConnectionProvider.Builder builder = ConnectionProvider.builder(connectionPool.getId())
+                .disposeTimeout(Duration.ofMillis(connectionPool.getDisposeTimeout()))
+                .maxConnections(connectionPool.getMaxConnectionsPerEndpoint())
+                .pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()))
+                .maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()))
+                .maxLifeTime(Duration.ofMillis(connectionPool.getMaxLifeTime()))
+                .evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2L))
+                .metrics(true)
+                .lifo();
+
+        // max connections per endpoint limit setup
+        endpoints.forEach(be -> {
+            LOGGER.debug(
+                    "Setup max connections per endpoint {}:{} = {} for connectionpool {}", be.host(), be.port(), connectionPool.getMaxConnectionsPerEndpoint(), connectionPool.getId());
+            builder.forRemoteHost(InetSocketAddress.createUnresolved(be.host(), be.port()), spec -> {
+                spec.maxConnections(connectionPool.getMaxConnectionsPerEndpoint());
+                spec.pendingAcquireTimeout(Duration.ofMillis(connectionPool.getBorrowTimeout()));
+                spec.maxIdleTime(Duration.ofMillis(connectionPool.getIdleTimeout()));
+                spec.maxLifeTime(Duration.ofMillis(connectionPool.getMaxLifeTime()));
+                spec.evictInBackground(Duration.ofMillis(connectionPool.getIdleTimeout() * 2L));
+                spec.metrics(true);
+                spec.lifo();
+            });
+        });
+        return builder.build();
+    }
 
-        if (defaultConnectionPoolProvider != null) {
-            // being it volatile, we don't have the compile-time certainty that it won't become null after the check;
-            //  still, it is reasonably safe to assume that it will be not null
-            Objects.requireNonNull(defaultConnectionPoolProvider).dispose();
-        }
+    private static void disposeGracefully(final ConnectionProvider provider) {
+        // the meters of the replacing provider would share the ids of the disposed one
+        removeMeters(provider.name());
+        provider.disposeLater() // graceful shutdown according to disposeTimeout
+                .subscribe(null, err -> LOGGER.error("Error disposing connection pool {}", provider.name(), err));
+    }
+
+    private static void removeMeters(final String poolName) {
+        Metrics.globalRegistry.forEachMeter(m -> {
+            if (m.getId().getName().startsWith(CONNECTION_PROVIDER_PREFIX) && poolName.equals(m.getId().getTag(NAME))) {
+                Metrics.globalRegistry.remove(m);
+            }
+        });
+    }
 
+    private static void removeAllMeters() {
         Metrics.globalRegistry.forEachMeter(m -> {
             if (m.getId().getName().startsWith(CONNECTION_PROVIDER_PREFIX)) {
                 Metrics.globalRegistry.remove(m);
@@ -82,12 +158,30 @@ public class ConnectionsManager implements AutoCloseable {
         });
     }
 
+    @Override
+    public synchronized void close() {
+        connectionPools.values().forEach(ConnectionProvider::dispose); // graceful shutdown according to disposeTimeout
+        connectionPools = Map.of();
+        connectionPoolMatcher = new ConnectionPoolMatcher(List.of(), defaultConnectionPoolConfiguration);
+        endpoints = Set.of();
+
+        if (defaultConnectionPoolProvider != null) {
+            defaultConnectionPoolProvider.dispose();
+            defaultConnectionPoolProvider = null;
+        }
+
+        removeAllMeters();
+    }
+
+    /**
+     * Select the connection pool to forward a request to a host, counting the selection.
+     *
+     * @param hostName the requested host
+     * @return the first pool, in configuration order, whose domain matches the host, or the default one
+     */
     public ConnectionPoolConfiguration findConnectionPool(final String hostName) {
         Objects.requireNonNull(hostName);
-        return connectionPools.keySet().stream()
-                .filter(e -> Pattern.matches(e.getDomain(), hostName))
-                .findFirst()
-                .orElse(defaultConnectionPoolConfiguration);
+        return connectionPoolMatcher.select(hostName);
     }
 
     public ConnectionProvider getConnectionProvider(final String hostName) {
@@ -98,8 +192,9 @@ public class ConnectionsManager implements AutoCloseable {
         if (configuration.equals(defaultConnectionPoolConfiguration)) {
             return defaultConnectionPoolProvider;
         }
-        if (connectionPools.containsKey(configuration)) {
-            return connectionPools.get(configuration);
+        final ConnectionProvider provider = connectionPools.get(configuration);
+        if (provider != null) {
+            return provider;
         }
         throw new IllegalArgumentException("No connection provider for " + configuration);
     }
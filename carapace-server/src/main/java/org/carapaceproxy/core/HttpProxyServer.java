@@ -58,11 +58,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.servlet.DispatcherType;
 import lombok.Data;
 import lombok.Getter;
@@ -84,6 +88,7 @@ import org.carapaceproxy.configstore.HerdDBConfigurationStore;
 import org.carapaceproxy.configstore.PropertiesConfigurationStore;
 import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.cache.CacheByteBufMemoryUsageMetric;
+import org.carapaceproxy.server.cache.CachePurge;
 import org.carapaceproxy.server.cache.ContentsCache;
 import org.carapaceproxy.server.certificates.DynamicCertificatesManager;
 import org.carapaceproxy.server.certificates.ocsp.OcspStaplingManager;
@@ -126,6 +131,8 @@ import org.slf4j.LoggerFactory;
 public class HttpProxyServer implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpProxyServer.class);
+    private static final String CACHE_PURGE_EVENT = "cachePurge";
+    private static final Pattern BACKEND_WEIGHT_PROPERTY = Pattern.compile("backend\\.([0-9]+)\\.weight");
 
     @Getter
     private final Listeners listeners;
@@ -181,6 +188,9 @@ public class HttpProxyServer implements AutoCloseable {
     @Getter
     private volatile EndpointMapper mapper;
 
+    // the dynamic configuration the current mapper was built from, with the later changes of the weights
+    private Properties appliedDynamicConfiguration;
+
     @Getter
     @Setter
     private volatile UserRealm realm;
@@ -262,8 +272,11 @@ public class HttpProxyServer implements AutoCloseable {
         this.trustStoreManager = new TrustStoreManager(currentConfiguration, this);
         this.ocspStaplingManager = new OcspStaplingManager(trustStoreManager);
         this.proxyRequestsManager = new ProxyRequestsManager(this);
+        // Best practice is to reuse EventLoopGroup
+        // http://normanmaurer.me/presentations/2014-facebook-eng-netty/slides.html#25.0
+        this.eventLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
         this.mapper = mapperFactory.build(this);
-        this.backendHealthManager = new BackendHealthManager(currentConfiguration, this.mapper, this.basePath);
+        this.backendHealthManager = new BackendHealthManager(currentConfiguration, this.mapper, this.basePath, this.eventLoopGroup);
         this.proxyRequestsManager.reloadConfiguration(currentConfiguration, this.mapper.getBackends().values());
 
         this.usePooledByteBufAllocator = Boolean.getBoolean("cache.allocator.usepooledbytebufallocator");
@@ -271,9 +284,6 @@ public class HttpProxyServer implements AutoCloseable {
                 ? new PooledByteBufAllocator(true)
                 : new UnpooledByteBufAllocator(true);
         this.cacheByteBufMemoryUsageMetric = new CacheByteBufMemoryUsageMetric(this);
-        // Best practice is to reuse EventLoopGroup
-        // http://normanmaurer.me/presentations/2014-facebook-eng-netty/slides.html#25.0
-        this.eventLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
     }
 
     public void rewriteConfiguration(final ConfigurationConsumer function) throws ConfigurationNotValidException, InterruptedException, ConfigurationChangeInProgressException {
@@ -446,6 +456,7 @@ public class HttpProxyServer implements AutoCloseable {
             ocspStaplingManager.start();
             cacheByteBufMemoryUsageMetric.start();
             groupMembershipHandler.watchEvent("configurationChange", new ConfigurationChangeCallback());
+            groupMembershipHandler.watchSequentialEvent(CACHE_PURGE_EVENT, new CachePurgeCallback());
         } catch (RuntimeException err) {
             close();
             throw err;
@@ -683,6 +694,33 @@ public class HttpProxyServer implements AutoCloseable {
         applyDynamicConfigurationFromAPI(new PropertiesConfigurationStore(props));
     }
 
+    /**
+     * Change the weight of a backend in the dynamic configuration, so that it survives the next configuration changes
+     * and it is applied by the other peers too.
+     * The weight is applied to the current mapper, without building a new one.
+     *
+     * @param backendId the id of the backend
+     * @param weight    the new weight, 0 to drain the backend
+     * @throws IllegalArgumentException if the backend is not in the dynamic configuration or the weight is negative
+     */
+    public void updateBackendWeight(final String backendId, final int weight) throws ConfigurationChangeInProgressException, InterruptedException {
+        if (weight < 0) {
+            throw new IllegalArgumentException("invalid weight " + weight + " for backend " + backendId);
+        }
+        Properties props = dynamicConfigurationStore.asProperties(null);
+        boolean configured = dynamicConfigurationStore.anyPropertyMatches((k, v) -> {
+            if (k.matches("backend\\.[0-9]+\\.id") && v.equals(backendId)) {
+                props.setProperty(k.replace(".id", ".weight"), String.valueOf(weight));
+                return true;
+            }
+            return false;
+        });
+        if (!configured) {
+            throw new IllegalArgumentException("backend " + backendId + " is not configured");
+        }
+        applyDynamicConfigurationFromAPI(new PropertiesConfigurationStore(props));
+    }
+
     private void performCertificateUpdate(Properties props, String key, CertificateData cert) {
         props.setProperty(key.replace("hostname", "mode"), cert.isManual() ? "manual" : "acme");
         if (cert.isManual()) {
@@ -742,6 +780,18 @@ public class HttpProxyServer implements AutoCloseable {
             throw new ConfigurationChangeInProgressException();
         }
         try {
+            final Properties newDynamicConfiguration = storeWithConfig.asProperties(null);
+            final Map<String, Integer> changedWeights = findChangedBackendWeightsOnly(newDynamicConfiguration);
+            if (changedWeights != null) {
+                if (!atBoot) {
+                    dynamicConfigurationStore.commitConfiguration(newConfigurationStore);
+                }
+                LOG.info("Only the weights of the backends {} changed, applying them to the current mapper", changedWeights);
+                changedWeights.forEach(mapper::setBackendWeight);
+                this.appliedDynamicConfiguration = newDynamicConfiguration;
+                return;
+            }
+
             // Build everything as locals first; do not touch the four `this.X` view fields yet.
             RuntimeServerConfiguration newConfiguration = buildValidConfiguration(storeWithConfig);
             EndpointMapper newMapper = buildMapper(newConfiguration.getMapperClassname(), this, storeWithConfig);
@@ -775,6 +825,7 @@ public class HttpProxyServer implements AutoCloseable {
             this.realm = newRealm;
             this.mapper = newMapper;
             this.currentConfiguration = newConfiguration;
+            this.appliedDynamicConfiguration = newDynamicConfiguration;
         } catch (ConfigurationNotValidException err) {
             // impossible to have a non valid configuration here
             throw new IllegalStateException(err);
@@ -783,6 +834,48 @@ public class HttpProxyServer implements AutoCloseable {
         }
     }
 
+    /**
+     * Whether a new dynamic configuration only changes the weights of some backends of the current mapper,
+     * that can be applied without building a new one.
+     *
+     * @param newDynamicConfiguration the new dynamic configuration
+     * @return the new weights by backend id, or null if anything else changed or a new mapper has to validate them
+     */
+    private Map<String, Integer> findChangedBackendWeightsOnly(final Properties newDynamicConfiguration) {
+        final Properties applied = appliedDynamicConfiguration;
+        final EndpointMapper currentMapper = mapper;
+        if (applied == null || currentMapper == null) {
+            return null;
+        }
+        final Set<String> keys = new HashSet<>(applied.stringPropertyNames());
+        keys.addAll(newDynamicConfiguration.stringPropertyNames());
+        final Map<String, Integer> weights = new HashMap<>();
+        for (final String key : keys) {
+            final String value = newDynamicConfiguration.getProperty(key);
+            if (Objects.equals(applied.getProperty(key), value)) {
+                continue;
+            }
+            final Matcher matcher = BACKEND_WEIGHT_PROPERTY.matcher(key);
+            if (!matcher.matches()) {
+                return null;
+            }
+            final String id = newDynamicConfiguration.getProperty("backend." + matcher.group(1) + ".id");
+            if (id == null || !currentMapper.getBackends().containsKey(id)) {
+                return null;
+            }
+            try {
+                final int weight = value != null ? Integer.parseInt(value.trim()) : BackendConfiguration.DEFAULT_WEIGHT;
+                if (weight < 0) {
+                    return null;
+                }
+                weights.put(id, weight);
+            } catch (NumberFormatException err) {
+                return null;
+            }
+        }
+        return weights.isEmpty() ? null : weights;
+    }
+
     private boolean isConnectionsConfigurationChanged(RuntimeServerConfiguration newConfiguration) {
         return newConfiguration.getMaxConnectionsPerEndpoint() != currentConfiguration.getMaxConnectionsPerEndpoint()
                 || newConfiguration.getBorrowTimeout() != currentConfiguration.getBorrowTimeout()
@@ -845,6 +938,35 @@ public class HttpProxyServer implements AutoCloseable {
         throw new IllegalStateException("No backend configuration found for " + endpointKey);
     }
 
+    /**
+     * Drop a set of contents from the cache of all the peers.
+     *
+     * @return the number of contents dropped by this peer
+     */
+    public int purgeCache(CachePurge purge) {
+        int count = cache.purge(purge);
+        groupMembershipHandler.fireSequentialEvent(CACHE_PURGE_EVENT, purge.toEventData());
+        return count;
+    }
+
+    private class CachePurgeCallback implements GroupMembershipHandler.EventCallback {
+
+        @Override
+        public void eventFired(String eventId, Map<String, Object> data) {
+            try {
+                cache.purge(CachePurge.fromEventData(data));
+            } catch (IllegalArgumentException err) {
+                LOG.error("Cannot apply cache purge {}", data, err);
+            }
+        }
+
+        @Override
+        public void reconnected() {
+            LOG.warn("Cache purge listener - purges fired by other peers while disconnected from ZK may have been missed");
+        }
+
+    }
+
     private class ConfigurationChangeCallback implements GroupMembershipHandler.EventCallback {
 
         @Override
@@ -25,7 +25,6 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.nio.NioChannelOption;
-import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.prometheus.client.Gauge;
 import java.io.File;
@@ -45,7 +44,6 @@ import org.slf4j.LoggerFactory;
 import reactor.netty.DisposableServer;
 import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.server.HttpServer;
-import reactor.netty.tcp.SslProvider;
 
 /**
  * Collection of listeners waiting for incoming clients requests on the configured HTTP ports.
@@ -67,7 +65,7 @@ public class Listeners {
     ).register();
 
     private final HttpProxyServer parent;
-    private final ConcurrentMap<String, SslContext> sslContexts = new ConcurrentHashMap<>();
+    private final SslContextsCache sslContexts;
     private final ConcurrentMap<EndpointKey, ListeningChannel> listeningChannels = new ConcurrentHashMap<>();
     private final File basePath;
     private boolean started;
@@ -77,6 +75,7 @@ public class Listeners {
         this.parent = parent;
         this.currentConfiguration = parent.getCurrentConfiguration();
         this.basePath = parent.getBasePath();
+        this.sslContexts = new SslContextsCache(parent, currentConfiguration);
     }
 
     public RuntimeServerConfiguration getCurrentConfiguration() {
@@ -97,6 +96,10 @@ public class Listeners {
         return listeningChannels;
     }
 
+    public SslContextsCache getSslContexts() {
+        return sslContexts;
+    }
+
     public void start() throws InterruptedException, ConfigurationNotValidException {
         started = true;
         reloadConfiguration(currentConfiguration);
@@ -114,36 +117,30 @@ public class Listeners {
             this.currentConfiguration = newConfiguration;
             return;
         }
-        // Clear cached ssl contexts
-        sslContexts.clear();
-        final boolean certificatesChanged = !newConfiguration.getCertificates().equals(currentConfiguration.getCertificates());
+        sslContexts.reloadConfiguration(newConfiguration);
 
         // stop dropped listeners, start new one
         final List<EndpointKey> listenersToStop = new ArrayList<>();
         final List<EndpointKey> listenersToRestart = new ArrayList<>();
+        final List<EndpointKey> listenersToReloadCertificates = new ArrayList<>();
         for (final Map.Entry<EndpointKey, ListeningChannel> channel : listeningChannels.entrySet()) {
             final EndpointKey hostPort = channel.getKey();
             final NetworkListenerConfiguration actualListenerConfig = currentConfiguration.getListener(hostPort);
             final NetworkListenerConfiguration newConfigurationForListener = newConfiguration.getListener(hostPort);
-            // Certificate-only reload: the dynamic-certificate manager re-applies the current configuration
-            // (same object reference) after a certificate changes. Every SSL listener serves the full
-            // certificate set via SNI (see ListeningChannel#sslContexts), so there is no per-listener subset
-            // to narrow to — any certificate change rebinds every SSL listener.
-            final boolean isReloadCertificate = newConfiguration == currentConfiguration 
-                    && newConfigurationForListener != null 
-                    && newConfigurationForListener.ssl();
             if (newConfigurationForListener == null) {
                 LOG.info("listener: {} is to be shut down", hostPort);
                 listenersToStop.add(hostPort);
-            } else if (certificatesChanged
-                    || isReloadCertificate
-                    || !newConfigurationForListener.equals(actualListenerConfig)
+            } else if (!newConfigurationForListener.equals(actualListenerConfig)
                     || newConfiguration.getResponseCompressionThreshold() != currentConfiguration.getResponseCompressionThreshold()
                     || newConfiguration.getMaxHeaderSize() != currentConfiguration.getMaxHeaderSize()) {
                 LOG.info("listener: {} is to be restarted", hostPort);
                 listenersToRestart.add(hostPort);
+            } else if (newConfigurationForListener.ssl()) {
+                // Certificates are looked up at handshake time (see ListeningChannel#apply),
+                // so a certificate change, including the renewals by the dynamic-certificate manager
+                // that re-applies the current configuration, doesn't need to rebind the listener
+                listenersToReloadCertificates.add(hostPort);
             }
-            channel.getValue().clear();
         }
         final List<EndpointKey> listenersToStart = new ArrayList<>();
         for (final NetworkListenerConfiguration config : newConfiguration.getListeners()) {
@@ -180,6 +177,15 @@ public class Listeners {
                 }
             }
 
+            for (final EndpointKey hostPort : listenersToReloadCertificates) {
+                LOG.info("Reloading certificates of {}", hostPort);
+                try {
+                    listeningChannels.get(hostPort).reloadCertificates(currentConfiguration);
+                } catch (final RuntimeException ex) {
+                    LOG.error("Failed to reload certificates of listener {}", hostPort, ex);
+                }
+            }
+
             for (final EndpointKey hostPort : listenersToStart) {
                 LOG.info("Starting {}", hostPort);
                 try {
@@ -213,14 +219,8 @@ public class Listeners {
                 .port(hostPort.port())
                 .protocol(config.protocols().toArray(HttpProtocol[]::new));
         if (config.ssl()) {
-            httpServer = httpServer.secure(sslContextSpec -> {
-                final SslContext defaultSslContext = listeningChannel.getDefaultSslContext();
-                final SslProvider.Builder builder = sslContextSpec.sslContext(defaultSslContext);
-                if (listeningChannel.isOcspEnabled()) {
-                    builder.handlerConfigurator(new OcspSslHandler(defaultSslContext, parent.getOcspStaplingManager()));
-                }
-                listeningChannel.apply(builder);
-            });
+            // the default context is required by the builder, but the SNI mapping of the listener takes over at handshake time
+            httpServer = httpServer.secure(sslContextSpec -> listeningChannel.apply(sslContextSpec.sslContext(listeningChannel.getDefaultSslContext())));
         }
         httpServer = httpServer
                 // reactor-netty's server metrics handler resolves the request path via resolvePath() -> ops.fullPath(),
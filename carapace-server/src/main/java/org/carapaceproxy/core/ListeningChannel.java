@@ -1,35 +1,19 @@
 package org.carapaceproxy.core;
 
-import static org.carapaceproxy.utils.AlpnUtils.configureAlpnForServer;
-import static org.carapaceproxy.utils.CertificatesUtils.loadKeyStoreData;
-import static org.carapaceproxy.utils.CertificatesUtils.loadKeyStoreFromFile;
-import static org.carapaceproxy.utils.CertificatesUtils.readChainFromKeystore;
 import io.netty.handler.ssl.OpenSsl;
-import io.netty.handler.ssl.OpenSslCachingX509KeyManagerFactory;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.SslProvider;
-import io.netty.util.Attribute;
-import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import io.prometheus.client.Counter;
 import java.io.File;
-import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.security.GeneralSecurityException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.time.Duration;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import javax.net.ssl.KeyManagerFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.net.ssl.SSLHandshakeException;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration;
 import org.carapaceproxy.server.config.SSLCertificateConfiguration;
@@ -58,12 +42,18 @@ public class ListeningChannel {
      * same set for every SSL listener: a listener serves the full certificate set and selects per connection
      * by SNI (see {@link #apply}). A {@link NetworkListenerConfiguration} carries no per-listener certificate
      * list — only a single {@link NetworkListenerConfiguration#defaultCertificate()} for clients that send no
-     * SNI. Consequently there is no listener-specific certificate subset: when any certificate's binding
-     * changes, every SSL listener must rebind.
+     * SNI.
+     * <p>
+     * The table is immutable and it is atomically swapped by {@link #reloadCertificates}:
+     * the running server looks it up at every handshake, so certificates can change without rebinding the socket.
+     * <p>
+     * With {@link RuntimeServerConfiguration#isSslContextsLazy() lazy contexts}, only the default certificate is
+     * booted with the table; the others are resolved through the {@link SslContextsCache} at their first handshake.
      */
-    private final Map<String, SslContext> sslContexts;
+    private volatile SniTable sniTable;
+    private final SslContextsCache sslContexts;
     private final File basePath;
-    private final RuntimeServerConfiguration currentConfiguration;
+    private volatile RuntimeServerConfiguration currentConfiguration;
     private final HttpProxyServer parent;
     private DisposableServer channel;
 
@@ -71,7 +61,7 @@ public class ListeningChannel {
             final File basePath,
             final RuntimeServerConfiguration currentConfiguration,
             final HttpProxyServer parent,
-            final ConcurrentMap<String, SslContext> cachedSslContexts,
+            final SslContextsCache sslContexts,
             final NetworkListenerConfiguration config
     ) throws ConfigurationNotValidException {
         this.localPort = config.port() + parent.getListenersOffsetPort();
@@ -80,26 +70,79 @@ public class ListeningChannel {
         this.basePath = basePath;
         this.currentConfiguration = currentConfiguration;
         this.parent = parent;
-        this.sslContexts = new HashMap<>(currentConfiguration.getCertificates().size());
+        this.sslContexts = sslContexts;
+        this.sniTable = config.ssl() ? buildSniTable(SniTable.EMPTY, true) : SniTable.EMPTY;
+    }
+
+    /**
+     * Apply the certificates of a new configuration to the running listener, without rebinding it.
+     * Only the certificates whose configuration or keystore changed are booted again;
+     * new handshakes will use the new table, while established connections are left untouched.
+     *
+     * @param newConfiguration the configuration
+     */
+    public void reloadCertificates(final RuntimeServerConfiguration newConfiguration) {
+        if (!config.ssl()) {
+            return;
+        }
+        this.currentConfiguration = newConfiguration;
+        try {
+            this.sniTable = buildSniTable(sniTable, false);
+        } catch (ConfigurationNotValidException err) {
+            // cannot happen, failures are tolerated while reloading
+            LOG.error("Cannot reload certificates of listener {}", getHostPort(), err);
+        }
+    }
+
+    /**
+     * Build the SNI table for the current configuration, reusing the entries of the previous one when still valid.
+     *
+     * @param previous the table to reuse the entries of
+     * @param strict   whether to fail on invalid certificates; otherwise the previous entry is kept, if any
+     * @return the new table
+     * @throws ConfigurationNotValidException if a certificate cannot be loaded and {@code strict} is set
+     */
+    private SniTable buildSniTable(final SniTable previous, final boolean strict) throws ConfigurationNotValidException {
+        final Map<String, SniEntry> entries = new HashMap<>(currentConfiguration.getCertificates().size());
+        final boolean lazy = currentConfiguration.isSslContextsLazy();
+        int booted = 0;
         for (final SSLCertificateConfiguration certificate : currentConfiguration.getCertificates().values()) {
             final String certificateId = certificate.getId();
-            final SslContext sslContext = cachedSslContexts.containsKey(certificateId)
-                    ? cachedSslContexts.get(certificateId)
-                    : bootSslContext(config, certificate);
-            if (sslContext == null) {
+            final SniEntry old = previous.entries().get(certificateId);
+            final byte[] keystoreContent = parent.getDynamicCertificatesManager().getCertificateForDomain(certificateId);
+            if (keystoreContent == null && StringUtils.isBlank(certificate.getFile())) {
                 // certificate configuration has some problem, should fallback to default certificate (legacy behavior)
+                LOG.warn("No certificate file or dynamic certificate data for certificate id {}", certificateId);
                 continue;
             }
-            sslContexts.put(certificateId, sslContext);
+            final long lastModified = keystoreContent == null ? certificateFile(certificate).lastModified() : 0;
+            final SslContextsCache.Key key = SslContextsCache.Key.of(certificate, keystoreContent, lastModified, config, isOcspEnabled());
+            if (old != null && old.key().equals(key) && (lazy || old.sslProvider() != null)) {
+                entries.put(certificateId, old);
+            } else if (lazy && !certificateId.equals(config.defaultCertificate())) {
+                entries.put(certificateId, new SniEntry(key, null));
+            } else {
+                try {
+                    entries.put(certificateId, new SniEntry(key, sslContexts.getNow(key)));
+                    booted++;
+                } catch (ConfigurationNotValidException err) {
+                    if (strict) {
+                        throw err;
+                    }
+                    LOG.error("Cannot reload certificate {} on listener {}, keeping the previous one", certificateId, getHostPort(), err);
+                    if (old != null) {
+                        entries.put(certificateId, old);
+                    }
+                }
+            }
         }
+        LOG.debug("Listener {}: {} certificates, {} booted", getHostPort(), entries.size(), booted);
+        return new SniTable(entries, entries.get(config.defaultCertificate()));
     }
 
-    private static KeyManagerFactory loadKeyFactory(final SSLCertificateConfiguration certificate, final KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException {
-        final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        final KeyManagerFactory wrapperFactory = new OpenSslCachingX509KeyManagerFactory(keyFactory);
-        wrapperFactory.init(keystore, certificate.getPassword().toCharArray());
-        LOG.debug("Initialized KeyManagerFactory with algorithm: {}", wrapperFactory.getAlgorithm());
-        return wrapperFactory;
+    private File certificateFile(final SSLCertificateConfiguration certificate) {
+        final String filename = certificate.getFile();
+        return filename.startsWith("/") ? new File(filename) : new File(basePath, filename);
     }
 
     public void disposeChannel() {
@@ -118,78 +161,6 @@ public class ListeningChannel {
         totalRequests.inc();
     }
 
-    public void clear() {
-        this.sslContexts.clear();
-    }
-
-    private SslContext bootSslContext(final NetworkListenerConfiguration listener, final SSLCertificateConfiguration certificate) throws ConfigurationNotValidException {
-        try {
-            final EndpointKey hostPort = new EndpointKey(listener.host(), listener.port()).offsetPort(parent.getListenersOffsetPort());
-            final KeyStore keystore = loadKeyStore(certificate, hostPort);
-            if (keystore == null) {
-                // certificate configuration has some problem, should fallback to default certificate (legacy behavior)
-                return null;
-            }
-            final KeyManagerFactory keyFactory = loadKeyFactory(certificate, keystore);
-            final SslContextBuilder sslContextBuilder = SslContextBuilder
-                    .forServer(keyFactory)
-                    .enableOcsp(currentConfiguration.isOcspEnabled() && OpenSsl.isOcspSupported())
-                    .trustManager(parent.getTrustStoreManager().getTrustManagerFactory())
-                    .sslProvider(SslProvider.OPENSSL)
-                    .protocols(listener.sslProtocols());
-
-            configureAlpnForServer(sslContextBuilder, listener.protocols(), listener.host(), listener.port());
-
-            final String sslCiphers = listener.sslCiphers();
-            if (sslCiphers != null && !sslCiphers.isEmpty()) {
-                LOG.debug("required sslCiphers {}", sslCiphers);
-                final List<String> ciphers = Arrays.asList(sslCiphers.split(","));
-                sslContextBuilder.ciphers(ciphers);
-            }
-            final SslContext sslContext = sslContextBuilder.build();
-            final Certificate[] chain = readChainFromKeystore(keystore);
-            if (currentConfiguration.isOcspEnabled() && OpenSsl.isOcspSupported() && chain.length > 0) {
-                parent.getOcspStaplingManager().addCertificateForStapling(chain);
-                Attribute<Object> attr = sslContext.attributes().attr(AttributeKey.valueOf(Listeners.OCSP_CERTIFICATE_CHAIN));
-                attr.set(chain[0]);
-            }
-            return sslContext;
-        } catch (IOException | GeneralSecurityException err) {
-            LOG.error("ERROR booting listener", err);
-            throw new ConfigurationNotValidException(err);
-        }
-    }
-
-    private KeyStore loadKeyStore(final SSLCertificateConfiguration certificate, final EndpointKey hostPort) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
-        try {
-            // Try to find certificate data on db
-            final byte[] keystoreContent = parent.getDynamicCertificatesManager().getCertificateForDomain(certificate.getId());
-            final KeyStore keystore;
-            if (keystoreContent == null) {
-                if (StringUtils.isBlank(certificate.getFile())) {
-                    LOG.warn("No certificate file or dynamic certificate data for certificate id {}", certificate.getId());
-                    return null;
-                }
-                LOG.debug("Start SSL with certificate id {}, on listener {}:{} file={}", certificate.getId(), hostPort.host(), hostPort.port(), certificate.getFile());
-                keystore = loadKeyStoreFromFile(certificate.getFile(), certificate.getPassword(), basePath);
-            } else {
-                LOG.debug("Start SSL with dynamic certificate id {}, on listener {}:{}", certificate.getId(), hostPort.host(), hostPort.port());
-                keystore = loadKeyStoreData(keystoreContent, certificate.getPassword());
-            }
-            LOG.debug("Loaded keystore with type: {}, size: {}, aliases: {}", keystore.getType(), keystore.size(), Collections.list(keystore.aliases()));
-            return keystore;
-        } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
-            LOG.error(
-                    "ERROR loading keystore for certificate {id {}, hostname {}, file {}, mode {}}",
-                    certificate.getId(),
-                    certificate.getHostname(),
-                    certificate.getFile(),
-                    certificate.getMode()
-            );
-            throw e;
-        }
-    }
-
     public NetworkListenerConfiguration getConfig() {
         return this.config;
     }
@@ -217,27 +188,97 @@ public class ListeningChannel {
     }
 
     public SslContext getDefaultSslContext() {
-        return this.sslContexts.get(config.defaultCertificate());
+        final SniEntry defaultEntry = sniTable.defaultEntry();
+        return defaultEntry != null && defaultEntry.sslProvider() != null ? defaultEntry.sslProvider().getSslContext() : null;
     }
 
+    /**
+     * Configure the SNI of the listener to look up the {@link #reloadCertificates current certificates}
+     * at every handshake.
+     *
+     * @param parentBuilder the SSL configuration of the server
+     * @return the same builder
+     */
     public reactor.netty.tcp.SslProvider.Builder apply(reactor.netty.tcp.SslProvider.Builder parentBuilder) {
-        for (final Map.Entry<String, SslContext> entry : this.sslContexts.entrySet()) {
-            if ("*".equals(entry.getKey())) {
-                continue;
+        return parentBuilder.setSniAsyncMappings(this::mapSni);
+    }
+
+    private Future<reactor.netty.tcp.SslProvider> mapSni(final String hostname, final Promise<reactor.netty.tcp.SslProvider> promise) {
+        final SniEntry entry = sniTable.lookup(hostname);
+        if (entry == null) {
+            return promise.setFailure(new SSLHandshakeException("No certificate available for " + hostname + " on listener " + getHostPort()));
+        }
+        if (entry.sslProvider() != null) {
+            return promise.setSuccess(entry.sslProvider());
+        }
+        final CompletableFuture<reactor.netty.tcp.SslProvider> sslProvider = sslContexts.get(entry.key());
+        if (sslProvider.isDone() && !sslProvider.isCompletedExceptionally()) {
+            return promise.setSuccess(sslProvider.join());
+        }
+        sslProvider.whenComplete((result, err) -> {
+            if (err == null) {
+                promise.trySuccess(result);
+            } else {
+                final Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+                LOG.error("Cannot build SSL context for {} on listener {}", hostname, getHostPort(), cause);
+                promise.tryFailure(new SSLHandshakeException("Cannot build SSL context for " + hostname + ": " + cause));
             }
-            final String key = entry.getKey();
-            final SslContext sslContext = entry.getValue();
-            parentBuilder.addSniMapping(key, spec -> {
-                final reactor.netty.tcp.SslProvider.Builder builder = spec.sslContext(sslContext);
-                if (isOcspEnabled()) {
-                    builder.handlerConfigurator(new OcspSslHandler(sslContext, parent.getOcspStaplingManager()));
+        });
+        return promise;
+    }
+
+    public boolean isOcspEnabled() {
+        return isOcspEnabled(currentConfiguration);
+    }
+
+    private static boolean isOcspEnabled(final RuntimeServerConfiguration configuration) {
+        return configuration.isOcspEnabled() && OpenSsl.isOcspSupported();
+    }
+
+    /**
+     * A certificate served by the listener.
+     *
+     * @param key         what the SSL context is built from
+     * @param sslProvider the SSL context, or null if it is to be looked up in the {@link SslContextsCache} at handshake time
+     */
+    private record SniEntry(SslContextsCache.Key key, reactor.netty.tcp.SslProvider sslProvider) {
+    }
+
+    /**
+     * Immutable lookup table from SNI host names to certificates,
+     * with the same semantics of Netty's {@link io.netty.util.DomainWildcardMappingBuilder}.
+     */
+    private record SniTable(Map<String, SniEntry> entries, Map<String, SniEntry> byHostname, SniEntry defaultEntry) {
+
+        static final SniTable EMPTY = new SniTable(Map.of(), null);
+
+        SniTable(final Map<String, SniEntry> entries, final SniEntry defaultEntry) {
+            this(entries, indexByHostname(entries), defaultEntry);
+        }
+
+        private static Map<String, SniEntry> indexByHostname(final Map<String, SniEntry> entries) {
+            final Map<String, SniEntry> result = new HashMap<>(entries.size());
+            entries.forEach((id, entry) -> {
+                if (!"*".equals(id)) {
+                    result.put(id.toLowerCase(Locale.ROOT), entry);
                 }
             });
+            return result;
         }
-        return parentBuilder;
-    }
 
-    public boolean isOcspEnabled() {
-        return currentConfiguration.isOcspEnabled() && OpenSsl.isOcspSupported();
+        SniEntry lookup(final String hostname) {
+            if (hostname == null || hostname.isEmpty()) {
+                return defaultEntry;
+            }
+            final String name = hostname.toLowerCase(Locale.ROOT);
+            SniEntry entry = byHostname.get(name);
+            if (entry == null) {
+                final int dot = name.indexOf('.');
+                if (dot > 0) {
+                    entry = byHostname.get("*" + name.substring(dot));
+                }
+            }
+            return entry != null ? entry : defaultEntry;
+        }
     }
 }
@@ -31,6 +31,7 @@ import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.AsciiString;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -83,6 +84,8 @@ public class ProxyRequest implements MatchingContext {
     private String uri;
     private UrlEncodedQueryString queryString;
     private boolean servedFromCache;
+    // times the request was sent again to another backend
+    private int retries;
 
     public ProxyRequest(
             final HttpServerRequest request, final HttpServerResponse response, final EndpointKey listener
@@ -286,6 +289,17 @@ public class ProxyRequest implements MatchingContext {
         return response.send(data);
     }
 
+    public Publisher<Void> sendResponseFile(Path file, long position, long count) {
+        return response.sendFile(file, position, count);
+    }
+
+    /**
+     * Enable or disable the compression configured on the listener, for this response only.
+     */
+    public void setResponseCompression(boolean compression) {
+        response.compression(compression);
+    }
+
     public void setResponseStatus(HttpResponseStatus status) {
         response.status(status);
     }
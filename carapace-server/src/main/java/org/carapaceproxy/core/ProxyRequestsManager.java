@@ -22,41 +22,56 @@ package org.carapaceproxy.core;
 import static org.carapaceproxy.server.mapper.MapResult.REDIRECT_PROTO_HTTP;
 import static org.carapaceproxy.server.mapper.MapResult.REDIRECT_PROTO_HTTPS;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.nio.NioChannelOption;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.util.AsciiString;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import jdk.net.ExtendedSocketOptions;
 import org.apache.http.HttpStatus;
 import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.SimpleHTTPResponse;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.cache.ByteRange;
+import org.carapaceproxy.server.cache.CollapsedFetch;
 import org.carapaceproxy.server.cache.ContentsCache;
 import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
@@ -73,10 +88,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import reactor.netty.ByteBufFlux;
+import reactor.netty.channel.AbortedException;
 import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
-import reactor.netty.http.client.HttpClientResponse;
 import reactor.netty.resources.ConnectionProvider;
 
 /**
@@ -94,6 +110,27 @@ public class ProxyRequestsManager implements AutoCloseable {
             "backends", "stuck_requests_total", "stuck requests, this requests will be killed"
     ).register();
 
+    private static final Counter COLLAPSED_REQUESTS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "collapsed_requests_total", "cache misses served by the backend fetch of a concurrent one"
+    ).register();
+    private static final Counter COLLAPSED_FALLTHROUGH_COUNTER = PrometheusUtils.createCounter(
+            "cache", "collapsed_fallthrough_total", "cache misses forwarded after waiting for the backend fetch of a concurrent one"
+    ).register();
+
+    private static final Counter STALE_HITS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "stale_hits_total", "expired contents served from the cache", "reason"
+    ).register();
+    private static final Counter RANGE_REQUESTS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "range_requests_total", "range requests served from the cache", "type"
+    ).register();
+    private static final Counter REVALIDATIONS_COUNTER = PrometheusUtils.createCounter(
+            "cache", "revalidations_total", "background revalidations of expired contents", "result"
+    ).register();
+
+    private static final Counter RETRIES_COUNTER = PrometheusUtils.createCounter(
+            "backends", "retries_total", "failed requests sent again to another backend, or not for lack of budget", "result"
+    ).register();
+
     private static final Logger LOGGER = LoggerFactory.getLogger(ProxyRequestsManager.class);
     private static final String DEFAULT_KEY = "*";
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss.SSS");
@@ -101,8 +138,14 @@ public class ProxyRequestsManager implements AutoCloseable {
     private final HttpProxyServer parent;
     private final Map<EndpointKey, EndpointStats> endpointsStats = new ConcurrentHashMap<>();
     private final ConnectionsManager connectionsManager = new ConnectionsManager();
+    private final Map<EndpointKey, ConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<>();
+    // null when the adaptive concurrency limits are disabled
+    private volatile ConcurrencyLimiter.Settings concurrencyLimits;
+    // null when the retries are disabled
+    private volatile RetryBudget retryBudget;
 
     private volatile Map<String, SslContext> clientSslContexts = new ConcurrentHashMap<>();
+    private volatile Map<ClientKey, HttpClient> clients = new ConcurrentHashMap<>();
 
     public ProxyRequestsManager(HttpProxyServer parent) {
         this.parent = parent;
@@ -116,7 +159,7 @@ public class ProxyRequestsManager implements AutoCloseable {
             response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         }
         request.setResponseStatus(response.status());
-        request.setResponseHeaders(response.headers().copy());
+        request.setResponseHeaders(response.headers());
         addCustomResponseHeaders(request.getResponseHeaders(), customHeaders);
         return request.sendResponseData(Mono.just(response.content()).doFinally(f -> request.setLastActivity(System.currentTimeMillis())));
     }
@@ -130,16 +173,14 @@ public class ProxyRequestsManager implements AutoCloseable {
         if (customHeaders == null || customHeaders.isEmpty()) {
             return;
         }
-        customHeaders.forEach(customHeader -> {
-            if (CustomHeader.HeaderMode.SET.equals(customHeader.getMode())
-                    || CustomHeader.HeaderMode.REMOVE.equals(customHeader.getMode())) {
-                responseHeaders.remove(customHeader.getName());
-            }
-            if (CustomHeader.HeaderMode.SET.equals(customHeader.getMode())
-                    || CustomHeader.HeaderMode.ADD.equals(customHeader.getMode())) {
-                responseHeaders.add(customHeader.getName(), customHeader.getValue());
+        for (int i = 0; i < customHeaders.size(); i++) {
+            final CustomHeader customHeader = customHeaders.get(i);
+            switch (customHeader.getMode()) {
+                case SET -> responseHeaders.set(customHeader.getAsciiName(), customHeader.getAsciiValue());
+                case ADD -> responseHeaders.add(customHeader.getAsciiName(), customHeader.getAsciiValue());
+                case REMOVE -> responseHeaders.remove(customHeader.getAsciiName());
             }
-        });
+        }
     }
 
     private static boolean rejectAsSmuggling(ProxyRequest request) {
@@ -159,17 +200,26 @@ public class ProxyRequestsManager implements AutoCloseable {
         headers.remove(HttpHeaderNames.IF_RANGE);
         headers.remove(HttpHeaderNames.IF_UNMODIFIED_SINCE);
         headers.remove(HttpHeaderNames.ETAG);
-        // Connection is a hop-by-hop header and must not influence cache validation (RFC 7234 §4.3.4).
-        // Only Connection is removed here (on the live headers object); full hop-by-hop stripping is
-        // performed later in forward() on a copy of the headers, so that getClientProtocols() can still
-        // read Transfer-Encoding via mayHaveBody() before the copy is made.
-        headers.remove(HttpHeaderNames.CONNECTION);
+        // the whole body is fetched to be cached, ranges are served from it
+        headers.remove(HttpHeaderNames.RANGE);
+        // hop-by-hop headers are stripped when copied into the request to the backend,
+        // Connection is kept until then as it nominates the other ones to strip
     }
 
     public EndpointStats getEndpointStats(final EndpointKey key) {
         return endpointsStats.get(key);
     }
 
+    /**
+     * Get the adaptive limit of the requests towards a backend.
+     *
+     * @param key the backend
+     * @return the limiter, or null if the limits are disabled or no request was forwarded to the backend yet
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter(final EndpointKey key) {
+        return concurrencyLimits != null ? concurrencyLimiters.get(key) : null;
+    }
+
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration, Collection<BackendConfiguration> newEndpoints) throws ConfigurationNotValidException {
         final Map<String, SslContext> newContexts = new ConcurrentHashMap<>();
         try {
@@ -199,11 +249,48 @@ public class ProxyRequestsManager implements AutoCloseable {
         }
         this.clientSslContexts = newContexts;
         connectionsManager.reloadConfiguration(newConfiguration, newEndpoints);
+        if (newConfiguration.isAdaptiveConcurrencyEnabled()) {
+            final ConcurrencyLimiter.Settings limits = new ConcurrencyLimiter.Settings(
+                    newConfiguration.getAdaptiveConcurrencyInitialLimit(),
+                    newConfiguration.getAdaptiveConcurrencyMinLimit(),
+                    newConfiguration.getAdaptiveConcurrencyMaxLimit(),
+                    newConfiguration.getAdaptiveConcurrencyQueueSize(),
+                    newConfiguration.getAdaptiveConcurrencyQueueTimeout()
+            );
+            // the limits learnt so far survive the reload, but not the backends removed
+            final Set<EndpointKey> endpoints = newEndpoints.stream().map(BackendConfiguration::hostPort).collect(Collectors.toSet());
+            concurrencyLimiters.entrySet().removeIf(entry -> {
+                if (endpoints.contains(entry.getKey())) {
+                    return false;
+                }
+                entry.getValue().close();
+                return true;
+            });
+            concurrencyLimiters.values().forEach(limiter -> limiter.setSettings(limits));
+            this.concurrencyLimits = limits;
+        } else {
+            this.concurrencyLimits = null;
+            concurrencyLimiters.values().forEach(ConcurrencyLimiter::close);
+            concurrencyLimiters.clear();
+        }
+        if (newConfiguration.isRetryEnabled()) {
+            final RetryBudget budget = retryBudget;
+            if (budget == null
+                    || budget.getPercent() != newConfiguration.getRetryBudgetPercent()
+                    || budget.getMinPerSecond() != newConfiguration.getRetryMinPerSecond()) {
+                this.retryBudget = new RetryBudget(newConfiguration.getRetryBudgetPercent(), newConfiguration.getRetryMinPerSecond());
+            }
+        } else {
+            this.retryBudget = null;
+        }
+        // the clients refer to the previous connection providers and SSL contexts
+        this.clients = new ConcurrentHashMap<>();
     }
 
     @Override
     public void close() {
         clientSslContexts.clear();
+        clients.clear();
         connectionsManager.close();
     }
 
@@ -404,7 +491,56 @@ public class ProxyRequestsManager implements AutoCloseable {
      * @return a {@link Flux} forwarding the returned {@link Publisher} sequence
      */
     public Publisher<Void> forward(final ProxyRequest request, final boolean cache, final BackendHealthStatus healthStatus) {
+        return forward(request, cache, healthStatus, null, null);
+    }
+
+    /**
+     * Forward a request, falling back to an expired content if the backend fails.
+     * <p>
+     * When the {@link ConcurrencyLimiter adaptive concurrency limits} are enabled the request waits for a slot,
+     * and it is answered with a 503 (or the expired content) if it does not get one.
+     *
+     * @param staleContent the content to serve on backend errors, or null
+     * @param leadingFetch the collapsed fetch led by a failed attempt of the request, to lead on a retry; or null
+     * @see #forward(ProxyRequest, boolean, BackendHealthStatus)
+     */
+    private Publisher<Void> forward(final ProxyRequest request, final boolean cache, final BackendHealthStatus healthStatus, final ContentsCache.ContentSender staleContent, final CollapsedFetch leadingFetch) {
         Objects.requireNonNull(request.getAction());
+        final ConcurrencyLimiter.Settings limits = concurrencyLimits;
+        if (limits == null) {
+            return forward(request, cache, healthStatus, staleContent, leadingFetch, null);
+        }
+        final EndpointKey key = EndpointKey.make(request.getAction().getHost(), request.getAction().getPort());
+        final ConcurrencyLimiter limiter = concurrencyLimiters.computeIfAbsent(key, k -> new ConcurrencyLimiter(k, limits));
+        return Mono.defer(limiter::acquire)
+                // cancelled before forwarding
+                .doOnDiscard(ConcurrencyLimiter.Permit.class, permit -> permit.release(-1))
+                .map(permit -> {
+                    try {
+                        return forward(request, cache, healthStatus, staleContent, leadingFetch, permit);
+                    } catch (RuntimeException err) {
+                        // failed before reaching the backend, so before the release at the end of the request is in place
+                        permit.release(-1);
+                        throw err;
+                    }
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    LOGGER.debug("Shedding request for endpoint {}, limit {} reached; request: {}", key, limiter.getLimit(), request);
+                    if (staleContent != null) {
+                        STALE_HITS_COUNTER.labels("if_error").inc();
+                        return serveCachedContent(request, staleContent.getCached(), true);
+                    }
+                    return serveServiceUnavailable(request);
+                }))
+                .flatMap(Mono::from);
+    }
+
+    /**
+     * Forward a request holding a slot of the adaptive concurrency limit, if any.
+     *
+     * @param permit the slot to release at the end of the request, or null
+     */
+    private Publisher<Void> forward(final ProxyRequest request, final boolean cache, final BackendHealthStatus healthStatus, final ContentsCache.ContentSender staleContent, final CollapsedFetch leadingFetch, final ConcurrencyLimiter.Permit permit) {
         final EndpointKey key = EndpointKey.make(request.getAction().getHost(), request.getAction().getPort());
         final EndpointStats endpointStats = endpointsStats.computeIfAbsent(key, EndpointStats::new);
 
@@ -420,53 +556,7 @@ public class ProxyRequestsManager implements AutoCloseable {
             }
             LOGGER.debug("Max connections for {}: {}", connectionId, connectionProvider.maxConnectionsPerHost());
         }
-        HttpClient forwarder = getClient(connectionProvider, request)
-                .followRedirect(false) // the client is the one that should follow the redirect, not the proxy
-                .runOn(parent.getEventLoopGroup())
-                .compress(parent.getCurrentConfiguration().isRequestCompressionEnabled())
-                .responseTimeout(Duration.ofMillis(connectionConfig.getStuckRequestTimeout()))
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionConfig.getConnectTimeout())
-                // Enables TCP keepalive: TCP starts sending keepalive probes when a connection is idle for some time.
-                .option(ChannelOption.SO_KEEPALIVE, connectionConfig.isKeepAlive())
-                .option(Epoll.isAvailable()
-                        ? EpollChannelOption.TCP_KEEPIDLE
-                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPIDLE), connectionConfig.getKeepaliveIdle())
-                .option(Epoll.isAvailable()
-                        ? EpollChannelOption.TCP_KEEPINTVL
-                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPINTERVAL), connectionConfig.getKeepaliveInterval())
-                .option(Epoll.isAvailable()
-                        ? EpollChannelOption.TCP_KEEPCNT
-                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPCOUNT), connectionConfig.getKeepaliveCount())
-                .httpResponseDecoder(option -> option.maxHeaderSize(parent.getCurrentConfiguration().getMaxHeaderSize()))
-                .doOnRequest((req, conn) -> {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug(
-                                "Start sending request for  Using client id {}_{} Uri {} Timestamp {} Backend {}:{}",
-                                key,
-                                connectionId,
-                                req.resourceUrl(),
-                                DATE_TIME_FORMATTER.format(LocalDateTime.now()),
-                                key.host(),
-                                key.port()
-                        );
-                    }
-                    endpointStats.getTotalRequests().incrementAndGet();
-                    endpointStats.getLastActivity().set(System.currentTimeMillis());
-                }).doAfterRequest((req, conn) -> {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug(
-                                "Finished sending request for  Using client id {}_{} Uri {} Timestamp {} Backend {}:{}",
-                                key,
-                                connectionId,
-                                request.getUri(),
-                                DATE_TIME_FORMATTER.format(LocalDateTime.now()),
-                                key.host(),
-                                key.port()
-                        );
-                    }
-                }).doAfterResponseSuccess((resp, conn) -> {
-                    endpointStats.getLastActivity().set(System.currentTimeMillis());
-                });
+        final HttpClient forwarder = getClient(key, connectionConfig, connectionProvider, request);
 
         AtomicBoolean cacheable = new AtomicBoolean(cache);
         final ContentsCache.ContentReceiver cacheReceiver = cacheable.get() ? parent.getCache().createCacheReceiver(request) : null;
@@ -476,24 +566,70 @@ public class ProxyRequestsManager implements AutoCloseable {
         } else {
             cacheable.set(false);
         }
+        // concurrent misses for the same content can follow this fetch, or the one of the attempt being retried
+        final CollapsedFetch collapsedFetch;
+        if (leadingFetch != null) {
+            collapsedFetch = leadingFetch;
+        } else if (cacheReceiver != null && parent.getCurrentConfiguration().isCacheCollapsingEnabled()) {
+            collapsedFetch = parent.getCache().leadFetch(cacheReceiver);
+        } else {
+            collapsedFetch = null;
+        }
+        // the collapsed fetch is handed to the next attempt on retries
+        final AtomicBoolean handedOver = new AtomicBoolean();
 
+        // whether the backend answered, for the errors after the response headers are not its failures
+        final AtomicBoolean answered = new AtomicBoolean();
+        final AtomicLong responseTime = new AtomicLong(-1);
+        // run once per attempt: on retries before moving to the next backend, else when the request ends
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Runnable finish = () -> {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            PENDING_REQUESTS_GAUGE.dec();
+            healthStatus.decrementConnections();
+            if (permit != null) {
+                // held until the whole response is sent, as the connection to the backend
+                permit.release(responseTime.get());
+            }
+            if (collapsedFetch != null && !handedOver.get()) {
+                // errors and cancellations, the followers fall through if still waiting for the response
+                collapsedFetch.abort();
+            }
+        };
+        final RetryBudget budget = retryBudget;
+        if (budget != null && request.getRetries() == 0) {
+            budget.recordRequest(System.currentTimeMillis());
+        }
         PENDING_REQUESTS_GAUGE.inc();
         healthStatus.incrementConnections();
+        request.setBackendStartTs(System.currentTimeMillis());
         return forwarder.request(request.getMethod())
                 .uri(request.getUri())
                 .send((req, out) -> {
-                    final HttpHeaders copy = request.getRequestHeaders().copy();
+                    // copied once, straight into the request to the backend
+                    req.headers(request.getRequestHeaders());
+                    final HttpHeaders headers = req.requestHeaders();
                     // Strip hop-by-hop headers before forwarding to the backend (RFC 2616 §13.5.1, RFC 7230 §6.1).
                     // This also ensures compliance with HTTP/2 which prohibits connection-specific headers (RFC 9113 §8.2.2).
-                    HttpUtils.stripHopByHopHeaders(copy);
+                    HttpUtils.stripHopByHopHeaders(headers);
                     // HTTP2-Settings is connection-specific and must not be forwarded (RFC 7540 §3.2)
-                    copy.remove(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER);
-                    req.headers(copy);
+                    headers.remove(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER);
                     // netty overrides the value, we need to force it
                     req.header(HttpHeaderNames.HOST, request.getRequestHostname());
+                    if (request.getRetries() > 0) {
+                        // only requests without a body are retried, and the client request can be received once
+                        return out;
+                    }
                     return out.send(request.getRequestData()); // client request body
                 })
                 .response((resp, flux) -> { // endpoint response
+                    final long backendTime = System.currentTimeMillis() - request.getBackendStartTs();
+                    answered.set(true);
+                    responseTime.set(backendTime);
+                    healthStatus.recordLatency(backendTime);
+                    parent.getBackendHealthManager().reportResponse(healthStatus, resp.status().code(), backendTime);
                     if (LOGGER.isDebugEnabled()) {
                         LOGGER.debug(
                                 "Receive response from backend for {} Using client id {}_{} uri{} timestamp {} Backend: {}",
@@ -506,14 +642,24 @@ public class ProxyRequestsManager implements AutoCloseable {
                         );
                     }
 
+                    if (staleContent != null && resp.status().codeClass() == HttpStatusClass.SERVER_ERROR) {
+                        STALE_HITS_COUNTER.labels("if_error").inc();
+                        return serveCachedContent(request, staleContent.getCached(), true);
+                    }
                     request.setResponseStatus(resp.status());
-                    final HttpHeaders responseHeaders = resp.responseHeaders().copy();
-                    HttpUtils.stripHopByHopHeaders(responseHeaders);
-                    request.setResponseHeaders(responseHeaders);
+                    // copied once, straight into the response to the client
+                    request.setResponseHeaders(resp.responseHeaders());
+                    HttpUtils.stripHopByHopHeaders(request.getResponseHeaders());
                     if (cacheable.get() && parent.getCache().isCacheable(resp) && Objects.requireNonNull(cacheReceiver).receivedFromRemote(resp)) {
                         addCachedResponseHeaders(request);
+                        if (collapsedFetch != null) {
+                            collapsedFetch.responseReceived(cacheReceiver.getKey(), resp.status(), request.getResponseHeaders().copy());
+                        }
                     } else {
                         cacheable.set(false);
+                        if (collapsedFetch != null) {
+                            collapsedFetch.abort();
+                        }
                     }
                     applyCustomResponseHeaders(request);
 
@@ -524,10 +670,16 @@ public class ProxyRequestsManager implements AutoCloseable {
                                     endpointStats.getLastActivity().set(System.currentTimeMillis());
                                     if (cacheable.get()) {
                                         Objects.requireNonNull(cacheReceiver).receivedFromRemote(data, parent.getCachePoolAllocator());
+                                        if (collapsedFetch != null) {
+                                            collapsedFetch.chunkReceived(data);
+                                        }
                                     }
                                 }).doOnSuccess(data -> {
                                     if (cacheable.get()) {
                                         parent.getCache().cacheContent(cacheReceiver);
+                                        if (collapsedFetch != null) {
+                                            collapsedFetch.complete();
+                                        }
                                     }
                                 }));
                     }
@@ -537,6 +689,9 @@ public class ProxyRequestsManager implements AutoCloseable {
                         endpointStats.getLastActivity().set(System.currentTimeMillis());
                         if (cacheable.get()) {
                             Objects.requireNonNull(cacheReceiver).receivedFromRemote(data, parent.getCachePoolAllocator());
+                            if (collapsedFetch != null) {
+                                collapsedFetch.chunkReceived(data);
+                            }
                         }
                     }).doOnComplete(() -> {
                         if (LOGGER.isDebugEnabled()) {
@@ -552,10 +707,48 @@ public class ProxyRequestsManager implements AutoCloseable {
                         }
                         if (cacheable.get()) {
                             parent.getCache().cacheContent(cacheReceiver);
+                            if (collapsedFetch != null) {
+                                collapsedFetch.complete();
+                            }
                         }
                     }));
                 }).onErrorResume(err -> { // custom endpoint request/response error handling
                     final EndpointKey endpoint = EndpointKey.make(request.getAction().getHost(), request.getAction().getPort());
+                    if (!answered.get()) {
+                        parent.getBackendHealthManager().reportError(healthStatus);
+                        if (permit != null) {
+                            permit.dropped();
+                        }
+                        // connection refused, reset or closed before any response
+                        if (err instanceof IOException || err instanceof AbortedException) {
+                            final MapResult retry = nextAttempt(request);
+                            if (retry != null) {
+                                LOGGER.warn("Error proxying request for endpoint {}, retrying on {}:{}; request: {}; error: {}",
+                                        endpoint, retry.getHost(), retry.getPort(), request, err.toString());
+                                if (err instanceof ConnectException) {
+                                    parent.getBackendHealthManager().reportBackendUnreachable(
+                                            endpoint, System.currentTimeMillis(), "Error: " + err
+                                    );
+                                }
+                                // nothing has been received yet, the followers keep waiting for the next attempt
+                                handedOver.set(collapsedFetch != null);
+                                finish.run();
+                                request.setRetries(request.getRetries() + 1);
+                                request.setAction(retry);
+                                if (collapsedFetch == null) {
+                                    return forward(request, cache, retry.getHealthStatus(), staleContent, null);
+                                }
+                                // no-op if the next attempt completed the fetch; else it was shed or cancelled before leading it
+                                return Flux.from(forward(request, cache, retry.getHealthStatus(), staleContent, collapsedFetch))
+                                        .doFinally(signal -> collapsedFetch.abort());
+                            }
+                        }
+                    }
+                    if (staleContent != null && !request.getResponse().hasSentHeaders()) {
+                        LOGGER.error("Error proxying request for endpoint {}, serving stale content; request: {}", endpoint, request, err);
+                        STALE_HITS_COUNTER.labels("if_error").inc();
+                        return serveCachedContent(request, staleContent.getCached(), true);
+                    }
                     if (err instanceof ReadTimeoutException) {
                         STUCK_REQUESTS_COUNTER.inc();
                         LOGGER.error("Read timeout error occurred for endpoint {}; request: {}", endpoint, request);
@@ -576,56 +769,188 @@ public class ProxyRequestsManager implements AutoCloseable {
                     return serveServiceUnavailable(request);
                 })
                 // decrement once per request: success and error callbacks can both fire (headers ok, body fails)
-                .doFinally(signal -> {
-                    PENDING_REQUESTS_GAUGE.dec();
-                    healthStatus.decrementConnections();
-                });
+                .doFinally(signal -> finish.run());
+    }
+
+    /**
+     * Map a failed request to the next backend, if it can be sent again safely:
+     * an idempotent request without a body, with nothing sent to the client yet, and within the retry budget.
+     *
+     * @param request the request that the backend failed before answering
+     * @return the action for the next backend, or null if the request cannot be retried
+     */
+    private MapResult nextAttempt(final ProxyRequest request) {
+        final RetryBudget budget = retryBudget;
+        if (budget == null
+                || request.getRetries() >= parent.getCurrentConfiguration().getRetryMax()
+                || request.getResponse().hasSentHeaders()
+                || HttpUtils.mayHaveBody(request.getRequestHeaders())) {
+            return null;
+        }
+        final HttpMethod method = request.getMethod();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method) && !HttpMethod.OPTIONS.equals(method)) {
+            return null;
+        }
+        final MapResult next = Objects.requireNonNull(request.getAction()).nextBackend();
+        if (next == null) {
+            return null;
+        }
+        if (!budget.tryRetry(System.currentTimeMillis())) {
+            RETRIES_COUNTER.labels("budget_exhausted").inc();
+            return null;
+        }
+        RETRIES_COUNTER.labels("retried").inc();
+        return next;
     }
 
     /**
-     * Creates an HTTP client for connecting to a backend endpoint.
+     * Get the HTTP client for connecting to a backend endpoint.
      * <p>
      * This method ensures that the same HTTP protocol version is used for both client-to-proxy
      * and proxy-to-backend communications, while ensuring compatibility with the SSL settings.
      * For example, HTTP/2 over TLS (H2) is used for HTTPS connections, while HTTP/2 cleartext (H2C)
      * is used for HTTP connections.
+     * <p>
+     * Clients are immutable and only depend on the backend and on the connection pool, so they are built once
+     * and cached until the next {@link #reloadConfiguration reload}; request-specific handling is left to the caller.
      *
+     * @param endpoint           the backend endpoint
+     * @param connectionConfig   the configuration of the connection pool
      * @param connectionProvider the connection provider to use
      * @param request            the request object
      * @return a configured HttpClient
      */
-    private HttpClient getClient(final ConnectionProvider connectionProvider, final ProxyRequest request) {
-        final EndpointKey endpoint = EndpointKey.make(request.getAction().getHost(), request.getAction().getPort());
+    private HttpClient getClient(
+            final EndpointKey endpoint,
+            final ConnectionPoolConfiguration connectionConfig,
+            final ConnectionProvider connectionProvider,
+            final ProxyRequest request) {
         final BackendConfiguration backend = parent.getBackendConfiguration(endpoint);
         final boolean secure = backend.ssl();
-        final HttpClient httpClient = HttpClient.create(connectionProvider)
-                .host(endpoint.host())
-                .port(endpoint.port())
-                .protocol(getClientProtocols(secure, request));
+        final SslContext sslContext;
         if (secure) {
             final String caCertificatePath = backend.caCertificatePath();
-            final SslContext sslContext;
             if (!StringUtils.isBlank(caCertificatePath) && clientSslContexts.containsKey(caCertificatePath)) {
                 sslContext = clientSslContexts.get(caCertificatePath);
             } else {
                 sslContext = clientSslContexts.get(DEFAULT_KEY);
             }
-            final SslContext finalSslContext = sslContext;
-            return httpClient.secure(spec -> spec.sslContext(finalSslContext));
+        } else {
+            sslContext = null;
+        }
+        final RuntimeServerConfiguration configuration = parent.getCurrentConfiguration();
+        final ClientKey clientKey = new ClientKey(
+                endpoint,
+                connectionConfig,
+                connectionProvider,
+                getClientProtocols(secure, request),
+                sslContext,
+                configuration.isRequestCompressionEnabled(),
+                configuration.getMaxHeaderSize()
+        );
+        final HttpClient cached = clients.get(clientKey);
+        return cached != null ? cached : clients.computeIfAbsent(clientKey, this::buildClient);
+    }
+
+    private HttpClient buildClient(final ClientKey clientKey) {
+        final EndpointKey key = clientKey.endpoint();
+        final ConnectionPoolConfiguration connectionConfig = clientKey.connectionConfig();
+        final String connectionId = connectionConfig.getId();
+        final EndpointStats endpointStats = endpointsStats.computeIfAbsent(key, EndpointStats::new);
+        LOGGER.debug("Building client for {} using connection {} with protocols {}", key, connectionId, clientKey.protocols());
+        HttpClient httpClient = HttpClient.create(clientKey.connectionProvider())
+                .host(key.host())
+                .port(key.port())
+                .protocol(clientKey.protocols().values)
+                .followRedirect(false) // the client is the one that should follow the redirect, not the proxy
+                .runOn(parent.getEventLoopGroup())
+                .compress(clientKey.compress())
+                .responseTimeout(Duration.ofMillis(connectionConfig.getStuckRequestTimeout()))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionConfig.getConnectTimeout())
+                // Enables TCP keepalive: TCP starts sending keepalive probes when a connection is idle for some time.
+                .option(ChannelOption.SO_KEEPALIVE, connectionConfig.isKeepAlive())
+                .option(Epoll.isAvailable()
+                        ? EpollChannelOption.TCP_KEEPIDLE
+                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPIDLE), connectionConfig.getKeepaliveIdle())
+                .option(Epoll.isAvailable()
+                        ? EpollChannelOption.TCP_KEEPINTVL
+                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPINTERVAL), connectionConfig.getKeepaliveInterval())
+                .option(Epoll.isAvailable()
+                        ? EpollChannelOption.TCP_KEEPCNT
+                        : NioChannelOption.of(ExtendedSocketOptions.TCP_KEEPCOUNT), connectionConfig.getKeepaliveCount())
+                .httpResponseDecoder(option -> option.maxHeaderSize(clientKey.maxHeaderSize()))
+                .doOnRequest((req, conn) -> {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(
+                                "Start sending request for  Using client id {}_{} Uri {} Timestamp {} Backend {}:{}",
+                                key,
+                                connectionId,
+                                req.resourceUrl(),
+                                DATE_TIME_FORMATTER.format(LocalDateTime.now()),
+                                key.host(),
+                                key.port()
+                        );
+                    }
+                    endpointStats.getTotalRequests().incrementAndGet();
+                    endpointStats.getLastActivity().set(System.currentTimeMillis());
+                }).doAfterRequest((req, conn) -> {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(
+                                "Finished sending request for  Using client id {}_{} Uri {} Timestamp {} Backend {}:{}",
+                                key,
+                                connectionId,
+                                req.uri(),
+                                DATE_TIME_FORMATTER.format(LocalDateTime.now()),
+                                key.host(),
+                                key.port()
+                        );
+                    }
+                }).doAfterResponseSuccess((resp, conn) -> {
+                    endpointStats.getLastActivity().set(System.currentTimeMillis());
+                });
+        if (clientKey.sslContext() != null) {
+            final SslContext sslContext = clientKey.sslContext();
+            httpClient = httpClient.secure(spec -> spec.sslContext(sslContext));
         }
         return httpClient;
     }
 
-    private HttpProtocol[] getClientProtocols(final boolean secure, final ProxyRequest request) {
+    private static ClientProtocols getClientProtocols(final boolean secure, final ProxyRequest request) {
         if (secure) {
             // ALPN handles negotiation safely
-            return new HttpProtocol[]{HttpProtocol.H2, HttpProtocol.HTTP11};
+            return ClientProtocols.SECURE;
         }
         if (HttpUtils.mayHaveBody(request.getRequestHeaders())) {
             // H2C uses "Upgrade" header; RFC 7540 forbids "Upgrade: h2c" if the request has a body.
-            return new HttpProtocol[]{HttpProtocol.HTTP11};
+            return ClientProtocols.CLEARTEXT_WITH_BODY;
+        }
+        return ClientProtocols.CLEARTEXT;
+    }
+
+    private enum ClientProtocols {
+        SECURE(HttpProtocol.H2, HttpProtocol.HTTP11),
+        CLEARTEXT(HttpProtocol.H2C, HttpProtocol.HTTP11),
+        CLEARTEXT_WITH_BODY(HttpProtocol.HTTP11);
+
+        private final HttpProtocol[] values;
+
+        ClientProtocols(final HttpProtocol... values) {
+            this.values = values;
         }
-        return new HttpProtocol[]{HttpProtocol.H2C, HttpProtocol.HTTP11};
+    }
+
+    /**
+     * What a {@link HttpClient} towards a backend is configured with.
+     * Connection providers and SSL contexts are compared by identity, so a rebuilt one gets a new client.
+     */
+    private record ClientKey(
+            EndpointKey endpoint,
+            ConnectionPoolConfiguration connectionConfig,
+            ConnectionProvider connectionProvider,
+            ClientProtocols protocols,
+            SslContext sslContext,
+            boolean compress,
+            int maxHeaderSize) {
     }
 
     private boolean aggregateChunksForLegacyHttp(ProxyRequest request) {
@@ -663,47 +988,312 @@ public class ProxyRequestsManager implements AutoCloseable {
     }
 
     private Publisher<Void> serveFromCache(ProxyRequest request, final BackendHealthStatus healthStatus) {
-        ContentsCache.ContentSender cacheSender = parent.getCache().getCacheSender(request);
-        if (cacheSender == null) {
-            // content non cached, forwarding and caching...
-            return forward(request, true, healthStatus);
+        return parent.getCache().getCacheSender(request)
+                .map(cacheSender -> serveCacheHit(request, cacheSender, healthStatus))
+                .switchIfEmpty(Mono.fromSupplier(() -> serveCacheMiss(request, healthStatus)))
+                .flatMapMany(response -> response);
+    }
+
+    private Publisher<Void> serveCacheMiss(ProxyRequest request, final BackendHealthStatus healthStatus) {
+        final CollapsedFetch.Follower follower = parent.getCurrentConfiguration().isCacheCollapsingEnabled()
+                ? parent.getCache().joinFetch(request)
+                : null;
+        if (follower != null) {
+            // content being fetched for another request
+            return serveFromCollapsedFetch(request, follower, healthStatus);
         }
-        request.setServedFromCache(true);
+        // content non cached, forwarding and caching...
+        return forward(request, true, healthStatus);
+    }
+
+    private Publisher<Void> serveCacheHit(ProxyRequest request, ContentsCache.ContentSender cacheSender, final BackendHealthStatus healthStatus) {
+        final ContentsCache.CachedContent content = cacheSender.getCached();
+        final long now = System.currentTimeMillis();
+        if (content.isExpired(now)) {
+            if (content.isStaleWhileRevalidate(now)) {
+                STALE_HITS_COUNTER.labels("while_revalidate").inc();
+                revalidate(request, cacheSender, healthStatus);
+                return serveCachedContent(request, content, true);
+            }
+            // still usable if the backend fails
+            return forward(request, true, healthStatus, content.isStaleIfError(now) ? cacheSender : null, null);
+        }
+        return serveCachedContent(request, content, false);
+    }
 
-        ContentsCache.CachedContent content = cacheSender.getCached();
-        HttpClientResponse response = content.getResponse();
+    private Publisher<Void> serveCachedContent(ProxyRequest request, ContentsCache.CachedContent content, boolean stale) {
+        request.setServedFromCache(true);
+        final String cachedHeader = "yes; ts=" + content.getCreationTs() + (stale ? "; stale" : "");
 
         // content modified
         if (content.modifiedSince(request)) {
-            request.setResponseStatus(response.status());
-            HttpHeaders headers = response.responseHeaders().copy();
+            request.setResponseStatus(content.getStatus());
+            // the cached headers are shared, they are copied straight into the response
+            request.setResponseHeaders(content.getHeaders());
+            final HttpHeaders headers = request.getResponseHeaders();
             headers.remove(HttpHeaderNames.EXPIRES);
             headers.remove(HttpHeaderNames.ACCEPT_RANGES);
             headers.remove(HttpHeaderNames.ETAG);
-            headers.add("X-Cached", "yes; ts=" + content.getCreationTs());
+            headers.add("X-Cached", cachedHeader);
             headers.add(HttpHeaderNames.EXPIRES, HttpUtils.formatDateHeader(new Date(content.getExpiresTs())));
-            request.setResponseHeaders(headers);
+            if (content.isOnDisk()) {
+                headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, content.getDiskBody().length());
+            }
+            final boolean whole = HttpResponseStatus.OK.equals(content.getStatus()) && HttpMethod.GET.equals(request.getMethod());
+            if (whole) {
+                final String range = request.getRequestHeaders().get(HttpHeaderNames.RANGE);
+                final List<ByteRange> ranges = range != null && content.matchesIfRange(request)
+                        ? ByteRange.parse(range, content.getBodySize())
+                        : null;
+                if (ranges != null) {
+                    return serveCachedRanges(request, content, headers, ranges);
+                }
+            }
+            final boolean gzip = content.isPrecompressed()
+                    && HttpUtils.acceptsEncoding(request.getRequestHeaders().get(HttpHeaderNames.ACCEPT_ENCODING), HttpHeaderValues.GZIP.toString());
+            if (content.isPrecompressed()) {
+                addVary(headers, HttpHeaderNames.ACCEPT_ENCODING);
+            }
+            if (gzip) {
+                // already encoded, the compression of the listener leaves it as is
+                headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, content.getGzipBodySize());
+            } else if (whole) {
+                headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            }
             applyCustomResponseHeaders(request);
+            if (content.isOnDisk()) {
+                // zero-copy from the segment file
+                final ContentsCache.DiskBody body = content.getDiskBody();
+                return body.length() > 0
+                        ? request.sendResponseFile(body.file(), body.position(), body.length())
+                        : request.send();
+            }
+            final List<ByteBuf> chunks = gzip ? content.getGzipChunks() : content.getChunks();
             // If the request is http 1.0, we make sure to send without chunked
             if (aggregateChunksForLegacyHttp(request)) {
-                return request.sendResponseData(Mono.from(ByteBufFlux.fromIterable(content.getChunks())));
+                return request.sendResponseData(Mono.from(ByteBufFlux.fromIterable(chunks)));
             }
             // body
-            return request.sendResponseData(Flux.fromIterable(content.getChunks()).doOnNext(data -> { // response data
+            return request.sendResponseData(Flux.fromIterable(chunks).doOnNext(data -> { // response data
                 request.setLastActivity(System.currentTimeMillis());
             }));
         }
 
         // content not modified
         request.setResponseStatus(HttpResponseStatus.NOT_MODIFIED);
-        HttpHeaders headers = new DefaultHttpHeaders();
+        final HttpHeaders headers = request.getResponseHeaders();
+        headers.clear();
         headers.set(HttpHeaderNames.LAST_MODIFIED, HttpUtils.formatDateHeader(new Date(content.getLastModified())));
         headers.set(HttpHeaderNames.EXPIRES, HttpUtils.formatDateHeader(new Date(content.getExpiresTs())));
-        headers.add("X-Cached", "yes; ts=" + content.getCreationTs());
-        request.setResponseHeaders(headers);
+        headers.add("X-Cached", cachedHeader);
         return request.send();
     }
 
+    /**
+     * Serve the requested ranges of a cached body, with slices of its chunks or regions of its file.
+     *
+     * @param headers the headers of the response, already set as those of the whole content
+     * @param ranges  the satisfiable ranges; none to reply 416
+     */
+    private Publisher<Void> serveCachedRanges(ProxyRequest request, ContentsCache.CachedContent content, HttpHeaders headers, List<ByteRange> ranges) {
+        final long size = content.getBodySize();
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        if (ranges.isEmpty()) {
+            RANGE_REQUESTS_COUNTER.labels("not_satisfiable").inc();
+            request.setResponseStatus(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            headers.set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+            headers.set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            applyCustomResponseHeaders(request);
+            return request.send();
+        }
+        request.setResponseStatus(HttpResponseStatus.PARTIAL_CONTENT);
+        // the ranges are of the identity body
+        request.setResponseCompression(false);
+        final ContentsCache.DiskBody diskBody = content.getDiskBody();
+        if (ranges.size() == 1) {
+            RANGE_REQUESTS_COUNTER.labels("single").inc();
+            final ByteRange range = ranges.get(0);
+            headers.set(HttpHeaderNames.CONTENT_RANGE, range.toContentRange(size));
+            headers.set(HttpHeaderNames.CONTENT_LENGTH, range.length());
+            applyCustomResponseHeaders(request);
+            if (diskBody != null) {
+                return request.sendResponseFile(diskBody.file(), diskBody.position() + range.first(), range.length());
+            }
+            return request.sendResponseData(Flux.fromIterable(content.getChunks(range.first(), range.length())));
+        }
+
+        // multipart/byteranges, https://www.rfc-editor.org/rfc/rfc9110#section-14.6
+        RANGE_REQUESTS_COUNTER.labels("multipart").inc();
+        final String boundary = "carapace_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        final List<ByteBuf> partHeaders = new ArrayList<>(ranges.size());
+        long length = 0;
+        for (final ByteRange range : ranges) {
+            final ByteBuf partHeader = Unpooled.copiedBuffer("\r\n--" + boundary + "\r\n"
+                    + (contentType != null ? HttpHeaderNames.CONTENT_TYPE + ": " + contentType + "\r\n" : "")
+                    + HttpHeaderNames.CONTENT_RANGE + ": " + range.toContentRange(size) + "\r\n\r\n", StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            length += partHeader.readableBytes() + range.length();
+        }
+        final ByteBuf trailer = Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", StandardCharsets.US_ASCII);
+        length += trailer.readableBytes();
+        headers.set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, length);
+        applyCustomResponseHeaders(request);
+        if (diskBody != null) {
+            // a rare case, regions are read rather than sent with zero-copy
+            return request.sendResponseData(Flux.range(0, ranges.size())
+                    .concatMap(i -> Flux.concat(Mono.just(partHeaders.get(i)), readRegion(diskBody, ranges.get(i))))
+                    .concatWith(Mono.just(trailer))
+                    .doOnDiscard(ByteBuf.class, ByteBuf::release));
+        }
+        final List<ByteBuf> parts = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            final ByteRange range = ranges.get(i);
+            parts.add(partHeaders.get(i));
+            parts.addAll(content.getChunks(range.first(), range.length()));
+        }
+        parts.add(trailer);
+        return request.sendResponseData(Flux.fromIterable(parts));
+    }
+
+    private static Mono<ByteBuf> readRegion(final ContentsCache.DiskBody diskBody, final ByteRange range) {
+        return Mono.fromCallable(() -> {
+            try (FileChannel channel = FileChannel.open(diskBody.file(), StandardOpenOption.READ)) {
+                final ByteBuf region = Unpooled.buffer((int) range.length());
+                try {
+                    while (region.isWritable()) {
+                        if (region.writeBytes(channel, diskBody.position() + range.first() + region.writerIndex(), region.writableBytes()) < 0) {
+                            throw new EOFException("truncated " + diskBody.file());
+                        }
+                    }
+                    return region;
+                } catch (IOException err) {
+                    region.release();
+                    throw err;
+                }
+            }
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static void addVary(final HttpHeaders headers, final CharSequence name) {
+        for (final String value : headers.getAll(HttpHeaderNames.VARY)) {
+            for (final String token : value.split(",")) {
+                if (AsciiString.contentEqualsIgnoreCase(token.trim(), name)) {
+                    return;
+                }
+            }
+        }
+        headers.add(HttpHeaderNames.VARY, name);
+    }
+
+    /**
+     * Refresh an expired content in background, with a conditional request to the backend.
+     * <p>
+     * A {@code 304 Not Modified} response just extends the expiration of the content, a new one replaces it.
+     * On errors the content stays as is, until it cannot be served stale anymore.
+     */
+    private void revalidate(final ProxyRequest request, final ContentsCache.ContentSender cacheSender, final BackendHealthStatus healthStatus) {
+        final ContentsCache cache = parent.getCache();
+        final ContentsCache.ContentKey contentKey = cacheSender.getKey();
+        if (!cache.startRevalidation(contentKey)) {
+            return;
+        }
+        final ContentsCache.CachedContent content = cacheSender.getCached();
+        final ContentsCache.ContentReceiver cacheReceiver = cache.createCacheReceiver(request);
+
+        final HttpHeaders headers = request.getRequestHeaders().copy();
+        HttpUtils.stripHopByHopHeaders(headers);
+        headers.remove(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER);
+        headers.remove(HttpHeaderNames.IF_MATCH);
+        headers.remove(HttpHeaderNames.IF_NONE_MATCH);
+        headers.remove(HttpHeaderNames.IF_MODIFIED_SINCE);
+        headers.remove(HttpHeaderNames.IF_UNMODIFIED_SINCE);
+        headers.remove(HttpHeaderNames.IF_RANGE);
+        headers.remove(HttpHeaderNames.RANGE);
+        if (content.getLastModified() > 0) {
+            headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, HttpUtils.formatDateHeader(new Date(content.getLastModified())));
+        }
+        final String etag = content.getHeaders().get(HttpHeaderNames.ETAG);
+        if (etag != null) {
+            headers.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+        }
+        final String hostName = request.getRequestHostname();
+
+        final EndpointKey key = EndpointKey.make(request.getAction().getHost(), request.getAction().getPort());
+        final ConnectionPoolConfiguration connectionConfig = connectionsManager.findConnectionPool(hostName);
+        final ConnectionProvider connectionProvider = connectionsManager.getConnectionProvider(connectionConfig);
+        final HttpClient client = getClient(key, connectionConfig, connectionProvider, request);
+
+        healthStatus.incrementConnections();
+        client.request(request.getMethod())
+                .uri(request.getUri())
+                .send((req, out) -> {
+                    req.headers(headers);
+                    req.header(HttpHeaderNames.HOST, hostName);
+                    return out;
+                })
+                .response((resp, flux) -> {
+                    if (resp.status().equals(HttpResponseStatus.NOT_MODIFIED)) {
+                        REVALIDATIONS_COUNTER.labels("not_modified").inc();
+                        cache.refreshExpiration(contentKey, content, resp);
+                        return flux.then();
+                    }
+                    if (resp.status().codeClass() == HttpStatusClass.SERVER_ERROR) {
+                        REVALIDATIONS_COUNTER.labels("error").inc();
+                        return flux.then();
+                    }
+                    if (cacheReceiver != null && cache.isCacheable(resp) && cacheReceiver.receivedFromRemote(resp)) {
+                        REVALIDATIONS_COUNTER.labels("modified").inc();
+                        return flux.doOnNext(data -> cacheReceiver.receivedFromRemote(data, parent.getCachePoolAllocator()))
+                                .doOnError(err -> cacheReceiver.abort())
+                                .then(Mono.fromRunnable(() -> cache.cacheContent(cacheReceiver)));
+                    }
+                    // not to be served anymore
+                    REVALIDATIONS_COUNTER.labels("not_cacheable").inc();
+                    cache.remove(contentKey);
+                    return flux.then();
+                })
+                .doFinally(signal -> {
+                    healthStatus.decrementConnections();
+                    cache.endRevalidation(contentKey);
+                })
+                .subscribe(null, err -> {
+                    REVALIDATIONS_COUNTER.labels("error").inc();
+                    LOGGER.debug("Error revalidating {} on endpoint {}", contentKey, key, err);
+                });
+    }
+
+    private Publisher<Void> serveFromCollapsedFetch(ProxyRequest request, CollapsedFetch.Follower follower, final BackendHealthStatus healthStatus) {
+        final Duration timeout = Duration.ofMillis(parent.getCurrentConfiguration().getCacheCollapsingTimeout());
+        return follower.response()
+                .timeout(timeout, Mono.empty())
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMapMany(response -> {
+                    if (response.isEmpty() || !parent.getCache().isSameVariant(response.get().key(), request, response.get().headers())) {
+                        // not shared, not in time, or another variant
+                        COLLAPSED_FALLTHROUGH_COUNTER.inc();
+                        follower.leave();
+                        return forward(request, true, healthStatus);
+                    }
+                    COLLAPSED_REQUESTS_COUNTER.inc();
+                    request.setResponseStatus(response.get().status());
+                    request.setResponseHeaders(response.get().headers());
+                    applyCustomResponseHeaders(request);
+                    final Flux<ByteBuf> body = follower.body().doOnNext(data -> request.setLastActivity(System.currentTimeMillis()));
+                    if (aggregateChunksForLegacyHttp(request)) {
+                        return request.sendResponseData(ByteBufFlux.fromInbound(body).aggregate());
+                    }
+                    return request.sendResponseData(body);
+                })
+                .doFinally(signal -> follower.leave());
+    }
+
     public ConnectionsManager getConnectionsManager() {
         return connectionsManager;
     }
@@ -21,36 +21,40 @@ package org.carapaceproxy.core;
 
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import java.io.BufferedWriter;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.internal.PlatformDependent;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.Date;
-import java.util.Locale;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
+import org.carapaceproxy.server.mapper.MapResult;
+import org.carapaceproxy.utils.PrometheusUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.stringtemplate.v4.NoIndentWriter;
-import org.stringtemplate.v4.ST;
-import org.stringtemplate.v4.STWriter;
 
 /**
  *
@@ -60,7 +64,39 @@ public class RequestsLogger implements Runnable, Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(RequestsLogger.class);
 
-    private final BlockingQueue<Entry> queue;
+    private static final Gauge QUEUE_DEPTH_GAUGE = PrometheusUtils.createGauge(
+            "accesslog", "queue_depth", "access log entries waiting to be written"
+    ).register();
+    private static final Gauge BATCH_SIZE_GAUGE = PrometheusUtils.createGauge(
+            "accesslog", "batch_size", "access log entries written by the last flush"
+    ).register();
+    private static final Counter DROPPED_ENTRIES_COUNTER = PrometheusUtils.createCounter(
+            "accesslog", "dropped_entries_total", "access log entries discarded because the queue was full"
+    ).register();
+    private static final Counter SAMPLED_OUT_ENTRIES_COUNTER = PrometheusUtils.createCounter(
+            "accesslog", "sampled_out_entries_total", "access log entries discarded by the sampling of the overflow policy"
+    ).register();
+
+    /**
+     * What to do with new entries when the writer cannot keep up with the requests.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Enqueue every entry until the queue is full, then discard the new ones.
+         */
+        DROP,
+        /**
+         * Once the queue is half full, enqueue only one entry every {@code accesslog.queue.samplingrate}.
+         */
+        SAMPLE
+    }
+
+    private final Queue<Entry> queue;
+    private final int queueCapacity;
+    private final AtomicLong sampled = new AtomicLong();
+    private final LongAdder droppedSinceLastFlush = new LongAdder();
+    private final LongAdder sampledOutSinceLastFlush = new LongAdder();
+    private volatile Thread waitingWriter;
 
     private volatile RuntimeServerConfiguration currentConfiguration;
     private volatile RuntimeServerConfiguration newConfiguration = null;
@@ -70,44 +106,43 @@ public class RequestsLogger implements Runnable, Closeable {
     private boolean started = false;
     private final Thread thread;
 
-    private OutputStream os = null;
-    private OutputStreamWriter osw = null;
-    private BufferedWriter bw = null;
-    private STWriter stw = null;
+    private FileChannel channel = null;
+    private ByteBuffer buffer;
+    private int bufferedEntries = 0;
+    private final StringBuilder line = new StringBuilder(512);
+    private CharBuffer chars = CharBuffer.allocate(512);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
     public long lastFlush = 0;
 
     private boolean verbose = false;
     private boolean breakRunForTests = false;
 
-    private DateTimeFormatter accessLogTimestampFormatter;
+    private volatile AccessLogTemplate accessLogTemplate;
 
     public RequestsLogger(RuntimeServerConfiguration currentConfiguration) {
         this.currentConfiguration = currentConfiguration;
-        this.queue = new ArrayBlockingQueue<>(this.currentConfiguration.getAccessLogMaxQueueCapacity());
+        this.queueCapacity = this.currentConfiguration.getAccessLogMaxQueueCapacity();
+        this.queue = PlatformDependent.newFixedMpscQueue(queueCapacity);
+        this.buffer = ByteBuffer.allocateDirect(this.currentConfiguration.getAccessLogBufferSize());
         this.thread = new Thread(this);
-        this.accessLogTimestampFormatter = buildTimestampFormatter(currentConfiguration);
-    }
-
-    private static DateTimeFormatter buildTimestampFormatter(final RuntimeServerConfiguration currentConfiguration) {
-        return DateTimeFormatter
-                .ofPattern(currentConfiguration.getAccessLogTimestampFormat())
-                .withLocale(Locale.getDefault())
-                .withZone(ZoneId.systemDefault());
+        this.accessLogTemplate = AccessLogTemplate.compile(currentConfiguration);
     }
 
     private void ensureAccessLogFileOpened() throws IOException {
-        if (os != null) {
+        if (channel != null) {
             return;
         }
 
         if (verbose) {
             LOG.info("Opening file: {}", currentConfiguration.getAccessLogPath());
         }
-        os = new FileOutputStream(currentConfiguration.getAccessLogPath(), true);
-        osw = new OutputStreamWriter(os, StandardCharsets.UTF_8);
-        bw = new BufferedWriter(osw);
-        stw = new NoIndentWriter(bw);
+        channel = FileChannel.open(
+                Paths.get(currentConfiguration.getAccessLogPath()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+        );
     }
 
     @VisibleForTesting
@@ -115,14 +150,18 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.info("Flushed");
         }
-        if (bw != null) {
-            bw.flush();
+        if (channel != null) {
+            writeBuffer();
         }
-        if (osw != null) {
-            osw.flush();
+        BATCH_SIZE_GAUGE.set(bufferedEntries);
+        bufferedEntries = 0;
+        final long dropped = droppedSinceLastFlush.sumThenReset();
+        if (dropped > 0) {
+            LOG.error("{} requests not logged to access log because queue is full", dropped);
         }
-        if (os != null) {
-            os.flush();
+        final long sampledOut = sampledOutSinceLastFlush.sumThenReset();
+        if (sampledOut > 0) {
+            LOG.warn("{} requests not logged to access log because sampled out, queue is more than half full", sampledOut);
         }
         lastFlush = System.currentTimeMillis();
     }
@@ -131,20 +170,95 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.info("Closing file");
         }
-        if (stw != null) {
-            stw = null;
+        if (channel != null) {
+            try {
+                writeBuffer();
+            } finally {
+                buffer.clear();
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Write every buffered byte to the access log, with as few system calls as possible.
+     */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Render an entry and encode it in the batch buffer,
+     * writing the buffer to the access log whenever it is full.
+     */
+    private void append(final Entry entry) throws IOException {
+        line.setLength(0);
+        entry.template().render(entry, line);
+        line.append('\n');
+        final int length = line.length();
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
         }
-        if (bw != null) {
-            bw.close();
-            bw = null;
+        chars.clear();
+        line.getChars(0, length, chars.array(), 0);
+        chars.limit(length);
+        encoder.reset();
+        CoderResult result;
+        while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+            writeBuffer();
         }
-        if (osw != null) {
-            osw.close();
-            osw = null;
+        if (result.isError()) {
+            result.throwException();
         }
-        if (os != null) {
-            os.close();
-            os = null;
+        bufferedEntries++;
+    }
+
+    /**
+     * Move every queued entry to the batch buffer.
+     *
+     * @return the number of entries taken from the queue
+     */
+    private int drainQueue() throws IOException {
+        int count = 0;
+        Entry entry;
+        // bounded, not to starve flushes and rotations
+        while (count < queueCapacity && (entry = queue.poll()) != null) {
+            if (verbose) {
+                LOG.info("writing entry: {}", entry.render());
+            }
+            append(entry);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Wait for new entries, until the given timeout or a close request.
+     */
+    private void awaitEntries(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waitingWriter = Thread.currentThread();
+        try {
+            while (queue.isEmpty() && !closeRequested) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waitingWriter = null;
         }
     }
 
@@ -225,23 +339,43 @@ public class RequestsLogger implements Runnable, Closeable {
             closeAccessLogFile();
             // File opening will be retried at next cycle start
         }
-        this.accessLogTimestampFormatter = buildTimestampFormatter(this.currentConfiguration);
+        if (buffer.capacity() != newConfiguration.getAccessLogBufferSize()) {
+            if (channel != null) {
+                writeBuffer();
+            }
+            buffer = ByteBuffer.allocateDirect(newConfiguration.getAccessLogBufferSize());
+        }
+        this.accessLogTemplate = AccessLogTemplate.compile(this.currentConfiguration);
         newConfiguration = null;
     }
 
     public void logRequest(ProxyRequest request) {
-        Entry entry = new Entry(request, currentConfiguration.getAccessLogFormat(), accessLogTimestampFormatter);
+        Entry entry = Entry.capture(request, accessLogTemplate);
 
         if (closeRequested) {
             LOG.error("Request {} not logged to access log because RequestsLogger is closed", entry.render());
             return;
         }
 
+        final RuntimeServerConfiguration configuration = currentConfiguration;
+        if (configuration.getAccessLogOverflowPolicy() == OverflowPolicy.SAMPLE
+                && queue.size() >= queueCapacity / 2
+                && sampled.getAndIncrement() % configuration.getAccessLogSamplingRate() != 0) {
+            SAMPLED_OUT_ENTRIES_COUNTER.inc();
+            sampledOutSinceLastFlush.increment();
+            return;
+        }
+
         // If configuration reloads already created entries will keep a possibile old format, but it doesn't really matter
-        boolean ret = queue.offer(entry);
+        if (!queue.offer(entry)) {
+            DROPPED_ENTRIES_COUNTER.inc();
+            droppedSinceLastFlush.increment();
+            return;
+        }
 
-        if (!ret) {
-            LOG.error("Request {} not logged to access log because queue is full", entry.render());
+        final Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
         }
     }
 
@@ -258,6 +392,10 @@ public class RequestsLogger implements Runnable, Closeable {
     @Override
     public void close() {
         closeRequested = true;
+        final Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
     }
 
     public void start() {
@@ -283,7 +421,6 @@ public class RequestsLogger implements Runnable, Closeable {
             lastFlush = System.currentTimeMillis();
         }
 
-        Entry currentEntry = null;
         while (!closed) {
             try {
                 reloadConfiguration();
@@ -305,21 +442,16 @@ public class RequestsLogger implements Runnable, Closeable {
                         : 0L;
                 waitTime = Math.max(waitTime, 0L);
 
-                if (currentEntry == null) {
-                    currentEntry = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+                int written = drainQueue();
+                if (written == 0 && waitTime > 0) {
+                    awaitEntries(waitTime);
+                    written = drainQueue();
                 }
+                QUEUE_DEPTH_GAUGE.set(queue.size());
 
-                if (currentEntry != null) {
-                    if (verbose) {
-                        LOG.info("writing entry: {}", currentEntry.render());
-                    }
-                    currentEntry.write(stw, bw);
-                    currentEntry = null;
-                } else {
-                    if (closeRequested) {
-                        closeAccessLogFile();
-                        closed = true;
-                    }
+                if (written == 0 && closeRequested) {
+                    closeAccessLogFile();
+                    closed = true;
                 }
 
                 if (System.currentTimeMillis() - lastFlush >= currentConfiguration.getAccessLogFlushInterval()) {
@@ -372,50 +504,58 @@ public class RequestsLogger implements Runnable, Closeable {
      * <tls_cipher_suite>: cipher suite used
      * <http_protocol_version>: http protocol used
      */
-    static final class Entry {
-
-        private final ST format;
-
-        public Entry(final ProxyRequest request, final String format, final DateTimeFormatter tsFormatter) {
-            this.format = new ST(format);
-
-            this.format.add("client_ip", request.getRemoteAddress().getAddress().getHostAddress());
-            this.format.add("server_ip", request.getLocalAddress().getAddress().getHostAddress());
-            this.format.add("method", request.getRequest().method().name());
-            this.format.add("host", request.getRequest().requestHeaders().getAsString(HttpHeaderNames.HOST));
-            this.format.add("uri", request.getUri());
-            this.format.add("timestamp", tsFormatter.format(Instant.ofEpochMilli(request.getStartTs())));
-            this.format.add("total_time", request.getLastActivity() - request.getStartTs());
-            this.format.add("action_id", request.getAction().getAction());
-            this.format.add("route_id", request.getAction().getRouteId());
-            this.format.add("user_id", request.getUserId());
-            this.format.add("session_id", request.getSessionId());
-            this.format.add("http_protocol_version", request.getRequest().version());
-            if (request.isServedFromCache()) {
-                this.format.add("backend_id", "CACHED");
-                this.format.add("backend_time", "0");
-            } else {
-                this.format.add("backend_id", String.format("%s:%s", request.getAction().getHost(), request.getAction().getPort()));
-                this.format.add("backend_time", request.getBackendStartTs() - request.getStartTs());
-            }
-            formatSSLProperties(request);
-        }
-
-        private void formatSSLProperties(ProxyRequest request) {
-            String sslProtocol = request.getSslProtocol();
-            String cipherSuite = request.getCipherSuite();
-            this.format.add("tls_protocol", sslProtocol != null ? sslProtocol : "n/a");
-            this.format.add("tls_cipher_suite", cipherSuite != null ? cipherSuite : "n/a");
+    record Entry(
+            AccessLogTemplate template,
+            String clientIp,
+            String serverIp,
+            String method,
+            String host,
+            String uri,
+            long startTs,
+            long backendStartTs,
+            long lastActivity,
+            String actionId,
+            String routeId,
+            String userId,
+            String sessionId,
+            String httpProtocolVersion,
+            boolean servedFromCache,
+            String backendHost,
+            int backendPort,
+            String tlsProtocol,
+            String tlsCipherSuite) {
+
+        static Entry capture(final ProxyRequest request, final AccessLogTemplate template) {
+            final HttpVersion version = request.getRequest().version();
+            final MapResult.Action action = request.getAction().getAction();
+            return new Entry(
+                    template,
+                    request.getRemoteAddress().getAddress().getHostAddress(),
+                    request.getLocalAddress().getAddress().getHostAddress(),
+                    request.getRequest().method().name(),
+                    request.getRequest().requestHeaders().getAsString(HttpHeaderNames.HOST),
+                    request.getUri(),
+                    request.getStartTs(),
+                    request.getBackendStartTs(),
+                    request.getLastActivity(),
+                    action != null ? action.name() : null,
+                    request.getAction().getRouteId(),
+                    request.getUserId(),
+                    request.getSessionId(),
+                    version != null ? version.text() : null,
+                    request.isServedFromCache(),
+                    request.getAction().getHost(),
+                    request.getAction().getPort(),
+                    request.getSslProtocol(),
+                    request.getCipherSuite()
+            );
         }
 
         @VisibleForTesting
         String render() {
-            return this.format.render(Locale.ITALY);
-        }
-
-        public void write(STWriter stw, BufferedWriter bw) throws IOException {
-            this.format.write(stw, Locale.ITALY);
-            bw.write("\n");
+            final StringBuilder out = new StringBuilder();
+            template.render(this, out);
+            return out.toString();
         }
     }
 }
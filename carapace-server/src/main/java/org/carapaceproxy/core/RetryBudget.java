@@ -0,0 +1,101 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A limit of the retries as a share of the requests, so that failing backends do not multiply the load on the other ones.
+ * <p>
+ * Requests and retries are counted over the last seconds: a retry is allowed while the retries stay below
+ * a percentage of the requests, plus a few retries per second for the low traffic.
+ */
+public class RetryBudget {
+
+    private static final int SECONDS = 10;
+
+    private final int percent;
+    private final int minPerSecond;
+    // one slot per second, reused when its second is over
+    private final AtomicLongArray seconds = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray requests = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray retries = new AtomicLongArray(SECONDS);
+
+    /**
+     * @param percent      the retries allowed for each hundred requests
+     * @param minPerSecond the retries allowed each second anyway
+     */
+    public RetryBudget(final int percent, final int minPerSecond) {
+        this.percent = percent;
+        this.minPerSecond = minPerSecond;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    public int getMinPerSecond() {
+        return minPerSecond;
+    }
+
+    /**
+     * Count a request towards the budget.
+     *
+     * @param now the current time, in milliseconds
+     */
+    public void recordRequest(final long now) {
+        requests.incrementAndGet(slot(now / 1_000));
+    }
+
+    /**
+     * Take a retry from the budget, if there is any left.
+     *
+     * @param now the current time, in milliseconds
+     * @return whether the retry is allowed
+     */
+    public boolean tryRetry(final long now) {
+        final long second = now / 1_000;
+        final int current = slot(second);
+        long totalRequests = 0;
+        long totalRetries = 0;
+        for (int i = 0; i < SECONDS; i++) {
+            if (seconds.get(i) > second - SECONDS) {
+                totalRequests += requests.get(i);
+                totalRetries += retries.get(i);
+            }
+        }
+        if ((totalRetries + 1) * 100 > totalRequests * percent + (long) minPerSecond * SECONDS * 100) {
+            return false;
+        }
+        retries.incrementAndGet(current);
+        return true;
+    }
+
+    private int slot(final long second) {
+        final int slot = (int) (second % SECONDS);
+        final long previous = seconds.get(slot);
+        if (previous != second && seconds.compareAndSet(slot, previous, second)) {
+            // counts of an old second, the increments racing with the reset are lost, which is fine for an estimate
+            requests.set(slot, 0);
+            retries.set(slot, 0);
+        }
+        return slot;
+    }
+}
@@ -49,10 +49,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import javax.net.ssl.SSLContext;
 import lombok.Data;
 import org.carapaceproxy.configstore.ConfigurationStore;
+import org.carapaceproxy.server.cache.SlabStore;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration;
@@ -82,11 +85,13 @@ public class RuntimeServerConfiguration {
     private static final Logger LOG = LoggerFactory.getLogger(RuntimeServerConfiguration.class);
     private static final int DEFAULT_PROBE_PERIOD = 0;
     public static final long DEFAULT_WARMUP_PERIOD = Duration.ofSeconds(30).toMillis();
+    public static final int DEFAULT_HEALTH_MAX_CONCURRENT_PROBES = 64;
+    public static final int DEFAULT_OUTLIER_WINDOW = 10;
 
     private final Map<EndpointKey, NetworkListenerConfiguration> listeners = new LinkedHashMap<>();
     private final Map<String, SSLCertificateConfiguration> certificates = new HashMap<>();
     private final List<RequestFilterConfiguration> requestFilters = new ArrayList<>();
-    private final Map<String, ConnectionPoolConfiguration> connectionPools = new HashMap<>();
+    private final Map<String, ConnectionPoolConfiguration> connectionPools = new LinkedHashMap<>(); // in configuration order, the first matching pool wins
     private ConnectionPoolConfiguration defaultConnectionPool;
 
     private int maxConnectionsPerEndpoint = DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT;
@@ -96,6 +101,16 @@ public class RuntimeServerConfiguration {
     private boolean backendsUnreachableOnStuckRequests = false;
     private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
     private int borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    private boolean adaptiveConcurrencyEnabled = false;
+    private int adaptiveConcurrencyInitialLimit = 20;
+    private int adaptiveConcurrencyMinLimit = 1;
+    private int adaptiveConcurrencyMaxLimit = DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT;
+    private int adaptiveConcurrencyQueueSize = 100;
+    private int adaptiveConcurrencyQueueTimeout = 1_000;
+    private boolean retryEnabled = false;
+    private int retryMax = 1;
+    private int retryBudgetPercent = 20;
+    private int retryMinPerSecond = 10;
     private int disposeTimeout = DEFAULT_DISPOSE_TIMEOUT; // 5 min
     private int soBacklog = 128;
     private int keepaliveIdle = DEFAULT_KEEPALIVE_IDLE; // sec
@@ -107,6 +122,19 @@ public class RuntimeServerConfiguration {
     private long cacheMaxSize = 0;
     private long cacheMaxFileSize = 0;
     private boolean cacheDisabledForSecureRequestsWithoutPublic = false;
+    private boolean cacheSlabsEnabled = false;
+    private int cacheSlabSize = 1024 * 1024;
+    private long cacheStaleWhileRevalidate = 0;
+    private long cacheStaleIfError = 0;
+    private int cachePrecompressionThreshold = -1;
+    private String cacheTagHeader = "Surrogate-Key";
+    private boolean cacheCollapsingEnabled = true;
+    private long cacheCollapsingTimeout = 5_000;
+    private boolean cacheDiskEnabled = false;
+    private String cacheDiskPath = "cache";
+    private long cacheDiskMaxSize = 1024L * 1024 * 1024;
+    private long cacheDiskSegmentSize = 64L * 1024 * 1024;
+    private long cacheDiskThreshold = 0;
     private String mapperClassname;
     private String accessLogPath = "access.log";
     private String accessLogTimestampFormat = "yyyy-MM-dd HH:mm:ss.SSS";
@@ -115,6 +143,9 @@ public class RuntimeServerConfiguration {
             + "server=<server_ip>, act=<action_id>, route=<route_id>, backend=<backend_id>. "
             + "time t=<total_time>ms b=<backend_time>ms, protocol=<http_protocol_version>";
     private int accessLogMaxQueueCapacity = 2000;
+    private RequestsLogger.OverflowPolicy accessLogOverflowPolicy = RequestsLogger.OverflowPolicy.DROP;
+    private int accessLogSamplingRate = 10;
+    private int accessLogBufferSize = 1_048_576; // bytes
     private int accessLogFlushInterval = 5000;
     private int accessLogWaitBetweenFailures = DEFAULT_CONNECT_TIMEOUT;
     private long accessLogMaxSize = 524288000;
@@ -123,6 +154,19 @@ public class RuntimeServerConfiguration {
     private String userRealmClassname;
     private int healthProbePeriod = DEFAULT_PROBE_PERIOD;
     private int healthConnectTimeout = 5_000;
+    private int healthMaxConcurrentProbes = DEFAULT_HEALTH_MAX_CONCURRENT_PROBES;
+    private boolean slowStartEnabled = false;
+    private int slowStartMinWeight = 10;
+    private boolean slowStartExponential = false;
+    private boolean outlierDetectionEnabled = false;
+    private int outlierWindow = DEFAULT_OUTLIER_WINDOW;
+    private int outlierMinRequests = 20;
+    private int outlierMax5xxPercent = 50;
+    private int outlierMaxErrorPercent = 50;
+    private long outlierMaxP99 = 0;
+    private int outlierEjectionTime = 30;
+    private int outlierMaxEjectionTime = 300;
+    private int outlierMaxEjectedPercent = 50;
     private long warmupPeriod = DEFAULT_WARMUP_PERIOD;
     private boolean tolerant = false;
     private int dynamicCertificatesManagerPeriod = 0;
@@ -136,6 +180,9 @@ public class RuntimeServerConfiguration {
     private String sslTrustStoreFile;
     private String sslTrustStorePassword;
     private boolean ocspEnabled = false;
+    private boolean sslContextsLazy = false;
+    private long sslContextsCacheMaxSize = 0; // 0 = sized from the certificates
+    private int sslContextsCacheIdleTimeout = 3600; // seconds
     private int maxHeaderSize = 8_192; //bytes; default 8kb
     private boolean maintenanceModeEnabled = false;
     private boolean http10BackwardCompatibilityEnabled = false;
@@ -191,6 +238,8 @@ public class RuntimeServerConfiguration {
         LOG.info("connectionsmanager.keepaliveidle={}", keepaliveIdle);
         LOG.info("connectionsmanager.keepaliveinterval={}", keepaliveInterval);
         LOG.info("connectionsmanager.keepalivecount={}", keepaliveCount);
+        configureAdaptiveConcurrency(properties);
+        configureRetries(properties);
 
         this.mapperClassname = properties.getClassname("mapper.class", StandardEndpointMapper.class.getName());
         LOG.info("mapper.class={}", this.mapperClassname);
@@ -201,6 +250,61 @@ public class RuntimeServerConfiguration {
         LOG.info("cache.maxsize={}", cacheMaxSize);
         LOG.info("cache.maxfilesize={}", cacheMaxFileSize);
         LOG.info("cache.requests.secure.disablewithoutpublic={}", cacheDisabledForSecureRequestsWithoutPublic);
+        this.cacheSlabsEnabled = properties.getBoolean("cache.slabs.enabled", cacheSlabsEnabled);
+        this.cacheSlabSize = properties.getInt("cache.slabs.size", cacheSlabSize);
+        if (cacheSlabSize < 1024) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheSlabSize + "' for cache.slabs.size");
+        }
+        LOG.info("cache.slabs.enabled={}", cacheSlabsEnabled);
+        LOG.info("cache.slabs.size={}", cacheSlabSize);
+        if (cacheSlabsEnabled && cacheMaxSize > 0 && SlabStore.minCapacity(cacheSlabSize) > cacheMaxSize) {
+            // otherwise some size classes could never get a slab
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheSlabSize + "' for cache.slabs.size, "
+                    + "a slab for every size class needs " + SlabStore.minCapacity(cacheSlabSize) + " bytes, more than cache.maxsize");
+        }
+        this.cacheStaleWhileRevalidate = properties.getLong("cache.stalewhilerevalidate", cacheStaleWhileRevalidate);
+        if (cacheStaleWhileRevalidate < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleWhileRevalidate + "' for cache.stalewhilerevalidate");
+        }
+        this.cacheStaleIfError = properties.getLong("cache.staleiferror", cacheStaleIfError);
+        if (cacheStaleIfError < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheStaleIfError + "' for cache.staleiferror");
+        }
+        LOG.info("cache.stalewhilerevalidate={}", cacheStaleWhileRevalidate);
+        LOG.info("cache.staleiferror={}", cacheStaleIfError);
+        this.cachePrecompressionThreshold = properties.getInt("cache.precompression.threshold", cachePrecompressionThreshold);
+        if (cachePrecompressionThreshold < -1) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cachePrecompressionThreshold + "' for cache.precompression.threshold");
+        }
+        LOG.info("cache.precompression.threshold={}", cachePrecompressionThreshold);
+        this.cacheTagHeader = properties.getString("cache.tagheader", cacheTagHeader).trim();
+        LOG.info("cache.tagheader={}", cacheTagHeader);
+        this.cacheCollapsingEnabled = properties.getBoolean("cache.collapsing.enabled", cacheCollapsingEnabled);
+        this.cacheCollapsingTimeout = properties.getLong("cache.collapsing.timeout", cacheCollapsingTimeout);
+        if (cacheCollapsingTimeout <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheCollapsingTimeout + "' for cache.collapsing.timeout");
+        }
+        LOG.info("cache.collapsing.enabled={}", cacheCollapsingEnabled);
+        LOG.info("cache.collapsing.timeout={}", cacheCollapsingTimeout);
+        this.cacheDiskEnabled = properties.getBoolean("cache.disk.enabled", cacheDiskEnabled);
+        this.cacheDiskPath = properties.getString("cache.disk.path", cacheDiskPath);
+        this.cacheDiskMaxSize = properties.getLong("cache.disk.maxsize", cacheDiskMaxSize);
+        this.cacheDiskSegmentSize = properties.getLong("cache.disk.segmentsize", cacheDiskSegmentSize);
+        this.cacheDiskThreshold = properties.getLong("cache.disk.threshold", cacheDiskThreshold);
+        if (cacheDiskSegmentSize <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskSegmentSize + "' for cache.disk.segmentsize");
+        }
+        if (cacheDiskMaxSize < cacheDiskSegmentSize) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskMaxSize + "' for cache.disk.maxsize, it must not be less than cache.disk.segmentsize");
+        }
+        if (cacheDiskThreshold < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.cacheDiskThreshold + "' for cache.disk.threshold");
+        }
+        LOG.info("cache.disk.enabled={}", cacheDiskEnabled);
+        LOG.info("cache.disk.path={}", cacheDiskPath);
+        LOG.info("cache.disk.maxsize={}", cacheDiskMaxSize);
+        LOG.info("cache.disk.segmentsize={}", cacheDiskSegmentSize);
+        LOG.info("cache.disk.threshold={}", cacheDiskThreshold);
 
         this.accessLogPath = properties.getString("accesslog.path", accessLogPath);
         this.accessLogTimestampFormat = properties.getString("accesslog.format.timestamp", accessLogTimestampFormat);
@@ -209,6 +313,20 @@ public class RuntimeServerConfiguration {
         this.accessLogFlushInterval = properties.getInt("accesslog.flush.interval", accessLogFlushInterval);
         this.accessLogWaitBetweenFailures = properties.getInt("accesslog.failure.wait", accessLogWaitBetweenFailures);
         this.accessLogMaxSize = properties.getLong("accesslog.maxsize", accessLogMaxSize);
+        String overflowPolicy = properties.getString("accesslog.queue.overflowpolicy", accessLogOverflowPolicy.name());
+        try {
+            this.accessLogOverflowPolicy = RequestsLogger.OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+        } catch (IllegalArgumentException err) {
+            throw new ConfigurationNotValidException("Invalid accesslog.queue.overflowpolicy='" + overflowPolicy + "', allowed values: drop, sample");
+        }
+        this.accessLogSamplingRate = properties.getInt("accesslog.queue.samplingrate", accessLogSamplingRate);
+        if (this.accessLogSamplingRate <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogSamplingRate + "' for accesslog.queue.samplingrate");
+        }
+        this.accessLogBufferSize = properties.getInt("accesslog.buffer.size", accessLogBufferSize);
+        if (this.accessLogBufferSize < 1024) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.accessLogBufferSize + "' for accesslog.buffer.size, it must be at least 1024");
+        }
         String tsFormatExample;
         try {
             SimpleDateFormat formatter = new SimpleDateFormat(this.accessLogTimestampFormat);
@@ -220,6 +338,9 @@ public class RuntimeServerConfiguration {
         LOG.info("accesslog.format.timestamp={} (example: {})", accessLogTimestampFormat, tsFormatExample);
         LOG.info("accesslog.format={}", accessLogFormat);
         LOG.info("accesslog.queue.maxcapacity={}", accessLogMaxQueueCapacity);
+        LOG.info("accesslog.queue.overflowpolicy={}", accessLogOverflowPolicy);
+        LOG.info("accesslog.queue.samplingrate={}", accessLogSamplingRate);
+        LOG.info("accesslog.buffer.size={}", accessLogBufferSize);
         LOG.info("accesslog.flush.interval={}", accessLogFlushInterval);
         LOG.info("accesslog.failure.wait={}", accessLogWaitBetweenFailures);
         LOG.info("accesslog.maxsize={}", accessLogMaxSize);
@@ -246,12 +367,35 @@ public class RuntimeServerConfiguration {
         tolerant = properties.getBoolean("healthmanager.tolerant", false);
         LOG.info("healthmanager.tolerant={}", tolerant);
 
+        slowStartEnabled = properties.getBoolean("healthmanager.slowstart.enabled", false);
+        LOG.info("healthmanager.slowstart.enabled={}", slowStartEnabled);
+        slowStartMinWeight = properties.getInt("healthmanager.slowstart.minweight", 10);
+        LOG.info("healthmanager.slowstart.minweight={}", slowStartMinWeight);
+        if (slowStartMinWeight <= 0 || slowStartMinWeight > 100) {
+            throw new ConfigurationNotValidException("Invalid value '" + slowStartMinWeight + "' for healthmanager.slowstart.minweight");
+        }
+        final String slowStartCurve = properties.getString("healthmanager.slowstart.curve", "linear").trim().toLowerCase();
+        slowStartExponential = switch (slowStartCurve) {
+            case "linear" -> false;
+            case "exponential" -> true;
+            default -> throw new ConfigurationNotValidException("Invalid value '" + slowStartCurve + "' for healthmanager.slowstart.curve");
+        };
+        LOG.info("healthmanager.slowstart.curve={}", slowStartCurve);
+
         healthConnectTimeout = properties.getInt("healthmanager.connecttimeout", healthConnectTimeout);
         LOG.info("healthmanager.connecttimeout={}", healthConnectTimeout);
         if (healthConnectTimeout < 0) {
             throw new ConfigurationNotValidException("Invalid value '" + this.healthConnectTimeout + "' for healthmanager.connecttimeout. ConnectTimeout cannot be negative");
         }
 
+        healthMaxConcurrentProbes = properties.getInt("healthmanager.maxconcurrentprobes", DEFAULT_HEALTH_MAX_CONCURRENT_PROBES);
+        LOG.info("healthmanager.maxconcurrentprobes={}", healthMaxConcurrentProbes);
+        if (healthMaxConcurrentProbes <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.healthMaxConcurrentProbes + "' for healthmanager.maxconcurrentprobes");
+        }
+
+        configureOutlierDetection(properties);
+
         dynamicCertificatesManagerPeriod = properties.getInt("dynamiccertificatesmanager.period", 0);
         LOG.info("dynamiccertificatesmanager.period={}", dynamicCertificatesManagerPeriod);
         keyPairsSize = properties.getInt("dynamiccertificatesmanager.keypairssize", DEFAULT_KEYPAIRS_SIZE);
@@ -280,6 +424,19 @@ public class RuntimeServerConfiguration {
         ocspEnabled = properties.getBoolean("ocsp.enabled", ocspEnabled);
         LOG.info("ocsp.enabled={}", ocspEnabled);
 
+        sslContextsLazy = properties.getBoolean("sslcontexts.lazy", sslContextsLazy);
+        LOG.info("sslcontexts.lazy={}", sslContextsLazy);
+        sslContextsCacheMaxSize = properties.getLong("sslcontexts.cache.maxsize", sslContextsCacheMaxSize);
+        if (sslContextsCacheMaxSize < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.sslContextsCacheMaxSize + "' for sslcontexts.cache.maxsize");
+        }
+        LOG.info("sslcontexts.cache.maxsize={}", sslContextsCacheMaxSize);
+        sslContextsCacheIdleTimeout = properties.getInt("sslcontexts.cache.idletimeout", sslContextsCacheIdleTimeout);
+        if (sslContextsCacheIdleTimeout <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + this.sslContextsCacheIdleTimeout + "' for sslcontexts.cache.idletimeout");
+        }
+        LOG.info("sslcontexts.cache.idletimeout={}", sslContextsCacheIdleTimeout);
+
         maxHeaderSize = properties.getInt("carapace.maxheadersize", maxHeaderSize);
         if (this.maxHeaderSize <= 0) {
             throw new ConfigurationNotValidException("Invalid value '" + this.maxHeaderSize + "' for carapace.maxheadersize");
@@ -391,6 +548,101 @@ public class RuntimeServerConfiguration {
         }
     }
 
+    private void configureAdaptiveConcurrency(ConfigurationStore properties) throws ConfigurationNotValidException {
+        adaptiveConcurrencyEnabled = properties.getBoolean("connectionsmanager.adaptivelimit.enabled", false);
+        LOG.info("connectionsmanager.adaptivelimit.enabled={}", adaptiveConcurrencyEnabled);
+        adaptiveConcurrencyMinLimit = properties.getInt("connectionsmanager.adaptivelimit.min", 1);
+        LOG.info("connectionsmanager.adaptivelimit.min={}", adaptiveConcurrencyMinLimit);
+        if (adaptiveConcurrencyMinLimit <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + adaptiveConcurrencyMinLimit + "' for connectionsmanager.adaptivelimit.min");
+        }
+        adaptiveConcurrencyMaxLimit = properties.getInt("connectionsmanager.adaptivelimit.max", maxConnectionsPerEndpoint);
+        LOG.info("connectionsmanager.adaptivelimit.max={}", adaptiveConcurrencyMaxLimit);
+        if (adaptiveConcurrencyMaxLimit < adaptiveConcurrencyMinLimit) {
+            throw new ConfigurationNotValidException("Invalid value '" + adaptiveConcurrencyMaxLimit + "' for connectionsmanager.adaptivelimit.max, it cannot be less than connectionsmanager.adaptivelimit.min");
+        }
+        adaptiveConcurrencyInitialLimit = properties.getInt("connectionsmanager.adaptivelimit.initial", Math.min(20, adaptiveConcurrencyMaxLimit));
+        LOG.info("connectionsmanager.adaptivelimit.initial={}", adaptiveConcurrencyInitialLimit);
+        if (adaptiveConcurrencyInitialLimit < adaptiveConcurrencyMinLimit || adaptiveConcurrencyInitialLimit > adaptiveConcurrencyMaxLimit) {
+            throw new ConfigurationNotValidException("Invalid value '" + adaptiveConcurrencyInitialLimit + "' for connectionsmanager.adaptivelimit.initial");
+        }
+        adaptiveConcurrencyQueueSize = properties.getInt("connectionsmanager.adaptivelimit.queuesize", 100);
+        LOG.info("connectionsmanager.adaptivelimit.queuesize={}", adaptiveConcurrencyQueueSize);
+        if (adaptiveConcurrencyQueueSize < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + adaptiveConcurrencyQueueSize + "' for connectionsmanager.adaptivelimit.queuesize");
+        }
+        adaptiveConcurrencyQueueTimeout = properties.getInt("connectionsmanager.adaptivelimit.queuetimeout", 1_000);
+        LOG.info("connectionsmanager.adaptivelimit.queuetimeout={}", adaptiveConcurrencyQueueTimeout);
+        if (adaptiveConcurrencyQueueTimeout <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + adaptiveConcurrencyQueueTimeout + "' for connectionsmanager.adaptivelimit.queuetimeout");
+        }
+    }
+
+    private void configureRetries(ConfigurationStore properties) throws ConfigurationNotValidException {
+        retryEnabled = properties.getBoolean("connectionsmanager.retry.enabled", false);
+        LOG.info("connectionsmanager.retry.enabled={}", retryEnabled);
+        retryMax = properties.getInt("connectionsmanager.retry.max", 1);
+        LOG.info("connectionsmanager.retry.max={}", retryMax);
+        if (retryMax <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + retryMax + "' for connectionsmanager.retry.max");
+        }
+        retryBudgetPercent = properties.getInt("connectionsmanager.retry.budgetpercent", 20);
+        LOG.info("connectionsmanager.retry.budgetpercent={}", retryBudgetPercent);
+        if (retryBudgetPercent < 0 || retryBudgetPercent > 100) {
+            throw new ConfigurationNotValidException("Invalid value '" + retryBudgetPercent + "' for connectionsmanager.retry.budgetpercent");
+        }
+        retryMinPerSecond = properties.getInt("connectionsmanager.retry.minpersecond", 10);
+        LOG.info("connectionsmanager.retry.minpersecond={}", retryMinPerSecond);
+        if (retryMinPerSecond < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + retryMinPerSecond + "' for connectionsmanager.retry.minpersecond");
+        }
+    }
+
+    private void configureOutlierDetection(ConfigurationStore properties) throws ConfigurationNotValidException {
+        outlierDetectionEnabled = properties.getBoolean("healthmanager.outlier.enabled", false);
+        LOG.info("healthmanager.outlier.enabled={}", outlierDetectionEnabled);
+        outlierWindow = properties.getInt("healthmanager.outlier.window", DEFAULT_OUTLIER_WINDOW);
+        LOG.info("healthmanager.outlier.window={}", outlierWindow);
+        if (outlierWindow <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierWindow + "' for healthmanager.outlier.window");
+        }
+        outlierMinRequests = properties.getInt("healthmanager.outlier.minrequests", 20);
+        LOG.info("healthmanager.outlier.minrequests={}", outlierMinRequests);
+        if (outlierMinRequests <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMinRequests + "' for healthmanager.outlier.minrequests");
+        }
+        outlierMax5xxPercent = properties.getInt("healthmanager.outlier.max5xxpercent", 50);
+        LOG.info("healthmanager.outlier.max5xxpercent={}", outlierMax5xxPercent);
+        if (outlierMax5xxPercent <= 0 || outlierMax5xxPercent > 100) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMax5xxPercent + "' for healthmanager.outlier.max5xxpercent");
+        }
+        outlierMaxErrorPercent = properties.getInt("healthmanager.outlier.maxerrorpercent", 50);
+        LOG.info("healthmanager.outlier.maxerrorpercent={}", outlierMaxErrorPercent);
+        if (outlierMaxErrorPercent <= 0 || outlierMaxErrorPercent > 100) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMaxErrorPercent + "' for healthmanager.outlier.maxerrorpercent");
+        }
+        outlierMaxP99 = properties.getLong("healthmanager.outlier.maxp99", 0);
+        LOG.info("healthmanager.outlier.maxp99={}", outlierMaxP99);
+        if (outlierMaxP99 < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMaxP99 + "' for healthmanager.outlier.maxp99");
+        }
+        outlierEjectionTime = properties.getInt("healthmanager.outlier.ejectiontime", 30);
+        LOG.info("healthmanager.outlier.ejectiontime={}", outlierEjectionTime);
+        if (outlierEjectionTime <= 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierEjectionTime + "' for healthmanager.outlier.ejectiontime");
+        }
+        outlierMaxEjectionTime = properties.getInt("healthmanager.outlier.maxejectiontime", 300);
+        LOG.info("healthmanager.outlier.maxejectiontime={}", outlierMaxEjectionTime);
+        if (outlierMaxEjectionTime < outlierEjectionTime) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMaxEjectionTime + "' for healthmanager.outlier.maxejectiontime, it cannot be less than healthmanager.outlier.ejectiontime");
+        }
+        outlierMaxEjectedPercent = properties.getInt("healthmanager.outlier.maxejectedpercent", 50);
+        LOG.info("healthmanager.outlier.maxejectedpercent={}", outlierMaxEjectedPercent);
+        if (outlierMaxEjectedPercent < 0 || outlierMaxEjectedPercent > 100) {
+            throw new ConfigurationNotValidException("Invalid value '" + outlierMaxEjectedPercent + "' for healthmanager.outlier.maxejectedpercent");
+        }
+    }
+
     private void configureConnectionPools(ConfigurationStore properties) throws ConfigurationNotValidException {
         int max = properties.findMaxIndexForPrefix("connectionpool");
         for (int i = 0; i <= max; i++) {
@@ -405,6 +657,13 @@ public class RuntimeServerConfiguration {
                         "Invalid connection pool configuration: domain cannot be empty"
                 );
             }
+            try {
+                Pattern.compile(domain);
+            } catch (PatternSyntaxException err) {
+                throw new ConfigurationNotValidException(
+                        "Invalid connection pool configuration: domain '" + domain + "' is not a valid pattern: " + err.getDescription()
+                );
+            }
             int maxconnectionsperendpoint = properties.getInt(prefix + "maxconnectionsperendpoint", maxConnectionsPerEndpoint);
             int borrowtimeout = properties.getInt(prefix + "borrowtimeout", borrowTimeout);
             int connecttimeout = properties.getInt(prefix + "connecttimeout", connectTimeout);
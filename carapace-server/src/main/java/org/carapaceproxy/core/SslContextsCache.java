@@ -0,0 +1,317 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import static org.carapaceproxy.utils.AlpnUtils.configureAlpnForServer;
+import static org.carapaceproxy.utils.CertificatesUtils.loadKeyStoreData;
+import static org.carapaceproxy.utils.CertificatesUtils.loadKeyStoreFromFile;
+import static org.carapaceproxy.utils.CertificatesUtils.readChainFromKeystore;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.netty.handler.ssl.OpenSslCachingX509KeyManagerFactory;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.net.ssl.KeyManagerFactory;
+import org.carapaceproxy.server.config.ConfigurationNotValidException;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.config.SSLCertificateConfiguration;
+import org.carapaceproxy.utils.PrometheusUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.netty.http.HttpProtocol;
+
+/**
+ * SSL contexts of the certificates served by the SSL listeners.
+ * <p>
+ * A context only depends on the certificate and on the TLS parameters of the listener,
+ * so listeners with the same parameters share the same instance.
+ * Contexts are built off the event loop, and the cache is bounded in size and evicts the contexts that are not used
+ * for {@link RuntimeServerConfiguration#getSslContextsCacheIdleTimeout() a while}:
+ * with {@link RuntimeServerConfiguration#isSslContextsLazy() lazy contexts} a listener only keeps the cache keys,
+ * and an evicted context is built again at the next handshake that needs it.
+ */
+public class SslContextsCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SslContextsCache.class);
+
+    private static final Counter HITS_COUNTER = PrometheusUtils.createCounter(
+            "sslcontexts", "cache_hits_total", "ssl contexts found in cache"
+    ).register();
+
+    private static final Counter MISSES_COUNTER = PrometheusUtils.createCounter(
+            "sslcontexts", "cache_misses_total", "ssl contexts not found in cache"
+    ).register();
+
+    private static final Summary BUILD_TIME_SUMMARY = PrometheusUtils.createSummary(
+            "sslcontexts", "build_time_ms", "time to build an ssl context, in milliseconds"
+    ).register();
+
+    private static final Gauge SIZE_GAUGE = PrometheusUtils.createGauge(
+            "sslcontexts", "cache_size", "ssl contexts in cache"
+    ).register();
+
+    private static final long MIN_AUTOMATIC_MAX_SIZE = 1000;
+
+    private final HttpProxyServer parent;
+    private final File basePath;
+    private final AsyncLoadingCache<Key, reactor.netty.tcp.SslProvider> cache;
+
+    public SslContextsCache(final HttpProxyServer parent, final RuntimeServerConfiguration configuration) {
+        this.parent = parent;
+        this.basePath = parent.getBasePath();
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize(configuration))
+                .expireAfterAccess(Duration.ofSeconds(configuration.getSslContextsCacheIdleTimeout()))
+                .<Key, reactor.netty.tcp.SslProvider>removalListener((key, value, cause) -> {
+                    LOG.debug("SSL context {} removed from cache: {}", key, cause);
+                    SIZE_GAUGE.set(size());
+                })
+                .buildAsync(this::build);
+    }
+
+    /**
+     * Max number of SSL contexts to keep in memory.
+     * Unless configured, it is enough for all the contexts the listeners can serve:
+     * one for each certificate and distinct set of TLS parameters of the SSL listeners.
+     *
+     * @param configuration the configuration
+     * @return the max size of the cache
+     */
+    static long maximumSize(final RuntimeServerConfiguration configuration) {
+        final long configured = configuration.getSslContextsCacheMaxSize();
+        if (configured > 0) {
+            return configured;
+        }
+        final long tlsParameters = configuration.getListeners().stream()
+                .filter(NetworkListenerConfiguration::ssl)
+                .map(listener -> Arrays.asList(listener.sslProtocols(), listener.sslCiphers(), listener.protocols()))
+                .distinct()
+                .count();
+        return Math.max(MIN_AUTOMATIC_MAX_SIZE, configuration.getCertificates().size() * Math.max(1, tlsParameters));
+    }
+
+    /**
+     * Apply the cache limits of a new configuration.
+     *
+     * @param configuration the configuration
+     */
+    public void reloadConfiguration(final RuntimeServerConfiguration configuration) {
+        final var policy = cache.synchronous().policy();
+        policy.eviction().ifPresent(eviction -> eviction.setMaximum(maximumSize(configuration)));
+        policy.expireAfterAccess().ifPresent(expiration -> expiration.setExpiresAfter(Duration.ofSeconds(configuration.getSslContextsCacheIdleTimeout())));
+    }
+
+    /**
+     * Get the SSL provider for a key, building it in background if it isn't cached.
+     *
+     * @param key the certificate and the TLS parameters
+     * @return the future SSL provider
+     */
+    public CompletableFuture<reactor.netty.tcp.SslProvider> get(final Key key) {
+        final CompletableFuture<reactor.netty.tcp.SslProvider> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            HITS_COUNTER.inc();
+            return cached;
+        }
+        MISSES_COUNTER.inc();
+        return cache.get(key);
+    }
+
+    /**
+     * Get the SSL provider for a key, waiting for it to be built if it isn't cached.
+     *
+     * @param key the certificate and the TLS parameters
+     * @return the SSL provider
+     * @throws ConfigurationNotValidException if the context cannot be built
+     */
+    public reactor.netty.tcp.SslProvider getNow(final Key key) throws ConfigurationNotValidException {
+        try {
+            return get(key).join();
+        } catch (CompletionException err) {
+            if (err.getCause() instanceof ConfigurationNotValidException cause) {
+                throw cause;
+            }
+            throw new ConfigurationNotValidException(err.getCause());
+        }
+    }
+
+    public long size() {
+        return cache.synchronous().estimatedSize();
+    }
+
+    private reactor.netty.tcp.SslProvider build(final Key key) throws ConfigurationNotValidException {
+        final long start = System.nanoTime();
+        final SslContext sslContext = bootSslContext(key);
+        final reactor.netty.tcp.SslProvider.Builder builder = reactor.netty.tcp.SslProvider.builder().sslContext(sslContext);
+        if (key.ocspEnabled()) {
+            builder.handlerConfigurator(new OcspSslHandler(sslContext, parent.getOcspStaplingManager()));
+        }
+        final reactor.netty.tcp.SslProvider sslProvider = builder.build();
+        final long elapsed = (System.nanoTime() - start) / 1_000_000;
+        BUILD_TIME_SUMMARY.observe(elapsed);
+        SIZE_GAUGE.set(size());
+        LOG.debug("Built SSL context for certificate {} in {} ms", key.certificate().getId(), elapsed);
+        return sslProvider;
+    }
+
+    private SslContext bootSslContext(final Key key) throws ConfigurationNotValidException {
+        final SSLCertificateConfiguration certificate = key.certificate();
+        try {
+            final KeyStore keystore = loadKeyStore(certificate, key.keystoreContent());
+            final KeyManagerFactory keyFactory = loadKeyFactory(certificate, keystore);
+            final SslContextBuilder sslContextBuilder = SslContextBuilder
+                    .forServer(keyFactory)
+                    .enableOcsp(key.ocspEnabled())
+                    .trustManager(parent.getTrustStoreManager().getTrustManagerFactory())
+                    .sslProvider(SslProvider.OPENSSL)
+                    .protocols(key.sslProtocols());
+
+            configureAlpnForServer(sslContextBuilder, key.protocols());
+
+            final String sslCiphers = key.sslCiphers();
+            if (sslCiphers != null && !sslCiphers.isEmpty()) {
+                LOG.debug("required sslCiphers {}", sslCiphers);
+                final List<String> ciphers = Arrays.asList(sslCiphers.split(","));
+                sslContextBuilder.ciphers(ciphers);
+            }
+            final SslContext sslContext = sslContextBuilder.build();
+            final Certificate[] chain = readChainFromKeystore(keystore);
+            if (key.ocspEnabled() && chain.length > 0) {
+                parent.getOcspStaplingManager().addCertificateForStapling(chain);
+                Attribute<Object> attr = sslContext.attributes().attr(AttributeKey.valueOf(Listeners.OCSP_CERTIFICATE_CHAIN));
+                attr.set(chain[0]);
+            }
+            return sslContext;
+        } catch (IOException | GeneralSecurityException err) {
+            LOG.error("ERROR booting SSL context for certificate {}", certificate.getId(), err);
+            throw new ConfigurationNotValidException(err);
+        }
+    }
+
+    private KeyStore loadKeyStore(final SSLCertificateConfiguration certificate, final byte[] keystoreContent) throws GeneralSecurityException, IOException {
+        try {
+            // certificate data on db has precedence over the file
+            final KeyStore keystore;
+            if (keystoreContent == null) {
+                LOG.debug("Start SSL with certificate id {}, file={}", certificate.getId(), certificate.getFile());
+                keystore = loadKeyStoreFromFile(certificate.getFile(), certificate.getPassword(), basePath);
+            } else {
+                LOG.debug("Start SSL with dynamic certificate id {}", certificate.getId());
+                keystore = loadKeyStoreData(keystoreContent, certificate.getPassword());
+            }
+            LOG.debug("Loaded keystore with type: {}, size: {}, aliases: {}", keystore.getType(), keystore.size(), Collections.list(keystore.aliases()));
+            return keystore;
+        } catch (GeneralSecurityException | IOException e) {
+            LOG.error(
+                    "ERROR loading keystore for certificate {id {}, hostname {}, file {}, mode {}}",
+                    certificate.getId(),
+                    certificate.getHostname(),
+                    certificate.getFile(),
+                    certificate.getMode()
+            );
+            throw e;
+        }
+    }
+
+    private static KeyManagerFactory loadKeyFactory(final SSLCertificateConfiguration certificate, final KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException {
+        final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        final KeyManagerFactory wrapperFactory = new OpenSslCachingX509KeyManagerFactory(keyFactory);
+        wrapperFactory.init(keystore, certificate.getPassword().toCharArray());
+        LOG.debug("Initialized KeyManagerFactory with algorithm: {}", wrapperFactory.getAlgorithm());
+        return wrapperFactory;
+    }
+
+    /**
+     * What an SSL context is built from: a certificate, with its keystore data or file modification time,
+     * and the TLS parameters of the listener.
+     *
+     * @param certificate     the certificate configuration
+     * @param keystoreContent the dynamic keystore data, or null if the certificate is loaded from file
+     * @param lastModified    the modification time of the keystore file, if any
+     * @param sslProtocols    the enabled protocols
+     * @param sslCiphers      the enabled cipher suites, comma separated
+     * @param protocols       the HTTP protocols to advertise via ALPN
+     * @param ocspEnabled     whether OCSP stapling is enabled
+     */
+    public record Key(
+            SSLCertificateConfiguration certificate,
+            byte[] keystoreContent,
+            long lastModified,
+            Set<String> sslProtocols,
+            String sslCiphers,
+            Set<HttpProtocol> protocols,
+            boolean ocspEnabled) {
+
+        public static Key of(
+                final SSLCertificateConfiguration certificate,
+                final byte[] keystoreContent,
+                final long lastModified,
+                final NetworkListenerConfiguration listener,
+                final boolean ocspEnabled) {
+            return new Key(certificate, keystoreContent, lastModified, listener.sslProtocols(), listener.sslCiphers(), listener.protocols(), ocspEnabled);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key other
+                    && lastModified == other.lastModified
+                    && ocspEnabled == other.ocspEnabled
+                    && certificate.equals(other.certificate)
+                    && Arrays.equals(keystoreContent, other.keystoreContent)
+                    && Objects.equals(sslProtocols, other.sslProtocols)
+                    && Objects.equals(sslCiphers, other.sslCiphers)
+                    && Objects.equals(protocols, other.protocols);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(certificate, lastModified, sslProtocols, sslCiphers, protocols, ocspEnabled);
+            return 31 * result + Arrays.hashCode(keystoreContent);
+        }
+
+        @Override
+        public String toString() {
+            return "Key{certificate=" + certificate.getId() + ", lastModified=" + lastModified + ", sslProtocols=" + sslProtocols
+                    + ", sslCiphers=" + sslCiphers + ", protocols=" + protocols + ", ocspEnabled=" + ocspEnabled + '}';
+        }
+    }
+}
@@ -19,21 +19,13 @@
  */
 package org.carapaceproxy.server.backends;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UncheckedIOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocketFactory;
 import javax.ws.rs.core.UriBuilder;
 import org.carapaceproxy.server.config.BackendConfiguration;
-import org.carapaceproxy.utils.IOUtils;
 import org.carapaceproxy.utils.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
 
 /**
  * The record models a single health check.
@@ -54,81 +46,48 @@ public record BackendHealthCheck(
         String httpResponse,
         String httpBody
 ) {
-    public static BackendHealthCheck check(final BackendConfiguration bconf, final int timeoutMillis) {
-        return check(bconf, timeoutMillis, null);
-    }
-
-    public static BackendHealthCheck check(final BackendConfiguration bconf, final int timeoutMillis, final SSLSocketFactory httpsFactory) {
+    /**
+     * Probe a backend, without blocking.
+     * The result is always emitted, also when the backend cannot be reached.
+     *
+     * @param client the client to use, already secured when the backend is probed over https
+     * @param bconf  the backend to probe
+     * @return the outcome of the probe
+     */
+    public static Mono<BackendHealthCheck> probe(final HttpClient client, final BackendConfiguration bconf) {
         final String scheme = StringUtils.isBlank(bconf.probeScheme()) ? "http" : bconf.probeScheme();
         final String probePath = bconf.probePath();
         if (probePath.isEmpty()) {
             final long now = System.currentTimeMillis();
-            return new BackendHealthCheck(probePath, now, now, Result.SUCCESS, "OK", "MOCK OK");
-        }
-        final long now = System.currentTimeMillis();
-        HttpURLConnection httpConnection = null;
-        try {
-            final URL url = UriBuilder.fromPath(probePath).scheme(scheme).host(bconf.host()).port(bconf.port()).build().toURL();
-            URLConnection urlConnection = url.openConnection();
-            urlConnection.setConnectTimeout(timeoutMillis);
-            urlConnection.setReadTimeout(timeoutMillis);
-            urlConnection.setUseCaches(false);
-
-            if (!(urlConnection instanceof HttpURLConnection)) {
-                throw new IllegalStateException("Only HttpURLConnection is supported");
-            }
-            httpConnection = (HttpURLConnection) urlConnection;
-
-            if (httpConnection instanceof final HttpsURLConnection httpsConnection) {
-                if (httpsFactory != null) {
-                    httpsConnection.setSSLSocketFactory(httpsFactory);
-                }
-            }
-            httpConnection.setRequestMethod("GET");
-            httpConnection.setInstanceFollowRedirects(true);
-            try (final InputStream is = httpConnection.getInputStream()) {
-                final int httpCode = httpConnection.getResponseCode();
-                return new BackendHealthCheck(
-                        probePath,
-                        now,
-                        System.currentTimeMillis(),
-                        httpCode >= 200 && httpCode <= 299 ? Result.SUCCESS : Result.FAILURE_STATUS,
-                        httpCode + " " + Objects.toString(httpConnection.getResponseMessage(), ""),
-                        IOUtils.toString(is, StandardCharsets.UTF_8)
-                );
-            }
-        } catch (MalformedURLException ex) {
-            throw new UncheckedIOException(ex);
-        } catch (IOException | RuntimeException ex) {
-            int httpCode = 0;
-            String response = "";
-            String httpErrorBody = "";
-            if (httpConnection != null) {
-                try {
-                    httpCode = httpConnection.getResponseCode();
-                } catch (IOException ignored) {
-                    // Ignore
-                }
-                try {
-                    response = httpCode + " " + Objects.toString(httpConnection.getResponseMessage(), "");
-                } catch (IOException ignored) {
-                    // Ignore
-                }
-                try {
-                    httpErrorBody = IOUtils.toString(httpConnection.getErrorStream(), StandardCharsets.UTF_8);
-                } catch (IOException ignored) {
-                    // Ignore
-                }
-            }
-            return new BackendHealthCheck(
-                    probePath,
-                    now,
-                    System.currentTimeMillis(),
-                    httpCode <= 0 ? Result.FAILURE_CONNECTION : Result.FAILURE_STATUS,
-                    httpCode <= 0 ? ex.getMessage() : response,
-                    httpErrorBody
-            );
+            return Mono.just(new BackendHealthCheck(probePath, now, now, Result.SUCCESS, "OK", "MOCK OK"));
         }
+        final String url = UriBuilder.fromPath(probePath).scheme(scheme).host(bconf.host()).port(bconf.port()).build().toString();
+        return Mono.defer(() -> {
+            final long now = System.currentTimeMillis();
+            return client.get()
+                    .uri(url)
+                    .responseSingle((response, body) -> body.asString(StandardCharsets.UTF_8)
+                            .defaultIfEmpty("")
+                            .map(httpBody -> {
+                                final int httpCode = response.status().code();
+                                return new BackendHealthCheck(
+                                        probePath,
+                                        now,
+                                        System.currentTimeMillis(),
+                                        httpCode >= 200 && httpCode <= 299 ? Result.SUCCESS : Result.FAILURE_STATUS,
+                                        httpCode + " " + response.status().reasonPhrase(),
+                                        httpBody
+                                );
+                            }))
+                    .onErrorResume(ex -> Mono.just(new BackendHealthCheck(
+                            probePath,
+                            now,
+                            System.currentTimeMillis(),
+                            Result.FAILURE_CONNECTION,
+                            Objects.toString(ex.getMessage(), ex.toString()),
+                            ""
+                    )));
+        });
     }
 
     public long responseTime() {
@@ -19,33 +19,53 @@
  */
 package org.carapaceproxy.server.backends;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import java.io.File;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import org.carapaceproxy.core.EndpointKey;
 import org.carapaceproxy.core.RuntimeServerConfiguration;
 import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
 import org.carapaceproxy.server.mapper.EndpointMapper;
 import org.carapaceproxy.utils.CertificatesUtils;
 import org.carapaceproxy.utils.PrometheusUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 /**
  * Track status about backends.
  * In conjunction with a {@link org.carapaceproxy.server.config.BackendSelector},
  * it helps {@link org.carapaceproxy.core.ProxyRequestsManager} to choose the right backend to route a request to.
+ * <p>
+ * Backends are probed without blocking, on the event loop of the proxy, reusing keep-alive connections;
+ * each backend is probed once per period, at its own offset within the period,
+ * so that the probes of many backends do not all start at the same time.
  *
  * @author enrico.olivelli
  */
@@ -57,30 +77,67 @@ public class BackendHealthManager implements Runnable {
     private static final Gauge BACKEND_UPSTATUS_GAUGE = PrometheusUtils
             .createGauge("health", "backend_status", "backend status", "host")
             .register();
+    private static final Histogram PROBE_TIME_HISTOGRAM = PrometheusUtils
+            .createHistogram("health", "probe_time_ms", "time to probe a backend, in milliseconds",
+                    new double[]{1, 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000}, "host")
+            .register();
     private final ConcurrentHashMap<EndpointKey, BackendHealthStatus> backends = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, SSLSocketFactory> httpsFactoryCache = new ConcurrentHashMap<>();
+    // probe clients by trust configuration, the plain http one included
+    private final ConcurrentHashMap<String, HttpClient> clients = new ConcurrentHashMap<>();
+    // backends whose probe is still running
+    private final Set<String> probing = ConcurrentHashMap.newKeySet();
     private final File basePath;
+    private final EventLoopGroup eventLoopGroup;
+    private ConnectionProvider connectionProvider;
     private EndpointMapper mapper;
     private ScheduledExecutorService timer;
     private ScheduledFuture<?> scheduledFuture;
+    // the rounds of probes still running, a round can last longer than a period
+    private volatile Disposable.Composite rounds;
     // can change at runtime
     private volatile int period;
     // can change at runtime
     private volatile int connectTimeout;
+    // can change at runtime
+    private volatile int maxConcurrentProbes;
     // keep track of start() calling
     private volatile boolean started;
     private volatile long warmupPeriod;
     private volatile boolean tolerant;
+    // 1 when slow start is disabled
+    private volatile double slowStartMinWeight;
+    private volatile boolean slowStartExponential;
+    // can change at runtime
+    private volatile OutlierDetection outlierDetection;
+    // ejections are decided one at a time, so that they cannot exceed the share allowed for a director together
+    private final Object ejectionLock = new Object();
 
     public BackendHealthManager(final RuntimeServerConfiguration conf, final EndpointMapper mapper) {
         this(conf, mapper, new File("."));
     }
 
     public BackendHealthManager(final RuntimeServerConfiguration conf, final EndpointMapper mapper, final File basePath) {
+        this(conf, mapper, basePath, null);
+    }
+
+    /**
+     * Build a manager probing the backends on the given event loop.
+     *
+     * @param conf           the configuration
+     * @param mapper         the mapper holding the backends to probe
+     * @param basePath       the path to resolve the CA certificates of the backends against
+     * @param eventLoopGroup the event loop to run probes on, or null to use the default reactor-netty one
+     */
+    public BackendHealthManager(final RuntimeServerConfiguration conf, final EndpointMapper mapper, final File basePath, final EventLoopGroup eventLoopGroup) {
         this.mapper = mapper;
+        this.eventLoopGroup = eventLoopGroup;
         this.connectTimeout = conf.getHealthConnectTimeout();
+        this.maxConcurrentProbes = conf.getHealthMaxConcurrentProbes();
         this.warmupPeriod = conf.getWarmupPeriod();
         this.tolerant = conf.isTolerant();
+        this.slowStartMinWeight = slowStartMinWeight(conf);
+        this.slowStartExponential = conf.isSlowStartExponential();
+        this.outlierDetection = OutlierDetection.of(conf);
         this.basePath = basePath != null ? basePath.getAbsoluteFile() : new File(".");
 
         // will be overridden before start
@@ -108,11 +165,22 @@ public class BackendHealthManager implements Runnable {
             timer = Executors.newSingleThreadScheduledExecutor();
         }
         LOG.info("Starting BackendHealthManager, period: {} seconds", period);
-        scheduledFuture = timer.scheduleAtFixedRate(this, period, period, TimeUnit.SECONDS);
+        rounds = Disposables.composite();
+        scheduledFuture = timer.scheduleAtFixedRate(this::startRound, period, period, TimeUnit.SECONDS);
     }
 
     public synchronized void stop() {
         started = false;
+        final Disposable.Composite current = rounds;
+        if (current != null) {
+            current.dispose();
+            rounds = null;
+        }
+        if (connectionProvider != null) {
+            clients.clear();
+            connectionProvider.disposeLater().block();
+            connectionProvider = null;
+        }
         if (timer != null) {
             timer.shutdown();
             try {
@@ -126,7 +194,7 @@ public class BackendHealthManager implements Runnable {
     }
 
     public synchronized void reloadConfiguration(RuntimeServerConfiguration newConfiguration, EndpointMapper mapper) {
-        this.httpsFactoryCache.clear();
+        this.clients.clear();
         final int newPeriod = newConfiguration.getHealthProbePeriod();
         final boolean changePeriod = period != newPeriod;
         final boolean restart = scheduledFuture != null && changePeriod;
@@ -145,17 +213,37 @@ public class BackendHealthManager implements Runnable {
             LOG.info("Applying new connect timeout {} ms", this.connectTimeout);
         }
 
+        if (this.maxConcurrentProbes != newConfiguration.getHealthMaxConcurrentProbes()) {
+            this.maxConcurrentProbes = newConfiguration.getHealthMaxConcurrentProbes();
+            LOG.info("Applying new limit of {} concurrent probes", this.maxConcurrentProbes);
+        }
+
         if (this.warmupPeriod != newConfiguration.getWarmupPeriod()) {
             this.warmupPeriod = newConfiguration.getWarmupPeriod();
             this.backends.values().forEach(it -> it.setWarmupPeriod(warmupPeriod));
             LOG.info("Applying new warmup period of {} ms", this.warmupPeriod);
         }
 
+        final double newSlowStartMinWeight = slowStartMinWeight(newConfiguration);
+        if (this.slowStartMinWeight != newSlowStartMinWeight || this.slowStartExponential != newConfiguration.isSlowStartExponential()) {
+            this.slowStartMinWeight = newSlowStartMinWeight;
+            this.slowStartExponential = newConfiguration.isSlowStartExponential();
+            this.backends.values().forEach(it -> it.setSlowStart(slowStartMinWeight, slowStartExponential));
+            LOG.info("Applying new slow start from weight {}, {}", this.slowStartMinWeight, this.slowStartExponential ? "exponential" : "linear");
+        }
+
         if (this.tolerant != newConfiguration.isTolerant()) {
             this.tolerant = newConfiguration.isTolerant();
             LOG.info("Applying new health tolerance configuration {}; cold backends now {} exceed safe capacity", this.tolerant, this.tolerant ? "may" : "may not");
         }
 
+        final OutlierDetection newOutlierDetection = OutlierDetection.of(newConfiguration);
+        if (!this.outlierDetection.equals(newOutlierDetection)) {
+            this.outlierDetection = newOutlierDetection;
+            this.backends.values().forEach(it -> it.setTrafficWindow(newOutlierDetection.windowMillis()));
+            LOG.info("Applying new outlier detection configuration {}", newOutlierDetection);
+        }
+
         this.mapper = mapper;
 
         if (restart || started) {
@@ -163,77 +251,160 @@ public class BackendHealthManager implements Runnable {
         }
     }
 
+    /**
+     * Probe all the backends at once, waiting for the outcomes.
+     */
     @Override
     public void run() {
+        final EndpointMapper mapper = this.mapper;
         if (mapper == null) {
             return;
         }
-        for (final BackendConfiguration backend : mapper.getBackends().values()) {
-            final EndpointKey endpoint = backend.hostPort();
-            final BackendHealthStatus status = getBackendStatus(endpoint);
+        probeAll(List.copyOf(mapper.getBackends().values()), 0).blockLast();
+        cleanup();
+    }
 
-            SSLSocketFactory httpsFactory = null;
-            if ("https".equalsIgnoreCase(backend.probeScheme())) {
-                final String caPath = backend.caCertificatePath();
-                if (caPath != null && !caPath.isBlank()) {
-                    httpsFactory = getOrCreateHttpsFactory(backend);
-                }
+    /**
+     * Schedule the probes of a period, without waiting for them.
+     */
+    private void startRound() {
+        final EndpointMapper mapper = this.mapper;
+        final Disposable.Composite rounds = this.rounds;
+        if (mapper == null || rounds == null) {
+            return;
+        }
+        try {
+            final Disposable.Swap round = Disposables.swap();
+            if (!rounds.add(round)) {
+                // stopped
+                return;
             }
+            round.update(probeAll(List.copyOf(mapper.getBackends().values()), TimeUnit.SECONDS.toMillis(period))
+                    .doFinally(signal -> rounds.remove(round))
+                    .subscribe());
+            cleanup();
+        } catch (RuntimeException err) {
+            // an exception would cancel the next executions of the timer
+            LOG.error("Cannot schedule backend probes", err);
+        }
+    }
 
-            final BackendHealthCheck checkResult = BackendHealthCheck.check(backend, connectTimeout, httpsFactory);
+    private Flux<BackendHealthCheck> probeAll(final List<BackendConfiguration> backendConfigurations, final long spreadMillis) {
+        return Flux.fromIterable(backendConfigurations)
+                .flatMap(backend -> spreadMillis > 0
+                        ? Mono.delay(Duration.ofMillis(offset(backend, spreadMillis))).thenReturn(backend)
+                        : Mono.just(backend))
+                .flatMap(this::probe, maxConcurrentProbes);
+    }
 
-            if (checkResult.ok()) {
-                switch (status.getStatus()) {
-                    case DOWN ->
-                            LOG.warn("backend {} was unreachable, setting again to reachable. Response time {} ms", endpoint, checkResult.responseTime());
-                    case COLD, STABLE ->
-                            LOG.debug("backend {} seems reachable. Response time {} ms", endpoint, checkResult.responseTime());
-                }
-                reportBackendReachable(endpoint, checkResult.endTs());
-            } else {
-                switch (status.getStatus()) {
-                    case DOWN ->
-                            LOG.debug("backend {} still unreachable. Cause: {}", endpoint, checkResult.httpResponse());
-                    case COLD, STABLE ->
-                            LOG.warn("backend {} became unreachable. Cause: {}", endpoint, checkResult.httpResponse());
-                }
-                reportBackendUnreachable(endpoint, checkResult.endTs(), checkResult.httpResponse());
-            }
-            status.setLastProbe(checkResult);
+    /**
+     * The offset of the probe of a backend within a period: it depends on the backend only,
+     * so that each backend is probed once per period, while the probes of all the backends are spread over it.
+     */
+    private static long offset(final BackendConfiguration backend, final long periodMillis) {
+        return Math.floorMod(Hashing.murmur3_32_fixed().hashString(backend.id(), UTF_8).asInt(), periodMillis);
+    }
 
-            BACKEND_UPSTATUS_GAUGE
-                    .labels(backend.host() + "_" + backend.port())
-                    .set(status.getStatus() == BackendHealthStatus.Status.DOWN ? 0 : 1);
+    private Mono<BackendHealthCheck> probe(final BackendConfiguration backend) {
+        if (!probing.add(backend.id())) {
+            LOG.debug("backend {} is still being probed, skipping", backend.id());
+            return Mono.empty();
         }
-        cleanup();
+        final HttpClient client;
+        try {
+            client = getOrCreateClient(backend);
+        } catch (RuntimeException err) {
+            probing.remove(backend.id());
+            LOG.error("Cannot probe backend {}", backend.id(), err);
+            return Mono.empty();
+        }
+        // track the backend since before the probe, as its outcome is compared with the creation time
+        final BackendHealthStatus status = getBackendStatus(backend.hostPort());
+        return BackendHealthCheck.probe(client, backend)
+                .doOnNext(checkResult -> report(backend, status, checkResult))
+                .doFinally(signal -> probing.remove(backend.id()));
     }
 
-    private SSLSocketFactory getOrCreateHttpsFactory(final BackendConfiguration bconf) {
+    private void report(final BackendConfiguration backend, final BackendHealthStatus status, final BackendHealthCheck checkResult) {
+        final EndpointKey endpoint = backend.hostPort();
+        if (checkResult.ok()) {
+            switch (status.getStatus()) {
+                case DOWN ->
+                        LOG.warn("backend {} was unreachable, setting again to reachable. Response time {} ms", endpoint, checkResult.responseTime());
+                case COLD, STABLE, EJECTED ->
+                        LOG.debug("backend {} seems reachable. Response time {} ms", endpoint, checkResult.responseTime());
+            }
+            reportBackendReachable(endpoint, checkResult.endTs());
+        } else {
+            switch (status.getStatus()) {
+                case DOWN ->
+                        LOG.debug("backend {} still unreachable. Cause: {}", endpoint, checkResult.httpResponse());
+                case COLD, STABLE, EJECTED ->
+                        LOG.warn("backend {} became unreachable. Cause: {}", endpoint, checkResult.httpResponse());
+            }
+            reportBackendUnreachable(endpoint, checkResult.endTs(), checkResult.httpResponse());
+        }
+        status.setLastProbe(checkResult);
+
+        final String label = backend.host() + "_" + backend.port();
+        BACKEND_UPSTATUS_GAUGE
+                .labels(label)
+                .set(status.getStatus() == BackendHealthStatus.Status.DOWN ? 0 : 1);
+        PROBE_TIME_HISTOGRAM
+                .labels(label)
+                .observe(checkResult.responseTime());
+    }
+
+    private HttpClient getOrCreateClient(final BackendConfiguration bconf) {
+        if (!"https".equalsIgnoreCase(bconf.probeScheme())) {
+            return clients.computeIfAbsent("http", k -> baseClient());
+        }
         final String caPath = bconf.caCertificatePath();
-        final String pwd = bconf.caCertificatePassword() != null ? bconf.caCertificatePassword() : "";
         if (caPath == null || caPath.isBlank()) {
-            return null;
+            return clients.computeIfAbsent("https", k -> baseClient().secure());
         }
+        final String pwd = bconf.caCertificatePassword() != null ? bconf.caCertificatePassword() : "";
         final File caFile = caPath.startsWith("/") ? new File(caPath) : new File(basePath, caPath);
         final String key = caFile.getAbsoluteFile().toString();
-        return httpsFactoryCache.computeIfAbsent(key, k -> {
+        return clients.computeIfAbsent(key, k -> {
             try {
                 final KeyStore trustStore = CertificatesUtils.loadKeyStoreFromFile(caPath, pwd, basePath);
                 if (trustStore == null) {
-                    return null;
+                    return baseClient().secure();
                 }
                 final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
                 tmf.init(trustStore);
-                final SSLContext ctx = SSLContext.getInstance("TLS");
-                ctx.init(null, tmf.getTrustManagers(), null);
-                return ctx.getSocketFactory();
+                final SslContext sslContext = SslContextBuilder.forClient().trustManager(tmf).build();
+                return baseClient().secure(spec -> spec.sslContext(sslContext));
             } catch (Exception e) {
-                LOG.warn("Unable to build HTTPS SSLSocketFactory for backend {}: {}", bconf.id(), e.toString());
-                return null;
+                LOG.warn("Unable to build HTTPS client for backend {}: {}", bconf.id(), e.toString());
+                return baseClient().secure();
             }
         });
     }
 
+    private synchronized HttpClient baseClient() {
+        if (connectionProvider == null) {
+            connectionProvider = ConnectionProvider.builder("healthprobes")
+                    .maxConnections(1)
+                    .pendingAcquireMaxCount(-1)
+                    .maxIdleTime(Duration.ofSeconds(Math.max(period, DEFAULT_PERIOD) * 2L))
+                    .build();
+        }
+        HttpClient client = HttpClient.create(connectionProvider)
+                .followRedirect(true)
+                .keepAlive(true);
+        if (eventLoopGroup != null) {
+            client = client.runOn(eventLoopGroup);
+        }
+        if (connectTimeout > 0) {
+            client = client
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                    .responseTimeout(Duration.ofMillis(connectTimeout));
+        }
+        return client;
+    }
+
     private void cleanup() {
         if (mapper == null) {
             return;
@@ -254,7 +425,125 @@ public class BackendHealthManager implements Runnable {
     }
 
     public BackendHealthStatus getBackendStatus(final EndpointKey hostPort) {
-        return backends.computeIfAbsent(hostPort, key -> new BackendHealthStatus(key, warmupPeriod));
+        return backends.computeIfAbsent(hostPort, key -> {
+            final BackendHealthStatus status = new BackendHealthStatus(key, warmupPeriod);
+            status.setTrafficWindow(outlierDetection.windowMillis());
+            status.setSlowStart(slowStartMinWeight, slowStartExponential);
+            return status;
+        });
+    }
+
+    private static double slowStartMinWeight(final RuntimeServerConfiguration conf) {
+        return conf.isSlowStartEnabled() ? conf.getSlowStartMinWeight() / 100.0 : 1;
+    }
+
+    /**
+     * Account a response of a backend to live traffic, for the passive outlier detection.
+     *
+     * @param status the health of the backend
+     * @param httpStatus the status of the response
+     * @param millis the time from the forwarding of the request to the response headers
+     */
+    public void reportResponse(final BackendHealthStatus status, final int httpStatus, final long millis) {
+        final OutlierDetection detection = outlierDetection;
+        if (!detection.enabled()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        status.getTraffic().recordResponse(now, httpStatus, millis);
+        if (status.evaluationDue(now)) {
+            evaluate(status, detection, now);
+        }
+    }
+
+    /**
+     * Account a request to a backend that failed without a response, for the passive outlier detection.
+     *
+     * @param status the health of the backend
+     */
+    public void reportError(final BackendHealthStatus status) {
+        final OutlierDetection detection = outlierDetection;
+        if (!detection.enabled()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        status.getTraffic().recordError(now);
+        if (status.evaluationDue(now)) {
+            evaluate(status, detection, now);
+        }
+    }
+
+    private void evaluate(final BackendHealthStatus status, final OutlierDetection detection, final long now) {
+        final TrafficWindow.Totals totals = status.getTraffic().totals(now);
+        if (totals.requests() < detection.minRequests()) {
+            return;
+        }
+        final String cause;
+        if (totals.serverErrors() * 100 > totals.requests() * detection.max5xxPercent()) {
+            cause = totals.serverErrors() + " responses with 5xx status out of " + totals.requests();
+        } else if (totals.errors() * 100 > totals.requests() * detection.maxErrorPercent()) {
+            cause = totals.errors() + " failed requests out of " + totals.requests();
+        } else if (detection.maxP99() > 0 && totals.p99Millis() >= detection.maxP99()) {
+            cause = "99th percentile of response time above " + totals.p99Millis() + " ms";
+        } else {
+            if (status.getEjections().get() > 0 && status.getStatus() != BackendHealthStatus.Status.EJECTED) {
+                // behaving again, the next ejection will start from the shortest time
+                status.getEjections().set(0);
+            }
+            return;
+        }
+        eject(status, detection, now, cause);
+    }
+
+    private void eject(final BackendHealthStatus status, final OutlierDetection detection, final long now, final String cause) {
+        synchronized (ejectionLock) {
+            final EndpointKey endpoint = status.getHostPort();
+            if (!canEject(endpoint, detection)) {
+                LOG.warn("backend {} is an outlier ({}), but too many backends of its directors are ejected already", endpoint, cause);
+                return;
+            }
+            final int ejections = status.getEjections().get();
+            final long duration = Math.min(detection.maxEjectionMillis(), detection.ejectionMillis() << Math.min(ejections, 30));
+            if (status.eject(now + duration)) {
+                status.getEjections().incrementAndGet();
+                // judged again on new traffic only, after the ejection
+                status.getTraffic().clear();
+                LOG.warn("backend {} ejected for {} ms as an outlier: {}", endpoint, duration, cause);
+            }
+        }
+    }
+
+    private boolean canEject(final EndpointKey endpoint, final OutlierDetection detection) {
+        final EndpointMapper mapper = this.mapper;
+        if (mapper == null) {
+            return true;
+        }
+        final Map<String, BackendConfiguration> configuredBackends = mapper.getBackends();
+        for (final DirectorConfiguration director : mapper.getDirectors().values()) {
+            final Collection<String> ids = director.isAllBackends() ? configuredBackends.keySet() : director.getBackends();
+            int members = 0;
+            int ejected = 0;
+            boolean includes = false;
+            for (final String id : ids) {
+                final BackendConfiguration backend = configuredBackends.get(id);
+                if (backend == null) {
+                    continue;
+                }
+                members++;
+                if (backend.hostPort().equals(endpoint)) {
+                    includes = true;
+                } else {
+                    final BackendHealthStatus status = backends.get(backend.hostPort());
+                    if (status != null && status.getStatus() == BackendHealthStatus.Status.EJECTED) {
+                        ejected++;
+                    }
+                }
+            }
+            if (includes && (ejected + 1) * 100 > members * detection.maxEjectedPercent()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public BackendHealthStatus getBackendStatus(final String backendId) {
@@ -278,4 +567,33 @@ public class BackendHealthManager implements Runnable {
         return connectTimeout;
     }
 
+    /**
+     * Settings of the passive outlier detection, with times in milliseconds.
+     */
+    record OutlierDetection(
+            boolean enabled,
+            long windowMillis,
+            int minRequests,
+            int max5xxPercent,
+            int maxErrorPercent,
+            long maxP99,
+            long ejectionMillis,
+            long maxEjectionMillis,
+            int maxEjectedPercent
+    ) {
+        static OutlierDetection of(final RuntimeServerConfiguration conf) {
+            return new OutlierDetection(
+                    conf.isOutlierDetectionEnabled(),
+                    TimeUnit.SECONDS.toMillis(conf.getOutlierWindow()),
+                    conf.getOutlierMinRequests(),
+                    conf.getOutlierMax5xxPercent(),
+                    conf.getOutlierMaxErrorPercent(),
+                    conf.getOutlierMaxP99(),
+                    TimeUnit.SECONDS.toMillis(conf.getOutlierEjectionTime()),
+                    TimeUnit.SECONDS.toMillis(conf.getOutlierMaxEjectionTime()),
+                    conf.getOutlierMaxEjectedPercent()
+            );
+        }
+    }
+
 }
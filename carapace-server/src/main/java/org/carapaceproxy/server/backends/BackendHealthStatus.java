@@ -20,9 +20,12 @@
 package org.carapaceproxy.server.backends;
 
 import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.carapaceproxy.core.EndpointKey;
+import org.carapaceproxy.core.RuntimeServerConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,9 +37,18 @@ import org.slf4j.LoggerFactory;
 public class BackendHealthStatus {
 
     private static final Logger LOG = LoggerFactory.getLogger(BackendHealthStatus.class);
+    // weight of the last response time in the average, about the last ten responses count
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
 
     private final EndpointKey hostPort;
     private final AtomicInteger connections;
+    // moving average of the response times in milliseconds, as the bits of a double; NaN before the first response
+    private final AtomicLong latencyEwma = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+    // outcomes of the recent requests, for the passive outlier detection
+    private volatile TrafficWindow traffic = new TrafficWindow(TimeUnit.SECONDS.toMillis(RuntimeServerConfiguration.DEFAULT_OUTLIER_WINDOW));
+    private final AtomicLong lastEvaluation = new AtomicLong();
+    // consecutive ejections, each one lasting twice the previous one
+    private final AtomicInteger ejections = new AtomicInteger();
 
     // Status + the three associated timestamps move together via a single AtomicReference so concurrent
     // reportAs(Un)Reachable callers cannot leave the four fields in a torn combination (e.g. status=DOWN
@@ -45,12 +57,15 @@ public class BackendHealthStatus {
     private final AtomicReference<State> state;
     private volatile BackendHealthCheck lastProbe;
     private volatile long warmupPeriod;
+    // slow start: the weight of a cold backend grows from this to 1 during the warmup period; 1 disables it
+    private volatile double slowStartMinWeight = 1;
+    private volatile boolean slowStartExponential;
 
     public BackendHealthStatus(final EndpointKey hostPort, final long warmupPeriod) {
         this.hostPort = hostPort;
         // we assume that the backend just became reachable when the status is created
         final long created = System.currentTimeMillis();
-        this.state = new AtomicReference<>(new State(Status.COLD, 0L, created, created));
+        this.state = new AtomicReference<>(new State(Status.COLD, 0L, created, created, 0L));
         this.connections = new AtomicInteger();
         this.warmupPeriod = warmupPeriod;
     }
@@ -80,7 +95,14 @@ public class BackendHealthStatus {
     }
 
     public Status getStatus() {
-        return state.get().status();
+        return current().status();
+    }
+
+    /**
+     * @return when the backend will stop being an {@link Status#EJECTED ejected} outlier, or 0 if it is not
+     */
+    public long getEjectedUntil() {
+        return current().ejectedUntil();
     }
 
     /**
@@ -90,8 +112,54 @@ public class BackendHealthStatus {
      * consecutive getter calls can straddle a state transition and observe an inconsistent pair.
      */
     public Snapshot snapshot() {
+        final State s = current();
+        return new Snapshot(s.status(), s.unreachableSince(), s.lastUnreachable(), s.lastReachable(), s.ejectedUntil());
+    }
+
+    // ejections end by themselves, when someone looks at the backend again
+    private State current() {
         final State s = state.get();
-        return new Snapshot(s.status(), s.unreachableSince(), s.lastUnreachable(), s.lastReachable());
+        if (s.status() != Status.EJECTED) {
+            return s;
+        }
+        final long now = System.currentTimeMillis();
+        return now < s.ejectedUntil() ? s : state.updateAndGet(it -> it.withEjectionOver(now));
+    }
+
+    /**
+     * Stop sending requests to a reachable backend for a while, as it behaves worse than the others.
+     *
+     * @param until when the backend will be used again
+     * @return whether the backend was ejected, that is it was neither down nor already ejected
+     */
+    boolean eject(final long until) {
+        final State previous = current();
+        if (previous.status() == Status.DOWN || previous.status() == Status.EJECTED) {
+            return false;
+        }
+        return state.compareAndSet(previous, previous.withEjected(until));
+    }
+
+    TrafficWindow getTraffic() {
+        return traffic;
+    }
+
+    void setTrafficWindow(final long windowMillis) {
+        if (traffic.getWindowMillis() != windowMillis) {
+            traffic = new TrafficWindow(windowMillis);
+        }
+    }
+
+    /**
+     * Whether the outcomes of the traffic are due to be checked, at most once per bucket of the window.
+     */
+    boolean evaluationDue(final long now) {
+        final long last = lastEvaluation.get();
+        return now - last >= traffic.getBucketMillis() && lastEvaluation.compareAndSet(last, now);
+    }
+
+    AtomicInteger getEjections() {
+        return ejections;
     }
 
     public void reportAsUnreachable(final long timestamp, final String cause) {
@@ -119,6 +187,7 @@ public class BackendHealthStatus {
                 + ", unreachableSince=" + snapshot.unreachableSince()
                 + ", unreachableUntil=" + snapshot.lastUnreachable()
                 + ", lastReachable=" + snapshot.lastReachable()
+                + ", ejectedUntil=" + snapshot.ejectedUntil()
                 + ", lastProbe=" + this.lastProbe
                 + '}';
     }
@@ -136,10 +205,69 @@ public class BackendHealthStatus {
         this.connections.updateAndGet(v -> Math.max(0, v - 1));
     }
 
+    /**
+     * Account the time the backend took to start responding to a request.
+     * <p>
+     * The average is exponentially weighted, so that it follows the backend when it slows down or recovers.
+     *
+     * @param millis the time from the forwarding of the request to the response headers
+     */
+    public void recordLatency(final long millis) {
+        final double sample = Math.max(0, millis);
+        latencyEwma.updateAndGet(bits -> {
+            final double current = Double.longBitsToDouble(bits);
+            final double next = Double.isNaN(current) ? sample : current + LATENCY_EWMA_WEIGHT * (sample - current);
+            return Double.doubleToRawLongBits(next);
+        });
+    }
+
+    /**
+     * @return the average time the backend took to start responding, in milliseconds; NaN if it never responded
+     */
+    public double getLatencyEwma() {
+        return Double.longBitsToDouble(latencyEwma.get());
+    }
+
     public void setWarmupPeriod(final long warmupPeriod) {
         this.warmupPeriod = warmupPeriod;
     }
 
+    public void setSlowStart(final double minWeight, final boolean exponential) {
+        this.slowStartMinWeight = minWeight;
+        this.slowStartExponential = exponential;
+    }
+
+    /**
+     * The share of traffic the backend should receive, compared to a stable one.
+     * <p>
+     * A backend that just became reachable again is still warming up, so with slow start its weight starts from a floor
+     * and grows, linearly or exponentially, up to 1 at the end of the warmup period.
+     *
+     * @return the weight of the backend, between the slow start floor and 1
+     */
+    public double getWeight() {
+        final double minWeight = this.slowStartMinWeight;
+        final long warmup = this.warmupPeriod;
+        if (minWeight >= 1 || warmup <= 0) {
+            return 1;
+        }
+        final State s = current();
+        if (s.status() != Status.COLD) {
+            return 1;
+        }
+        // the same reference as the transition to STABLE
+        final double progress = (System.currentTimeMillis() - s.lastUnreachable()) / (double) warmup;
+        if (progress >= 1) {
+            return 1;
+        }
+        if (progress <= 0) {
+            return minWeight;
+        }
+        return slowStartExponential
+                ? Math.pow(minWeight, 1 - progress)
+                : minWeight + (1 - minWeight) * progress;
+    }
+
     /**
      * The enum models a simple status of the backend.
      */
@@ -157,14 +285,19 @@ public class BackendHealthStatus {
         /**
          * The backend is reachable and was so since a reasonably-long time.
          */
-        STABLE
+        STABLE,
+        /**
+         * The backend is reachable, but it answered the recent requests with too many errors or too slowly,
+         * so it is not used until the ejection ends.
+         */
+        EJECTED
     }
 
     /**
      * Coherent read-only view of {@link #getStatus()}, {@link #getUnreachableSince()},
-     * {@link #getLastUnreachable()}, and {@link #getLastReachable()} captured atomically via {@link #snapshot()}.
+     * {@link #getLastUnreachable()}, {@link #getLastReachable()} and {@link #getEjectedUntil()} captured atomically via {@link #snapshot()}.
      */
-    public record Snapshot(Status status, long unreachableSince, long lastUnreachable, long lastReachable) {
+    public record Snapshot(Status status, long unreachableSince, long lastUnreachable, long lastReachable, long ejectedUntil) {
     }
 
     /**
@@ -172,27 +305,41 @@ public class BackendHealthStatus {
      * Held in an {@link AtomicReference} so {@code reportAs(Un)Reachable} callers cannot interleave their
      * field writes; each {@link AtomicReference#updateAndGet} call is a single linearization point.
      */
-    private record State(Status status, long unreachableSince, long lastUnreachable, long lastReachable) {
+    private record State(Status status, long unreachableSince, long lastUnreachable, long lastReachable, long ejectedUntil) {
         State withUnreachable(final long timestamp) {
             if (status == Status.DOWN) {
                 // Already DOWN; just refresh lastUnreachable, preserve unreachableSince.
-                return new State(status, unreachableSince, timestamp, lastReachable);
+                return new State(status, unreachableSince, timestamp, lastReachable, 0L);
             }
-            // Transition from COLD/STABLE to DOWN.
-            return new State(Status.DOWN, timestamp, timestamp, lastReachable);
+            // Transition from COLD/STABLE/EJECTED to DOWN.
+            return new State(Status.DOWN, timestamp, timestamp, lastReachable, 0L);
         }
 
         State withReachable(final long timestamp, final long warmupPeriod) {
             return switch (status) {
-                case DOWN -> new State(Status.COLD, 0L, lastUnreachable, timestamp);
+                case DOWN -> new State(Status.COLD, 0L, lastUnreachable, timestamp, 0L);
                 case COLD -> {
                     // Warmup check uses a coherent (lastUnreachable, timestamp) pair from this snapshot,
                     // so concurrent reportAsUnreachable cannot move lastUnreachable between the two reads.
                     final Status next = (timestamp - lastUnreachable) > warmupPeriod ? Status.STABLE : Status.COLD;
-                    yield new State(next, unreachableSince, lastUnreachable, timestamp);
+                    yield new State(next, unreachableSince, lastUnreachable, timestamp, 0L);
                 }
-                case STABLE -> new State(Status.STABLE, unreachableSince, lastUnreachable, timestamp);
+                case STABLE -> new State(Status.STABLE, unreachableSince, lastUnreachable, timestamp, 0L);
+                // answering the probe does not end the ejection
+                case EJECTED -> new State(Status.EJECTED, unreachableSince, lastUnreachable, timestamp, ejectedUntil);
             };
         }
+
+        State withEjected(final long until) {
+            return new State(Status.EJECTED, unreachableSince, lastUnreachable, lastReachable, until);
+        }
+
+        State withEjectionOver(final long timestamp) {
+            if (status != Status.EJECTED || timestamp < ejectedUntil) {
+                return this;
+            }
+            // back as warming up, the next reachable report tells whether it is stable
+            return new State(Status.COLD, unreachableSince, lastUnreachable, lastReachable, 0L);
+        }
     }
 }
@@ -0,0 +1,165 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.backends;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window of the outcomes of the requests forwarded to a backend.
+ * <p>
+ * The window is made of buckets covering a slice of time each; a bucket is cleared by the first writer after it expired.
+ * Writers never block, so counts are approximate around the bucket boundaries, that is good enough to spot outliers.
+ * Response times are counted in power-of-two bins, so percentiles are lower bounds within a factor of two.
+ */
+final class TrafficWindow {
+
+    static final int BUCKETS = 10;
+    // bin i counts the response times up to 2^i milliseconds, the last bin counts the slower ones too
+    private static final int LATENCY_BINS = 24;
+
+    private final long bucketMillis;
+    private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray requests = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray serverErrors = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray errors = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS * LATENCY_BINS);
+
+    TrafficWindow(final long windowMillis) {
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+    }
+
+    long getWindowMillis() {
+        return bucketMillis * BUCKETS;
+    }
+
+    long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    void recordResponse(final long now, final int status, final long millis) {
+        final int bucket = bucket(now);
+        requests.incrementAndGet(bucket);
+        if (status >= 500) {
+            serverErrors.incrementAndGet(bucket);
+        }
+        latencies.incrementAndGet(bucket * LATENCY_BINS + bin(millis));
+    }
+
+    void recordError(final long now) {
+        final int bucket = bucket(now);
+        requests.incrementAndGet(bucket);
+        errors.incrementAndGet(bucket);
+    }
+
+    /**
+     * Sum up the buckets still within the window.
+     *
+     * @param now the current time
+     * @return the totals
+     */
+    Totals totals(final long now) {
+        final long epoch = now / bucketMillis;
+        long totalRequests = 0;
+        long totalServerErrors = 0;
+        long totalErrors = 0;
+        final long[] bins = new long[LATENCY_BINS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            final long bucketEpoch = epochs.get(bucket);
+            if (bucketEpoch <= epoch - BUCKETS || bucketEpoch > epoch) {
+                continue;
+            }
+            totalRequests += requests.get(bucket);
+            totalServerErrors += serverErrors.get(bucket);
+            totalErrors += errors.get(bucket);
+            for (int bin = 0; bin < LATENCY_BINS; bin++) {
+                bins[bin] += latencies.get(bucket * LATENCY_BINS + bin);
+            }
+        }
+        return new Totals(totalRequests, totalServerErrors, totalErrors, percentile(bins, 0.99));
+    }
+
+    void clear() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            epochs.set(bucket, 0);
+            reset(bucket);
+        }
+    }
+
+    private int bucket(final long now) {
+        final long epoch = now / bucketMillis;
+        final int bucket = (int) (epoch % BUCKETS);
+        final long current = epochs.get(bucket);
+        if (current != epoch && epochs.compareAndSet(bucket, current, epoch)) {
+            reset(bucket);
+        }
+        return bucket;
+    }
+
+    private void reset(final int bucket) {
+        requests.set(bucket, 0);
+        serverErrors.set(bucket, 0);
+        errors.set(bucket, 0);
+        for (int bin = 0; bin < LATENCY_BINS; bin++) {
+            latencies.set(bucket * LATENCY_BINS + bin, 0);
+        }
+    }
+
+    private static int bin(final long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        return Math.min(LATENCY_BINS - 1, 64 - Long.numberOfLeadingZeros(millis - 1));
+    }
+
+    // the response times counted in a bin are greater than this
+    private static long lowerBound(final int bin) {
+        return bin == 0 ? 0 : 1L << (bin - 1);
+    }
+
+    private static long percentile(final long[] bins, final double fraction) {
+        long total = 0;
+        for (final long count : bins) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int bin = 0; bin < bins.length; bin++) {
+            seen += bins[bin];
+            if (seen >= rank) {
+                return lowerBound(bin);
+            }
+        }
+        return lowerBound(bins.length - 1);
+    }
+
+    /**
+     * The outcomes of the requests within a window.
+     *
+     * @param requests     requests forwarded, answered or not
+     * @param serverErrors responses with a 5xx status
+     * @param errors       requests failed without a response, such as connection errors and timeouts
+     * @param p99Millis    the 99th percentile of the response times is greater than this, 0 without responses
+     */
+    record Totals(long requests, long serverErrors, long errors, long p99Millis) {
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of a body, as requested with the {@code Range} header (RFC 9110 §14.1.2).
+ *
+ * @param first the position of the first byte
+ * @param last  the position of the last byte, inclusive
+ */
+public record ByteRange(long first, long last) {
+
+    // more ranges than this are more likely an attack than a real client, the whole body is served instead
+    static final int MAX_RANGES = 16;
+    private static final String UNIT = "bytes=";
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * @param size the size of the whole body
+     * @return the value of the {@code Content-Range} header for this range
+     */
+    public String toContentRange(final long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * Get the ranges of a body requested by a {@code Range} header.
+     *
+     * @param range the value of the header
+     * @param size  the size of the body
+     * @return the satisfiable ranges, empty if none is; null if the header is to be ignored, as not valid or not supported
+     */
+    public static List<ByteRange> parse(final String range, final long size) {
+        if (range == null || !range.regionMatches(true, 0, UNIT, 0, UNIT.length())) {
+            return null;
+        }
+        final String[] specs = range.substring(UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (final String spec : specs) {
+            final String trimmed = spec.trim();
+            final int dash = trimmed.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // suffix, the last bytes of the body
+                    final long suffix = Long.parseLong(trimmed.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+                final long first = Long.parseLong(trimmed.substring(0, dash));
+                final String lastPosition = trimmed.substring(dash + 1);
+                final long last = lastPosition.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPosition);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < size) {
+                    ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
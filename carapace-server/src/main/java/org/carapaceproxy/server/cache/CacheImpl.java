@@ -19,8 +19,11 @@
  */
 package org.carapaceproxy.server.cache;
 
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
 import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
+import reactor.core.publisher.Mono;
 
 /**
  *
@@ -60,6 +63,35 @@ interface CacheImpl {
      */
     public CachedContent get(ContentKey key);
 
+    /**
+     * Gets an element from cache if presents and updates the stats, like {@link #get(ContentKey)},
+     * but reading the elements on disk in background, not to block the calling thread
+     * @param key
+     * @return Cached element, or empty if key was not found in cache
+     */
+    public Mono<CachedContent> getAsync(ContentKey key);
+
+    /**
+     * Checks whether an element is in cache, without updating the stats
+     * @param key
+     * @return true if the element is in memory or on disk
+     */
+    public boolean contains(ContentKey key);
+
+    /**
+     * Gets an element from memory if present, without updating the stats
+     * @param key
+     * @return Cached element or null if key was not found in memory
+     */
+    public CachedContent peek(ContentKey key);
+
+    /**
+     * Updates the expiration of an element, after its expiration timestamp changed
+     * @param key
+     * @param payload
+     */
+    public void updateExpiration(ContentKey key, CachedContent payload);
+
     /**
      * Removes an element from cache, frees its resources and updates the stats
      *
@@ -76,6 +108,14 @@ interface CacheImpl {
      */
     public void evict();
 
+    /**
+     * Evicts from memory at once, as if the cache were full, the least recently used element accepted by a filter
+     * @param filter the elements that can be evicted
+     * @param candidates how many of the least recently used elements to look at
+     * @return false if none of them is accepted
+     */
+    public boolean evictColdest(Predicate<CachedContent> filter, int candidates);
+
     /**
      * Removes all elements from cache
      * @return Esteemed number of elements removed
@@ -91,6 +131,12 @@ interface CacheImpl {
         public void accept(ContentKey key, CachedContent payload);
     }
 
+    /**
+     * Calls "action" for the key of every content in cache, also the ones in the disk tier
+     * @param action
+     */
+    public void forEachKey(Consumer<ContentKey> action);
+
     /**
      * Calls "sink" for every current element in cache
      * @param sink
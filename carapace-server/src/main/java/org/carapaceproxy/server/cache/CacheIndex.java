@@ -0,0 +1,226 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+
+/**
+ * Secondary indexes on the keys of the cached contents, to find the ones to purge without scanning the whole cache.
+ * <p>
+ * Keys are indexed by host (without port, lowercase), by URI (sorted, so that a prefix is a range of it)
+ * and by the tags of the content.
+ * The indexes may hold keys of contents not cached anymore, e.g. evicted or expired:
+ * callers have to check the keys they get against the cache, and prune the indexes once in a while.
+ * <p>
+ * Lookups do not lock, updates are serialized.
+ */
+final class CacheIndex {
+
+    private static final Pattern TAG_SEPARATOR = Pattern.compile("[\\s,]+");
+    private static final Comparator<ContentKey> KEY_ORDER = Comparator.comparing(ContentKey::composeKey);
+
+    private final ConcurrentMap<String, Set<ContentKey>> byHost = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<String, Set<ContentKey>> byUri = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Set<ContentKey>> byTag = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ContentKey, Set<String>> tags = new ConcurrentHashMap<>();
+
+    synchronized void add(final ContentKey key, final Set<String> keyTags) {
+        remove(key);
+        add(byHost, hostOf(key.host), key);
+        add(byUri, key.uri, key);
+        if (!keyTags.isEmpty()) {
+            tags.put(key, keyTags);
+            keyTags.forEach(tag -> add(byTag, tag, key));
+        }
+    }
+
+    synchronized void remove(final ContentKey key) {
+        remove(byHost, hostOf(key.host), key);
+        remove(byUri, key.uri, key);
+        final Set<String> keyTags = tags.remove(key);
+        if (keyTags != null) {
+            keyTags.forEach(tag -> remove(byTag, tag, key));
+        }
+    }
+
+    /**
+     * Forget the keys not matching a condition.
+     * <p>
+     * The keys are scanned without locking, not to hold the updates;
+     * each one is checked again when forgotten, as it may have been added back meanwhile.
+     */
+    void retainIf(final Predicate<ContentKey> condition) {
+        final List<ContentKey> removed = new ArrayList<>();
+        byUri.values().forEach(keys -> keys.forEach(key -> {
+            if (!condition.test(key)) {
+                removed.add(key);
+            }
+        }));
+        removed.forEach(key -> removeUnless(key, condition));
+    }
+
+    private synchronized void removeUnless(final ContentKey key, final Predicate<ContentKey> condition) {
+        if (!condition.test(key)) {
+            remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        byHost.clear();
+        byUri.clear();
+        byTag.clear();
+        tags.clear();
+    }
+
+    int size() {
+        return byUri.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * @param host the host, port excluded
+     */
+    List<ContentKey> findByHost(final String host) {
+        return List.copyOf(byHost.getOrDefault(hostOf(host), Set.of()));
+    }
+
+    /**
+     * @param host   the host, port excluded, or null for any host
+     * @param prefix the beginning of the URI, query string included
+     */
+    List<ContentKey> findByPrefix(final String host, final String prefix) {
+        final List<ContentKey> found = new ArrayList<>();
+        final Predicate<ContentKey> hostCondition = hostCondition(host);
+        for (final Set<ContentKey> keys : byUri.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            for (final ContentKey key : keys) {
+                if (hostCondition.test(key)) {
+                    found.add(key);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Unlike the other lookups, this has to scan all the URIs of the host, or all the URIs at all if the host is null.
+     *
+     * @param host  the host, port excluded, or null for any host
+     * @param regex a pattern to be found in the URI
+     */
+    List<ContentKey> findByRegex(final String host, final Pattern regex) {
+        final Collection<ContentKey> keys;
+        if (host != null) {
+            keys = byHost.getOrDefault(hostOf(host), Set.of());
+        } else {
+            keys = new ArrayList<>();
+            byUri.values().forEach(keys::addAll);
+        }
+        final List<ContentKey> found = new ArrayList<>();
+        for (final ContentKey key : keys) {
+            if (regex.matcher(key.uri).find()) {
+                found.add(key);
+            }
+        }
+        return found;
+    }
+
+    List<ContentKey> findByTag(final String tag) {
+        return List.copyOf(byTag.getOrDefault(tag, Set.of()));
+    }
+
+    /**
+     * Walk the keys sorted by URI, so that the order is stable across calls.
+     *
+     * @param host   the host, port excluded, or null for any host
+     * @param action called for each key, until it returns false
+     */
+    void walk(final String host, final Predicate<ContentKey> action) {
+        final Predicate<ContentKey> hostCondition = hostCondition(host);
+        for (final Set<ContentKey> keys : byUri.values()) {
+            final List<ContentKey> sorted = new ArrayList<>(keys);
+            sorted.sort(KEY_ORDER);
+            for (final ContentKey key : sorted) {
+                if (hostCondition.test(key) && !action.test(key)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the tags of a content from the value of a response header, separated by spaces or commas.
+     */
+    static Set<String> parseTags(final List<String> values) {
+        final Set<String> parsed = new HashSet<>();
+        for (final String value : values) {
+            for (final String tag : TAG_SEPARATOR.split(value.trim())) {
+                if (!tag.isEmpty()) {
+                    parsed.add(tag);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Strip the port from the value of a Host header, and lowercase it.
+     */
+    static String hostOf(final String host) {
+        if (host == null) {
+            return "";
+        }
+        final int colon = host.lastIndexOf(':');
+        // an IPv6 address without port is in brackets too
+        final String name = colon > 0 && host.indexOf(']', colon) < 0 ? host.substring(0, colon) : host;
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static Predicate<ContentKey> hostCondition(final String host) {
+        if (host == null) {
+            return key -> true;
+        }
+        final String name = hostOf(host);
+        return key -> name.equals(hostOf(key.host));
+    }
+
+    private static void add(final Map<String, Set<ContentKey>> index, final String value, final ContentKey key) {
+        index.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private static void remove(final Map<String, Set<ContentKey>> index, final String value, final ContentKey key) {
+        final Set<ContentKey> keys = index.get(value);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(value, keys);
+        }
+    }
+}
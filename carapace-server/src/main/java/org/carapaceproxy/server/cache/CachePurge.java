@@ -0,0 +1,114 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A request to drop a set of contents from the cache, to be applied by every peer.
+ *
+ * @param type  what selects the contents
+ * @param host  the host of the contents, port excluded; null for any host, unless purging by host
+ * @param value the URI prefix, the regular expression or the tag; null when purging by host
+ */
+public record CachePurge(Type type, String host, String value) {
+
+    public enum Type {
+        HOST,
+        PREFIX,
+        REGEX,
+        TAG
+    }
+
+    public CachePurge {
+        if (type == null) {
+            throw new IllegalArgumentException("Missing purge type");
+        }
+        if (type == Type.HOST) {
+            if (host == null || host.isBlank()) {
+                throw new IllegalArgumentException("Missing host to purge");
+            }
+        } else if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing " + type.name().toLowerCase(Locale.ROOT) + " to purge");
+        }
+        if (type == Type.TAG && host != null) {
+            throw new IllegalArgumentException("Tags cannot be purged by host");
+        }
+        if (type == Type.REGEX) {
+            try {
+                Pattern.compile(value);
+            } catch (PatternSyntaxException err) {
+                throw new IllegalArgumentException("Invalid regex " + value + ": " + err.getDescription());
+            }
+        }
+    }
+
+    public static CachePurge byHost(final String host) {
+        return new CachePurge(Type.HOST, host, null);
+    }
+
+    public static CachePurge byPrefix(final String host, final String prefix) {
+        return new CachePurge(Type.PREFIX, host, prefix);
+    }
+
+    public static CachePurge byRegex(final String host, final String regex) {
+        return new CachePurge(Type.REGEX, host, regex);
+    }
+
+    public static CachePurge byTag(final String tag) {
+        return new CachePurge(Type.TAG, null, tag);
+    }
+
+    /**
+     * @return the purge as the data of a cluster event
+     */
+    public Map<String, Object> toEventData() {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("type", type.name());
+        if (host != null) {
+            data.put("host", host);
+        }
+        if (value != null) {
+            data.put("value", value);
+        }
+        return data;
+    }
+
+    /**
+     * @param data the data of a cluster event
+     * @throws IllegalArgumentException if the data is not a valid purge
+     */
+    public static CachePurge fromEventData(final Map<String, Object> data) {
+        final Object type = data.get("type");
+        if (type == null) {
+            throw new IllegalArgumentException("Missing purge type");
+        }
+        final Object host = data.get("host");
+        final Object value = data.get("value");
+        return new CachePurge(
+                Type.valueOf(type.toString()),
+                host != null ? host.toString() : null,
+                value != null ? value.toString() : null);
+    }
+}
@@ -32,12 +32,28 @@ public class CacheRuntimeConfiguration {
     private final long cacheMaxFileSize;
     private final boolean cacheDisabledForSecureRequestsWithoutPublic;
     private final Set<String> alwaysCachedExtensions;
+    private final boolean slabsEnabled;
+    private final int slabSize;
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+    private final int precompressionThreshold;
+    private final DiskConfiguration disk;
 
     public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize, boolean cacheDisabledForSecureRequestsWithoutPublic, final Set<String> alwaysCachedExtensions) {
+        this(cacheMaxSize, cacheMaxFileSize, cacheDisabledForSecureRequestsWithoutPublic, alwaysCachedExtensions, false, 0, 0, 0, -1, DiskConfiguration.DISABLED);
+    }
+
+    public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize, boolean cacheDisabledForSecureRequestsWithoutPublic, final Set<String> alwaysCachedExtensions, boolean slabsEnabled, int slabSize, long staleWhileRevalidate, long staleIfError, int precompressionThreshold, final DiskConfiguration disk) {
         this.cacheMaxSize = cacheMaxSize;
         this.cacheMaxFileSize = cacheMaxFileSize;
         this.cacheDisabledForSecureRequestsWithoutPublic = cacheDisabledForSecureRequestsWithoutPublic;
         this.alwaysCachedExtensions = alwaysCachedExtensions;
+        this.slabsEnabled = slabsEnabled;
+        this.slabSize = slabSize;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
+        this.precompressionThreshold = precompressionThreshold;
+        this.disk = disk;
     }
 
     @Override
@@ -46,6 +62,12 @@ public class CacheRuntimeConfiguration {
         hash = 83 * hash + (int) (this.cacheMaxSize ^ (this.cacheMaxSize >>> 32));
         hash = 83 * hash + (int) (this.cacheMaxFileSize ^ (this.cacheMaxFileSize >>> 32));
         hash = 83 * hash + (this.cacheDisabledForSecureRequestsWithoutPublic ? 1 : 0);
+        hash = 83 * hash + (this.slabsEnabled ? 1 : 0);
+        hash = 83 * hash + this.slabSize;
+        hash = 83 * hash + Long.hashCode(this.staleWhileRevalidate);
+        hash = 83 * hash + Long.hashCode(this.staleIfError);
+        hash = 83 * hash + this.precompressionThreshold;
+        hash = 83 * hash + this.disk.hashCode();
         return hash;
     }
 
@@ -70,6 +92,24 @@ public class CacheRuntimeConfiguration {
         if (this.cacheDisabledForSecureRequestsWithoutPublic != other.cacheDisabledForSecureRequestsWithoutPublic) {
             return false;
         }
+        if (this.slabsEnabled != other.slabsEnabled) {
+            return false;
+        }
+        if (this.slabSize != other.slabSize) {
+            return false;
+        }
+        if (this.staleWhileRevalidate != other.staleWhileRevalidate) {
+            return false;
+        }
+        if (this.staleIfError != other.staleIfError) {
+            return false;
+        }
+        if (this.precompressionThreshold != other.precompressionThreshold) {
+            return false;
+        }
+        if (!this.disk.equals(other.disk)) {
+            return false;
+        }
         return true;
     }
 
@@ -88,4 +128,51 @@ public class CacheRuntimeConfiguration {
     public Set<String> getAlwaysCachedExtensions() {
         return alwaysCachedExtensions;
     }
+
+    public boolean isSlabsEnabled() {
+        return slabsEnabled;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return the default stale-while-revalidate window, in seconds
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return the default stale-if-error window, in seconds
+     */
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * @return the minimum size of the bodies to store also compressed, -1 if disabled
+     */
+    public int getPrecompressionThreshold() {
+        return precompressionThreshold;
+    }
+
+    public DiskConfiguration getDisk() {
+        return disk;
+    }
+
+    /**
+     * Configuration of the disk tier.
+     *
+     * @param enabled     whether the disk tier is enabled
+     * @param path        the directory of the segment files
+     * @param maxSize     the maximum size of the segment files
+     * @param segmentSize the size of a segment file
+     * @param threshold   the size of the bodies to store on disk only, 0 to keep all of them in memory
+     */
+    public record DiskConfiguration(boolean enabled, String path, long maxSize, long segmentSize, long threshold) {
+
+        public static final DiskConfiguration DISABLED = new DiskConfiguration(false, null, 0, 0, 0);
+    }
 }
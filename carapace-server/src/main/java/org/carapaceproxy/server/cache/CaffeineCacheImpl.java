@@ -24,10 +24,16 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.RemovalListener;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
 import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
 import org.slf4j.Logger;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  *
@@ -39,6 +45,9 @@ class CaffeineCacheImpl implements CacheImpl {
 
     private final Cache<ContentKey, CachedContent> cache;
     private final CacheStats stats;
+    // second tier, for the contents evicted or too big for memory
+    private final DiskStore disk;
+    private final long diskThreshold;
     private Logger logger;
 
     private AtomicLong entries = new AtomicLong(0);
@@ -48,8 +57,18 @@ class CaffeineCacheImpl implements CacheImpl {
     private volatile RemovalListener removalListener;
 
     public CaffeineCacheImpl(CacheStats stats, long cacheMaxSize, Logger logger) {
+        this(stats, cacheMaxSize, logger, null, 0);
+    }
+
+    /**
+     * @param disk          the disk tier, or null
+     * @param diskThreshold the size of the bodies to store in the disk tier only, 0 to keep all of them in memory
+     */
+    public CaffeineCacheImpl(CacheStats stats, long cacheMaxSize, Logger logger, DiskStore disk, long diskThreshold) {
         this.stats = stats;
         this.logger = logger;
+        this.disk = disk;
+        this.diskThreshold = diskThreshold;
 
         this.cache = Caffeine.<ContentKey, CachedContent>newBuilder()
             .initialCapacity((int) INITIAL_CACHE_SIZE_CAPACITY)
@@ -59,7 +78,8 @@ class CaffeineCacheImpl implements CacheImpl {
                 public long expireAfterCreate(ContentKey key, CachedContent payload, long currentTime) {
                     // WARNING: provided current time is completely misleading, as stated in the doc.
                     // System.currentTimeMillis() should be used instead.
-                    return (payload.expiresTs - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    // stale contents are kept until they cannot be served anymore
+                    return (payload.getRetentionTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterUpdate(ContentKey key, CachedContent payload, long currentTime, long currentDuration) {
@@ -102,6 +122,9 @@ class CaffeineCacheImpl implements CacheImpl {
                 if (removalListener != null) {
                     removalListener.onRemoval(key, payload, cause);
                 }
+                if (cause == RemovalCause.SIZE && disk != null) {
+                    disk.write(key, payload);
+                }
                 release(key, payload);
             })
             .build();
@@ -128,7 +151,17 @@ class CaffeineCacheImpl implements CacheImpl {
 
     @Override
     public void put(ContentKey key, CachedContent payload) {
+        if (disk != null && diskThreshold > 0 && payload.getBodySize() > diskThreshold) {
+            disk.write(key, payload);
+            payload.clear();
+            logger.debug("adding content {} to disk", key.uri);
+            return;
+        }
         cache.put(key, payload);
+        if (disk != null) {
+            // the older version is not going to be served anymore
+            disk.forget(key);
+        }
 
         stats.cached(payload.heapSize, payload.directSize, key.getMemUsage() + payload.getMemUsage());
         entries.addAndGet(1);
@@ -139,12 +172,34 @@ class CaffeineCacheImpl implements CacheImpl {
 
     @Override
     public CachedContent get(ContentKey key) {
+        CachedContent cached = getFromMemory(key);
+        if (cached == null && disk != null) {
+            cached = disk.get(key);
+        }
+        return hit(cached);
+    }
+
+    @Override
+    public Mono<CachedContent> getAsync(ContentKey key) {
+        CachedContent cached = getFromMemory(key);
+        if (cached != null || disk == null || !disk.contains(key)) {
+            return Mono.justOrEmpty(hit(cached));
+        }
+        // the metadata is read from the segment file
+        return Mono.fromCallable(() -> hit(disk.get(key))).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private CachedContent getFromMemory(ContentKey key) {
         CachedContent cached = cache.getIfPresent(key);
-        if (cached != null && cached.expiresTs < System.currentTimeMillis()) {
+        if (cached != null && cached.getRetentionTs() < System.currentTimeMillis()) {
             logger.debug("expiring content {}, expired at {}", key.uri, new java.util.Date(cached.expiresTs));
             cache.invalidate(key);
             cached = null;
         }
+        return cached;
+    }
+
+    private CachedContent hit(CachedContent cached) {
         stats.update(cached != null);
         if (cached != null) {
             cached.hits++;
@@ -152,6 +207,17 @@ class CaffeineCacheImpl implements CacheImpl {
         return cached;
     }
 
+    @Override
+    public boolean contains(ContentKey key) {
+        return cache.asMap().containsKey(key) || (disk != null && disk.contains(key));
+    }
+
+    @Override
+    public CachedContent peek(ContentKey key) {
+        // not an access for the eviction policy
+        return cache.policy().getIfPresentQuietly(key);
+    }
+
     private void release(ContentKey key, CachedContent payload) {
         if (logger.isDebugEnabled()) {
             logger.debug("Releasing cache content {}", key.uri);
@@ -163,14 +229,53 @@ class CaffeineCacheImpl implements CacheImpl {
         payload.clear();
     }
 
+    @Override
+    public void updateExpiration(ContentKey key, CachedContent payload) {
+        cache.policy().expireVariably().ifPresent(policy -> {
+            if (cache.getIfPresent(key) == payload) {
+                policy.setExpiresAfter(key, payload.getRetentionTs() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
     @Override
     public void remove(ContentKey key) {
         cache.invalidate(key);
+        if (disk != null) {
+            disk.remove(key);
+        }
     }
 
     @Override
     public void evict() {
         cache.cleanUp();
+        if (disk != null) {
+            disk.evictExpired();
+        }
+    }
+
+    @Override
+    public boolean evictColdest(final Predicate<CachedContent> filter, final int candidates) {
+        final Map<ContentKey, CachedContent> coldest = cache.policy().eviction()
+                .map(eviction -> eviction.coldest(candidates))
+                .orElse(Map.of());
+        for (Map.Entry<ContentKey, CachedContent> entry : coldest.entrySet()) {
+            final ContentKey key = entry.getKey();
+            final CachedContent payload = entry.getValue();
+            if (!filter.test(payload)) {
+                continue;
+            }
+            if (cache.asMap().remove(key, payload)) {
+                if (disk != null) {
+                    // from a copy, the memory is needed now and not when the write completes
+                    disk.write(key, payload, true);
+                }
+                // the removal listener may run later
+                payload.clear();
+            }
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -178,12 +283,28 @@ class CaffeineCacheImpl implements CacheImpl {
         int currentSize = getSize();
         cache.invalidateAll();
         cache.cleanUp();
+        if (disk != null) {
+            currentSize += disk.clear();
+        }
         return currentSize;
     }
 
     @Override
     public void close() {
-        clear();
+        if (disk != null && !cache.asMap().isEmpty()) {
+            // keep the contents for the next startup
+            disk.writeAll(cache.asMap());
+        }
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    @Override
+    public void forEachKey(Consumer<ContentKey> action) {
+        cache.asMap().keySet().forEach(action);
+        if (disk != null) {
+            disk.forEachKey(action);
+        }
     }
 
     @Override
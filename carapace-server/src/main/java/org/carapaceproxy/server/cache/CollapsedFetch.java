@@ -0,0 +1,223 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * A backend fetch of a cacheable content that concurrent cache misses for the same {@link ContentsCache.ContentKey} can join.
+ * <p>
+ * The first miss leads the fetch and feeds it with the response of the backend;
+ * the followers get the same response and replay its body as it arrives, instead of forwarding identical requests.
+ * If the response turns out not to be cacheable, or the leader fails before receiving it, the followers fall through.
+ * <p>
+ * The fetch keeps a reference to each received chunk, until the leader completes and all the followers left.
+ * Chunks are kept only for the followers: a fetch that receives some body with nobody following it cannot be joined anymore.
+ * A body bigger than the maximum size of the cached contents is not shared either; as the followers cannot fall through
+ * once they started replaying it, the response is shared only when its length is known, or else once it is complete.
+ */
+public final class CollapsedFetch {
+
+    private final ContentsCache.ContentKey key;
+    private final Map<ContentsCache.ContentKey, CollapsedFetch> pendingFetches;
+    private final Sinks.One<Response> response = Sinks.one();
+    private final Sinks.Many<ByteBuf> body = Sinks.many().replay().all();
+    private final List<ByteBuf> chunks = new ArrayList<>();
+    // the maximum size of the body to share, 0 for no limit
+    private final long maxSize;
+    private long received;
+    // a response of unknown length, shared once complete
+    private Response pendingResponse;
+    private int followers;
+    private boolean terminated;
+
+    CollapsedFetch(final ContentsCache.ContentKey key, final Map<ContentsCache.ContentKey, CollapsedFetch> pendingFetches, final long maxSize) {
+        this.key = key;
+        this.pendingFetches = pendingFetches;
+        this.maxSize = maxSize;
+    }
+
+    public ContentsCache.ContentKey getKey() {
+        return key;
+    }
+
+    /**
+     * Share the response of the backend with the followers.
+     *
+     * @param key     the key of the content, with the variant selected by the leader
+     * @param status  the status of the response
+     * @param headers the headers of the response, before any request-specific customization
+     */
+    public void responseReceived(final ContentsCache.ContentKey key, final HttpResponseStatus status, final HttpHeaders headers) {
+        final Response received = new Response(key, status, headers);
+        if (maxSize > 0 && !headers.contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            // the body may turn out too big
+            synchronized (this) {
+                pendingResponse = received;
+            }
+            return;
+        }
+        response.tryEmitValue(received);
+    }
+
+    /**
+     * Share a chunk of the body with the followers.
+     * <p>
+     * The fetch is aborted if nobody is following it, or if the body gets too big.
+     */
+    public void chunkReceived(final ByteBuf data) {
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            received += data.readableBytes();
+            if (followers > 0 && (maxSize <= 0 || received <= maxSize)) {
+                final ByteBuf chunk = data.retainedDuplicate();
+                chunks.add(chunk);
+                body.tryEmitNext(chunk);
+                return;
+            }
+        }
+        abort();
+    }
+
+    /**
+     * The whole body has been received.
+     */
+    public void complete() {
+        final Response received;
+        synchronized (this) {
+            received = pendingResponse;
+            pendingResponse = null;
+        }
+        if (terminate() && received != null) {
+            response.tryEmitValue(received);
+        }
+        body.tryEmitComplete();
+    }
+
+    /**
+     * The response cannot be shared, or the fetch failed; no-op if already {@link #complete() completed}.
+     */
+    public void abort() {
+        if (terminate()) {
+            // followers still waiting fall through
+            response.tryEmitEmpty();
+            body.tryEmitError(new IOException("fetch of " + key.composeKey() + " aborted"));
+        }
+    }
+
+    /**
+     * Stop accepting followers, and release the chunks if nobody is replaying them.
+     *
+     * @return false if already terminated
+     */
+    private boolean terminate() {
+        pendingFetches.remove(key, this);
+        synchronized (this) {
+            if (terminated) {
+                return false;
+            }
+            terminated = true;
+            if (followers == 0) {
+                releaseChunks();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Join the fetch.
+     *
+     * @return the follower, or null if the fetch is already terminated
+     */
+    synchronized Follower join() {
+        if (terminated) {
+            return null;
+        }
+        followers++;
+        return new Follower();
+    }
+
+    private synchronized void leave() {
+        followers--;
+        if (terminated && followers == 0) {
+            releaseChunks();
+        }
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(ByteBuf::release);
+        chunks.clear();
+    }
+
+    /**
+     * The response of the backend, as received by the leader.
+     * <p>
+     * Followers asking for another variant of the content cannot use it.
+     */
+    public record Response(ContentsCache.ContentKey key, HttpResponseStatus status, HttpHeaders headers) {
+    }
+
+    /**
+     * A request waiting for the fetch of another one.
+     */
+    public final class Follower {
+
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        private Follower() {
+        }
+
+        /**
+         * @return the response, or empty if it is not going to be shared
+         */
+        public Mono<Response> response() {
+            return response.asMono();
+        }
+
+        /**
+         * @return the whole body, from its first chunk; each chunk is to be released by the subscriber
+         */
+        public Flux<ByteBuf> body() {
+            return body.asFlux().map(ByteBuf::retainedDuplicate);
+        }
+
+        /**
+         * Stop following the fetch; idempotent.
+         */
+        public void leave() {
+            if (left.compareAndSet(false, true)) {
+                CollapsedFetch.this.leave();
+            }
+        }
+    }
+}
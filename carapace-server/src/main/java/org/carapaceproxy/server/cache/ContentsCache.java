@@ -23,26 +23,52 @@ import static io.netty.handler.codec.http.HttpHeaderNames.IF_MODIFIED_SINCE;
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.prometheus.client.Counter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 import lombok.Data;
 import org.carapaceproxy.core.ProxyRequest;
 import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.utils.HttpUtils;
 import org.carapaceproxy.utils.PrometheusUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClientResponse;
 
 /**
@@ -54,6 +80,13 @@ public class ContentsCache {
 
     private static final Counter NO_CACHE_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "non_cacheable_requests_total", "not cacheable requests").register();
 
+    // the least recently used contents looked at to make room in the slabs
+    private static final int EVICTION_CANDIDATES = 32;
+    // the contents waiting to be compressed, past them the contents are cached uncompressed
+    private static final int MAX_QUEUED_COMPRESSIONS = 256;
+    private static final List<String> KNOWN_CODINGS = List.of("br", "deflate", "gzip", "zstd");
+    private static final List<String> COMPRESSIBLE_TYPES = List.of("json", "javascript", "xml", "ecmascript", "x-www-form-urlencoded");
+
     public static final List<String> CACHE_CONTROL_CACHE_DISABLED_VALUES = Arrays.asList(
             HttpHeaderValues.PRIVATE + "",
             HttpHeaderValues.NO_CACHE + "",
@@ -61,10 +94,30 @@ public class ContentsCache {
             HttpHeaderValues.MAX_AGE + "=0"
     );
 
-    private CacheImpl cache;
+    private volatile CacheImpl cache;
+    private volatile SlabStore slabs;
+    private volatile DiskStore disk;
+    private final ConcurrentMap<ContentKey, CollapsedFetch> pendingFetches = new ConcurrentHashMap<>();
+    private final Set<ContentKey> revalidations = ConcurrentHashMap.newKeySet();
+    // the request headers named by the Vary header of the contents, by their key without variant
+    private final ConcurrentMap<ContentKey, List<String>> variations = new ConcurrentHashMap<>();
+    private final CacheIndex index = new CacheIndex();
+    // the response header with the tags of the contents, empty if not indexed
+    private volatile String tagHeader;
 
     private final CacheStats stats;
     private final ScheduledExecutorService threadPool;
+    // gzip is too slow for the event loops; a single thread keeps the contents of a key cached in order
+    private final ExecutorService compressor;
+    // orders compressions and removals: a content compressed after a later removal of its key must not be cached
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger compressing = new AtomicInteger();
+    // the last removal of the keys, while some contents are being compressed
+    private final ConcurrentMap<ContentKey, Long> removals = new ConcurrentHashMap<>();
+    // the last clear, reload or purge: the contents being compressed are not indexed yet, so they cannot be matched by a purge
+    private volatile long clearedAt = -1;
+    // closing the old disk tier and opening the new one after a reload, null if none
+    private Future<?> diskTask;
     private CacheRuntimeConfiguration currentConfiguration;
 
     static final long DEFAULT_TTL = 1000 * 60 * 60;
@@ -72,13 +125,57 @@ public class ContentsCache {
     public ContentsCache(RuntimeServerConfiguration currentConfiguration) {
         this.stats = new CacheStats();
         this.threadPool = Executors.newSingleThreadScheduledExecutor();
-        this.currentConfiguration = new CacheRuntimeConfiguration(
-                currentConfiguration.getCacheMaxSize(),
-                currentConfiguration.getCacheMaxFileSize(),
-                currentConfiguration.isCacheDisabledForSecureRequestsWithoutPublic(),
-                currentConfiguration.getAlwaysCachedExtensions()
+        this.compressor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_COMPRESSIONS));
+        this.currentConfiguration = buildCacheConfiguration(currentConfiguration);
+        this.tagHeader = currentConfiguration.getCacheTagHeader();
+        this.disk = buildDiskStore(this.currentConfiguration);
+        this.cache = buildCache(this.currentConfiguration);
+        this.slabs = buildSlabStore(this.currentConfiguration);
+    }
+
+    private static CacheRuntimeConfiguration buildCacheConfiguration(RuntimeServerConfiguration configuration) {
+        return new CacheRuntimeConfiguration(
+                configuration.getCacheMaxSize(),
+                configuration.getCacheMaxFileSize(),
+                configuration.isCacheDisabledForSecureRequestsWithoutPublic(),
+                configuration.getAlwaysCachedExtensions(),
+                configuration.isCacheSlabsEnabled(),
+                configuration.getCacheSlabSize(),
+                configuration.getCacheStaleWhileRevalidate(),
+                configuration.getCacheStaleIfError(),
+                configuration.getCachePrecompressionThreshold(),
+                new CacheRuntimeConfiguration.DiskConfiguration(
+                        configuration.isCacheDiskEnabled(),
+                        configuration.getCacheDiskPath(),
+                        configuration.getCacheDiskMaxSize(),
+                        configuration.getCacheDiskSegmentSize(),
+                        configuration.getCacheDiskThreshold()
+                )
         );
-        this.cache = new CaffeineCacheImpl(stats, currentConfiguration.getCacheMaxSize(), LOG);
+    }
+
+    private DiskStore buildDiskStore(CacheRuntimeConfiguration configuration) {
+        CacheRuntimeConfiguration.DiskConfiguration disk = configuration.getDisk();
+        if (!disk.enabled()) {
+            return null;
+        }
+        try {
+            return new DiskStore(Paths.get(disk.path()), disk.maxSize(), disk.segmentSize(),
+                    (key, headers) -> index.add(key, tagsOf(headers)));
+        } catch (IOException err) {
+            LOG.error("Cannot open the disk tier of the cache at {}, going on without it", disk.path(), err);
+            return null;
+        }
+    }
+
+    private CaffeineCacheImpl buildCache(CacheRuntimeConfiguration configuration) {
+        return new CaffeineCacheImpl(stats, configuration.getCacheMaxSize(), LOG, disk, configuration.getDisk().threshold());
+    }
+
+    private static SlabStore buildSlabStore(CacheRuntimeConfiguration configuration) {
+        return configuration.isSlabsEnabled()
+                ? new SlabStore(configuration.getCacheMaxSize(), configuration.getSlabSize())
+                : null;
     }
 
     public void start() {
@@ -86,13 +183,19 @@ public class ContentsCache {
     }
 
     public void close() {
-        this.threadPool.shutdownNow();
+        // the disk tier may be being reopened, and some contents compressed
+        this.threadPool.shutdown();
+        this.compressor.shutdown();
         try {
             this.threadPool.awaitTermination(1, TimeUnit.MINUTES);
+            this.compressor.awaitTermination(1, TimeUnit.MINUTES);
         } catch (InterruptedException exit) {
             Thread.currentThread().interrupt();
         }
         this.cache.close();
+        if (this.disk != null) {
+            this.disk.close();
+        }
     }
 
     private boolean isContentLengthCacheable(long contentLength) {
@@ -121,13 +224,15 @@ public class ContentsCache {
         String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL, "").replaceAll(" ", "").toLowerCase();
         if ((!cacheControl.isEmpty() && CACHE_CONTROL_CACHE_DISABLED_VALUES.stream().anyMatch(cacheControl::contains))
                 || headers.contains(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true)
+                || parseVary(headers).contains("*")
                 || !isContentLengthCacheable(headers)) {
-            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache
+            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache, Vary: *
             LOG.trace("not cacheable {}", response);
             return false;
         }
         return switch (response.status().codeClass()) {
-            case SUCCESS -> true;
+            // only whole bodies, ranges are served from them
+            case SUCCESS -> !HttpResponseStatus.PARTIAL_CONTENT.equals(response.status());
             case REDIRECTION, INFORMATIONAL, SERVER_ERROR, UNKNOWN -> false;
             default -> false;
         };
@@ -189,7 +294,130 @@ public class ContentsCache {
     }
 
     public ContentReceiver createCacheReceiver(ProxyRequest request) {
-        return isCacheable(request, true) ? new ContentReceiver(new ContentKey(request)) : null;
+        return isCacheable(request, true) ? new ContentReceiver(keyOf(request), request.getRequestHeaders()) : null;
+    }
+
+    /**
+     * Get the key of the content for a request, with the variant selected by its headers
+     * if the backend replied with a Vary header the last time.
+     */
+    private ContentKey keyOf(ProxyRequest request) {
+        ContentKey key = new ContentKey(request);
+        List<String> vary = variations.get(key);
+        return vary != null ? key.withVariant(variantOf(vary, request.getRequestHeaders())) : key;
+    }
+
+    /**
+     * Whether a request selects the same variant as the one of a content.
+     *
+     * @param key             the key of the content
+     * @param request         the request
+     * @param responseHeaders the headers of the response for the content
+     */
+    public boolean isSameVariant(ContentKey key, ProxyRequest request, HttpHeaders responseHeaders) {
+        List<String> vary = parseVary(responseHeaders);
+        ContentKey requested = new ContentKey(request);
+        return key.equals(vary.isEmpty() ? requested : requested.withVariant(variantOf(vary, request.getRequestHeaders())));
+    }
+
+    /**
+     * Follow the pending backend fetch of the same content, if any.
+     *
+     * @param request the request that missed the cache
+     * @return the follower of the fetch, or null if there is none to join
+     */
+    public CollapsedFetch.Follower joinFetch(ProxyRequest request) {
+        if (!isCacheable(request, false)) {
+            return null;
+        }
+        CollapsedFetch fetch = pendingFetches.get(keyOf(request));
+        return fetch != null ? fetch.join() : null;
+    }
+
+    /**
+     * Lead the backend fetch of a content, so that concurrent misses can join it.
+     *
+     * @param receiver the receiver of the content
+     * @return the fetch, or null if another request is already leading one
+     */
+    public CollapsedFetch leadFetch(ContentReceiver receiver) {
+        ContentKey key = receiver.key;
+        CollapsedFetch fetch = new CollapsedFetch(key, pendingFetches, currentConfiguration.getCacheMaxFileSize());
+        return pendingFetches.putIfAbsent(key, fetch) == null ? fetch : null;
+    }
+
+    /**
+     * Mark a stale content as being revalidated.
+     *
+     * @return false if another request is already revalidating it
+     */
+    public boolean startRevalidation(ContentKey key) {
+        return revalidations.add(key);
+    }
+
+    public void endRevalidation(ContentKey key) {
+        revalidations.remove(key);
+    }
+
+    /**
+     * Extend the expiration of a content, as the backend replied it is not modified.
+     *
+     * @param key      the key of the content
+     * @param content  the content
+     * @param response the {@code 304 Not Modified} response of the backend
+     */
+    public void refreshExpiration(ContentKey key, CachedContent content, HttpClientResponse response) {
+        long expiresTs = response.responseHeaders().getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+        if (expiresTs == -1 || expiresTs < System.currentTimeMillis()) {
+            expiresTs = computeDefaultExpireDate();
+        }
+        content.expiresTs = expiresTs;
+        cache.updateExpiration(key, content);
+    }
+
+    /**
+     * Drop a content that cannot be served anymore.
+     */
+    public void remove(ContentKey key) {
+        if (compressing.get() > 0) {
+            removals.merge(key, sequence.incrementAndGet(), Math::max);
+        }
+        cache.remove(key);
+        index.remove(key);
+    }
+
+    /**
+     * Drop the contents selected by a purge, in memory and on disk.
+     * <p>
+     * The contents are looked up in the indexes, so that the cost depends on the matching ones only;
+     * except for regular expressions, that are matched against all the URIs of the host.
+     *
+     * @return the number of contents dropped
+     */
+    public int purge(CachePurge purge) {
+        List<ContentKey> keys = switch (purge.type()) {
+            case HOST -> index.findByHost(purge.host());
+            case PREFIX -> index.findByPrefix(purge.host(), purge.value());
+            case REGEX -> index.findByRegex(purge.host(), Pattern.compile(purge.value()));
+            case TAG -> index.findByTag(purge.value());
+        };
+        if (compressing.get() > 0) {
+            clearedAt = sequence.incrementAndGet();
+        }
+        int count = 0;
+        for (ContentKey key : keys) {
+            if (cache.contains(key)) {
+                count++;
+            }
+            remove(key);
+        }
+        LOG.info("purged {} contents by {}", count, purge);
+        return count;
+    }
+
+    private Set<String> tagsOf(HttpHeaders headers) {
+        String header = tagHeader;
+        return header.isEmpty() ? Set.of() : CacheIndex.parseTags(headers.getAll(header));
     }
 
     public final long computeDefaultExpireDate() {
@@ -198,46 +426,125 @@ public class ContentsCache {
 
     public int clear() {
         LOG.info("clearing cache");
+        clearedAt = sequence.incrementAndGet();
+        variations.clear();
+        index.clear();
         return this.cache.clear();
     }
 
     public List<Map<String, Object>> inspectCache() {
         List<Map<String, Object>> res = new ArrayList<>();
-        this.cache.inspectCache((key, payload) -> {
-            Map<String, Object> entry = new HashMap<>();
-            entry.put("method", key.method);
-            entry.put("host", key.host);
-            entry.put("scheme", key.scheme);
-            entry.put("uri", key.uri);
-            entry.put("cacheKey", key.composeKey());
-            entry.put("heapSize", payload.heapSize);
-            entry.put("directSize", payload.directSize);
-            entry.put("totalSize", key.getMemUsage() + payload.getMemUsage());
-            entry.put("creationTs", payload.creationTs);
-            entry.put("expiresTs", payload.expiresTs);
-            entry.put("hits", payload.hits);
-            res.add(entry);
-        });
+        this.cache.inspectCache((key, payload) -> res.add(describe(key, payload)));
         return res;
     }
 
-    public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
-        CacheRuntimeConfiguration newCacheConfiguration = new CacheRuntimeConfiguration(
-                newConfiguration.getCacheMaxSize(),
-                newConfiguration.getCacheMaxFileSize(),
-                newConfiguration.isCacheDisabledForSecureRequestsWithoutPublic(),
-                newConfiguration.getAlwaysCachedExtensions());
+    /**
+     * Walk a page of the contents in memory, sorted by URI.
+     *
+     * @param host   the host of the contents, port excluded, or null for any host
+     * @param offset the number of contents to skip
+     * @param limit  the maximum number of contents
+     * @param sink   called for each content
+     */
+    public void inspectCache(String host, int offset, int limit, Consumer<Map<String, Object>> sink) {
+        if (limit <= 0) {
+            return;
+        }
+        int[] skipped = {0};
+        int[] taken = {0};
+        index.walk(host, key -> {
+            CachedContent payload = cache.peek(key);
+            if (payload == null) {
+                return true;
+            }
+            if (skipped[0] < offset) {
+                skipped[0]++;
+                return true;
+            }
+            sink.accept(describe(key, payload));
+            return ++taken[0] < limit;
+        });
+    }
+
+    private static Map<String, Object> describe(ContentKey key, CachedContent payload) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("method", key.method);
+        entry.put("host", key.host);
+        entry.put("scheme", key.scheme);
+        entry.put("uri", key.uri);
+        entry.put("cacheKey", key.composeKey());
+        entry.put("heapSize", payload.heapSize);
+        entry.put("directSize", payload.directSize);
+        entry.put("totalSize", key.getMemUsage() + payload.getMemUsage());
+        entry.put("creationTs", payload.creationTs);
+        entry.put("expiresTs", payload.expiresTs);
+        entry.put("hits", payload.hits);
+        return entry;
+    }
+
+    public synchronized void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
+        CacheRuntimeConfiguration newCacheConfiguration = buildCacheConfiguration(newConfiguration);
+        // applies to the contents cached from now on
+        this.tagHeader = newConfiguration.getCacheTagHeader();
         if (newCacheConfiguration.equals(currentConfiguration)) {
             LOG.info("Cache configuration not changed during hot reload");
             return;
         }
 
-        LOG.info("Cache configuration changed during hot reload, flushing");
-        // need to clear
+        // the contents being compressed were received for the old cache
+        clearedAt = sequence.incrementAndGet();
         CacheImpl oldCache = this.cache;
-        this.cache = new CaffeineCacheImpl(stats, newCacheConfiguration.getCacheMaxSize(), LOG);
+        DiskStore oldDisk = this.disk;
+        boolean reopen = false;
+        if (!newCacheConfiguration.getDisk().equals(currentConfiguration.getDisk())) {
+            if (oldDisk == null && (diskTask == null || diskTask.isDone())) {
+                LOG.info("Cache configuration changed during hot reload, opening the disk tier");
+                this.disk = buildDiskStore(newCacheConfiguration);
+            } else {
+                LOG.info("Cache configuration changed during hot reload, reopening the disk tier in background");
+                // the contents in memory are moved to the old disk tier, and found in the new one if it is in the same directory:
+                // meanwhile they are kept in memory only
+                this.disk = null;
+                reopen = true;
+            }
+        } else if (oldDisk != null) {
+            LOG.info("Cache configuration changed during hot reload, moving the contents to the disk tier");
+        } else {
+            LOG.info("Cache configuration changed during hot reload, flushing");
+        }
+        this.cache = buildCache(newCacheConfiguration);
+        // slots of the old store go back to it as the old contents get released
+        this.slabs = buildSlabStore(newCacheConfiguration);
         currentConfiguration = newCacheConfiguration;
-        oldCache.clear();
+        // the contents are written to disk in background
+        oldCache.close();
+        if (reopen) {
+            CacheRuntimeConfiguration.DiskConfiguration newDisk = newCacheConfiguration.getDisk();
+            // the tasks of subsequent reloads run in order
+            diskTask = threadPool.submit(() -> {
+                if (oldDisk != null) {
+                    // waits for the pending writes
+                    oldDisk.close();
+                }
+                reopenDiskStore(newDisk);
+            });
+        }
+    }
+
+    private synchronized void reopenDiskStore(CacheRuntimeConfiguration.DiskConfiguration configuration) {
+        if (!configuration.equals(currentConfiguration.getDisk())) {
+            // changed again in the meantime, the following task opens it
+            return;
+        }
+        DiskStore newDisk = buildDiskStore(currentConfiguration);
+        if (newDisk == null) {
+            return;
+        }
+        this.disk = newDisk;
+        // the contents cached meanwhile are dropped, as on any reload
+        CacheImpl memoryOnly = this.cache;
+        this.cache = buildCache(currentConfiguration);
+        memoryOnly.close();
     }
 
     public static final class ContentSender {
@@ -260,27 +567,40 @@ public class ContentsCache {
 
     }
 
-    public ContentSender getCacheSender(ProxyRequest request) {
+    /**
+     * Look up the cached content for a request.
+     *
+     * @return the sender of the content, or empty if not cached; contents on disk are looked up in background
+     */
+    public Mono<ContentSender> getCacheSender(ProxyRequest request) {
         if (!isCacheable(request, false)) {
-            return null;
+            return Mono.empty();
         }
 
-        ContentKey key = new ContentKey(request);
-        CachedContent cached = cache.get(key);
-
-        return cached != null ? new ContentSender(key, cached) : null;
+        ContentKey key = keyOf(request);
+        return cache.getAsync(key).map(cached -> new ContentSender(key, cached));
     }
 
     @Data
     public static class CachedContent {
 
-        HttpClientResponse response;
+        HttpResponseStatus status;
+        HttpHeaders headers;
         final List<ByteBuf> chunks;
+        // the whole body in a slab slot, when stored off-heap
+        ByteBuf body;
+        // the whole body in a segment file, when read from the disk tier
+        DiskBody diskBody;
+        // the body compressed with gzip once for all, for the clients accepting it
+        ByteBuf gzipBody;
         final long creationTs;
         long lastModified;
         long expiresTs;
         long heapSize;
         long directSize;
+        // how long the content can be served after expiration, in milliseconds
+        long staleWhileRevalidate;
+        long staleIfError;
         int hits;
 
         public CachedContent(final long creationTs) {
@@ -298,7 +618,57 @@ public class ContentsCache {
             return ifModifiedSince == -1 || getLastModified() <= 0 || ifModifiedSince < getLastModified();
         }
 
-        private synchronized void addChunk(ByteBuf chunk, ByteBufAllocator allocator) {
+        /**
+         * Whether the If-Range condition of a request, if any, holds and its ranges can be served (RFC 9110 §13.1.5).
+         * <p>
+         * Only a strong entity-tag or the exact Last-Modified date match.
+         */
+        public boolean matchesIfRange(ProxyRequest request) {
+            final String ifRange = request.getRequestHeaders().get(HttpHeaderNames.IF_RANGE);
+            if (ifRange == null) {
+                return true;
+            }
+            final String condition = ifRange.trim();
+            if (condition.startsWith("W/")) {
+                return false;
+            }
+            if (condition.startsWith("\"")) {
+                final String etag = headers.get(HttpHeaderNames.ETAG);
+                return etag != null && !etag.startsWith("W/") && etag.trim().equals(condition);
+            }
+            final Date date = DateFormatter.parseHttpDate(condition);
+            return date != null && lastModified > 0 && date.getTime() == lastModified;
+        }
+
+        /**
+         * Reserve a slot for a body of known size, to be written there directly.
+         */
+        private synchronized void allocateBody(int size, SlabStore slabs) {
+            body = slabs.allocate(size);
+            if (body != null) {
+                directSize = body.capacity();
+            }
+        }
+
+        synchronized void addChunk(ByteBuf chunk, ByteBufAllocator allocator) {
+            if (body != null) {
+                if (body.writableBytes() >= chunk.readableBytes()) {
+                    body.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+                    return;
+                }
+                // the announced length was wrong, go on with the chunks
+                ByteBuf received = allocator.directBuffer(body.readableBytes());
+                received.writeBytes(body);
+                body.release();
+                body = null;
+                directSize = 0;
+                chunks.add(received);
+                if (received.isDirect()) {
+                    directSize += received.capacity();
+                } else {
+                    heapSize += received.capacity();
+                }
+            }
             ByteBuf originalChunk = chunk.retainedDuplicate();
             ByteBuf directBuffer = allocator.directBuffer(originalChunk.readableBytes());
             directBuffer.writeBytes(originalChunk);
@@ -311,7 +681,170 @@ public class ContentsCache {
             originalChunk.release();
         }
 
+        /**
+         * Move the received chunks contiguously in a slot of the store.
+         *
+         * @return false if the store is full
+         */
+        boolean compact(SlabStore slabs) {
+            return compact(slabs, sizeClass -> false);
+        }
+
+        /**
+         * Move the received chunks contiguously in a slot of the store.
+         *
+         * @param evict called to free some memory of the store when it is full, see {@link SlabStore#allocate(int, SlabStore.Evictor)}
+         * @return false if the store is full
+         */
+        synchronized boolean compact(SlabStore slabs, SlabStore.Evictor evict) {
+            if (body != null) {
+                if (!body.isReadable()) {
+                    // e.g. the response to a HEAD request
+                    body.release();
+                    body = null;
+                    directSize = 0;
+                }
+                return true;
+            }
+            int size = 0;
+            for (ByteBuf chunk : chunks) {
+                size += chunk.readableBytes();
+            }
+            if (size == 0) {
+                return true;
+            }
+            ByteBuf slot = slabs.allocate(size, evict);
+            if (slot == null) {
+                return false;
+            }
+            for (ByteBuf chunk : chunks) {
+                slot.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+                chunk.release();
+            }
+            chunks.clear();
+            body = slot;
+            directSize = slot.capacity();
+            heapSize = 0;
+            return true;
+        }
+
+        /**
+         * Move the received chunks contiguously in a buffer on the heap, when there is no room in the slabs.
+         */
+        synchronized void compactOnHeap() {
+            if (body != null || chunks.isEmpty()) {
+                return;
+            }
+            int size = 0;
+            for (ByteBuf chunk : chunks) {
+                size += chunk.readableBytes();
+            }
+            ByteBuf copy = Unpooled.buffer(size, size);
+            for (ByteBuf chunk : chunks) {
+                copy.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+                chunk.release();
+            }
+            chunks.clear();
+            chunks.add(copy);
+            directSize = 0;
+            heapSize = copy.capacity();
+        }
+
+        /**
+         * Whether the body is kept in a slot of a store.
+         *
+         * @param slabs     the store
+         * @param sizeClass the size class of the slot, or null for any
+         */
+        synchronized boolean hasSlotIn(SlabStore slabs, SlabStore.SizeClass sizeClass) {
+            return body != null && slabs.owns(body, sizeClass)
+                    || gzipBody != null && slabs.owns(gzipBody, sizeClass);
+        }
+
+        /**
+         * Store the body also compressed with gzip, if it is text and compression makes it smaller.
+         *
+         * @param threshold the minimum size of the body
+         * @param slabs     the store for the compressed body, or null to keep it on the heap
+         */
+        synchronized void precompress(int threshold, SlabStore slabs) {
+            if (!isPrecompressible(threshold)) {
+                return;
+            }
+            long size = getBodySize();
+            ByteBuf compressed = Unpooled.buffer((int) size);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new ByteBufOutputStream(compressed))) {
+                for (ByteBuf chunk : body != null ? List.of(body) : chunks) {
+                    chunk.getBytes(chunk.readerIndex(), gzip, chunk.readableBytes());
+                }
+            } catch (IOException err) {
+                LOG.error("Cannot compress the body of {}", this, err);
+                compressed.release();
+                return;
+            }
+            if (compressed.readableBytes() >= size) {
+                compressed.release();
+                return;
+            }
+            if (slabs != null) {
+                ByteBuf slot = slabs.allocate(compressed.readableBytes());
+                if (slot != null) {
+                    slot.writeBytes(compressed);
+                    gzipBody = slot;
+                    directSize += slot.capacity();
+                }
+                compressed.release();
+                return;
+            }
+            gzipBody = compressed.capacity(compressed.readableBytes());
+            heapSize += gzipBody.capacity();
+        }
+
+        /**
+         * @param threshold the minimum size of the body
+         * @return whether the body is worth to be compressed, and it is not already
+         */
+        synchronized boolean isPrecompressible(int threshold) {
+            long size = getBodySize();
+            return diskBody == null && gzipBody == null && size > 0 && size >= threshold && size <= Integer.MAX_VALUE && isCompressible(headers);
+        }
+
+        public boolean isPrecompressed() {
+            return gzipBody != null;
+        }
+
+        public int getGzipBodySize() {
+            return gzipBody.readableBytes();
+        }
+
+        public List<ByteBuf> getGzipChunks() {
+            // zero-copy view on the compressed body
+            return List.of(gzipBody.retainedSlice());
+        }
+
+        public synchronized long getBodySize() {
+            if (diskBody != null) {
+                return diskBody.length();
+            }
+            if (body != null) {
+                return body.readableBytes();
+            }
+            long size = 0;
+            for (ByteBuf chunk : chunks) {
+                size += chunk.readableBytes();
+            }
+            return size;
+        }
+
         synchronized void clear() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            if (gzipBody != null) {
+                gzipBody.release();
+                gzipBody = null;
+            }
             chunks.forEach(ByteBuf::release);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("ContentsCache refCnt after release");
@@ -320,12 +853,73 @@ public class ContentsCache {
             chunks.clear();
         }
 
+        public boolean isExpired(long now) {
+            return expiresTs < now;
+        }
+
+        /**
+         * Whether the content, even if expired, can be served while being revalidated in background.
+         */
+        public boolean isStaleWhileRevalidate(long now) {
+            return now <= expiresTs + staleWhileRevalidate;
+        }
+
+        /**
+         * Whether the content, even if expired, can be served if the backend fails.
+         */
+        public boolean isStaleIfError(long now) {
+            return now <= expiresTs + staleIfError;
+        }
+
+        /**
+         * The time after which the content cannot be served anymore, not even stale.
+         */
+        public long getRetentionTs() {
+            return expiresTs + Math.max(staleWhileRevalidate, staleIfError);
+        }
+
+        public boolean isOnDisk() {
+            return diskBody != null;
+        }
+
         public List<ByteBuf> getChunks() {
+            final ByteBuf body = this.body;
+            if (body != null) {
+                // zero-copy view on the slot
+                return List.of(body.retainedSlice());
+            }
             return chunks.stream()
                     .map(ByteBuf::retainedDuplicate)
                     .collect(Collectors.toList());
         }
 
+        /**
+         * Get a range of the body, without copying it.
+         *
+         * @param offset the position of the first byte
+         * @param length the number of bytes
+         * @return slices of the chunks, to be released by the caller
+         */
+        public List<ByteBuf> getChunks(long offset, long length) {
+            final ByteBuf body = this.body;
+            final List<ByteBuf> slices = new ArrayList<>();
+            for (ByteBuf chunk : body != null ? List.of(body) : chunks) {
+                if (length <= 0) {
+                    break;
+                }
+                final int readable = chunk.readableBytes();
+                if (offset >= readable) {
+                    offset -= readable;
+                    continue;
+                }
+                final int count = (int) Math.min(readable - offset, length);
+                slices.add(chunk.retainedSlice(chunk.readerIndex() + (int) offset, count));
+                length -= count;
+                offset = 0;
+            }
+            return slices;
+        }
+
         public long getMemUsage() {
             // Just an estimate
             return chunks.size() * 8L
@@ -342,6 +936,100 @@ public class ContentsCache {
 
     }
 
+    /**
+     * A body stored in a file.
+     *
+     * @param file     the file
+     * @param position the position of the body in the file
+     * @param length   the length of the body
+     */
+    public record DiskBody(Path file, long position, long length) {
+    }
+
+    /**
+     * Get the value of a Cache-Control directive with a delta-seconds argument, e.g. {@code max-age=60}.
+     *
+     * @param cacheControl the value of the header
+     * @param directive    the name of the directive
+     * @param defaultValue the value to return if missing or not valid
+     * @return the number of seconds
+     */
+    static long parseDirectiveSeconds(String cacheControl, String directive, long defaultValue) {
+        for (String token : cacheControl.split(",")) {
+            String trimmed = token.trim();
+            if (trimmed.regionMatches(true, 0, directive, 0, directive.length())
+                    && trimmed.length() > directive.length()
+                    && trimmed.charAt(directive.length()) == '=') {
+                try {
+                    long value = Long.parseLong(trimmed.substring(directive.length() + 1).trim());
+                    return value >= 0 ? value : defaultValue;
+                } catch (NumberFormatException ex) {
+                    return defaultValue;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Whether a body is worth compressing, that is text not already encoded.
+     */
+    static boolean isCompressible(HttpHeaders headers) {
+        String contentEncoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+        if (contentEncoding != null && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(contentEncoding.trim())) {
+            return false;
+        }
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE, "").toLowerCase(Locale.ROOT);
+        return contentType.startsWith("text/")
+                || COMPRESSIBLE_TYPES.stream().anyMatch(contentType::contains);
+    }
+
+    /**
+     * Get the names of the request headers a response varies on, lowercase and sorted.
+     */
+    static List<String> parseVary(HttpHeaders headers) {
+        List<String> names = new ArrayList<>();
+        for (String value : headers.getAll(HttpHeaderNames.VARY)) {
+            for (String token : value.split(",")) {
+                String name = token.trim().toLowerCase(Locale.ROOT);
+                if (!name.isEmpty() && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Get the variant of a content selected by the headers of a request.
+     * <p>
+     * {@code Accept-Encoding} is reduced to the known codings it accepts,
+     * so that the many equivalent values sent by browsers select the same variant.
+     *
+     * @param vary           the names of the headers the content varies on
+     * @param requestHeaders the headers of the request
+     */
+    static String variantOf(List<String> vary, HttpHeaders requestHeaders) {
+        StringBuilder variant = new StringBuilder();
+        for (String name : vary) {
+            String value;
+            if (HttpHeaderNames.ACCEPT_ENCODING.contentEqualsIgnoreCase(name)) {
+                String acceptEncoding = requestHeaders.get(HttpHeaderNames.ACCEPT_ENCODING);
+                value = KNOWN_CODINGS.stream()
+                        .filter(coding -> HttpUtils.acceptsEncoding(acceptEncoding, coding))
+                        .collect(Collectors.joining(","));
+            } else {
+                value = String.join(",", requestHeaders.getAll(name)).trim();
+            }
+            if (!variant.isEmpty()) {
+                variant.append("; ");
+            }
+            variant.append(name).append('=').append(value);
+        }
+        return variant.toString();
+    }
+
     private static long sizeof(Object o) {
         if (o == null) {
             return 0;
@@ -368,12 +1056,19 @@ public class ContentsCache {
         final String host;
         final String uri;
         final String scheme;
+        // the values of the request headers named by the Vary header of the content, null if it does not vary
+        final String variant;
 
         ContentKey(String method, String scheme, String host, String uri) {
+            this(method, scheme, host, uri, null);
+        }
+
+        ContentKey(String method, String scheme, String host, String uri, String variant) {
             this.method = method;
             this.host = host;
             this.uri = uri;
             this.scheme = scheme;
+            this.variant = variant;
         }
 
         public ContentKey(ProxyRequest request) {
@@ -381,6 +1076,15 @@ public class ContentsCache {
             this.host = request.getRequestHeaders().getAsString(HttpHeaderNames.HOST);
             this.uri = request.getUri();
             this.scheme = request.getScheme();
+            this.variant = null;
+        }
+
+        ContentKey withVariant(String variant) {
+            return new ContentKey(method, scheme, host, uri, variant);
+        }
+
+        ContentKey withoutVariant() {
+            return variant == null ? this : new ContentKey(method, scheme, host, uri, null);
         }
 
         public long getMemUsage() {
@@ -388,7 +1092,8 @@ public class ContentsCache {
             return  sizeof(scheme)
                     + sizeof(method)
                     + sizeof(host)
-                    + sizeof(uri);
+                    + sizeof(uri)
+                    + sizeof(variant);
         }
 
         public String getMethod() {
@@ -407,13 +1112,17 @@ public class ContentsCache {
             return scheme;
         }
 
+        public String getVariant() {
+            return variant;
+        }
+
         public String composeKey() {
-            return scheme + " | " + method + " | " + host + " | " + uri;
+            return scheme + " | " + method + " | " + host + " | " + uri + (variant != null ? " | " + variant : "");
         }
 
         @Override
         public String toString() {
-            return "ContentKey{" + "scheme=" + scheme + ", method=" + method + ", host=" + host + ", uri=" + uri + '}';
+            return "ContentKey{" + "scheme=" + scheme + ", method=" + method + ", host=" + host + ", uri=" + uri + (variant != null ? ", variant=" + variant : "") + '}';
         }
 
         @Override
@@ -423,6 +1132,7 @@ public class ContentsCache {
             hash = 83 * hash + Objects.hashCode(this.method);
             hash = 83 * hash + Objects.hashCode(this.host);
             hash = 83 * hash + Objects.hashCode(this.uri);
+            hash = 83 * hash + Objects.hashCode(this.variant);
             return hash;
         }
 
@@ -450,6 +1160,9 @@ public class ContentsCache {
             if (!Objects.equals(this.scheme, other.scheme)) {
                 return false;
             }
+            if (!Objects.equals(this.variant, other.variant)) {
+                return false;
+            }
 
             return true;
         }
@@ -460,6 +1173,16 @@ public class ContentsCache {
         return this.cache;
     }
 
+    @VisibleForTesting
+    DiskStore getDiskStore() {
+        return this.disk;
+    }
+
+    @VisibleForTesting
+    ExecutorService getCompressor() {
+        return this.compressor;
+    }
+
     public int getCacheSize() {
         return (int) cache.getSize();
     }
@@ -478,22 +1201,104 @@ public class ContentsCache {
         }
         CachedContent content = receiver.content;
         // Now we have the actual content size
-        if (!isContentLengthCacheable(content.heapSize + content.directSize)) {
+        if (!isContentLengthCacheable(content.getBodySize())) {
             cache.remove(receiver.key); // just for make sure
+            content.clear();
             return;
         }
-        cache.put(receiver.key, content);
+        // the weight of the contents is the size of their slots, not of the slabs they keep:
+        // when a size class needs a slab and there is no room, make some evicting the least recently used contents
+        final SlabStore slabs = receiver.slabs;
+        if (slabs != null && !content.compact(slabs, sizeClass -> evictFromSlabs(slabs, sizeClass))) {
+            // rather than evicting more, keep it out of the slabs
+            LOG.trace("{} cached on the heap, slabs are full", receiver.key);
+            content.compactOnHeap();
+        }
+        final int threshold = currentConfiguration.getPrecompressionThreshold();
+        if (threshold >= 0 && content.isPrecompressible(threshold)) {
+            // the content is cached once compressed, meanwhile the requests are served by the backend
+            final ContentKey key = receiver.key;
+            compressing.incrementAndGet();
+            final long version = sequence.incrementAndGet();
+            try {
+                compressor.execute(() -> {
+                    try {
+                        content.precompress(threshold, slabs);
+                        if (isOutdated(key, version)) {
+                            LOG.trace("{} not cached, removed while being compressed", key);
+                            content.clear();
+                            return;
+                        }
+                        store(key, content);
+                    } finally {
+                        compressionDone();
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException busyOrClosing) {
+                compressionDone();
+                LOG.trace("{} not compressed, too many contents queued or closing", key);
+            }
+        }
+        store(receiver.key, content);
+    }
+
+    private boolean isOutdated(ContentKey key, long version) {
+        final Long removal = removals.get(key);
+        return version < clearedAt || (removal != null && removal > version);
+    }
+
+    private void compressionDone() {
+        final long last = sequence.get();
+        if (compressing.decrementAndGet() == 0) {
+            // the following compressions are newer than these removals
+            removals.values().removeIf(removal -> removal <= last);
+        }
+    }
+
+    /**
+     * Evict one of the least recently used contents, to make room for a slot.
+     *
+     * @param slabs     the store of the slot
+     * @param sizeClass the size class of the slot, null for a dedicated slab
+     * @return false if there is no content to evict
+     */
+    private boolean evictFromSlabs(SlabStore slabs, SlabStore.SizeClass sizeClass) {
+        if (slabs != this.slabs) {
+            // the contents of a store replaced by a reload are not in the current cache anymore
+            return false;
+        }
+        final CacheImpl cache = this.cache;
+        // a slot of the same size class is reused at once, the others free memory only when their slab gets empty
+        return sizeClass != null && cache.evictColdest(content -> content.hasSlotIn(slabs, sizeClass), EVICTION_CANDIDATES)
+                || cache.evictColdest(content -> content.hasSlotIn(slabs, null), EVICTION_CANDIDATES);
+    }
+
+    private void store(ContentKey key, CachedContent content) {
+        cache.put(key, content);
+        index.add(key, tagsOf(content.headers));
     }
 
     public class ContentReceiver {
 
-        private final ContentKey key;
+        private final HttpHeaders requestHeaders;
         private final CachedContent content;
+        private final SlabStore slabs;
+        private ContentKey key;
         private boolean notReallyCacheable = false;
 
-        public ContentReceiver(ContentKey key) {
+        public ContentReceiver(ContentKey key, HttpHeaders requestHeaders) {
             this.key = key;
+            this.requestHeaders = requestHeaders;
             this.content = new CachedContent();
+            this.slabs = ContentsCache.this.slabs;
+        }
+
+        /**
+         * @return the key of the content, with the variant selected by the request once the response is received
+         */
+        public ContentKey getKey() {
+            return key;
         }
 
         public void abort() {
@@ -513,6 +1318,10 @@ public class ContentsCache {
                 notReallyCacheable = true;
             }
             content.expiresTs = expiresTs;
+            // https://tools.ietf.org/html/rfc5861
+            String cacheControl = response.responseHeaders().get(HttpHeaderNames.CACHE_CONTROL, "");
+            content.staleWhileRevalidate = parseDirectiveSeconds(cacheControl, "stale-while-revalidate", currentConfiguration.getStaleWhileRevalidate()) * 1000;
+            content.staleIfError = parseDirectiveSeconds(cacheControl, "stale-if-error", currentConfiguration.getStaleIfError()) * 1000;
             long lastModified = response.responseHeaders().getTimeMillis(HttpHeaderNames.LAST_MODIFIED, -1);
             content.lastModified = lastModified;
             if (notReallyCacheable) {
@@ -520,7 +1329,23 @@ public class ContentsCache {
                 abort();
                 return false;
             }
-            content.setResponse(response);
+            ContentKey primaryKey = key.withoutVariant();
+            List<String> vary = parseVary(response.responseHeaders());
+            if (vary.isEmpty()) {
+                variations.remove(primaryKey);
+                key = primaryKey;
+            } else {
+                variations.put(primaryKey, vary);
+                key = primaryKey.withVariant(variantOf(vary, requestHeaders));
+            }
+            content.setStatus(response.status());
+            content.setHeaders(response.responseHeaders().copy());
+            if (slabs != null) {
+                int contentLength = response.responseHeaders().getInt(HttpHeaderNames.CONTENT_LENGTH, -1);
+                if (contentLength > 0 && isContentLengthCacheable(contentLength)) {
+                    content.allocateBody(contentLength, slabs);
+                }
+            }
 
             return true;
         }
@@ -540,6 +1365,14 @@ public class ContentsCache {
         @Override
         public void run() {
             cache.evict();
+            // forget the keys of the contents evicted or expired
+            index.retainIf(cache::contains);
+            if (!variations.isEmpty()) {
+                // forget the variations of the contents not cached anymore
+                Set<ContentKey> cached = new HashSet<>();
+                cache.forEachKey(key -> cached.add(key.withoutVariant()));
+                variations.keySet().retainAll(cached);
+            }
         }
     }
 }
@@ -0,0 +1,674 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.DiskBody;
+import org.carapaceproxy.utils.PrometheusUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier of the cache, on local disk.
+ * <p>
+ * Contents are appended to segment files, each record holding the key, the response metadata and the body;
+ * removals are appended as tombstones, so that they survive a restart.
+ * Only the position of the records is kept in memory, and it is rebuilt by scanning the segments at startup.
+ * When the segments exceed the maximum size, the oldest one is deleted with all its contents.
+ * <p>
+ * Writes happen on a dedicated thread, holding a reference to the bodies until they are on disk;
+ * bodies are served back from the files, without copying them in memory.
+ */
+final class DiskStore implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskStore.class);
+
+    private static final int MAGIC = 0xCA9AC0DE;
+    // magic, metadata length, body length (-1 for tombstones)
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private static final Gauge USAGE_GAUGE = PrometheusUtils.createGauge(
+            "cache", "disk_usage_bytes", "size of the segment files of the disk tier"
+    ).register();
+    private static final Gauge ENTRIES_GAUGE = PrometheusUtils.createGauge(
+            "cache", "disk_entries", "contents stored in the disk tier"
+    ).register();
+    private static final Counter DROPPED_WRITES_COUNTER = PrometheusUtils.createCounter(
+            "cache", "disk_dropped_writes_total", "contents not written to the disk tier as too many writes were pending"
+    ).register();
+
+    private final Path directory;
+    private final long maxSize;
+    private final long segmentSize;
+    private final ConcurrentMap<ContentKey, Entry> index = new ConcurrentHashMap<>();
+    // notified of the contents found at startup, with their response headers
+    private final BiConsumer<ContentKey, HttpHeaders> loadListener;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "cache-disk-writer"));
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // orders writes and removals: a write completed after a later removal of its key must not be indexed
+    private final AtomicLong sequence = new AtomicLong();
+    // the last removal of the keys with writes possibly pending, until the writer gets past it
+    private final ConcurrentMap<ContentKey, Long> removals = new ConcurrentHashMap<>();
+    private volatile long clearedAt = -1;
+    // guarded by this
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long size;
+
+    /**
+     * Open the store, loading the contents already in the directory.
+     *
+     * @param directory   the directory of the segment files
+     * @param maxSize     the maximum size of the segment files
+     * @param segmentSize the size after which a new segment is started
+     * @throws IOException if the directory cannot be read
+     */
+    DiskStore(final Path directory, final long maxSize, final long segmentSize) throws IOException {
+        this(directory, maxSize, segmentSize, null);
+    }
+
+    /**
+     * Open the store, loading the contents already in the directory.
+     *
+     * @param directory    the directory of the segment files
+     * @param maxSize      the maximum size of the segment files
+     * @param segmentSize  the size after which a new segment is started
+     * @param loadListener notified of every content loaded, or null
+     * @throws IOException if the directory cannot be read
+     */
+    DiskStore(final Path directory, final long maxSize, final long segmentSize, final BiConsumer<ContentKey, HttpHeaders> loadListener) throws IOException {
+        this.directory = directory;
+        this.loadListener = loadListener;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        final long start = System.currentTimeMillis();
+        synchronized (this) {
+            load();
+            if (segments.isEmpty()) {
+                roll();
+            }
+            trim();
+        }
+        LOG.info("loaded {} contents from {} segments in {}, in {} ms", index.size(), segments.size(), directory, System.currentTimeMillis() - start);
+        updateGauges();
+    }
+
+    /**
+     * Get a content from the disk.
+     *
+     * @return the content, with its body on disk, or null if not found or expired
+     */
+    CachedContent get(final ContentKey key) {
+        final Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.retentionTs() < System.currentTimeMillis()) {
+            index.remove(key, entry);
+            return null;
+        }
+        try {
+            final Metadata metadata = Metadata.decode(read(entry.segment().channel(), entry.metadataPosition(), entry.metadataLength()));
+            final CachedContent content = new CachedContent(metadata.creationTs());
+            content.lastModified = metadata.lastModified();
+            content.expiresTs = metadata.expiresTs();
+            content.staleWhileRevalidate = metadata.staleWhileRevalidate();
+            content.staleIfError = metadata.staleIfError();
+            content.status = metadata.status();
+            content.headers = metadata.headers();
+            content.diskBody = new DiskBody(entry.segment().path(), entry.metadataPosition() + entry.metadataLength(), entry.bodyLength());
+            return content;
+        } catch (IOException err) {
+            // e.g. the segment has just been deleted
+            LOG.debug("cannot read {} from disk", key, err);
+            index.remove(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * Write a content in background.
+     *
+     * @return false if the content is not going to be written
+     */
+    boolean write(final ContentKey key, final CachedContent content) {
+        return write(key, content, false);
+    }
+
+    /**
+     * Write a content in background.
+     *
+     * @param copy whether to write a copy of the body, not to keep the memory of the content until the write completes
+     * @return false if the content is not going to be written
+     */
+    boolean write(final ContentKey key, final CachedContent content, final boolean copy) {
+        if (content.isOnDisk() || content.getStatus() == null || content.getRetentionTs() < System.currentTimeMillis()) {
+            return false;
+        }
+        final Metadata metadata = Metadata.of(key, content);
+        final long length = content.getBodySize();
+        final long version = sequence.incrementAndGet();
+        if (pendingBytes.addAndGet(length) > segmentSize) {
+            pendingBytes.addAndGet(-length);
+            DROPPED_WRITES_COUNTER.inc();
+            return false;
+        }
+        final List<ByteBuf> body = copy
+                ? content.getChunks().stream().map(chunk -> {
+                    final ByteBuf heapCopy = Unpooled.copiedBuffer(chunk);
+                    chunk.release();
+                    return heapCopy;
+                }).toList()
+                : content.getChunks();
+        try {
+            writer.execute(() -> {
+                try {
+                    if (!isRemoved(key, version)) {
+                        append(metadata, body, length, version);
+                    }
+                } catch (IOException err) {
+                    LOG.error("cannot write {} to disk", key, err);
+                } finally {
+                    body.forEach(ByteBuf::release);
+                    pendingBytes.addAndGet(-length);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException closed) {
+            body.forEach(ByteBuf::release);
+            pendingBytes.addAndGet(-length);
+            return false;
+        }
+    }
+
+    /**
+     * Write some contents in background, as the ones of a cache being closed.
+     * <p>
+     * Unlike {@link #write(ContentKey, CachedContent)}, none of them is dropped when too many writes are pending;
+     * {@link #flush()} waits for them.
+     */
+    void writeAll(final Map<ContentKey, CachedContent> contents) {
+        final long now = System.currentTimeMillis();
+        final List<Runnable> writes = new ArrayList<>();
+        final List<ByteBuf> bodies = new ArrayList<>();
+        contents.forEach((key, content) -> {
+            if (content.isOnDisk() || content.getStatus() == null || content.getRetentionTs() < now) {
+                return;
+            }
+            final Metadata metadata = Metadata.of(key, content);
+            final List<ByteBuf> body = content.getChunks();
+            final long length = body.stream().mapToLong(ByteBuf::readableBytes).sum();
+            final long version = sequence.incrementAndGet();
+            bodies.addAll(body);
+            writes.add(() -> {
+                try {
+                    if (!isRemoved(key, version)) {
+                        append(metadata, body, length, version);
+                    }
+                } catch (IOException err) {
+                    LOG.error("cannot write {} to disk", key, err);
+                }
+            });
+        });
+        if (writes.isEmpty()) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    writes.forEach(Runnable::run);
+                } finally {
+                    bodies.forEach(ByteBuf::release);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            LOG.error("cannot write {} contents to disk, the store is closed", writes.size());
+            bodies.forEach(ByteBuf::release);
+        }
+    }
+
+    /**
+     * Forget a content, that is being replaced by a newer one in memory.
+     */
+    void forget(final ContentKey key) {
+        final long version = cancelWrites(key);
+        index.remove(key);
+        try {
+            writer.execute(() -> removals.remove(key, version));
+        } catch (RejectedExecutionException closed) {
+            // closed
+        }
+    }
+
+    /**
+     * Remove a content, also after a restart.
+     * <p>
+     * The tombstone is written even if the content is not on disk yet, as it could be in a pending write.
+     */
+    void remove(final ContentKey key) {
+        final long version = cancelWrites(key);
+        index.remove(key);
+        final Metadata tombstone = new Metadata(key, 0, 0, 0, 0, 0, HttpResponseStatus.OK, new DefaultHttpHeaders());
+        try {
+            writer.execute(() -> {
+                try {
+                    append(tombstone, null, -1, version);
+                } catch (IOException err) {
+                    LOG.error("cannot remove {} from disk", key, err);
+                } finally {
+                    // the writes before the removal are done
+                    removals.remove(key, version);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            // the content is back at next startup
+        }
+    }
+
+    /**
+     * Make the pending writes of a key be dropped, or unindexed if already in progress.
+     *
+     * @return the version of the removal
+     */
+    private long cancelWrites(final ContentKey key) {
+        final long version = sequence.incrementAndGet();
+        removals.merge(key, version, Math::max);
+        return version;
+    }
+
+    private boolean isRemoved(final ContentKey key, final long version) {
+        final Long removal = removals.get(key);
+        return version < clearedAt || (removal != null && removal > version);
+    }
+
+    boolean contains(final ContentKey key) {
+        return index.containsKey(key);
+    }
+
+    void forEachKey(final Consumer<ContentKey> action) {
+        index.keySet().forEach(action);
+    }
+
+    void evictExpired() {
+        final long now = System.currentTimeMillis();
+        index.entrySet().removeIf(entry -> entry.getValue().retentionTs() < now);
+        updateGauges();
+    }
+
+    /**
+     * Remove all the contents.
+     *
+     * @return the number of removed contents
+     */
+    int clear() {
+        final int count = index.size();
+        clearedAt = sequence.incrementAndGet();
+        index.clear();
+        try {
+            writer.execute(() -> {
+                try {
+                    deleteAll();
+                } catch (IOException err) {
+                    LOG.error("cannot clear {}", directory, err);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            // closed
+        }
+        return count;
+    }
+
+    int getSize() {
+        return index.size();
+    }
+
+    synchronized long getDiskUsage() {
+        return size;
+    }
+
+    /**
+     * Wait for the pending writes.
+     */
+    void flush() throws IOException {
+        try {
+            writer.submit(() -> {}).get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IOException(err);
+        } catch (ExecutionException | RejectedExecutionException err) {
+            throw new IOException(err);
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.error("pending writes to {} not completed", directory);
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (final Segment segment : segments) {
+                closeQuietly(segment);
+            }
+        }
+    }
+
+    private synchronized void append(final Metadata metadata, final List<ByteBuf> body, final long length, final long version) throws IOException {
+        final byte[] encoded = metadata.encode();
+        final Segment segment = segments.getLast();
+        final long position = segment.size;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putInt(encoded.length)
+                .putLong(length)
+                .flip();
+        long offset = writeFully(segment.channel(), header, position);
+        offset = writeFully(segment.channel(), ByteBuffer.wrap(encoded), offset);
+        if (body != null) {
+            for (final ByteBuf chunk : body) {
+                for (final ByteBuffer buffer : chunk.nioBuffers()) {
+                    offset = writeFully(segment.channel(), buffer, offset);
+                }
+            }
+        }
+        segment.size = offset;
+        size += offset - position;
+        if (length >= 0) {
+            final Entry entry = new Entry(segment, position + HEADER_SIZE, encoded.length, length, metadata.retentionTs());
+            index.put(metadata.key(), entry);
+            if (isRemoved(metadata.key(), version)) {
+                // removed while being written: a removal marks the key before clearing the index,
+                // so either it finds this entry or this finds its mark
+                index.remove(metadata.key(), entry);
+            }
+        }
+        if (segment.size >= segmentSize) {
+            roll();
+        }
+        trim();
+        updateGauges();
+    }
+
+    private void load() throws IOException {
+        final List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> {
+                        try {
+                            ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (NumberFormatException notASegment) {
+                            LOG.warn("ignoring file {} in {}", name, directory);
+                        }
+                    });
+        }
+        ids.sort(Long::compare);
+        final long now = System.currentTimeMillis();
+        for (final long id : ids) {
+            final Segment segment = open(id);
+            final long length = segment.channel().size();
+            long position = 0;
+            while (position + HEADER_SIZE <= length) {
+                final ByteBuffer header = read(segment.channel(), position, HEADER_SIZE);
+                final int magic = header.getInt();
+                final int metadataLength = header.getInt();
+                final long bodyLength = header.getLong();
+                final long end = position + HEADER_SIZE + metadataLength + Math.max(bodyLength, 0);
+                if (magic != MAGIC || metadataLength <= 0 || bodyLength < -1 || end > length) {
+                    break;
+                }
+                final Metadata metadata;
+                try {
+                    metadata = Metadata.decode(read(segment.channel(), position + HEADER_SIZE, metadataLength));
+                } catch (IOException corrupted) {
+                    break;
+                }
+                if (bodyLength < 0 || metadata.retentionTs() < now) {
+                    index.remove(metadata.key());
+                } else {
+                    index.put(metadata.key(), new Entry(segment, position + HEADER_SIZE, metadataLength, bodyLength, metadata.retentionTs()));
+                    if (loadListener != null) {
+                        // contents overwritten later are told too, the listener has to check them
+                        loadListener.accept(metadata.key(), metadata.headers());
+                    }
+                }
+                position = end;
+            }
+            if (position < length) {
+                // a write interrupted by a crash
+                LOG.warn("truncating segment {} at {}, was {} bytes", segment.path(), position, length);
+                segment.channel().truncate(position);
+            }
+            segment.size = position;
+            size += position;
+            segments.addLast(segment);
+        }
+    }
+
+    private void roll() throws IOException {
+        final long id = segments.isEmpty() ? 0 : segments.getLast().id() + 1;
+        segments.addLast(open(id));
+    }
+
+    private Segment open(final long id) throws IOException {
+        final Path path = directory.resolve(String.format("%020d", id) + SEGMENT_SUFFIX);
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel);
+    }
+
+    /**
+     * Delete the oldest segments, until the maximum size is honored.
+     */
+    private void trim() throws IOException {
+        while (size > maxSize && segments.size() > 1) {
+            final Segment oldest = segments.removeFirst();
+            index.values().removeIf(entry -> entry.segment() == oldest);
+            size -= oldest.size;
+            closeQuietly(oldest);
+            Files.deleteIfExists(oldest.path());
+            LOG.debug("deleted segment {}", oldest.path());
+        }
+    }
+
+    private synchronized void deleteAll() throws IOException {
+        for (final Segment segment : segments) {
+            closeQuietly(segment);
+            Files.deleteIfExists(segment.path());
+        }
+        final long id = segments.isEmpty() ? 0 : segments.getLast().id() + 1;
+        segments.clear();
+        size = 0;
+        segments.addLast(open(id));
+        updateGauges();
+    }
+
+    private void updateGauges() {
+        ENTRIES_GAUGE.set(index.size());
+        USAGE_GAUGE.set(getDiskUsage());
+    }
+
+    private static void closeQuietly(final Segment segment) {
+        try {
+            segment.channel().close();
+        } catch (IOException err) {
+            LOG.warn("cannot close segment {}", segment.path(), err);
+        }
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return buffer.flip();
+    }
+
+    private static long writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        return offset;
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        // guarded by the store
+        private long size;
+
+        private Segment(final long id, final Path path, final FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        long id() {
+            return id;
+        }
+
+        Path path() {
+            return path;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+    }
+
+    private record Entry(Segment segment, long metadataPosition, int metadataLength, long bodyLength, long retentionTs) {
+    }
+
+    private record Metadata(ContentKey key, long creationTs, long lastModified, long expiresTs, long staleWhileRevalidate, long staleIfError,
+                            HttpResponseStatus status, HttpHeaders headers) {
+
+        static Metadata of(final ContentKey key, final CachedContent content) {
+            return new Metadata(key, content.getCreationTs(), content.getLastModified(), content.getExpiresTs(),
+                    content.staleWhileRevalidate, content.staleIfError, content.getStatus(), content.getHeaders());
+        }
+
+        /**
+         * Until when the content can be served, stale if allowed, see {@link CachedContent#getRetentionTs()}.
+         */
+        long retentionTs() {
+            return expiresTs + Math.max(staleWhileRevalidate, staleIfError);
+        }
+
+        byte[] encode() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(key.method);
+                out.writeUTF(key.scheme);
+                out.writeBoolean(key.host != null);
+                if (key.host != null) {
+                    out.writeUTF(key.host);
+                }
+                out.writeUTF(key.uri);
+                out.writeLong(creationTs);
+                out.writeLong(lastModified);
+                out.writeLong(expiresTs);
+                out.writeInt(status.code());
+                out.writeUTF(status.reasonPhrase());
+                out.writeInt(headers.size());
+                for (final Map.Entry<String, String> header : headers) {
+                    out.writeUTF(header.getKey());
+                    out.writeUTF(header.getValue());
+                }
+                // last, so that records written without it can still be read
+                out.writeBoolean(key.variant != null);
+                if (key.variant != null) {
+                    out.writeUTF(key.variant);
+                }
+                out.writeLong(staleWhileRevalidate);
+                out.writeLong(staleIfError);
+            }
+            return bytes.toByteArray();
+        }
+
+        static Metadata decode(final ByteBuffer buffer) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()));
+            final String method = in.readUTF();
+            final String scheme = in.readUTF();
+            final String host = in.readBoolean() ? in.readUTF() : null;
+            final String uri = in.readUTF();
+            final long creationTs = in.readLong();
+            final long lastModified = in.readLong();
+            final long expiresTs = in.readLong();
+            final HttpResponseStatus status = HttpResponseStatus.valueOf(in.readInt(), in.readUTF());
+            final int count = in.readInt();
+            final HttpHeaders headers = new DefaultHttpHeaders();
+            for (int i = 0; i < count; i++) {
+                headers.add(in.readUTF(), in.readUTF());
+            }
+            final String variant = in.available() > 0 && in.readBoolean() ? in.readUTF() : null;
+            final long staleWhileRevalidate = in.available() > 0 ? in.readLong() : 0;
+            final long staleIfError = in.available() > 0 ? in.readLong() : 0;
+            return new Metadata(new ContentKey(method, scheme, host, uri, variant), creationTs, lastModified, expiresTs,
+                    staleWhileRevalidate, staleIfError, status, headers);
+        }
+    }
+}
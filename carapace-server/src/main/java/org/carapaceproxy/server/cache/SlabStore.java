@@ -0,0 +1,354 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.carapaceproxy.utils.PrometheusUtils;
+
+/**
+ * Off-heap storage of the bodies of the cached contents.
+ * <p>
+ * Direct memory is allocated in slabs of the same size, each one split into slots of a single size class;
+ * size classes grow geometrically, and every body is written contiguously in the smallest slot that fits it.
+ * Bodies bigger than a slab get a dedicated slab of their exact size.
+ * <p>
+ * Slots are reference counted {@link ByteBuf}s: the cache owns a reference and hands out zero-copy slices to the readers.
+ * A slot gets back to its slab only when all of them released it, and slabs left empty are freed at once,
+ * so that memory can move from a size class to another.
+ * The allocated memory never exceeds the capacity of the store: when a size class needs a new slab and there is no room,
+ * the caller can make some evicting other contents, as their size does not account for the whole slabs they keep;
+ * the contents with a slot of the same size class are the ones to evict first, as their slots can be reused at once.
+ */
+public final class SlabStore {
+
+    static final int MIN_SLOT_SIZE = 64;
+    /**
+     * How many contents can be evicted to make room for a single one, not to flush the cache for a small allocation.
+     */
+    static final int MAX_EVICTIONS_PER_ALLOCATION = 16;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int ALIGNMENT = 8;
+
+    private static final Gauge ALLOCATED_GAUGE = PrometheusUtils.createGauge(
+            "cache", "slabs_allocated_bytes", "direct memory allocated for the slabs of the cache"
+    ).register();
+    private static final Gauge USED_GAUGE = PrometheusUtils.createGauge(
+            "cache", "slabs_used_bytes", "size of the slab slots holding cached contents"
+    ).register();
+    private static final Counter ALLOCATION_FAILURES_COUNTER = PrometheusUtils.createCounter(
+            "cache", "slabs_allocation_failures_total", "contents kept out of the slabs as they were full"
+    ).register();
+
+    private final ByteBufAllocator allocator = UnpooledByteBufAllocator.DEFAULT;
+    private final long capacity;
+    private final int slabSize;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param capacity the maximum amount of memory to allocate, 0 for unlimited
+     * @param slabSize the size of a slab, that is also the one of the biggest slots
+     */
+    SlabStore(final long capacity, final int slabSize) {
+        if (slabSize < MIN_SLOT_SIZE) {
+            throw new IllegalArgumentException("slab size " + slabSize + " is smaller than the minimum slot size " + MIN_SLOT_SIZE);
+        }
+        this.capacity = capacity;
+        this.slabSize = slabSize;
+        this.sizeClasses = slotSizes(slabSize).stream().map(SizeClass::new).toArray(SizeClass[]::new);
+    }
+
+    private static List<Integer> slotSizes(final int slabSize) {
+        final List<Integer> slotSizes = new ArrayList<>();
+        for (int slotSize = MIN_SLOT_SIZE; slotSize < slabSize; slotSize = (int) Math.ceil(slotSize * GROWTH_FACTOR / ALIGNMENT) * ALIGNMENT) {
+            slotSizes.add(slotSize);
+        }
+        slotSizes.add(slabSize);
+        return slotSizes;
+    }
+
+    /**
+     * Get the memory needed to have a slab for every size class at the same time.
+     *
+     * @param slabSize the size of a slab
+     * @return the minimum capacity of a store, not to refuse the contents of some sizes while others keep all the slabs
+     */
+    public static long minCapacity(final int slabSize) {
+        return (long) slabSize * slotSizes(slabSize).size();
+    }
+
+    /**
+     * Allocate a slot for a body.
+     *
+     * @param size the size of the body
+     * @return an empty buffer able to hold the body, or null if the store is full
+     */
+    ByteBuf allocate(final int size) {
+        return allocate(size, sizeClass -> false);
+    }
+
+    /**
+     * Allocate a slot for a body, making room if the store is full.
+     *
+     * @param size  the size of the body
+     * @param evict called as long as there is no room, up to {@link #MAX_EVICTIONS_PER_ALLOCATION} times,
+     *              to free some memory of the store
+     * @return an empty buffer able to hold the body, or null if the store is full
+     */
+    ByteBuf allocate(final int size, final Evictor evict) {
+        final boolean large = size > slabSize;
+        final SizeClass sizeClass = large ? null : sizeClassOf(size);
+        // there is no point in evicting for a slab bigger than the store
+        final boolean fits = capacity <= 0 || (large ? size : slabSize) <= capacity;
+        ByteBuf slot = large ? allocateLarge(size) : sizeClass.allocate();
+        for (int evictions = 0; slot == null && fits && evictions < MAX_EVICTIONS_PER_ALLOCATION && evict.evict(sizeClass); evictions++) {
+            slot = large ? allocateLarge(size) : sizeClass.allocate();
+        }
+        if (slot == null) {
+            ALLOCATION_FAILURES_COUNTER.inc();
+        }
+        return slot;
+    }
+
+    /**
+     * Get the smallest size class whose slots are big enough.
+     */
+    SizeClass sizeClassOf(final int size) {
+        int low = 0;
+        int high = sizeClasses.length - 1;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sizeClasses[middle].slotSize < size) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return sizeClasses[low];
+    }
+
+    /**
+     * Whether a buffer is a slot of this store.
+     *
+     * @param buffer    the buffer
+     * @param sizeClass the size class of the slot, or null for any
+     */
+    boolean owns(final ByteBuf buffer, final SizeClass sizeClass) {
+        return buffer instanceof Slot slot
+                && slot.slab.getStore() == this
+                && (sizeClass == null || slot.slab.sizeClass == sizeClass);
+    }
+
+    int getSizeClassesCount() {
+        return sizeClasses.length;
+    }
+
+    long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    long getUsedBytes() {
+        return used.get();
+    }
+
+    private ByteBuf allocateLarge(final int size) {
+        final Slab slab = newSlab(null, size, 1);
+        if (slab == null) {
+            return null;
+        }
+        return slab.take();
+    }
+
+    private Slab newSlab(final SizeClass sizeClass, final int slotSize, final int slots) {
+        final long size = (long) slotSize * slots;
+        long current;
+        do {
+            current = allocated.get();
+            if (capacity > 0 && current + size > capacity) {
+                return null;
+            }
+        } while (!allocated.compareAndSet(current, current + size));
+        ALLOCATED_GAUGE.inc(size);
+        return new Slab(sizeClass, allocator.directBuffer((int) size, (int) size), slotSize, slots);
+    }
+
+    private void freeSlab(final Slab slab) {
+        final long size = slab.memory.capacity();
+        slab.memory.release();
+        allocated.addAndGet(-size);
+        ALLOCATED_GAUGE.dec(size);
+    }
+
+    /**
+     * Frees some memory of the store, when there is no room for a new slot.
+     */
+    @FunctionalInterface
+    interface Evictor {
+
+        /**
+         * @param sizeClass the size class of the slot to allocate, null for a dedicated slab
+         * @return false when there is nothing left to free
+         */
+        boolean evict(SizeClass sizeClass);
+    }
+
+    /**
+     * Slabs with slots of the same size.
+     */
+    final class SizeClass {
+
+        private final int slotSize;
+        private final int slotsPerSlab;
+        // slabs with at least a free slot
+        private final Set<Slab> available = new LinkedHashSet<>();
+
+        private SizeClass(final int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerSlab = slabSize / slotSize;
+        }
+
+        int getSlotSize() {
+            return slotSize;
+        }
+
+        private synchronized ByteBuf allocate() {
+            final Iterator<Slab> iterator = available.iterator();
+            final Slab slab;
+            if (iterator.hasNext()) {
+                slab = iterator.next();
+            } else {
+                slab = newSlab(this, slotSize, slotsPerSlab);
+                if (slab == null) {
+                    return null;
+                }
+                available.add(slab);
+            }
+            final ByteBuf slot = slab.take();
+            if (slab.isFull()) {
+                available.remove(slab);
+            }
+            return slot;
+        }
+
+        private synchronized void release(final Slab slab, final int index) {
+            final boolean wasFull = slab.isFull();
+            slab.give(index);
+            if (slab.isEmpty()) {
+                available.remove(slab);
+                freeSlab(slab);
+            } else if (wasFull) {
+                available.add(slab);
+            }
+        }
+    }
+
+    /**
+     * A direct buffer split into slots, with a stack of the free ones.
+     */
+    private final class Slab {
+
+        private final SizeClass sizeClass;
+        private final ByteBuf memory;
+        private final int slotSize;
+        private final int[] freeSlots;
+        private int freeCount;
+
+        private Slab(final SizeClass sizeClass, final ByteBuf memory, final int slotSize, final int slots) {
+            this.sizeClass = sizeClass;
+            this.memory = memory;
+            this.slotSize = slotSize;
+            this.freeSlots = new int[slots];
+            for (int i = 0; i < slots; i++) {
+                freeSlots[i] = slots - 1 - i;
+            }
+            this.freeCount = slots;
+        }
+
+        private SlabStore getStore() {
+            return SlabStore.this;
+        }
+
+        private boolean isFull() {
+            return freeCount == 0;
+        }
+
+        private boolean isEmpty() {
+            return freeCount == freeSlots.length;
+        }
+
+        private ByteBuf take() {
+            final int index = freeSlots[--freeCount];
+            used.addAndGet(slotSize);
+            USED_GAUGE.inc(slotSize);
+            return new Slot(this, index, memory.nioBuffer(index * slotSize, slotSize));
+        }
+
+        private void give(final int index) {
+            freeSlots[freeCount++] = index;
+            used.addAndGet(-slotSize);
+            USED_GAUGE.dec(slotSize);
+        }
+
+        private void release(final int index) {
+            if (sizeClass != null) {
+                sizeClass.release(this, index);
+            } else {
+                give(index);
+                freeSlab(this);
+            }
+        }
+    }
+
+    /**
+     * The memory of a slot, given back to the slab when no more referenced.
+     */
+    private static final class Slot extends UnpooledDirectByteBuf {
+
+        private final Slab slab;
+        private final int index;
+
+        private Slot(final Slab slab, final int index, final ByteBuffer memory) {
+            // a view on the memory of the slab, that is never freed by the slot itself
+            super(UnpooledByteBufAllocator.DEFAULT, memory, memory.remaining());
+            this.slab = slab;
+            this.index = index;
+            clear();
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            slab.release(index);
+        }
+    }
+}
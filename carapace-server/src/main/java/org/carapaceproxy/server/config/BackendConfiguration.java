@@ -32,6 +32,8 @@ import org.carapaceproxy.server.backends.BackendHealthStatus.Status;
  * @param ssl                  whether to use SSL when connecting to this backend
  * @param caCertificatePath    path to a CA certificate to trust when connecting to this backend (optional)
  * @param caCertificatePassword password for the CA certificate (optional)
+ * @param probeScheme          the scheme to use to probe the backend
+ * @param weight               the share of traffic of the backend, relative to the other ones of its director; 0 drains it
  */
 public record BackendConfiguration(
         String id,
@@ -41,9 +43,31 @@ public record BackendConfiguration(
         boolean ssl,
         String caCertificatePath,
         String caCertificatePassword,
-        String probeScheme
+        String probeScheme,
+        int weight
 ) {
 
+    /**
+     * The weight of a backend when not configured.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * Configuration of a single backend server, with the {@link #DEFAULT_WEIGHT default weight}.
+     *
+     * @param id                   an arbitrary ID of the backend
+     * @param hostPort             the host:port tuple for the backend
+     * @param probePath            a path to use to probe the backend for reachability
+     * @param safeCapacity         a capacity that is considered safe even when {@link Status#COLD cold}
+     * @param ssl                  whether to use SSL when connecting to this backend
+     * @param caCertificatePath    path to a CA certificate to trust when connecting to this backend (optional)
+     * @param caCertificatePassword password for the CA certificate (optional)
+     * @param probeScheme          the scheme to use to probe the backend
+     */
+    public BackendConfiguration(final String id, final EndpointKey hostPort, final String probePath, final int safeCapacity, final boolean ssl, final String caCertificatePath, final String caCertificatePassword, final String probeScheme) {
+        this(id, hostPort, probePath, safeCapacity, ssl, caCertificatePath, caCertificatePassword, probeScheme, DEFAULT_WEIGHT);
+    }
+
     /**
      * Configuration of a single backend server.
      *
@@ -31,6 +31,7 @@ public class DirectorConfiguration {
 
     private final String id;
     private final List<String> backends = new ArrayList<>();
+    private boolean allBackends;
 
     public static final String DEFAULT = "*";
 
@@ -43,10 +44,18 @@ public class DirectorConfiguration {
     public DirectorConfiguration addBackend(String id) {
         if (!backends.contains(id)) {
             backends.add(id);
+            allBackends |= ALL_BACKENDS.equals(id);
         }
         return this;
     }
 
+    /**
+     * @return whether the director includes all the backends, as {@link #ALL_BACKENDS} is among its ones
+     */
+    public boolean isAllBackends() {
+        return allBackends;
+    }
+
     public String getId() {
         return id;
     }
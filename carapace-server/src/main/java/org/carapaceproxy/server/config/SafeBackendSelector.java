@@ -33,17 +33,24 @@ public class SafeBackendSelector implements BackendSelector {
     }
 
     public List<String> sortByConnections(final SequencedCollection<String> backendIds) {
-        return backendIds.stream().sorted(Comparator.comparingLong(this::connections)).toList();
+        return backendIds.stream().sorted(Comparator.comparingDouble(this::connections)).toList();
     }
 
-    private long connections(final String backendId) {
+    private double connections(final String backendId) {
         final BackendHealthStatus backendStatus = mapper.getBackendHealthManager().getBackendStatus(backendId);
         return switch (backendStatus.getStatus()) {
-            case DOWN -> Long.MAX_VALUE; // backends that are down are put last, but not dropped
+            case DOWN, EJECTED -> Double.POSITIVE_INFINITY; // backends that are down or ejected are put last, but not dropped
             case COLD -> mapper.getBackendHealthManager().exceedsCapacity(backendId)
-                    ? Long.MAX_VALUE - 1 // cold backends that exceed safe capacity are put last, just before down ones
-                    : backendStatus.getConnections();
+                    ? Double.MAX_VALUE // cold backends that exceed safe capacity are put last, just before down ones
+                    : weighted(backendStatus);
             case STABLE -> backendStatus.getConnections();
         };
     }
+
+    // with slow start, a warming up backend counts as if it were handling more connections
+    private static double weighted(final BackendHealthStatus backendStatus) {
+        final int connections = backendStatus.getConnections();
+        final double weight = backendStatus.getWeight();
+        return weight >= 1 ? connections : (connections + 1) / weight - 1;
+    }
 }
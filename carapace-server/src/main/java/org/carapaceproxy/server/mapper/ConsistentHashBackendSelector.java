@@ -0,0 +1,166 @@
+package org.carapaceproxy.server.mapper;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The selector keeps the requests of a session, or of a user, on the same backend.
+ * <p>
+ * Each director places its backends on a hash ring, with many virtual nodes per backend;
+ * a request goes to the first backend found walking the ring clockwise from the hash of its session id
+ * (or of its user id, when there is no session).
+ * The following backends on the ring are the fallbacks, so that when a backend is down
+ * the mapper moves its sessions to the next node, while the other sessions stay where they are.
+ * In the same way, adding a backend only moves the sessions that land on its virtual nodes.
+ * <p>
+ * Rings are computed once per director: the mapper, and thus the selector, is rebuilt on each configuration change.
+ * Requests with neither id start from a random point of the ring.
+ */
+public class ConsistentHashBackendSelector implements BackendSelector {
+    private static final Logger LOG = LoggerFactory.getLogger(ConsistentHashBackendSelector.class);
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /**
+     * Virtual nodes for each backend: the more they are, the more even the spread of the sessions.
+     */
+    public static final int VIRTUAL_NODES = 160;
+
+    private final EndpointMapper mapper;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    private ConsistentHashBackendSelector(final EndpointMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Build a selector over the live backends and directors of a mapper.
+     *
+     * @param mapper the mapper the selector is applied to
+     * @return the selector
+     * @see BackendSelector.SelectorFactory
+     */
+    public static ConsistentHashBackendSelector build(final EndpointMapper mapper) {
+        return new ConsistentHashBackendSelector(mapper);
+    }
+
+    @Override
+    public List<String> selectBackends(final String userId, final String sessionId, final String director) {
+        final DirectorConfiguration directorConfig = mapper.getDirectors().get(director);
+        if (directorConfig == null) {
+            LOG.error("Director \"{}\" not configured, while handling request userId={} sessionId={}", director, userId, sessionId);
+            return List.of();
+        }
+        final Collection<String> ids = directorConfig.isAllBackends()
+                ? mapper.getBackends().sequencedKeySet()
+                : directorConfig.getBackends();
+        Ring ring = rings.get(director);
+        if (ring == null || ring.configured != ids.size()) {
+            // backends are only added while configuring the mapper
+            ring = new Ring(ids);
+            rings.put(director, ring);
+        }
+        final String key = sessionId != null ? sessionId : userId;
+        return ring.walk(key != null ? hash(key) : ThreadLocalRandom.current().nextLong());
+    }
+
+    private static long hash(final String key) {
+        return HASH.hashString(key, UTF_8).asLong();
+    }
+
+    /**
+     * The virtual nodes of the backends of a director, sorted by hash.
+     */
+    static final class Ring {
+
+        private final int configured;
+        private final List<String> ids;
+        private final long[] hashes;
+        private final int[] owners;
+
+        Ring(final Collection<String> ids) {
+            this.configured = ids.size();
+            this.ids = List.copyOf(new LinkedHashSet<>(ids));
+            final int size = this.ids.size() * VIRTUAL_NODES;
+            final long[] points = new long[size];
+            // sort the nodes by hash, keeping their owner along
+            final Integer[] order = new Integer[size];
+            for (int backend = 0; backend < this.ids.size(); backend++) {
+                for (int node = 0; node < VIRTUAL_NODES; node++) {
+                    final int point = backend * VIRTUAL_NODES + node;
+                    points[point] = hash(this.ids.get(backend) + "#" + node);
+                    order[point] = point;
+                }
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+            this.hashes = new long[size];
+            this.owners = new int[size];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = points[order[i]];
+                owners[i] = order[i] / VIRTUAL_NODES;
+            }
+        }
+
+        List<String> walk(final long hash) {
+            if (ids.size() <= 1) {
+                return ids;
+            }
+            final int found = Arrays.binarySearch(hashes, hash);
+            // the first node at or after the hash, wrapping around
+            final int start = found >= 0 ? found : -found - 1;
+            return new Walk(start == hashes.length ? 0 : start);
+        }
+
+        /**
+         * The distinct backends met walking the ring from a node: usually only the first one is needed,
+         * so the others are found on demand.
+         */
+        private final class Walk extends AbstractList<String> {
+
+            private final List<String> found = new ArrayList<>(2);
+            private final BitSet seen = new BitSet(ids.size());
+            private int position;
+            private int steps;
+
+            private Walk(final int start) {
+                this.position = start;
+            }
+
+            @Override
+            public String get(final int index) {
+                if (index < 0 || index >= ids.size()) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                while (found.size() <= index && steps < hashes.length) {
+                    final int owner = owners[position];
+                    if (!seen.get(owner)) {
+                        seen.set(owner);
+                        found.add(ids.get(owner));
+                    }
+                    position = position + 1 == hashes.length ? 0 : position + 1;
+                    steps++;
+                }
+                return found.get(index);
+            }
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+        }
+    }
+}
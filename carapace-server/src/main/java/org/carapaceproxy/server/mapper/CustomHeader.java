@@ -19,7 +19,10 @@
  */
 package org.carapaceproxy.server.mapper;
 
+import io.netty.util.AsciiString;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 /**
  *
@@ -45,5 +48,21 @@ public final class CustomHeader {
     private final String name;
     private final String value;
     private final HeaderMode mode;
+    // encoded once for all, as they are written in every response of the action
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final AsciiString asciiName;
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final AsciiString asciiValue;
+
+    public CustomHeader(String id, String name, String value, HeaderMode mode) {
+        this.id = id;
+        this.name = name;
+        this.value = value;
+        this.mode = mode;
+        this.asciiName = name != null ? AsciiString.cached(name) : null;
+        this.asciiValue = value != null ? AsciiString.cached(value) : null;
+    }
 
 }
@@ -20,8 +20,11 @@
 package org.carapaceproxy.server.mapper;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.SequencedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.carapaceproxy.SimpleHTTPResponse;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.core.HttpProxyServer;
@@ -45,6 +48,9 @@ import org.carapaceproxy.server.config.RouteConfiguration;
 public abstract class EndpointMapper {
 
     private final HttpProxyServer parent;
+    // weights set at runtime, they last until the next configuration change that rebuilds the mapper
+    private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+    private final AtomicLong weightsVersion = new AtomicLong();
 
     protected EndpointMapper(final HttpProxyServer parent) {
         this.parent = parent;
@@ -121,6 +127,54 @@ public abstract class EndpointMapper {
 
     public abstract void configure(ConfigurationStore properties) throws ConfigurationNotValidException;
 
+    /**
+     * Get the current weight of a backend.
+     *
+     * @param backendId the {@link BackendConfiguration#id() id of the backend}
+     * @return the weight set at runtime, if any, else the {@link BackendConfiguration#weight() configured one};
+     * 0 if the backend is not known
+     * @see #setBackendWeight(String, int)
+     */
+    public int getBackendWeight(final String backendId) {
+        final Integer weight = weights.get(backendId);
+        if (weight != null) {
+            return weight;
+        }
+        final BackendConfiguration backend = getBackends().get(backendId);
+        return backend != null ? backend.weight() : 0;
+    }
+
+    /**
+     * Change the weight of a backend without rebuilding the mapper.
+     * <p>
+     * This is how a dynamic configuration change that only touches the weights is applied;
+     * by itself the change is local to this peer and it is lost when a new mapper is built,
+     * see {@link org.carapaceproxy.core.HttpProxyServer#updateBackendWeight(String, int)} to save it.
+     *
+     * @param backendId the {@link BackendConfiguration#id() id of the backend}
+     * @param weight    the new weight, 0 to drain the backend
+     * @throws IllegalArgumentException if the backend is not configured or the weight is negative
+     */
+    public void setBackendWeight(final String backendId, final int weight) {
+        if (!getBackends().containsKey(backendId)) {
+            throw new IllegalArgumentException("backend " + backendId + " is not configured");
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("invalid weight " + weight + " for backend " + backendId);
+        }
+        weights.put(backendId, weight);
+        weightsVersion.incrementAndGet();
+    }
+
+    /**
+     * A counter of the changes of the weights, for the selectors caching them.
+     *
+     * @return a number that changes each time a weight is set
+     */
+    public long getBackendWeightsVersion() {
+        return weightsVersion.get();
+    }
+
     protected final DynamicCertificatesManager getDynamicCertificatesManager() {
         Objects.requireNonNull(parent);
         return parent.getDynamicCertificatesManager();
@@ -0,0 +1,151 @@
+package org.carapaceproxy.server.mapper;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The selector samples two backends at random and prefers the one expected to answer first,
+ * that is the one with the lower average response time multiplied by the requests in flight ("power of two choices").
+ * <p>
+ * The cost of a selection does not depend on the number of backends: the other ones follow the two candidates
+ * in their configured order, as a view over the director.
+ * Backends that are down or ejected are never preferred to usable ones.
+ * The cost of backends warming up is raised according to their {@link BackendHealthStatus#getWeight() slow start weight}.
+ *
+ * @see BackendHealthStatus#getLatencyEwma()
+ * @see BackendHealthStatus#getConnections()
+ */
+public class LeastLatencyBackendSelector implements BackendSelector {
+    private static final Logger LOG = LoggerFactory.getLogger(LeastLatencyBackendSelector.class);
+
+    private final EndpointMapper mapper;
+    // random access copy of the keys of the backends, for the directors including all of them
+    private volatile List<String> allBackendIds = List.of();
+
+    private LeastLatencyBackendSelector(final EndpointMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Build a selector over the live backends and directors of a mapper.
+     *
+     * @param mapper the mapper the selector is applied to
+     * @return the selector
+     * @see BackendSelector.SelectorFactory
+     */
+    public static LeastLatencyBackendSelector build(final EndpointMapper mapper) {
+        return new LeastLatencyBackendSelector(mapper);
+    }
+
+    @Override
+    public List<String> selectBackends(final String userId, final String sessionId, final String director) {
+        final Map<String, DirectorConfiguration> directors = mapper.getDirectors();
+        final DirectorConfiguration directorConfig = directors.get(director);
+        if (directorConfig == null) {
+            LOG.error("Director \"{}\" not configured, while handling request userId={} sessionId={}", director, userId, sessionId);
+            return List.of();
+        }
+        if (directorConfig.isAllBackends()) {
+            return choose(allBackendIds());
+        }
+        return choose(directorConfig.getBackends());
+    }
+
+    private List<String> allBackendIds() {
+        List<String> ids = allBackendIds;
+        if (ids.size() != mapper.getBackends().size()) {
+            // backends are only added while configuring the mapper
+            ids = List.copyOf(mapper.getBackends().sequencedKeySet());
+            allBackendIds = ids;
+        }
+        return ids;
+    }
+
+    /**
+     * Order some backends by preference, comparing two of them picked at random.
+     *
+     * @param ids the keys of the backends
+     * @return the backends, starting from the one to try first
+     */
+    public List<String> choose(final List<String> ids) {
+        final int size = ids.size();
+        if (size <= 1) {
+            return List.copyOf(ids);
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(size);
+        // a different one, uniformly among the others
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        return cost(ids.get(second)) < cost(ids.get(first))
+                ? new Preference(ids, second, first)
+                : new Preference(ids, first, second);
+    }
+
+    private double cost(final String backendId) {
+        final BackendConfiguration backend = mapper.getBackends().get(backendId);
+        if (backend == null) {
+            // skipped by the mapper
+            return Double.MAX_VALUE;
+        }
+        final BackendHealthStatus status = mapper.getBackendHealthManager().getBackendStatus(backend.hostPort());
+        final BackendHealthStatus.Status health = status.getStatus();
+        if (health == BackendHealthStatus.Status.DOWN || health == BackendHealthStatus.Status.EJECTED) {
+            return Double.MAX_VALUE;
+        }
+        final double latency = status.getLatencyEwma();
+        // backends without responses yet are tried, but not flooded; warming up ones look slower
+        return ((Double.isNaN(latency) ? 0 : latency) + 1) * (status.getConnections() + 1) / status.getWeight();
+    }
+
+    /**
+     * The backends of a director, starting from the preferred one and the other candidate,
+     * then the others in their order.
+     */
+    private static final class Preference extends AbstractList<String> {
+
+        private final List<String> ids;
+        private final int preferred;
+        private final int other;
+
+        private Preference(final List<String> ids, final int preferred, final int other) {
+            this.ids = ids;
+            this.preferred = preferred;
+            this.other = other;
+        }
+
+        @Override
+        public String get(final int index) {
+            if (index == 0) {
+                return ids.get(preferred);
+            }
+            if (index == 1) {
+                return ids.get(other);
+            }
+            // skip the two candidates
+            int position = index - 2;
+            if (position >= Math.min(preferred, other)) {
+                position++;
+            }
+            if (position >= Math.max(preferred, other)) {
+                position++;
+            }
+            return ids.get(position);
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+    }
+}
@@ -20,10 +20,12 @@
 package org.carapaceproxy.server.mapper;
 
 import java.util.List;
+import java.util.function.Supplier;
 import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
@@ -100,6 +102,22 @@ public class MapResult {
     @ToString.Exclude
     private BackendHealthStatus healthStatus;
 
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private Supplier<MapResult> nextBackend;
+
+    /**
+     * Map the same request to the next available backend, to retry it there.
+     * The backends are checked again, so the ones failed in the meantime are skipped.
+     *
+     * @return the result for the next backend, or null if there are no other backends available
+     */
+    public MapResult nextBackend() {
+        return nextBackend != null ? nextBackend.get() : null;
+    }
+
     public static MapResult notFound(String routeId) {
         return MapResult.builder()
                 .action(Action.NOTFOUND)
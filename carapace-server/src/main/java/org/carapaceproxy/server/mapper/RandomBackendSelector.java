@@ -3,11 +3,15 @@ package org.carapaceproxy.server.mapper;
 import static org.carapaceproxy.server.config.DirectorConfiguration.ALL_BACKENDS;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.SequencedCollection;
 import java.util.random.RandomGenerator;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.BackendSelector;
 import org.carapaceproxy.server.config.DirectorConfiguration;
 import org.slf4j.Logger;
@@ -16,6 +20,8 @@ import org.slf4j.LoggerFactory;
 /**
  * The selector chooses an available backend randomly.
  * This means that backend preference is determined by shuffling the resulting list.
+ * When some backends are warming up with slow start, the shuffle is weighted,
+ * so that they come first less often than the others.
  *
  * @see Collections#shuffle(List, RandomGenerator)
  * @see SecureRandom
@@ -26,10 +32,23 @@ public class RandomBackendSelector implements BackendSelector {
 
     private final SequencedCollection<String> allBackendIds;
     private final Map<String, DirectorConfiguration> directors;
+    private final EndpointMapper mapper;
 
-    private RandomBackendSelector(final SequencedCollection<String> allBackendIds, final Map<String, DirectorConfiguration> directors) {
+    private RandomBackendSelector(final SequencedCollection<String> allBackendIds, final Map<String, DirectorConfiguration> directors, final EndpointMapper mapper) {
         this.allBackendIds = allBackendIds;
         this.directors = directors;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Build a selector over the live backends and directors of a mapper.
+     *
+     * @param mapper the mapper the selector is applied to
+     * @return the selector
+     * @see BackendSelector.SelectorFactory
+     */
+    public static RandomBackendSelector build(final EndpointMapper mapper) {
+        return new RandomBackendSelector(mapper.getBackends().sequencedKeySet(), mapper.getDirectors(), mapper);
     }
 
     @Override
@@ -53,8 +72,40 @@ public class RandomBackendSelector implements BackendSelector {
             return List.copyOf(ids);
         }
         final List<String> result = new ArrayList<>(ids);
-        Collections.shuffle(result, RANDOM);
-        return List.copyOf(result);
+        final double[] weights = weights(result);
+        if (weights == null) {
+            Collections.shuffle(result, RANDOM);
+            return List.copyOf(result);
+        }
+        // weighted random sampling without replacement (Efraimidis-Spirakis): the lower the key, the earlier the backend
+        final double[] keys = new double[weights.length];
+        final Integer[] order = new Integer[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            keys[i] = -Math.log(1 - RANDOM.nextDouble()) / weights[i];
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> keys[i]));
+        return Arrays.stream(order).map(result::get).toList();
+    }
+
+    /**
+     * @return the slow start weights of the backends, or null if all of them get their full share
+     */
+    private double[] weights(final List<String> ids) {
+        final BackendHealthManager healthManager = mapper.getBackendHealthManager();
+        double[] weights = null;
+        for (int i = 0; i < ids.size(); i++) {
+            final BackendConfiguration backend = mapper.getBackends().get(ids.get(i));
+            final double weight = backend != null ? healthManager.getBackendStatus(backend.hostPort()).getWeight() : 1;
+            if (weight < 1 && weights == null) {
+                weights = new double[ids.size()];
+                Arrays.fill(weights, 1);
+            }
+            if (weights != null) {
+                weights[i] = weight;
+            }
+        }
+        return weights;
     }
 
 }
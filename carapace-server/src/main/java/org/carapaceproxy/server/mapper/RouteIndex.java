@@ -0,0 +1,322 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.carapaceproxy.server.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.carapaceproxy.core.ProxyRequest;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.AndRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.EqualsRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.OrRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+
+/**
+ * Compiled view of the configured {@link RouteConfiguration routes}.
+ * <p>
+ * Routes are bucketed by the exact {@code request.headers.host} values they require
+ * and by the literal prefix of their {@code request.uri} regexp;
+ * every other route ends up in a fallback list that applies to any request.
+ * The index never decides a match by itself: it only narrows the routes
+ * that have to be evaluated, and returns them in configuration order,
+ * so that the first-match-wins semantics of the mapper is preserved.
+ */
+final class RouteIndex {
+
+    static final String PROPERTY_HOST = ProxyRequest.PROPERTY_HEADERS + "host";
+    private static final int[] NO_ROUTES = new int[0];
+    private static final String REGEXP_METACHARACTERS = ".[](){}*+?^$";
+
+    private final RouteConfiguration[] routes;
+    private final Map<String, int[]> hostBuckets;
+    private final int[] fallback;
+    private final List<RouteConfiguration> fallbackRoutes;
+    private final Map<String, List<RouteConfiguration>> hostBucketRoutes;
+    private final TrieNode uriTrie;
+
+    private RouteIndex(
+            final RouteConfiguration[] routes,
+            final Map<String, int[]> hostBuckets,
+            final int[] fallback,
+            final TrieNode uriTrie) {
+        this.routes = routes;
+        this.hostBuckets = hostBuckets;
+        this.fallback = fallback;
+        this.uriTrie = uriTrie;
+        this.fallbackRoutes = toRoutes(fallback);
+        this.hostBucketRoutes = new HashMap<>();
+        hostBuckets.forEach((host, ordinals) -> hostBucketRoutes.put(host, toRoutes(ordinals)));
+    }
+
+    static RouteIndex build(final List<RouteConfiguration> configuredRoutes) {
+        final RouteConfiguration[] routes = configuredRoutes.toArray(RouteConfiguration[]::new);
+        final Map<String, int[]> hostOnly = new HashMap<>();
+        final TrieNode uriTrie = new TrieNode();
+        int[] fallback = NO_ROUTES;
+        for (int ordinal = 0; ordinal < routes.length; ordinal++) {
+            final RouteConfiguration route = routes[ordinal];
+            if (!route.isEnabled()) {
+                continue;
+            }
+            final Set<String> hosts = requiredHosts(route.getMatcher());
+            if (hosts != null) {
+                for (final String host : hosts) {
+                    hostOnly.merge(host, new int[]{ordinal}, RouteIndex::merge);
+                }
+                continue;
+            }
+            final String uriPrefix = requiredUriPrefix(route.getMatcher());
+            if (uriPrefix != null) {
+                uriTrie.insert(uriPrefix, ordinal);
+                continue;
+            }
+            fallback = merge(fallback, new int[]{ordinal});
+        }
+        // routes that do not depend on the host have to be evaluated for every host too
+        final Map<String, int[]> hostBuckets = new HashMap<>();
+        for (final Map.Entry<String, int[]> entry : hostOnly.entrySet()) {
+            hostBuckets.put(entry.getKey(), merge(entry.getValue(), fallback));
+        }
+        return new RouteIndex(routes, hostBuckets, fallback, uriTrie);
+    }
+
+    /**
+     * Get the routes that may match the given request.
+     *
+     * @param context the request to route
+     * @return the candidate routes, sorted according to configuration order
+     */
+    List<RouteConfiguration> candidates(final MatchingContext context) {
+        int[] selected = fallback;
+        List<RouteConfiguration> selectedRoutes = fallbackRoutes;
+        if (!hostBuckets.isEmpty()) {
+            final String host = context.getProperty(PROPERTY_HOST);
+            final int[] bucket = hostBuckets.get(host);
+            if (bucket != null) {
+                selected = bucket;
+                selectedRoutes = hostBucketRoutes.get(host);
+            }
+        }
+        if (uriTrie.isEmpty()) {
+            return selectedRoutes;
+        }
+        final String uri = context.getProperty(ProxyRequest.PROPERTY_URI);
+        TrieNode node = uriTrie;
+        boolean found = false;
+        for (int i = 0; i < uri.length() && node != null; i++) {
+            node = node.children.get(uri.charAt(i));
+            if (node != null && node.routes.length > 0) {
+                selected = merge(selected, node.routes);
+                found = true;
+            }
+        }
+        return found ? toRoutes(selected) : selectedRoutes;
+    }
+
+    /**
+     * Collect the values the {@code request.headers.host} must equal for the matcher to succeed.
+     *
+     * @param matcher the matcher of the route
+     * @return the set of required hosts, or null if the matcher can succeed on any host
+     */
+    static Set<String> requiredHosts(final RequestMatcher matcher) {
+        if (matcher instanceof EqualsRequestMatcher equals) {
+            return PROPERTY_HOST.equals(equals.getName()) ? Set.of(equals.getValue()) : null;
+        }
+        if (matcher instanceof AndRequestMatcher and) {
+            for (final RequestMatcher child : and.getMatchers()) {
+                final Set<String> hosts = requiredHosts(child);
+                if (hosts != null) {
+                    return hosts;
+                }
+            }
+            return null;
+        }
+        if (matcher instanceof OrRequestMatcher or) {
+            final Set<String> hosts = new HashSet<>();
+            for (final RequestMatcher child : or.getMatchers()) {
+                final Set<String> childHosts = requiredHosts(child);
+                if (childHosts == null) {
+                    return null;
+                }
+                hosts.addAll(childHosts);
+            }
+            return hosts.isEmpty() ? null : hosts;
+        }
+        return null;
+    }
+
+    /**
+     * Compute the literal prefix the {@code request.uri} must start with for the matcher to succeed.
+     *
+     * @param matcher the matcher of the route
+     * @return the required prefix, or null if the matcher can succeed on any uri
+     */
+    static String requiredUriPrefix(final RequestMatcher matcher) {
+        if (matcher instanceof RegexpRequestMatcher regexp) {
+            if (!ProxyRequest.PROPERTY_URI.equals(regexp.getName())) {
+                return null;
+            }
+            final String prefix = literalPrefix(regexp.getExpression().pattern());
+            return prefix.isEmpty() ? null : prefix;
+        }
+        if (matcher instanceof AndRequestMatcher and) {
+            String longest = null;
+            for (final RequestMatcher child : and.getMatchers()) {
+                final String prefix = requiredUriPrefix(child);
+                if (prefix != null && (longest == null || prefix.length() > longest.length())) {
+                    longest = prefix;
+                }
+            }
+            return longest;
+        }
+        if (matcher instanceof OrRequestMatcher or) {
+            String common = null;
+            for (final RequestMatcher child : or.getMatchers()) {
+                final String prefix = requiredUriPrefix(child);
+                if (prefix == null) {
+                    return null;
+                }
+                common = common == null ? prefix : commonPrefix(common, prefix);
+            }
+            return common == null || common.isEmpty() ? null : common;
+        }
+        return null;
+    }
+
+    /**
+     * Extract the literal characters any input fully matched by the regexp has to start with.
+     * The extraction is conservative: it stops at the first construct that is not a plain literal.
+     *
+     * @param regexp the regular expression
+     * @return the literal prefix, possibly empty
+     */
+    static String literalPrefix(final String regexp) {
+        if (regexp.indexOf('|') >= 0) {
+            // an alternation may apply to the whole expression
+            return "";
+        }
+        final StringBuilder prefix = new StringBuilder();
+        int i = regexp.startsWith("^") ? 1 : 0;
+        while (i < regexp.length()) {
+            final char c = regexp.charAt(i);
+            final char literal;
+            final int next;
+            if (c == '\\') {
+                if (i + 1 >= regexp.length() || Character.isLetterOrDigit(regexp.charAt(i + 1))) {
+                    // character classes, back-references, quotations...
+                    break;
+                }
+                literal = regexp.charAt(i + 1);
+                next = i + 2;
+            } else if (REGEXP_METACHARACTERS.indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < regexp.length()) {
+                final char quantifier = regexp.charAt(next);
+                if (quantifier == '*' || quantifier == '?' || quantifier == '{') {
+                    // the literal is optional
+                    break;
+                }
+                if (quantifier == '+') {
+                    prefix.append(literal);
+                    break;
+                }
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static String commonPrefix(final String a, final String b) {
+        int i = 0;
+        final int max = Math.min(a.length(), b.length());
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return a.substring(0, i);
+    }
+
+    private static int[] merge(final int[] a, final int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        final int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[k++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[k++] = b[j++];
+            } else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[k++] = a[i++];
+        }
+        while (j < b.length) {
+            result[k++] = b[j++];
+        }
+        return k == result.length ? result : Arrays.copyOf(result, k);
+    }
+
+    private List<RouteConfiguration> toRoutes(final int[] ordinals) {
+        final List<RouteConfiguration> result = new ArrayList<>(ordinals.length);
+        for (final int ordinal : ordinals) {
+            result.add(routes[ordinal]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static final class TrieNode {
+
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private int[] routes = NO_ROUTES;
+
+        private void insert(final String prefix, final int ordinal) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+            }
+            node.routes = merge(node.routes, new int[]{ordinal});
+        }
+
+        private boolean isEmpty() {
+            return children.isEmpty();
+        }
+    }
+}
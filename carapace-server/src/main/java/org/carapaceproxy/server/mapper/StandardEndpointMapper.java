@@ -83,9 +83,13 @@ public class StandardEndpointMapper extends EndpointMapper {
     private final SequencedMap<String, BackendConfiguration> backends = new LinkedHashMap<>();
     private final SequencedMap<String, DirectorConfiguration> directors = new LinkedHashMap<>();
     private final List<RouteConfiguration> routes = new ArrayList<>();
+    // Compiled on configure, or lazily after routes have been added
+    private volatile RouteIndex routeIndex;
     private final Map<String, ActionConfiguration> actions = new HashMap<>();
     public final Map<String, CustomHeader> headers = new HashMap<>();
-    private final BackendSelector backendSelector;
+    private volatile BackendSelector backendSelector;
+    // whether the selector is chosen by the configuration, rather than by the creator of the mapper
+    private final boolean configurableBackendSelector;
 
     private String defaultNotFoundAction = DEFAULT_NOT_FOUND_ACTION;
     private String defaultInternalErrorAction = DEFAULT_INTERNAL_ERROR_ACTION;
@@ -100,12 +104,17 @@ public class StandardEndpointMapper extends EndpointMapper {
     private boolean debuggingHeaderEnabled = false;
 
     public StandardEndpointMapper(final HttpProxyServer parent) {
-        this(parent, SafeBackendSelector::new);
+        this(parent, SafeBackendSelector::new, true);
     }
 
     public StandardEndpointMapper(final HttpProxyServer parent, final BackendSelector.SelectorFactory backendSelector) {
+        this(parent, backendSelector, false);
+    }
+
+    private StandardEndpointMapper(final HttpProxyServer parent, final BackendSelector.SelectorFactory backendSelector, final boolean configurableBackendSelector) {
         super(parent);
         this.backendSelector = backendSelector.build(this);
+        this.configurableBackendSelector = configurableBackendSelector;
     }
 
     public static boolean isValidHostAndPort(final String hostAndPort) {
@@ -147,7 +156,7 @@ public class StandardEndpointMapper extends EndpointMapper {
             return MapResult.badRequest();
         }
 
-        for (final RouteConfiguration route : routes) {
+        for (final RouteConfiguration route : getRouteIndex().candidates(request)) {
             if (!route.isEnabled()) {
                 continue;
             }
@@ -212,13 +221,13 @@ public class StandardEndpointMapper extends EndpointMapper {
             final UrlEncodedQueryString queryString = request.getQueryString();
 
             final List<String> selectedBackends;
+            String director = null;
             if (queryString.contains(forceBackendParameter)) {
                 final String forceBackendParameterValue = queryString.get(forceBackendParameter);
                 LOG.info("forcing backend = {} for {}", forceBackendParameterValue, request.getUri());
                 selectedBackends = List.of(forceBackendParameterValue);
                 LOG.trace("selected {} backends for {}", selectedBackends, request.getUri());
             } else {
-                final String director;
                 if (queryString.contains(forceDirectorParameter)) {
                     director = queryString.get(forceDirectorParameter);
                     LOG.info("forcing director = {} for {}", director, request.getUri());
@@ -238,58 +247,13 @@ public class StandardEndpointMapper extends EndpointMapper {
                 }
             }
 
-            for (final String backendId : selectedBackends) {
-                final BackendConfiguration backend = this.backends.get(backendId);
-                if (backend != null) {
-                    final BackendHealthManager backendHealthManager = getBackendHealthManager();
-                    final BackendHealthStatus backendStatus = backendHealthManager.getBackendStatus(backend.hostPort());
-                    switch (backendStatus.getStatus()) {
-                        case DOWN:
-                            LOG.info("Backend {} is down, skipping...", backendId);
-                            continue;
-                        case COLD:
-                            if (backendHealthManager.exceedsCapacity(backendId)) {
-                                final int capacity = backend.safeCapacity();
-                                if (!backendHealthManager.isTolerant()) {
-                                    // default behavior, exceeding safe capacity is not tolerated...
-                                    LOG.info("Backend {} is cold and exceeds safe capacity of {} connections, skipping...", backendId, capacity);
-                                    continue;
-                                }
-                                /*
-                                 * backends are returned by the mapper sorted
-                                 * from the most desirable to the less desirable;
-                                 * if the execution reaches this point,
-                                 * we may use the cold backend even if over the recommended capacity anyway...
-                                 */
-                                LOG.warn("Cold backend {} exceeds safe capacity of {} connections, but will use it anyway", backendId, capacity);
-                            }
-                            // falls through
-                        case STABLE: {
-                            List<CustomHeader> customHeaders = action.getCustomHeaders();
-                            if (this.debuggingHeaderEnabled) {
-                                customHeaders = new ArrayList<>(customHeaders);
-                                final String routingPath = route.getId() + ";"
-                                        + action.getId() + ";"
-                                        + action.getDirector() + ";"
-                                        + backendId;
-                                customHeaders.add(new CustomHeader(DEBUGGING_HEADER_ID, debuggingHeaderName, routingPath, HeaderMode.ADD));
-                            }
-                            return MapResult.builder()
-                                    .host(backend.host())
-                                    .port(backend.port())
-                                    .action(selectedAction)
-                                    .routeId(route.getId())
-                                    .customHeaders(customHeaders)
-                                    .healthStatus(backendStatus)
-                                    .ssl(backend.ssl())
-                                    .build();
-                        }
-                    }
-                }
+            final MapResult result = mapToBackend(route, action, selectedAction, selectedBackends, 0);
+            if (result != null) {
+                return result;
             }
             // none of selected backends available
-            // return service unavailable if all backend is unavailable
-            if (!selectedBackends.isEmpty()) {
+            // return service unavailable if all backend is unavailable, or drained
+            if (!selectedBackends.isEmpty() || hasBackends(director)) {
                 return MapResult.serviceUnavailable(route.getId());
             }
         }
@@ -297,6 +261,82 @@ public class StandardEndpointMapper extends EndpointMapper {
         return MapResult.notFound(MapResult.NO_ROUTE);
     }
 
+    /**
+     * Check whether a director has backends, even if the selector picked none of them, e.g. because they are all drained.
+     */
+    private boolean hasBackends(final String director) {
+        final DirectorConfiguration directorConfig = director != null ? directors.get(director) : null;
+        if (directorConfig == null) {
+            return false;
+        }
+        return directorConfig.isAllBackends() ? !backends.isEmpty() : !directorConfig.getBackends().isEmpty();
+    }
+
+    /**
+     * Map a request to the first available backend among the selected ones.
+     *
+     * @param from the position of the first backend to consider
+     * @return the result, with the next available backend for retries, or null if none of the backends is available
+     */
+    private MapResult mapToBackend(final RouteConfiguration route, final ActionConfiguration action, final Action selectedAction, final List<String> selectedBackends, final int from) {
+        for (int i = from; i < selectedBackends.size(); i++) {
+            final String backendId = selectedBackends.get(i);
+            final BackendConfiguration backend = this.backends.get(backendId);
+            if (backend != null) {
+                final BackendHealthManager backendHealthManager = getBackendHealthManager();
+                final BackendHealthStatus backendStatus = backendHealthManager.getBackendStatus(backend.hostPort());
+                switch (backendStatus.getStatus()) {
+                    case DOWN:
+                        LOG.info("Backend {} is down, skipping...", backendId);
+                        continue;
+                    case EJECTED:
+                        LOG.info("Backend {} is ejected as an outlier, skipping...", backendId);
+                        continue;
+                    case COLD:
+                        if (backendHealthManager.exceedsCapacity(backendId)) {
+                            final int capacity = backend.safeCapacity();
+                            if (!backendHealthManager.isTolerant()) {
+                                // default behavior, exceeding safe capacity is not tolerated...
+                                LOG.info("Backend {} is cold and exceeds safe capacity of {} connections, skipping...", backendId, capacity);
+                                continue;
+                            }
+                            /*
+                             * backends are returned by the mapper sorted
+                             * from the most desirable to the less desirable;
+                             * if the execution reaches this point,
+                             * we may use the cold backend even if over the recommended capacity anyway...
+                             */
+                            LOG.warn("Cold backend {} exceeds safe capacity of {} connections, but will use it anyway", backendId, capacity);
+                        }
+                        // falls through
+                    case STABLE: {
+                        List<CustomHeader> customHeaders = action.getCustomHeaders();
+                        if (this.debuggingHeaderEnabled) {
+                            customHeaders = new ArrayList<>(customHeaders);
+                            final String routingPath = route.getId() + ";"
+                                    + action.getId() + ";"
+                                    + action.getDirector() + ";"
+                                    + backendId;
+                            customHeaders.add(new CustomHeader(DEBUGGING_HEADER_ID, debuggingHeaderName, routingPath, HeaderMode.ADD));
+                        }
+                        final int next = i + 1;
+                        return MapResult.builder()
+                                .host(backend.host())
+                                .port(backend.port())
+                                .action(selectedAction)
+                                .routeId(route.getId())
+                                .customHeaders(customHeaders)
+                                .healthStatus(backendStatus)
+                                .ssl(backend.ssl())
+                                .nextBackend(() -> mapToBackend(route, action, selectedAction, selectedBackends, next))
+                                .build();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     private ActionConfiguration getErrorActionConfiguration(final String routeId, final String defaultAction) {
         // Attempt to find a route-specific configuration first
         return routes.stream()
@@ -414,6 +454,19 @@ public class StandardEndpointMapper extends EndpointMapper {
         this.forceBackendParameter = properties.getString("mapper.forcebackend.parameter", forceBackendParameter);
         LOG.info("configured mapper.forcebackend.parameter={}", forceBackendParameter);
 
+        if (configurableBackendSelector) {
+            final String selector = properties.getString("mapper.backendselector", "safe").trim().toLowerCase();
+            this.backendSelector = switch (selector) {
+                case "safe" -> new SafeBackendSelector(this);
+                case "random" -> RandomBackendSelector.build(this);
+                case "leastlatency" -> LeastLatencyBackendSelector.build(this);
+                case "consistenthash" -> ConsistentHashBackendSelector.build(this);
+                case "weightedroundrobin" -> WeightedRoundRobinBackendSelector.build(this);
+                default -> throw new ConfigurationNotValidException("Invalid value '" + selector + "' for mapper.backendselector");
+            };
+            LOG.info("configured mapper.backendselector={}", selector);
+        }
+
         // To add custom debugging header for request chosen mapping-path
         this.debuggingHeaderEnabled = properties.getBoolean("mapper.debug", false);
         LOG.info("configured mapper.debug={}", debuggingHeaderEnabled);
@@ -513,6 +566,10 @@ public class StandardEndpointMapper extends EndpointMapper {
                 final String caCertificatePassword = properties.getString(prefix + "cacertificatepassword", null);
                 final String probeScheme = properties.getString(prefix + "probescheme", "http");
                 final String probeSchemeNormalized = probeScheme.toLowerCase();
+                final int weight = properties.getInt(prefix + "weight", BackendConfiguration.DEFAULT_WEIGHT);
+                if (weight < 0) {
+                    throw new ConfigurationNotValidException("invalid weight=" + weight + " while configuring backend '" + id + "' (must be positive, or 0 to drain it)");
+                }
                 switch (probeScheme.toLowerCase()) {
                     case "http":
                     case "https":
@@ -520,10 +577,10 @@ public class StandardEndpointMapper extends EndpointMapper {
                     default:
                         throw new ConfigurationNotValidException("invalid probeScheme=" + probeScheme + " while configuring backend '" + id + "' (allowed: http|https)");
                 }
-                LOG.info("configured backend {} {}:{} enabled={} capacity={} ssl={} caCertificate={} caCertificatePassword={} probeScheme={}",
-                         id, host, port, enabled, safeCapacity, ssl, caCertificatePath, caCertificatePassword != null ? "******" : null, probeSchemeNormalized);
+                LOG.info("configured backend {} {}:{} enabled={} capacity={} ssl={} caCertificate={} caCertificatePassword={} probeScheme={} weight={}",
+                         id, host, port, enabled, safeCapacity, ssl, caCertificatePath, caCertificatePassword != null ? "******" : null, probeSchemeNormalized, weight);
                 if (enabled) {
-                    addBackend(new BackendConfiguration(id, new EndpointKey(host, port), probePath, safeCapacity, ssl, caCertificatePath, caCertificatePassword, probeSchemeNormalized));
+                    addBackend(new BackendConfiguration(id, new EndpointKey(host, port), probePath, safeCapacity, ssl, caCertificatePath, caCertificatePassword, probeSchemeNormalized, weight));
                 }
             }
         }
@@ -595,6 +652,17 @@ public class StandardEndpointMapper extends EndpointMapper {
                 );
             }
         }
+        this.routeIndex = RouteIndex.build(routes);
+        LOG.info("configured {} routes", routes.size());
+    }
+
+    private RouteIndex getRouteIndex() {
+        RouteIndex index = routeIndex;
+        if (index == null) {
+            index = RouteIndex.build(routes);
+            routeIndex = index;
+        }
+        return index;
     }
 
     private void addHeader(String id, String name, String value, String mode) throws ConfigurationNotValidException {
@@ -632,6 +700,7 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("route " + route.getId() + " is already configured");
         }
         routes.add(route);
+        routeIndex = null;
     }
 
     @Override
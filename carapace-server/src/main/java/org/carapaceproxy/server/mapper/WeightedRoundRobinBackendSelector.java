@@ -0,0 +1,241 @@
+package org.carapaceproxy.server.mapper;
+
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The selector spreads the requests of a director among its backends in proportion to their
+ * {@link EndpointMapper#getBackendWeight(String) weights}, interleaving them as evenly as possible
+ * (the "smooth weighted round-robin" of nginx: with weights 5, 1, 1 the order is a a b a c a a, not a a a a a b c).
+ * <p>
+ * The order of a director is computed once, and again only when a weight changes, as an array of the positions
+ * of its backends; so a pick only increments a counter, and returns a view of the backends
+ * starting from the picked one, followed by the others in their order as fallbacks.
+ * Backends with weight 0 are drained: they get no requests at all.
+ * <p>
+ * The weights are multiplied by the {@link BackendHealthStatus#getWeight() slow start weight} of the backends,
+ * so while some backend is warming up the order is also computed again every {@link #REFRESH_PERIOD} milliseconds, to follow it;
+ * otherwise the backends are only checked as often, to notice when one starts warming up.
+ */
+public class WeightedRoundRobinBackendSelector implements BackendSelector {
+    private static final Logger LOG = LoggerFactory.getLogger(WeightedRoundRobinBackendSelector.class);
+
+    /**
+     * The maximum length of the order of a director: when the sum of the weights is higher,
+     * they are scaled down, at the cost of a little precision.
+     */
+    public static final int MAX_SCHEDULE_LENGTH = 1 << 14;
+
+    /**
+     * How often the order of a director is computed again while some backend is warming up, to apply the slow start weights.
+     */
+    public static final long REFRESH_PERIOD = 1_000;
+
+    /**
+     * The weights are scaled by this factor while some backend is warming up, not to round the slow start weights to 0.
+     */
+    private static final int SLOW_START_SCALE = 100;
+
+    private final EndpointMapper mapper;
+    private final Map<String, Schedule> schedules = new ConcurrentHashMap<>();
+
+    private WeightedRoundRobinBackendSelector(final EndpointMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Build a selector over the live backends and directors of a mapper.
+     *
+     * @param mapper the mapper the selector is applied to
+     * @return the selector
+     * @see BackendSelector.SelectorFactory
+     */
+    public static WeightedRoundRobinBackendSelector build(final EndpointMapper mapper) {
+        return new WeightedRoundRobinBackendSelector(mapper);
+    }
+
+    @Override
+    public List<String> selectBackends(final String userId, final String sessionId, final String director) {
+        final DirectorConfiguration directorConfig = mapper.getDirectors().get(director);
+        if (directorConfig == null) {
+            LOG.error("Director \"{}\" not configured, while handling request userId={} sessionId={}", director, userId, sessionId);
+            return List.of();
+        }
+        final Collection<String> ids = directorConfig.isAllBackends()
+                ? mapper.getBackends().sequencedKeySet()
+                : directorConfig.getBackends();
+        final long version = mapper.getBackendWeightsVersion();
+        final long now = System.currentTimeMillis();
+        Schedule schedule = schedules.get(director);
+        if (schedule == null || schedule.version != version || schedule.configured != ids.size()
+                || now - schedule.checked >= REFRESH_PERIOD && (schedule.warming || isWarming(schedule.ids))) {
+            // the picks go on from the previous order, not to always start from the same backend
+            schedule = new Schedule(ids, version, now, schedule != null ? schedule.picks : new AtomicLong());
+            schedules.put(director, schedule);
+        } else if (now - schedule.checked >= REFRESH_PERIOD) {
+            schedule.checked = now;
+        }
+        return schedule.next();
+    }
+
+    private boolean isWarming(final List<String> ids) {
+        for (final String id : ids) {
+            if (slowStartWeight(id) < 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The order of the backends of a director, for a version of the weights.
+     */
+    private final class Schedule {
+
+        private final int configured;
+        private final long version;
+        // whether the order follows some backend warming up
+        private final boolean warming;
+        // when the slow start weights were last looked at
+        private volatile long checked;
+        // the backends that are not drained
+        private final List<String> ids;
+        private final int[] sequence;
+        private final AtomicLong picks;
+
+        private Schedule(final Collection<String> ids, final long version, final long created, final AtomicLong picks) {
+            this.configured = ids.size();
+            this.version = version;
+            this.checked = created;
+            this.picks = picks;
+            final List<String> active = new ArrayList<>();
+            final List<Integer> weights = new ArrayList<>();
+            final List<Double> slowStartWeights = new ArrayList<>();
+            boolean warming = false;
+            for (final String id : new LinkedHashSet<>(ids)) {
+                final int weight = mapper.getBackendWeight(id);
+                if (weight > 0) {
+                    final double slowStartWeight = slowStartWeight(id);
+                    active.add(id);
+                    weights.add(weight);
+                    slowStartWeights.add(slowStartWeight);
+                    warming |= slowStartWeight < 1;
+                }
+            }
+            this.ids = List.copyOf(active);
+            this.warming = warming;
+            final int[] effective = new int[weights.size()];
+            for (int i = 0; i < effective.length; i++) {
+                effective[i] = warming
+                        ? (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.round(weights.get(i) * slowStartWeights.get(i) * SLOW_START_SCALE)))
+                        : weights.get(i);
+            }
+            this.sequence = sequence(effective);
+        }
+
+        private List<String> next() {
+            if (ids.size() <= 1) {
+                return ids;
+            }
+            final int picked = sequence[(int) Math.floorMod(picks.getAndIncrement(), (long) sequence.length)];
+            return new Rotation(ids, picked);
+        }
+    }
+
+    private double slowStartWeight(final String id) {
+        final BackendConfiguration backend = mapper.getBackends().get(id);
+        return backend != null ? mapper.getBackendHealthManager().getBackendStatus(backend.hostPort()).getWeight() : 1;
+    }
+
+    /**
+     * Compute one round of the smooth weighted round-robin.
+     *
+     * @param weights the weights of the backends, all positive
+     * @return the positions of the backends, each one appearing as many times as its (reduced) weight
+     */
+    static int[] sequence(final int[] weights) {
+        final int[] reduced = reduce(weights);
+        long total = 0;
+        for (final int weight : reduced) {
+            total += weight;
+        }
+        final int[] sequence = new int[(int) total];
+        final long[] current = new long[reduced.length];
+        for (int step = 0; step < sequence.length; step++) {
+            int best = 0;
+            for (int i = 0; i < reduced.length; i++) {
+                current[i] += reduced[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            sequence[step] = best;
+        }
+        return sequence;
+    }
+
+    /**
+     * Divide the weights by their greatest common divisor, then scale them down if their sum is still too high,
+     * so that the round is as short as possible.
+     */
+    private static int[] reduce(final int[] weights) {
+        BigInteger gcd = BigInteger.ZERO;
+        long total = 0;
+        for (final int weight : weights) {
+            gcd = gcd.gcd(BigInteger.valueOf(weight));
+            total += weight;
+        }
+        final int divisor = gcd.signum() == 0 ? 1 : gcd.intValue();
+        total /= divisor;
+        final int[] reduced = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            reduced[i] = weights[i] / divisor;
+            if (total > MAX_SCHEDULE_LENGTH) {
+                reduced[i] = (int) Math.max(1, (long) reduced[i] * (MAX_SCHEDULE_LENGTH - weights.length) / total);
+            }
+        }
+        return reduced;
+    }
+
+    /**
+     * The backends of a director, starting from the picked one and wrapping around.
+     */
+    private static final class Rotation extends AbstractList<String> {
+
+        private final List<String> ids;
+        private final int start;
+
+        private Rotation(final List<String> ids, final int start) {
+            this.ids = ids;
+            this.start = start;
+        }
+
+        @Override
+        public String get(final int index) {
+            if (index < 0 || index >= ids.size()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            final int position = start + index;
+            return ids.get(position < ids.size() ? position : position - ids.size());
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+    }
+}
@@ -36,6 +36,10 @@ public class AndRequestMatcher implements RequestMatcher {
         this.matchers = matchers;
     }
 
+    public List<RequestMatcher> getMatchers() {
+        return matchers;
+    }
+
     @Override
     public boolean matches(MatchingContext context) {
         for (RequestMatcher matcher : matchers) {
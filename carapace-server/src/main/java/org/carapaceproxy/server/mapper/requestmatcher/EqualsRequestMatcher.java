@@ -34,6 +34,14 @@ public class EqualsRequestMatcher implements RequestMatcher {
         this.value = value;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
     @Override
     public boolean matches(MatchingContext context) {
         return context.getProperty(name).equals(value);
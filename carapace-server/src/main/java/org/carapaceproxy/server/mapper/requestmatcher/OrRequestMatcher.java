@@ -38,6 +38,10 @@ public class OrRequestMatcher implements RequestMatcher {
         this.wrap = wrap;
     }
 
+    public List<RequestMatcher> getMatchers() {
+        return matchers;
+    }
+
     @Override
     public boolean matches(MatchingContext context) {
         for (RequestMatcher matcher : matchers) {            
@@ -42,6 +42,14 @@ public class RegexpRequestMatcher implements RequestMatcher {
         }
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public Pattern getExpression() {
+        return expression;
+    }
+
     @Override
     public boolean matches(MatchingContext context) {
         return expression.matcher(context.getProperty(name)).matches();
@@ -53,6 +53,18 @@ public class AlpnUtils {
             final int port
     ) {
         LOG.debug("Configuring ALPN for HTTP/2 support on listener {}:{}", host, port);
+        return configureAlpnForServer(sslContextBuilder, protocols);
+    }
+
+    /**
+     * Configures ALPN for HTTP/2 support on a server.
+     * This method checks if HTTP/2 is enabled in the protocols set and configures ALPN accordingly.
+     *
+     * @param sslContextBuilder the SslContextBuilder to configure
+     * @param protocols the set of supported HTTP protocols
+     * @return the configured SslContextBuilder
+     */
+    public static SslContextBuilder configureAlpnForServer(final SslContextBuilder sslContextBuilder, final Set<HttpProtocol> protocols) {
         List<String> alpnProtocols = new ArrayList<>();
         if (protocols.contains(HttpProtocol.H2) || protocols.contains(HttpProtocol.H2C)) {
             alpnProtocols.add(ApplicationProtocolNames.HTTP_2);
@@ -25,9 +25,9 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.Set;
 import reactor.netty.http.HttpProtocol;
 
 /**
@@ -54,7 +54,7 @@ public class HttpUtils {
      * framing signal that clients need to reassemble the response body.
      */
     @SuppressWarnings("deprecation")
-    private static final Set<CharSequence> HOP_BY_HOP_HEADERS = Set.of(
+    private static final AsciiString[] HOP_BY_HOP_HEADERS = {
             HttpHeaderNames.CONNECTION,
             HttpHeaderNames.KEEP_ALIVE,
             HttpHeaderNames.PROXY_AUTHENTICATE,
@@ -63,7 +63,7 @@ public class HttpUtils {
             HttpHeaderNames.TRAILER,
             HttpHeaderNames.UPGRADE,
             HttpHeaderNames.PROXY_CONNECTION
-    );
+    };
 
     /**
      * Strips hop-by-hop headers from the given {@link HttpHeaders} in place.
@@ -82,13 +82,58 @@ public class HttpUtils {
      */
     public static void stripHopByHopHeaders(final HttpHeaders headers) {
         // Remove headers dynamically nominated via the Connection header (RFC 7230 §6.1)
-        for (final String connectionValue : headers.getAll(HttpHeaderNames.CONNECTION)) {
-            for (final String token : connectionValue.split(",")) {
-                headers.remove(token.trim());
+        if (headers.contains(HttpHeaderNames.CONNECTION)) {
+            for (final String connectionValue : headers.getAll(HttpHeaderNames.CONNECTION)) {
+                for (final String token : connectionValue.split(",")) {
+                    headers.remove(token.trim());
+                }
             }
         }
         // Remove standard hop-by-hop headers
-        HOP_BY_HOP_HEADERS.forEach(headers::remove);
+        for (final AsciiString name : HOP_BY_HOP_HEADERS) {
+            headers.remove(name);
+        }
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} value allows a content coding,
+     * either by name or by the {@code *} wildcard, with a non-zero quality value (RFC 9110 §12.5.3).
+     *
+     * @param acceptEncoding the value of the header, may be null
+     * @param coding         the content coding, e.g. {@code gzip}
+     * @return false if the header is missing
+     */
+    public static boolean acceptsEncoding(final String acceptEncoding, final String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (final String token : acceptEncoding.split(",")) {
+            final int semicolon = token.indexOf(';');
+            final String name = (semicolon >= 0 ? token.substring(0, semicolon) : token).trim();
+            final boolean accepted = semicolon < 0 || qualityOf(token.substring(semicolon + 1)) > 0;
+            if (name.equalsIgnoreCase(coding)) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    private static double qualityOf(final String parameters) {
+        for (final String parameter : parameters.split(";")) {
+            final String trimmed = parameter.trim();
+            if (trimmed.length() > 2 && (trimmed.charAt(0) == 'q' || trimmed.charAt(0) == 'Q') && trimmed.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(trimmed.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
     }
 
     public static String formatDateHeader(java.util.Date date) {
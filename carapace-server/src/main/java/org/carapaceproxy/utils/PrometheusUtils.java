@@ -21,6 +21,7 @@ package org.carapaceproxy.utils;
 
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.Summary;
 
 /**
@@ -98,4 +99,28 @@ public class PrometheusUtils {
 
         return builder.create();
     }
+
+    /**
+     * Creates a new Histogram. The created Histogram will not be registered to metrics registry
+     *
+     * @param namespace
+     * @param name
+     * @param help
+     * @param buckets upper bounds of the buckets
+     * @param labels
+     * @return
+     */
+    public static Histogram createHistogram(String namespace, String name, String help, double[] buckets, String... labels) {
+        Histogram.Builder builder = Histogram.build()
+                .namespace(namespace)
+                .name(name)
+                .buckets(buckets)
+                .help(help);
+
+        if (labels != null && labels.length > 0) {
+            builder.labelNames(labels);
+        }
+
+        return builder.create();
+    }
 }
@@ -23,8 +23,10 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import java.util.Properties;
+import org.carapaceproxy.server.mapper.EndpointMapper;
 import org.carapaceproxy.utils.RawHttpClient;
 import org.junit.Test;
 
@@ -105,6 +107,50 @@ public class ConfigResourceTest extends UseAdminServer {
         stopServer();
     }
 
+    @Test
+    public void testBackendWeight() throws Exception {
+        Properties configuration = new Properties(HTTP_ADMIN_SERVER_CONFIG);
+        configuration.put("config.type", "database");
+        configuration.put("db.jdbc.url", "jdbc:herddb:localhost");
+        configuration.put("db.server.base.dir", tmpDir.newFolder().getAbsolutePath());
+        startServer(configuration);
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            String body = "backend.0.id=backend0\n"
+                    + "backend.0.enabled=true\n"
+                    + "backend.0.host=localhost\n"
+                    + "backend.0.port=8086\n"
+                    + "backend.0.weight=3";
+            RawHttpClient.HttpResponse resp = client.executeRequest("POST /api/config/apply HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Authorization: Basic " + credentials.toBase64() + "\r\n"
+                    + "\r\n"
+                    + body);
+            assertTrue(resp.isOk());
+
+            // applied to the current mapper, without building a new one
+            final EndpointMapper mapper = server.getMapper();
+            resp = client.post("/api/backends/backend0/weight", "weight=5", null, credentials);
+            assertTrue(resp.isOk());
+            assertSame(mapper, server.getMapper());
+            assertEquals(5, server.getMapper().getBackendWeight("backend0"));
+            resp = client.get("/api/config", credentials);
+            assertThat(resp.getBodyString(), containsString("backend.0.weight=5"));
+
+            // the weight survives the next configuration changes
+            server.updateMaintenanceMode(false);
+            assertEquals(5, server.getMapper().getBackendWeight("backend0"));
+        }
+
+        // and the restarts
+        stopServer();
+        buildNewServer();
+        startServer(configuration);
+        assertEquals(5, server.getMapper().getBackendWeight("backend0"));
+    }
+
     @Test
     public void testReconfig() throws Exception {
         Properties configuration = new Properties(HTTP_ADMIN_SERVER_CONFIG);
@@ -146,6 +146,20 @@ public class StartAPIServerTest extends UseAdminServer {
             System.out.println("s:" + s);
             assertThat(s, is("{\"result\":\"ok\",\"cachesize\":0}"));
         }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.post("/api/cache/purge/prefix", "prefix=/static/&host=localhost", null, credentials);
+            assertThat(resp.getBodyString(), is("{\"result\":\"ok\",\"purged\":0}"));
+            resp = client.post("/api/cache/purge/regex", "regex=(", null, credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
+            resp = client.post("/api/cache/purge/host", null, null, credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
+        }
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.get("/api/cache/inspect?offset=10&limit=10", credentials);
+            assertThat(resp.getBodyString(), is("[]"));
+        }
     }
 
     @Test
@@ -160,6 +174,33 @@ public class StartAPIServerTest extends UseAdminServer {
         }
     }
 
+    @Test
+    public void testBackendWeight() throws Exception {
+        Properties properties = new Properties(HTTP_ADMIN_SERVER_CONFIG);
+        properties.put("backend.0.id", "backend0");
+        properties.put("backend.0.enabled", "true");
+        properties.put("backend.0.host", "localhost");
+        properties.put("backend.0.port", "8086");
+        properties.put("backend.0.weight", "3");
+
+        startServer(properties);
+
+        try (RawHttpClient client = new RawHttpClient("localhost", 8761)) {
+            RawHttpClient.HttpResponse resp = client.get("/api/backends", credentials);
+            assertThat(resp.getBodyString(), containsString("\"weight\":3"));
+            resp = client.post("/api/backends/backend0/weight", "weight=5", null, credentials);
+            assertThat(resp.getBodyString(), is("{\"result\":\"ok\",\"weight\":5}"));
+            resp = client.get("/api/backends", credentials);
+            assertThat(resp.getBodyString(), containsString("\"weight\":5"));
+            resp = client.post("/api/backends/missing/weight", "weight=5", null, credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
+            resp = client.post("/api/backends/backend0/weight", "weight=-1", null, credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
+            resp = client.post("/api/backends/backend0/weight", null, null, credentials);
+            assertThat(resp.getStatusLine(), containsString("422"));
+        }
+    }
+
     @Test
     public void testRoutes() throws Exception {
         Properties properties = new Properties(HTTP_ADMIN_SERVER_CONFIG);
@@ -0,0 +1,251 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.backends;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.prometheus.client.CollectorRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.core.ConcurrencyLimiter;
+import org.carapaceproxy.core.EndpointKey;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AdaptiveConcurrencyTest {
+
+    @Rule
+    public WireMockRule backend = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testQueue() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                new EndpointKey("queue.localhost", 8080), new ConcurrencyLimiter.Settings(1, 1, 1, 1, 500));
+        final ConcurrencyLimiter.Permit first = limiter.acquire().block();
+        assertThat(first, notNullValue());
+        assertThat(limiter.getInFlight(), is(1));
+
+        // waits for the first one
+        final CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquire().toFuture();
+        assertThat(limiter.getQueued(), is(1));
+        assertThat(second.isDone(), is(false));
+        // the queue is full
+        assertThat(limiter.acquire().block(), nullValue());
+
+        first.release(10);
+        final ConcurrencyLimiter.Permit granted = second.get();
+        assertThat(granted, notNullValue());
+        assertThat(limiter.getQueued(), is(0));
+        assertThat(limiter.getInFlight(), is(1));
+
+        // too late
+        final long start = System.currentTimeMillis();
+        assertThat(limiter.acquire().block(), nullValue());
+        assertThat(System.currentTimeMillis() - start, greaterThan(400L));
+        assertThat(limiter.getQueued(), is(0));
+
+        granted.release(10);
+        // released once
+        granted.release(10);
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testGradient() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                new EndpointKey("gradient.localhost", 8080), new ConcurrencyLimiter.Settings(10, 2, 100, 0, 100));
+        // a saturated backend answering in constant time takes more requests
+        for (int round = 0; round < 20; round++) {
+            saturate(limiter, 10);
+        }
+        final int grown = limiter.getLimit();
+        assertThat(grown, greaterThan(10));
+
+        // when it slows down, the limit shrinks
+        for (int round = 0; round < 20; round++) {
+            saturate(limiter, 200);
+        }
+        assertThat(limiter.getLimit(), lessThan(grown));
+
+        // errors cut it by a tenth
+        final int before = limiter.getLimit();
+        limiter.acquire().block().dropped();
+        assertEquals((int) (before * 0.9), limiter.getLimit(), 1);
+    }
+
+    @Test
+    public void testClientGoesAway() throws Exception {
+        backend.stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1_000)
+                        .withBody("slow")));
+
+        try (HttpProxyServer server = new HttpProxyServer(StandardEndpointMapper::new, tmpDir.newFolder())) {
+            server.configureAtBoot(new PropertiesConfigurationStore(configuration(backend.port(), 1)));
+            server.addListener(NetworkListenerConfiguration.withDefault("localhost", 0));
+            server.start();
+            final int port = server.getLocalPort();
+            final EndpointKey key = new EndpointKey("localhost", backend.port());
+
+            // one in flight, one queued: both clients go away before the response
+            try (RawHttpClient inFlight = new RawHttpClient("localhost", port)) {
+                inFlight.sendRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                TestUtils.waitForCondition(() -> {
+                    final ConcurrencyLimiter limiter = server.getProxyRequestsManager().getConcurrencyLimiter(key);
+                    return limiter != null && limiter.getInFlight() == 1;
+                }, 10);
+                try (RawHttpClient queued = new RawHttpClient("localhost", port)) {
+                    queued.sendRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    TestUtils.waitForCondition(() -> server.getProxyRequestsManager().getConcurrencyLimiter(key).getQueued() == 1, 10);
+                }
+            }
+
+            // the slots are given back
+            final ConcurrencyLimiter limiter = server.getProxyRequestsManager().getConcurrencyLimiter(key);
+            TestUtils.waitForCondition(() -> limiter.getInFlight() == 0 && limiter.getQueued() == 0, 10);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertEquals("slow", client.get("/index.html").getBodyString());
+            }
+            TestUtils.waitForCondition(() -> limiter.getInFlight() == 0, 10);
+        }
+    }
+
+    @Test
+    public void testRemovedBackend() throws Exception {
+        backend.stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("ok")));
+
+        try (HttpProxyServer server = new HttpProxyServer(StandardEndpointMapper::new, tmpDir.newFolder())) {
+            server.configureAtBoot(new PropertiesConfigurationStore(configuration(backend.port(), 0)));
+            server.addListener(NetworkListenerConfiguration.withDefault("localhost", 0));
+            server.start();
+            final int port = server.getLocalPort();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertEquals("ok", client.get("/index.html").getBodyString());
+            }
+            final EndpointKey key = new EndpointKey("localhost", backend.port());
+            final String[] host = {"localhost_" + backend.port()};
+            assertThat(server.getProxyRequestsManager().getConcurrencyLimiter(key), notNullValue());
+            assertThat(CollectorRegistry.defaultRegistry.getSampleValue("backends_concurrency_limit", new String[]{"host"}, host), notNullValue());
+
+            // the backend moves to another port
+            server.applyDynamicConfigurationFromAPI(new PropertiesConfigurationStore(configuration(backend.port() + 1, 0)));
+            assertThat(server.getProxyRequestsManager().getConcurrencyLimiter(key), nullValue());
+            assertThat(CollectorRegistry.defaultRegistry.getSampleValue("backends_concurrency_limit", new String[]{"host"}, host), nullValue());
+        }
+    }
+
+    private static Properties configuration(final int backendPort, final int queueSize) {
+        final Properties properties = new Properties();
+        properties.put("connectionsmanager.adaptivelimit.enabled", "true");
+        properties.put("connectionsmanager.adaptivelimit.max", "1");
+        properties.put("connectionsmanager.adaptivelimit.queuesize", String.valueOf(queueSize));
+        properties.put("backend.1.id", "slow");
+        properties.put("backend.1.enabled", "true");
+        properties.put("backend.1.host", "localhost");
+        properties.put("backend.1.port", String.valueOf(backendPort));
+        properties.put("director.1.id", "director-1");
+        properties.put("director.1.backends", "slow");
+        properties.put("director.1.enabled", "true");
+        properties.put("action.1.id", "proxy-1");
+        properties.put("action.1.enabled", "true");
+        properties.put("action.1.type", ActionConfiguration.TYPE_PROXY);
+        properties.put("action.1.director", "director-1");
+        properties.put("route.100.id", "route-1");
+        properties.put("route.100.enabled", "true");
+        properties.put("route.100.match", "request.uri ~ \".*index.html.*\"");
+        properties.put("route.100.action", "proxy-1");
+        return properties;
+    }
+
+    private static void saturate(final ConcurrencyLimiter limiter, final long rttMillis) {
+        final List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        ConcurrencyLimiter.Permit permit;
+        while ((permit = limiter.acquire().block()) != null) {
+            permits.add(permit);
+        }
+        permits.forEach(p -> p.release(rttMillis));
+    }
+
+    @Test
+    public void testShedding() throws Exception {
+        backend.stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(2_000)
+                        .withBody("slow")));
+
+        try (HttpProxyServer server = new HttpProxyServer(StandardEndpointMapper::new, tmpDir.newFolder())) {
+            server.configureAtBoot(new PropertiesConfigurationStore(configuration(backend.port(), 0)));
+            server.addListener(NetworkListenerConfiguration.withDefault("localhost", 0));
+            server.start();
+            final int port = server.getLocalPort();
+
+            final CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    return client.get("/index.html").getBodyString();
+                } catch (Exception err) {
+                    throw new RuntimeException(err);
+                }
+            });
+            final EndpointKey key = new EndpointKey("localhost", backend.port());
+            TestUtils.waitForCondition(() -> {
+                final ConcurrencyLimiter limiter = server.getProxyRequestsManager().getConcurrencyLimiter(key);
+                return limiter != null && limiter.getInFlight() == 1;
+            }, 10);
+
+            // shed at once, without waiting for the slow backend
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                final long start = System.currentTimeMillis();
+                assertThat(client.get("/index.html").getStatusLine(), containsString("503"));
+                assertThat(System.currentTimeMillis() - start, lessThan(1_000L));
+            }
+            assertEquals("slow", first.get());
+            // released once the response is fully sent, the client can read it a little earlier
+            TestUtils.waitForCondition(() -> server.getProxyRequestsManager().getConcurrencyLimiter(key).getInFlight() == 0, 10);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.backends;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.carapaceproxy.server.backends.BackendHealthStatus.Status.COLD;
+import static org.carapaceproxy.server.backends.BackendHealthStatus.Status.DOWN;
+import static org.carapaceproxy.server.backends.BackendHealthStatus.Status.EJECTED;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.SequencedMap;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.core.RuntimeServerConfiguration;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.mapper.EndpointMapper;
+import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutlierDetectionTest {
+
+    @Rule
+    public WireMockRule failingBackend = new WireMockRule(0);
+
+    @Rule
+    public WireMockRule workingBackend = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testEjection() throws Exception {
+        final SequencedMap<String, BackendConfiguration> backends = new LinkedHashMap<>();
+        for (final String id : new String[]{"a", "b", "c", "d"}) {
+            backends.put(id, new BackendConfiguration(id, id + ".localhost", 8080, "/", -1));
+        }
+        final EndpointMapper mapper = mock(EndpointMapper.class);
+        when(mapper.getBackends()).thenReturn(backends);
+        final SequencedMap<String, DirectorConfiguration> directors = new LinkedHashMap<>();
+        directors.put("all", new DirectorConfiguration("all").addBackend(DirectorConfiguration.ALL_BACKENDS));
+        directors.put("alone", new DirectorConfiguration("alone").addBackend("d"));
+        when(mapper.getDirectors()).thenReturn(directors);
+        final RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+        conf.setOutlierDetectionEnabled(true);
+        conf.setOutlierMinRequests(10);
+        conf.setOutlierMaxP99(1_000);
+        conf.setOutlierEjectionTime(1);
+        conf.setOutlierMaxEjectionTime(60);
+        conf.setOutlierMaxEjectedPercent(25);
+        final BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+        final BackendHealthStatus a = hman.getBackendStatus("a");
+        final BackendHealthStatus b = hman.getBackendStatus("b");
+        final BackendHealthStatus c = hman.getBackendStatus("c");
+        final BackendHealthStatus d = hman.getBackendStatus("d");
+
+        // not enough requests to judge the backend yet
+        hman.reportResponse(a, 500, 10);
+        assertThat(a.getStatus(), is(COLD));
+
+        for (int i = 0; i < 20; i++) {
+            hman.reportResponse(a, 503, 10);
+            hman.reportResponse(b, 200, 10);
+            hman.reportError(c);
+            hman.reportResponse(d, 200, 5_000);
+        }
+        // judged once per slice of the window
+        TestUtils.waitForCondition(() -> {
+            hman.reportResponse(a, 500, 10);
+            hman.reportResponse(b, 200, 10);
+            hman.reportError(c);
+            return a.getStatus() == EJECTED;
+        }, 5);
+        assertThat(b.getStatus(), is(COLD));
+        // a quarter of the backends of the director is ejected already
+        assertThat(c.getStatus(), is(COLD));
+        // the only backend of a director is never ejected
+        assertThat(d.getStatus(), is(COLD));
+
+        // the ejection ends by itself, and the next one lasts twice as long
+        final long firstEjection = a.getEjectedUntil() - System.currentTimeMillis();
+        TestUtils.waitForCondition(() -> a.getStatus() == COLD, 5);
+        assertThat(a.getEjectedUntil(), is(0L));
+        TestUtils.waitForCondition(() -> {
+            hman.reportResponse(a, 500, 10);
+            return a.getStatus() == EJECTED;
+        }, 5);
+        assertThat(a.getEjectedUntil() - System.currentTimeMillis(), greaterThan(firstEjection));
+
+        // failing the probe is stronger than an ejection
+        a.reportAsUnreachable(System.currentTimeMillis(), "test");
+        assertThat(a.getStatus(), is(DOWN));
+    }
+
+    @Test
+    public void testTrafficAvoidsOutliers() throws Exception {
+        failingBackend.stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("failing")));
+        workingBackend.stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("working")));
+
+        try (HttpProxyServer server = new HttpProxyServer(StandardEndpointMapper::new, tmpDir.newFolder())) {
+            final Properties properties = new Properties();
+            properties.put("healthmanager.outlier.enabled", "true");
+            properties.put("healthmanager.outlier.minrequests", "5");
+            properties.put("backend.1.id", "failing");
+            properties.put("backend.1.enabled", "true");
+            properties.put("backend.1.host", "localhost");
+            properties.put("backend.1.port", String.valueOf(failingBackend.port()));
+            properties.put("backend.2.id", "working");
+            properties.put("backend.2.enabled", "true");
+            properties.put("backend.2.host", "localhost");
+            properties.put("backend.2.port", String.valueOf(workingBackend.port()));
+            properties.put("director.1.id", "director-1");
+            properties.put("director.1.backends", "failing,working");
+            properties.put("director.1.enabled", "true");
+            properties.put("action.1.id", "proxy-1");
+            properties.put("action.1.enabled", "true");
+            properties.put("action.1.type", ActionConfiguration.TYPE_PROXY);
+            properties.put("action.1.director", "director-1");
+            properties.put("route.100.id", "route-1");
+            properties.put("route.100.enabled", "true");
+            properties.put("route.100.match", "request.uri ~ \".*index.html.*\"");
+            properties.put("route.100.action", "proxy-1");
+            server.configureAtBoot(new PropertiesConfigurationStore(properties));
+            server.addListener(NetworkListenerConfiguration.withDefault("localhost", 0));
+            server.start();
+            final int port = server.getLocalPort();
+
+            // the failing backend is tried first, as long as it is not ejected
+            TestUtils.waitForCondition(() -> {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    return client.get("/index.html").getBodyString().equals("working");
+                }
+            }, 30);
+            assertThat(server.getBackendHealthManager().getBackendStatus("failing").getStatus(), is(EJECTED));
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("working", client.get("/index.html").getBodyString());
+                }
+            }
+        }
+    }
+}
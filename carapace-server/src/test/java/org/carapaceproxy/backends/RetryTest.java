@@ -0,0 +1,197 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.backends;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.carapaceproxy.server.backends.BackendHealthStatus.Status.COLD;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.carapaceproxy.configstore.PropertiesConfigurationStore;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.core.RetryBudget;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RetryTest {
+
+    @Rule
+    public WireMockRule failingBackend = new WireMockRule(0);
+
+    @Rule
+    public WireMockRule workingBackend = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testBudget() {
+        final long now = System.currentTimeMillis();
+        final RetryBudget budget = new RetryBudget(10, 0);
+        assertFalse(budget.tryRetry(now));
+        for (int i = 0; i < 100; i++) {
+            budget.recordRequest(now);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryRetry(now));
+        }
+        assertFalse(budget.tryRetry(now));
+        // the requests of the past seconds are forgotten
+        assertFalse(budget.tryRetry(now + 20_000));
+        budget.recordRequest(now + 20_000);
+        assertFalse(budget.tryRetry(now + 20_000));
+
+        // a few retries are allowed with low traffic
+        final RetryBudget minimum = new RetryBudget(10, 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(minimum.tryRetry(now));
+        }
+        assertFalse(minimum.tryRetry(now));
+    }
+
+    @Test
+    public void testRetryOnNextBackend() throws Exception {
+        try (HttpProxyServer server = startServer(true)) {
+            final int port = server.getLocalPort();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                for (int i = 0; i < 5; i++) {
+                    final RawHttpClient.HttpResponse resp = client.get("/index.html");
+                    assertThat(resp.getStatusLine(), containsString("200"));
+                    assertEquals("working", resp.getBodyString());
+                }
+            }
+            assertFalse(failingBackend.getAllServeEvents().isEmpty());
+            // a reset is not a reason to take the backend down
+            assertThat(server.getBackendHealthManager().getBackendStatus("failing").getStatus(), is(COLD));
+
+            // a request with a body could have been processed already
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                final RawHttpClient.HttpResponse resp = client.executeRequest("POST /index.html HTTP/1.1\r\n"
+                        + "Host: localhost\r\n"
+                        + "Content-Length: 4\r\n"
+                        + "Connection: close\r\n"
+                        + "\r\n"
+                        + "test");
+                assertThat(resp.getStatusLine(), containsString("503"));
+            }
+        }
+    }
+
+    @Test
+    public void testNoRetriesByDefault() throws Exception {
+        try (HttpProxyServer server = startServer(false);
+             RawHttpClient client = new RawHttpClient("localhost", server.getLocalPort())) {
+            assertThat(client.get("/index.html").getStatusLine(), containsString("503"));
+        }
+    }
+
+    @Test
+    public void testRetryKeepsCollapsedFetch() throws Exception {
+        try (HttpProxyServer server = startServer(true, ActionConfiguration.TYPE_CACHE, 500)) {
+            final int port = server.getLocalPort();
+            final ExecutorService threads = Executors.newFixedThreadPool(4);
+            try {
+                final List<Future<String>> responses = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    responses.add(threads.submit(() -> {
+                        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                            return client.get("/index.html").getBodyString();
+                        }
+                    }));
+                    if (i == 0) {
+                        // let the first one lead the fetch
+                        Thread.sleep(200);
+                    }
+                }
+                for (final Future<String> response : responses) {
+                    assertEquals("working", response.get());
+                }
+            } finally {
+                threads.shutdown();
+            }
+            // the followers waited for the retry of the leader, instead of forwarding their own requests
+            assertEquals(1, failingBackend.getAllServeEvents().size());
+            assertEquals(1, workingBackend.getAllServeEvents().size());
+        }
+    }
+
+    private HttpProxyServer startServer(final boolean retries) throws Exception {
+        return startServer(retries, ActionConfiguration.TYPE_PROXY, 0);
+    }
+
+    private HttpProxyServer startServer(final boolean retries, final String actionType, final int delay) throws Exception {
+        failingBackend.stubFor(any(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withFixedDelay(delay)
+                        .withFault(Fault.CONNECTION_RESET_BY_PEER)));
+        workingBackend.stubFor(any(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(delay)
+                        .withBody("working")));
+
+        final HttpProxyServer server = new HttpProxyServer(StandardEndpointMapper::new, tmpDir.newFolder());
+        final Properties properties = new Properties();
+        if (retries) {
+            properties.put("connectionsmanager.retry.enabled", "true");
+        }
+        properties.put("backend.1.id", "failing");
+        properties.put("backend.1.enabled", "true");
+        properties.put("backend.1.host", "localhost");
+        properties.put("backend.1.port", String.valueOf(failingBackend.port()));
+        properties.put("backend.2.id", "working");
+        properties.put("backend.2.enabled", "true");
+        properties.put("backend.2.host", "localhost");
+        properties.put("backend.2.port", String.valueOf(workingBackend.port()));
+        properties.put("director.1.id", "director-1");
+        properties.put("director.1.backends", "failing,working");
+        properties.put("director.1.enabled", "true");
+        properties.put("action.1.id", "proxy-1");
+        properties.put("action.1.enabled", "true");
+        properties.put("action.1.type", actionType);
+        properties.put("action.1.director", "director-1");
+        properties.put("route.100.id", "route-1");
+        properties.put("route.100.enabled", "true");
+        properties.put("route.100.match", "request.uri ~ \".*index.html.*\"");
+        properties.put("route.100.action", "proxy-1");
+        server.configureAtBoot(new PropertiesConfigurationStore(properties));
+        server.addListener(NetworkListenerConfiguration.withDefault("localhost", 0));
+        server.start();
+        return server;
+    }
+}
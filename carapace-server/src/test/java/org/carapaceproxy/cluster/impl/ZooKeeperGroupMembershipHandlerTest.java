@@ -24,9 +24,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.curator.test.TestingServer;
 import org.carapaceproxy.cluster.GroupMembershipHandler;
+import org.carapaceproxy.server.cache.CachePurge;
 import org.carapaceproxy.utils.TestUtils;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -237,6 +239,65 @@ public class ZooKeeperGroupMembershipHandlerTest {
         }
     }
 
+    @Test
+    public void testWatchSequentialEvent() throws Exception {
+        try (TestingServer testingServer = new TestingServer(2229, tmpDir.newFolder());) {
+            testingServer.start();
+            try (ZooKeeperGroupMembershipHandler peer1 = new ZooKeeperGroupMembershipHandler(testingServer.getConnectString(),
+                    6000, false /*acl */, peerId1, Collections.EMPTY_MAP, new Properties());
+                    ZooKeeperGroupMembershipHandler peer2 = new ZooKeeperGroupMembershipHandler(testingServer.getConnectString(),
+                            6000, false /*acl */, peerId2, Collections.EMPTY_MAP, new Properties())) {
+                peer1.start();
+                peer2.start();
+
+                List<CachePurge> received = new CopyOnWriteArrayList<>();
+                peer2.watchSequentialEvent("cachePurge", new GroupMembershipHandler.EventCallback() {
+                    @Override
+                    public void eventFired(String eventId, Map<String, Object> data) {
+                        received.add(CachePurge.fromEventData(data));
+                    }
+
+                    @Override
+                    public void reconnected() {
+
+                    }
+                });
+
+                // back-to-back purges must not be merged into the last one
+                List<CachePurge> purges = List.of(
+                        CachePurge.byHost("localhost"),
+                        CachePurge.byPrefix(null, "/static/"),
+                        CachePurge.byTag("v1")
+                );
+                for (CachePurge purge : purges) {
+                    peer1.fireSequentialEvent("cachePurge", purge.toEventData());
+                }
+                TestUtils.waitForCondition(() -> received.size() >= purges.size(), 100);
+                assertEquals(purges, received);
+
+                // self events are not fired
+                List<CachePurge> received1 = new CopyOnWriteArrayList<>();
+                peer1.watchSequentialEvent("cachePurge", new GroupMembershipHandler.EventCallback() {
+                    @Override
+                    public void eventFired(String eventId, Map<String, Object> data) {
+                        received1.add(CachePurge.fromEventData(data));
+                    }
+
+                    @Override
+                    public void reconnected() {
+
+                    }
+                });
+                peer2.fireSequentialEvent("cachePurge", CachePurge.byTag("v2").toEventData());
+                peer1.fireSequentialEvent("cachePurge", CachePurge.byTag("v3").toEventData());
+                TestUtils.waitForCondition(() -> received.size() >= 4 && !received1.isEmpty(), 100);
+                assertEquals(List.of(CachePurge.byTag("v2")), received1);
+                assertEquals(CachePurge.byTag("v3"), received.get(3));
+                assertEquals(4, received.size());
+            }
+        }
+    }
+
     @Test
     public void testPeerInfo() throws Exception {
         try (TestingServer testingServer = new TestingServer(2229, tmpDir.newFolder());) {
@@ -29,6 +29,7 @@ import static org.junit.Assert.assertNull;
 import java.net.URI;
 import java.security.KeyPair;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -113,6 +114,7 @@ public class ConfigurationStoreTest {
         props.setProperty("property.array.2", "  a1,a2, a3   ,a4      ");
         props.setProperty("property.array.3", "        ");
         props.setProperty("property.array.4", "");
+        props.setProperty("property.array.5", "b1,b2,b1");
 
         String className = this.getClass().getName();
         props.setProperty("property.class.1", className);
@@ -142,10 +144,12 @@ public class ConfigurationStoreTest {
         assertThat(store.getString("property.string.3", "default"), is("default")); // not exists
 
         assertThat(store.getValues("property.array.1", Set.of("default")), hasItems("1", "2", "3", "4"));
+        assertThat(List.copyOf(store.getValues("property.array.1")), is(List.of("1", "2", "3", "4"))); // in order
         assertThat(store.getValues("property.array.2", Set.of("default")), hasItems("a1", "a2", "a3", "a4"));
         assertThat(store.getValues("property.array.3", Set.of("default")), hasItems("default")); // no elements > default
         assertThat(store.getValues("property.array.4", Set.of("default")), hasItems("default")); // empty > default
         assertThat(store.getValues("property.array.11", Set.of("default")), hasItems("default")); // not exitst
+        TestUtils.assertThrows(ConfigurationNotValidException.class, () -> store.getValues("property.array.5")); // duplicates
 
         String DClassName = Object.class.getName();
         assertThat(store.getClassname("property.class.1", DClassName), is(className));
@@ -0,0 +1,78 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import java.util.List;
+import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
+import org.junit.Test;
+
+public class ConnectionPoolMatcherTest {
+
+    private static ConnectionPoolConfiguration pool(final String id, final String domain) {
+        return new ConnectionPoolConfiguration(id, domain, 10, 5_000, 10_000, 15_000, 20_000, 100_000, 0, 300, 60, 8, true, true);
+    }
+
+    @Test
+    public void testLiteralText() {
+        assertThat(ConnectionPoolMatcher.literalText("localhost"), is("localhost"));
+        assertThat(ConnectionPoolMatcher.literalText("www.example.com"), is("www.example.com"));
+        assertThat(ConnectionPoolMatcher.literalText("www\\.example\\.com"), is("www.example.com"));
+        assertThat(ConnectionPoolMatcher.literalText("localhost[0-9]"), is(nullValue()));
+        assertThat(ConnectionPoolMatcher.literalText(".*\\.example\\.com"), is(nullValue()));
+        assertThat(ConnectionPoolMatcher.literalText("a|b"), is(nullValue()));
+        assertThat(ConnectionPoolMatcher.literalText("\\d+"), is(nullValue()));
+        assertThat(ConnectionPoolMatcher.literalText("trailing\\"), is(nullValue()));
+    }
+
+    @Test
+    public void testSelect() {
+        final ConnectionPoolConfiguration defaultPool = pool("*", "*");
+        final ConnectionPoolConfiguration wildcard = pool("wildcard", ".*\\.example\\.com");
+        final ConnectionPoolConfiguration exact = pool("exact", "www.example.com");
+        final ConnectionPoolConfiguration local = pool("local", "localhost");
+        final ConnectionPoolConfiguration numbered = pool("numbered", "localhost[0-9]");
+
+        final ConnectionPoolMatcher matcher = new ConnectionPoolMatcher(List.of(wildcard, exact, local, numbered), defaultPool);
+        // an earlier pattern takes precedence over a later exact match
+        assertThat(matcher.select("www.example.com"), is(wildcard));
+        assertThat(matcher.select("test.example.com"), is(wildcard));
+        assertThat(matcher.select("localhost"), is(local));
+        assertThat(matcher.select("localhost3"), is(numbered));
+        assertThat(matcher.select("localhostx"), is(defaultPool));
+        // whole host name only
+        assertThat(matcher.select("xlocalhost"), is(defaultPool));
+
+        // cached results are the same
+        assertThat(matcher.select("www.example.com"), is(wildcard));
+        assertThat(matcher.select("localhostx"), is(defaultPool));
+
+        final ConnectionPoolMatcher exactFirst = new ConnectionPoolMatcher(List.of(exact, wildcard), defaultPool);
+        assertThat(exactFirst.select("www.example.com"), is(exact));
+        assertThat(exactFirst.select("test.example.com"), is(wildcard));
+        // an unescaped dot still matches any char
+        assertThat(exactFirst.select("wwwxexample.com"), is(exact));
+
+        final ConnectionPoolMatcher empty = new ConnectionPoolMatcher(List.of(), null);
+        assertThat(empty.select("localhost"), is(nullValue()));
+    }
+}
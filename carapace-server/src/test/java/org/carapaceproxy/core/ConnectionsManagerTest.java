@@ -0,0 +1,78 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertThrows;
+import java.util.List;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.ConnectionPoolConfiguration;
+import org.junit.Test;
+import reactor.netty.resources.ConnectionProvider;
+
+public class ConnectionsManagerTest {
+
+    private static ConnectionPoolConfiguration pool(final String id, final String domain, final int maxConnections) {
+        return new ConnectionPoolConfiguration(id, domain, maxConnections, 5_000, 10_000, 15_000, 20_000, 100_000, 0, 300, 60, 8, true, true);
+    }
+
+    @Test
+    public void testIncrementalReload() {
+        final BackendConfiguration backend1 = new BackendConfiguration("b1", "localhost", 8081, "/", -1);
+        final BackendConfiguration backend2 = new BackendConfiguration("b2", "localhost", 8082, "/", -1);
+
+        final RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.getConnectionPools().put("p1", pool("p1", "one\\..*", 10));
+        configuration.getConnectionPools().put("p2", pool("p2", "two\\..*", 10));
+
+        try (ConnectionsManager connectionsManager = new ConnectionsManager()) {
+            connectionsManager.reloadConfiguration(configuration, List.of(backend1));
+            final ConnectionProvider defaultProvider = connectionsManager.getConnectionProvider("other.example.com");
+            final ConnectionProvider provider1 = connectionsManager.getConnectionProvider("one.example.com");
+            final ConnectionProvider provider2 = connectionsManager.getConnectionProvider("two.example.com");
+            assertThat(provider1, is(not(sameInstance(provider2))));
+
+            // a new backend doesn't require to rebuild the pools
+            connectionsManager.reloadConfiguration(configuration, List.of(backend1, backend2));
+            assertThat(connectionsManager.getConnectionProvider("other.example.com"), is(sameInstance(defaultProvider)));
+            assertThat(connectionsManager.getConnectionProvider("one.example.com"), is(sameInstance(provider1)));
+            assertThat(connectionsManager.getConnectionProvider("two.example.com"), is(sameInstance(provider2)));
+
+            // only the changed pool is replaced
+            configuration.getConnectionPools().put("p2", pool("p2", "two\\..*", 20));
+            connectionsManager.reloadConfiguration(configuration, List.of(backend1, backend2));
+            assertThat(connectionsManager.getConnectionProvider("one.example.com"), is(sameInstance(provider1)));
+            final ConnectionProvider newProvider2 = connectionsManager.getConnectionProvider("two.example.com");
+            assertThat(newProvider2, is(not(sameInstance(provider2))));
+            assertThat(newProvider2.maxConnections(), is(20));
+
+            // dropped pools fall back to the default one
+            final ConnectionPoolConfiguration dropped = connectionsManager.findConnectionPool("one.example.com");
+            configuration.getConnectionPools().remove("p1");
+            connectionsManager.reloadConfiguration(configuration, List.of(backend2));
+            assertThat(connectionsManager.getConnectionProvider("one.example.com"), is(sameInstance(defaultProvider)));
+            assertThrows(IllegalArgumentException.class, () -> connectionsManager.getConnectionProvider(dropped));
+            assertThat(connectionsManager.getConnectionProvider("two.example.com"), is(sameInstance(newProvider2)));
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.carapaceproxy.core;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
@@ -147,6 +148,43 @@ public class Http2HeadersTest {
         );
     }
 
+    /**
+     * Cacheable requests are cleaned from the cache validators before being forwarded:
+     * the headers nominated by Connection must be stripped as well.
+     */
+    @Test
+    public void testHopByHopHeadersStrippedFromCacheableRequest() throws IOException, ConfigurationNotValidException, InterruptedException {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(HttpResponseStatus.OK.code())
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("ok"))
+        );
+        final var mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+        try (final var server = new HttpProxyServer(mapper, tmpDir.newFolder())) {
+            server.addListener(newH2CListenerConfiguration());
+            server.start();
+            final var port = server.getLocalPort();
+            HttpClient.create()
+                    .protocol(HttpProtocol.HTTP11)
+                    .headers(headers -> headers
+                            .add(HttpHeaderNames.CONNECTION, "keep-alive, X-Hop")
+                            .add(HttpHeaderNames.KEEP_ALIVE, "timeout=5, max=100")
+                            .add("X-Hop", "1")
+                            .add("X-End-To-End", "1")
+                    )
+                    .get()
+                    .uri("http://localhost:" + port + "/index.html")
+                    .response()
+                    .block();
+        }
+        verify(getRequestedFor(urlEqualTo("/index.html"))
+                .withoutHeader(HttpHeaderNames.KEEP_ALIVE.toString())
+                .withoutHeader("X-Hop")
+                .withHeader("X-End-To-End", equalTo("1"))
+        );
+    }
+
     /**
      * Hop-by-hop headers in the backend response must not be forwarded to the client.
      * A reverse proxy must strip them before sending the response (RFC 2616 §13.5.1, RFC 7230 §6.1).
@@ -35,6 +35,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpVersion;
+import io.prometheus.client.CollectorRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -552,6 +553,87 @@ public class RequestsLoggerTest {
         readFile(accessLogFilePath);
     }
 
+    @Test
+    public void testCompiledTemplate() throws Exception {
+        MockProxyRequest r = new MockProxyRequest();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.reqUri = "/index.html";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.reqProtocolVersion = HttpVersion.HTTP_1_0;
+        r.action = MapResult.builder()
+                .host("host")
+                .port(1111)
+                .action(MapResult.Action.PROXY)
+                .routeId("routeid_1")
+                .build();
+        r.userid = null;
+        r.sessionid = "sid_1";
+        ProxyRequest request = createMockRequestHandler(r);
+
+        AccessLogTemplate template = AccessLogTemplate.compile(
+                "\\<<method>\\> <uri> uid=<user_id> <unknown>b=<backend_id> <backend_time>ms tls=<tls_protocol>/<tls_cipher_suite> <http_protocol_version>",
+                "yyyy-MM-dd HH:mm"
+        );
+        assertThat(RequestsLogger.Entry.capture(request, template).render(),
+                is("<GET> /index.html uid= b=host:1111 542ms tls=n/a/n/a HTTP/1.0"));
+
+        when(request.isServedFromCache()).thenReturn(true);
+        when(request.getSslProtocol()).thenReturn("TLSv1.3");
+        template = AccessLogTemplate.compile("[<timestamp>] <backend_id> <backend_time>ms <tls_protocol>", "yyyy-MM-dd HH:mm");
+        assertThat(RequestsLogger.Entry.capture(request, template).render(),
+                is("[2018-10-23 10:10] CACHED 0ms TLSv1.3"));
+    }
+
+    @Test
+    public void testSampleOverflowPolicy() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogMaxQueueCapacity(8);
+        c.setAccessLogOverflowPolicy(RequestsLogger.OverflowPolicy.SAMPLE);
+        c.setAccessLogSamplingRate(2);
+        c.setAccessLogFormat("<uri>");
+
+        final double droppedBefore = accessLogCounter("accesslog_dropped_entries_total");
+        final double sampledOutBefore = accessLogCounter("accesslog_sampled_out_entries_total");
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+        for (int i = 0; i < 12; i++) {
+            MockProxyRequest r = new MockProxyRequest();
+            r.reqMethod = HttpMethod.GET;
+            r.reqHost = "thehost";
+            r.reqUri = "/index" + i + ".html";
+            r.remoteIp = "123.123.123.123";
+            r.localIp = "234.234.234.234";
+            r.startTs = "2018-10-23 10:10:10.000";
+            r.backendStartTs = "2018-10-23 10:10:10.542";
+            r.endTs = "2018-10-23 10:10:11.012";
+            r.action = MapResult.builder().host("host").port(1111).action(MapResult.Action.PROXY).routeId("routeid_1").build();
+            reqLogger.logRequest(createMockRequestHandler(r));
+        }
+
+        // the whole queue is written by a single batch
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        // once the queue is half full, only one entry every two is retained
+        assertThat(readFile(accessLogFilePath), is(List.of(
+                "/index0.html", "/index1.html", "/index2.html", "/index3.html",
+                "/index4.html", "/index6.html", "/index8.html", "/index10.html"
+        )));
+        // sampled out entries are not accounted as dropped because of a full queue
+        assertThat(accessLogCounter("accesslog_sampled_out_entries_total") - sampledOutBefore, is(4.0));
+        assertThat(accessLogCounter("accesslog_dropped_entries_total") - droppedBefore, is(0.0));
+    }
+
+    private static double accessLogCounter(final String name) {
+        final Double value = CollectorRegistry.defaultRegistry.getSampleValue(name);
+        return value != null ? value : 0;
+    }
+
     @Test
     public void testAccessLogRotation() throws Exception {
         stubFor(get(urlEqualTo("/index.html"))
@@ -0,0 +1,66 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.core;
+
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_FORWARDED_STRATEGY;
+import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_SSL_PROTOCOLS;
+import static org.carapaceproxy.server.config.SSLCertificateConfiguration.CertificateMode.STATIC;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static reactor.netty.http.HttpProtocol.H2;
+import static reactor.netty.http.HttpProtocol.HTTP11;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import java.util.Set;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.config.SSLCertificateConfiguration;
+import org.junit.Test;
+import reactor.netty.http.HttpProtocol;
+
+public class SslContextsCacheTest {
+
+    private static NetworkListenerConfiguration listener(final int port, final boolean ssl, final Set<HttpProtocol> protocols) {
+        return new NetworkListenerConfiguration("localhost", port, ssl, null, "*", DEFAULT_SSL_PROTOCOLS, 128, true, 300, 60, 8, 1000, DEFAULT_FORWARDED_STRATEGY, Set.of(), protocols, new DefaultChannelGroup(new DefaultEventExecutor()));
+    }
+
+    @Test
+    public void testMaximumSizeFromCertificates() throws Exception {
+        final RuntimeServerConfiguration configuration = new RuntimeServerConfiguration();
+        configuration.addCertificate(new SSLCertificateConfiguration("*", null, "cert.p12", "pwd", STATIC));
+        configuration.addListener(listener(8443, true, Set.of(HTTP11)));
+        // never less than the former fixed default
+        assertThat(SslContextsCache.maximumSize(configuration), is(1000L));
+
+        for (int i = 1; i < 3000; i++) {
+            configuration.addCertificate(new SSLCertificateConfiguration("host" + i + ".example.com", null, "cert.p12", "pwd", STATIC));
+        }
+        assertThat(SslContextsCache.maximumSize(configuration), is(3000L));
+
+        // listeners with the same TLS parameters share the contexts, the plain ones don't need any
+        configuration.addListener(listener(9443, true, Set.of(HTTP11)));
+        configuration.addListener(listener(8080, false, Set.of(HTTP11)));
+        assertThat(SslContextsCache.maximumSize(configuration), is(3000L));
+        configuration.addListener(listener(10443, true, Set.of(HTTP11, H2)));
+        assertThat(SslContextsCache.maximumSize(configuration), is(6000L));
+
+        configuration.setSslContextsCacheMaxSize(500);
+        assertThat(SslContextsCache.maximumSize(configuration), is(500L));
+    }
+}
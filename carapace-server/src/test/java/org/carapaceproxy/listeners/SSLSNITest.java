@@ -150,6 +150,52 @@ public class SSLSNITest {
         }
     }
 
+    @Test
+    public void testLazySslContexts() throws Exception {
+        String nonLocalhost = InetAddress.getLocalHost().getCanonicalHostName();
+        String certificate = TestUtils.deployResource("localhost.p12", tmpDir.getRoot());
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", String.valueOf("it <b>works</b> !!".length()))
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = new HttpProxyServer(mapper, tmpDir.getRoot())) {
+            server.getCurrentConfiguration().setSslContextsLazy(true);
+            server.addCertificate(new SSLCertificateConfiguration(nonLocalhost, null, certificate, "testproxy", STATIC));
+            server.addCertificate(new SSLCertificateConfiguration("*.example.com", null, certificate, "testproxy", STATIC));
+            server.addCertificate(new SSLCertificateConfiguration("www.example.org", null, certificate, "testproxy", STATIC));
+            server.addListener(new NetworkListenerConfiguration(nonLocalhost, 0, true, null, nonLocalhost /* default */, DEFAULT_SSL_PROTOCOLS, 128, true, 300, 60, 8, 1000, DEFAULT_FORWARDED_STRATEGY, Set.of(), Set.of(HTTP11), new DefaultChannelGroup(new DefaultEventExecutor())));
+            server.start();
+            int port = server.getLocalPort();
+
+            // only the default certificate is booted with the listener
+            assertEquals(1, server.getListeners().getSslContexts().size());
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient(nonLocalhost, port, true, "test.example.com")) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                    assertTrue(resp.toString().contains("it <b>works</b> !!"));
+                }
+                // built at the first handshake, then reused
+                assertEquals(2, server.getListeners().getSslContexts().size());
+            }
+
+            // unchanged certificates are kept on reload, a changed one is booted at its next handshake
+            server.getCurrentConfiguration().getCertificates().put("*.example.com", new SSLCertificateConfiguration("*.example.com", Set.of("example.com"), certificate, "testproxy", STATIC));
+            server.getListeners().reloadCurrentConfiguration();
+            assertEquals(2, server.getListeners().getSslContexts().size());
+            try (RawHttpClient client = new RawHttpClient(nonLocalhost, port, true, "test.example.com")) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+            }
+            assertEquals(3, server.getListeners().getSslContexts().size());
+        }
+    }
+
     private static SSLCertificateConfiguration chooseCert(final HttpProxyServer server, final String sniHostname, final String defaultCertificate) {
         return CertificatesUtils.chooseCertificate(server.getListeners().getCurrentConfiguration(), sniHostname, defaultCertificate);
     }
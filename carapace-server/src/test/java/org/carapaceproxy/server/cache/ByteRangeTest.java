@@ -0,0 +1,60 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import java.util.List;
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testParse() {
+        assertThat(ByteRange.parse("bytes=0-9", 100), is(List.of(new ByteRange(0, 9))));
+        assertThat(ByteRange.parse("bytes=90-", 100), is(List.of(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=90-200", 100), is(List.of(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=-10", 100), is(List.of(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=-200", 100), is(List.of(new ByteRange(0, 99))));
+        assertThat(ByteRange.parse("Bytes=0-0, 5-9 ,-1", 100), is(List.of(new ByteRange(0, 0), new ByteRange(5, 9), new ByteRange(99, 99))));
+        assertThat(new ByteRange(5, 9).length(), is(5L));
+        assertThat(new ByteRange(5, 9).toContentRange(100), is("bytes 5-9/100"));
+    }
+
+    @Test
+    public void testNotSatisfiable() {
+        assertThat(ByteRange.parse("bytes=100-", 100), is(List.of()));
+        assertThat(ByteRange.parse("bytes=-0", 100), is(List.of()));
+        assertThat(ByteRange.parse("bytes=0-", 0), is(List.of()));
+        // the satisfiable ones only
+        assertThat(ByteRange.parse("bytes=200-300,0-1", 100), is(List.of(new ByteRange(0, 1))));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertThat(ByteRange.parse(null, 100), is(nullValue()));
+        assertThat(ByteRange.parse("items=0-9", 100), is(nullValue()));
+        assertThat(ByteRange.parse("bytes=9-0", 100), is(nullValue()));
+        assertThat(ByteRange.parse("bytes=a-b", 100), is(nullValue()));
+        assertThat(ByteRange.parse("bytes=5", 100), is(nullValue()));
+        assertThat(ByteRange.parse("bytes=" + "0-0,".repeat(ByteRange.MAX_RANGES + 1), 100), is(nullValue()));
+    }
+}
@@ -20,10 +20,14 @@
 package org.carapaceproxy.server.cache;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.hamcrest.CoreMatchers.allOf;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.startsWith;
@@ -332,4 +336,112 @@ public class CacheExpireTest {
             }, 10);
         }
     }
+
+    @Test
+    public void testServeStaleWhileRevalidate() throws Exception {
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            server.getCache().getStats().resetCacheMetrics();
+
+            String lastModified = HttpUtils.formatDateHeader(new Date(System.currentTimeMillis() - 60_000));
+            stubFor(get(urlEqualTo("/index-with-expire.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                            .withHeader("Expires", HttpUtils.formatDateHeader(new Date(System.currentTimeMillis() + 2_000)))
+                            .withHeader("Last-Modified", lastModified)
+                            .withHeader("Cache-Control", "public, stale-while-revalidate=60")
+                            .withBody("it <b>works</b> !!"))
+            );
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index-with-expire.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+                assertThat(resp.getHeaderLines(), not(hasItem(startsWithIgnoringCase("X-Cached"))));
+            }
+
+            Thread.sleep(3_000);
+            stubFor(get(urlEqualTo("/index-with-expire.html"))
+                    .withHeader("If-Modified-Since", equalTo(lastModified))
+                    .willReturn(aResponse()
+                            .withStatus(304)
+                            .withHeader("Expires", HttpUtils.formatDateHeader(new Date(System.currentTimeMillis() + 60_000))))
+            );
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                // expired, served at once while refreshed in background
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index-with-expire.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+                assertThat(resp.getHeaderLines(), hasItem(allOf(startsWithIgnoringCase("X-Cached"), containsString("stale"))));
+            }
+
+            TestUtils.waitForCondition(() -> server.getCache().inspectCache().stream()
+                    .allMatch(entry -> (long) entry.get("expiresTs") > System.currentTimeMillis()), 10);
+            verify(1, getRequestedFor(urlEqualTo("/index-with-expire.html")).withHeader("If-Modified-Since", equalTo(lastModified)));
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index-with-expire.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+                assertThat(resp.getHeaderLines(), allOf(
+                        hasItem(startsWithIgnoringCase("X-Cached")),
+                        not(hasItem(allOf(startsWithIgnoringCase("X-Cached"), containsString("stale"))))
+                ));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index-with-expire.html")));
+        }
+    }
+
+    @Test
+    public void testServeStaleIfError() throws Exception {
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            stubFor(get(urlEqualTo("/index-with-expire.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                            .withHeader("Expires", HttpUtils.formatDateHeader(new Date(System.currentTimeMillis() + 2_000)))
+                            .withHeader("Cache-Control", "public, stale-if-error=60")
+                            .withBody("it <b>works</b> !!"))
+            );
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index-with-expire.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+            }
+
+            Thread.sleep(3_000);
+            stubFor(get(urlEqualTo("/index-with-expire.html"))
+                    .willReturn(aResponse()
+                            .withStatus(503)
+                            .withBody("down"))
+            );
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                // expired, but better than an error
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index-with-expire.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertThat(resp.getStatusLine(), startsWith("HTTP/1.1 200"));
+                assertTrue(resp.toString().contains("it <b>works</b> !!"));
+                assertThat(resp.getHeaderLines(), hasItem(allOf(startsWithIgnoringCase("X-Cached"), containsString("stale"))));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index-with-expire.html")));
+        }
+    }
+
+    @Test
+    public void testParseStaleDirectives() {
+        assertEquals(30, ContentsCache.parseDirectiveSeconds("public, stale-while-revalidate=30", "stale-while-revalidate", 0));
+        assertEquals(60, ContentsCache.parseDirectiveSeconds("max-age=10,Stale-If-Error=60", "stale-if-error", 0));
+        assertEquals(5, ContentsCache.parseDirectiveSeconds("public", "stale-if-error", 5));
+        assertEquals(5, ContentsCache.parseDirectiveSeconds("stale-if-error=abc", "stale-if-error", 5));
+        assertEquals(5, ContentsCache.parseDirectiveSeconds("stale-if-error-x=10", "stale-if-error", 5));
+    }
 }
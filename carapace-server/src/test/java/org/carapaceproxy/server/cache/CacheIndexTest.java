@@ -0,0 +1,77 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.junit.Test;
+
+public class CacheIndexTest {
+
+    private static ContentKey key(final String uri) {
+        return new ContentKey("GET", "http", "localhost", uri);
+    }
+
+    @Test
+    public void testRetainIf() throws Exception {
+        final CacheIndex index = new CacheIndex();
+        final Set<ContentKey> cached = ConcurrentHashMap.newKeySet();
+        index.add(key("/evicted.html"), Set.of("v1"));
+        index.add(key("/cached.html"), Set.of("v1"));
+        cached.add(key("/cached.html"));
+
+        // the contents can be stored while the index is pruned
+        index.retainIf(key -> {
+            if (key.equals(key("/evicted.html")) && !cached.contains(key("/stored.html"))) {
+                CompletableFuture.runAsync(() -> {
+                    cached.add(key("/stored.html"));
+                    index.add(key("/stored.html"), Set.of("v1"));
+                }).orTimeout(10, TimeUnit.SECONDS).join();
+            }
+            return cached.contains(key);
+        });
+        assertThat(index.findByTag("v1").size(), is(2));
+        assertThat(index.findByPrefix("localhost", "/evicted").isEmpty(), is(true));
+        assertThat(index.findByHost("localhost").containsAll(List.of(key("/cached.html"), key("/stored.html"))), is(true));
+    }
+
+    @Test
+    public void testRetainIfAddedBack() {
+        final CacheIndex index = new CacheIndex();
+        final Set<ContentKey> cached = ConcurrentHashMap.newKeySet();
+        index.add(key("/index.html"), Set.of());
+        final boolean[] scanned = {false};
+        index.retainIf(key -> {
+            if (scanned[0]) {
+                // cached again after the scan
+                return true;
+            }
+            scanned[0] = true;
+            return cached.contains(key);
+        });
+        assertThat(index.findByHost("localhost"), is(List.of(key("/index.html"))));
+    }
+}
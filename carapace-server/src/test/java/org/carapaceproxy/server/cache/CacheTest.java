@@ -20,9 +20,13 @@
 package org.carapaceproxy.server.cache;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_FORWARDED_STRATEGY;
 import static org.carapaceproxy.server.config.NetworkListenerConfiguration.DEFAULT_SSL_PROTOCOLS;
 import static org.carapaceproxy.server.config.SSLCertificateConfiguration.CertificateMode.STATIC;
@@ -38,9 +42,18 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.util.concurrent.DefaultEventExecutor;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
 import org.carapaceproxy.EndpointStats;
@@ -497,6 +510,549 @@ public class CacheTest {
         }
     }
 
+    @Test
+    @Parameters({"true", "false"})
+    public void testServeFromSlabs(boolean withContentLength) throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(withContentLength
+                        ? aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "text/html")
+                                .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                                .withBody("it <b>works</b> !!")
+                        : aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "text/html")
+                                .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheMaxSize(1024 * 1024);
+            currentConfiguration.setCacheSlabsEnabled(true);
+            currentConfiguration.setCacheSlabSize(64 * 1024);
+            server.getCache().reloadConfiguration(currentConfiguration);
+
+            server.start();
+            int port = server.getLocalPort();
+            server.getCache().getStats().resetCacheMetrics();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.getBodyString().contains("it <b>works</b> !!"));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertTrue(resp.getBodyString().contains("it <b>works</b> !!"));
+                    assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                }
+            }
+
+            assertEquals(1, server.getCache().getCacheSize());
+            assertEquals(2, server.getCache().getStats().getHits());
+            assertEquals(1, server.getCache().getStats().getMisses());
+            // the body is in the smallest slot
+            assertEquals(SlabStore.MIN_SLOT_SIZE, server.getCache().getStats().getDirectMemoryUsed());
+            assertEquals(0, server.getCache().getStats().getHeapMemoryUsed());
+        }
+    }
+
+    @Test
+    public void testServeFromDiskAfterRestart() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+        String diskPath = tmpDir.newFolder().getAbsolutePath();
+
+        for (int restart = 0; restart < 2; restart++) {
+            try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+                RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+                currentConfiguration.setCacheDiskEnabled(true);
+                currentConfiguration.setCacheDiskPath(diskPath);
+                server.getCache().reloadConfiguration(currentConfiguration);
+
+                server.start();
+                int port = server.getLocalPort();
+                server.getCache().getStats().resetCacheMetrics();
+
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertThat(resp.getBodyString(), is("it <b>works</b> !!"));
+                    // written to disk when the first server closed
+                    assertThat(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")), is(restart > 0));
+                }
+            }
+        }
+        verify(1, getRequestedFor(urlEqualTo("/index.html")));
+    }
+
+    @Test
+    public void testReopenDiskAfterReload() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheDiskEnabled(true);
+            currentConfiguration.setCacheDiskPath(tmpDir.newFolder().getAbsolutePath());
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertThat(client.get("/index.html").getBodyString(), is("it <b>works</b> !!"));
+            }
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 1, 10);
+
+            // the contents in memory are written to the store being closed, then found in the new one
+            currentConfiguration.setCacheDiskMaxSize(currentConfiguration.getCacheDiskMaxSize() * 2);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            TestUtils.waitForCondition(() -> {
+                DiskStore disk = server.getCache().getDiskStore();
+                return disk != null && disk.getSize() == 1;
+            }, 10);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.get("/index.html");
+                assertThat(resp.getBodyString(), is("it <b>works</b> !!"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+        }
+        verify(1, getRequestedFor(urlEqualTo("/index.html")));
+    }
+
+    @Test
+    public void testCollapseConcurrentMisses() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(1_000)));
+        stubFor(get(urlEqualTo("/private.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "private")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(1_000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            server.getCache().getStats().resetCacheMetrics();
+
+            for (String uri : List.of("/index.html", "/private.html")) {
+                ExecutorService threads = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<String>> responses = new ArrayList<>();
+                    for (int i = 0; i < 4; i++) {
+                        responses.add(threads.submit(() -> {
+                            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                                return client.executeRequest("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBodyString();
+                            }
+                        }));
+                        if (i == 0) {
+                            // let the first one lead the fetch
+                            Thread.sleep(200);
+                        }
+                    }
+                    for (Future<String> response : responses) {
+                        assertTrue(response.get().contains("it <b>works</b> !!"));
+                    }
+                } finally {
+                    threads.shutdown();
+                }
+            }
+
+            // followers of the cacheable fetch, fall through for the private one
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+            verify(4, getRequestedFor(urlEqualTo("/private.html")));
+            assertEquals(1, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testServeVaryVariants() throws Exception {
+        for (String lang : List.of("en", "it")) {
+            stubFor(get(urlEqualTo("/index.html"))
+                    .withHeader("X-Lang", equalTo(lang))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withHeader("Vary", "X-Lang")
+                            .withBody("it works in " + lang)));
+        }
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            server.getCache().getStats().resetCacheMetrics();
+
+            for (int i = 0; i < 2; i++) {
+                for (String lang : List.of("en", "it")) {
+                    try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                        RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nX-Lang: " + lang + "\r\n\r\n");
+                        assertThat(resp.getBodyString(), is("it works in " + lang));
+                        assertThat(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")), is(i > 0));
+                    }
+                }
+            }
+
+            verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("X-Lang", equalTo("en")));
+            verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("X-Lang", equalTo("it")));
+            assertEquals(2, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testKeepVaryVariantsOnDisk() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "X-Lang")
+                        .withBody("it works")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCacheDiskEnabled(true);
+            currentConfiguration.setCacheDiskPath(tmpDir.newFolder().getAbsolutePath());
+            // straight to disk
+            currentConfiguration.setCacheDiskThreshold(1);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nX-Lang: en\r\n\r\n");
+                assertThat(resp.getBodyString(), is("it works"));
+            }
+            server.getCache().getDiskStore().flush();
+
+            // the variations of the contents in the disk tier are not forgotten
+            server.getCache().runEvictor();
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nX-Lang: en\r\n\r\n");
+                assertThat(resp.getBodyString(), is("it works"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testNotCacheVaryAll() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "*")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertThat(resp.getBodyString(), is("it <b>works</b> !!"));
+                }
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(0, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        Map<String, String> tags = Map.of(
+                "/static/a.css", "static v1",
+                "/static/b.css", "static, v1",
+                "/api/data.json", "api",
+                "/index.html", "");
+        tags.forEach((uri, tag) -> stubFor(get(urlEqualTo(uri))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Surrogate-Key", tag)
+                        .withBody("it <b>works</b> !!"))));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            List<String> requests = new ArrayList<>();
+            tags.keySet().forEach(uri -> requests.add("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            requests.add("GET /index.html HTTP/1.1\r\nHost: other.local:8080\r\n\r\n");
+            for (String request : requests) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    assertThat(client.executeRequest(request).getBodyString(), is("it <b>works</b> !!"));
+                }
+            }
+            ContentsCache cache = server.getCache();
+            assertEquals(5, cache.getCacheSize());
+
+            // sorted by uri, then by key
+            List<Map<String, Object>> page = new ArrayList<>();
+            cache.inspectCache(null, 1, 2, page::add);
+            assertThat(page.stream().map(entry -> entry.get("uri")).toList(), is(List.of("/index.html", "/index.html")));
+            assertThat(page.stream().map(entry -> entry.get("host")).toList(), is(List.of("localhost", "other.local:8080")));
+            page.clear();
+            cache.inspectCache("other.local", 0, 10, page::add);
+            assertEquals(1, page.size());
+
+            assertEquals(2, server.purgeCache(CachePurge.byTag("static")));
+            assertEquals(1, server.purgeCache(CachePurge.byPrefix(null, "/api/")));
+            assertEquals(1, server.purgeCache(CachePurge.byRegex("LOCALHOST", "\\.html$")));
+            assertEquals(0, server.purgeCache(CachePurge.byTag("v1")));
+            assertEquals(1, server.purgeCache(CachePurge.byHost("other.local")));
+            // released asynchronously
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 0, 5);
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /static/a.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/static/a.css")));
+        }
+
+        // as broadcast to the other peers
+        for (CachePurge purge : List.of(CachePurge.byHost("localhost"), CachePurge.byPrefix(null, "/static/"), CachePurge.byTag("v1"))) {
+            assertEquals(purge, CachePurge.fromEventData(purge.toEventData()));
+        }
+    }
+
+    @Test
+    public void testServePrecompressed() throws Exception {
+        String body = "it <b>works</b> !!".repeat(100);
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", body.length() + "")
+                        .withBody(body)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCachePrecompressionThreshold(0);
+            server.getCache().reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertThat(resp.getBodyString(), is(body));
+            }
+            // compressed in background
+            TestUtils.waitForCondition(() -> server.getCache().getCacheSize() == 1, 10);
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: br;q=0.9, gzip\r\n\r\n");
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.equalsIgnoreCase("content-encoding: gzip\r\n")));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.equalsIgnoreCase("vary: accept-encoding\r\n")));
+                assertTrue(resp.getBody().length < body.length());
+                try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(resp.getBody()))) {
+                    assertThat(new String(gzip.readAllBytes(), StandardCharsets.UTF_8), is(body));
+                }
+            }
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.toLowerCase().startsWith("content-encoding")));
+                assertThat(resp.getBodyString(), is(body));
+            }
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testPrecompressionOutdatedOrBusy() throws Exception {
+        String body = "it <b>works</b> !!".repeat(100);
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", body.length() + "")
+                        .withBody(body)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+            currentConfiguration.setCachePrecompressionThreshold(0);
+            ContentsCache cache = server.getCache();
+            cache.reloadConfiguration(currentConfiguration);
+            server.start();
+            int port = server.getLocalPort();
+
+            // the compressor is busy
+            ThreadPoolExecutor compressor = (ThreadPoolExecutor) cache.getCompressor();
+            CountDownLatch busy = new CountDownLatch(1);
+            compressor.execute(() -> await(busy));
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertThat(resp.getBodyString(), is(body));
+            }
+            // purged while queued
+            TestUtils.waitForCondition(() -> compressor.getQueue().size() == 1, 10);
+            cache.purge(CachePurge.byHost("localhost"));
+            busy.countDown();
+            TestUtils.waitForCondition(() -> compressor.getActiveCount() == 0 && compressor.getQueue().isEmpty(), 10);
+            assertThat(cache.getCacheSize(), is(0));
+
+            // the queue is full
+            CountDownLatch full = new CountDownLatch(1);
+            compressor.execute(() -> await(full));
+            TestUtils.waitForCondition(() -> compressor.getActiveCount() == 1 && compressor.getQueue().isEmpty(), 10);
+            while (compressor.getQueue().remainingCapacity() > 0) {
+                compressor.execute(() -> await(full));
+            }
+            // cached uncompressed at once
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertThat(resp.getBodyString(), is(body));
+            }
+            TestUtils.waitForCondition(() -> cache.getCacheSize() == 1, 10);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+                assertThat(resp.getBodyString(), is(body));
+            }
+            full.countDown();
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    @Parameters({"false", "true"})
+    public void testServeRangesFromCache(boolean onDisk) throws Exception {
+        String body = "0123456789abcdefghij";
+        stubFor(get(urlEqualTo("/video.mp4"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "video/mp4")
+                        .withHeader("Content-Length", body.length() + "")
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody(body)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true, false);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            if (onDisk) {
+                RuntimeServerConfiguration currentConfiguration = server.getCurrentConfiguration();
+                currentConfiguration.setCacheDiskEnabled(true);
+                currentConfiguration.setCacheDiskPath(tmpDir.newFolder().getAbsolutePath());
+                // straight to disk
+                currentConfiguration.setCacheDiskThreshold(1);
+                server.getCache().reloadConfiguration(currentConfiguration);
+            }
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                // the whole body is fetched to be cached
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 200 OK\r\n"));
+                assertThat(resp.getBodyString(), is(body));
+            }
+            TestUtils.waitForCondition(() -> {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    return client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                            .getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached"));
+                }
+            }, 10);
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 206 Partial Content\r\n"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.equalsIgnoreCase("content-range: bytes 2-5/20\r\n")));
+                assertThat(resp.getBodyString(), is("2345"));
+            }
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=-3\r\nIf-Range: \"v1\"\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 206 Partial Content\r\n"));
+                assertThat(resp.getBodyString(), is("hij"));
+            }
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-1,10-\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 206 Partial Content\r\n"));
+                String contentType = resp.getHeaderLines().stream()
+                        .filter(h -> h.toLowerCase().startsWith("content-type:"))
+                        .findFirst()
+                        .orElseThrow();
+                assertTrue(contentType.contains("multipart/byteranges; boundary="));
+                String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()).trim();
+                assertThat(resp.getBodyString(), is("\r\n--" + boundary + "\r\n"
+                        + "content-type: video/mp4\r\n"
+                        + "content-range: bytes 0-1/20\r\n\r\n"
+                        + "01"
+                        + "\r\n--" + boundary + "\r\n"
+                        + "content-type: video/mp4\r\n"
+                        + "content-range: bytes 10-19/20\r\n\r\n"
+                        + "abcdefghij"
+                        + "\r\n--" + boundary + "--\r\n"));
+            }
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=20-\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.equalsIgnoreCase("content-range: bytes */20\r\n")));
+            }
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                // changed meanwhile, the whole body
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /video.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\nIf-Range: \"v0\"\r\n\r\n");
+                assertThat(resp.getStatusLine(), is("HTTP/1.1 200 OK\r\n"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.equalsIgnoreCase("accept-ranges: bytes\r\n")));
+                assertThat(resp.getBodyString(), is(body));
+            }
+
+            verify(getRequestedFor(urlEqualTo("/video.mp4")).withoutHeader("Range"));
+            verify(0, getRequestedFor(urlEqualTo("/video.mp4")).withHeader("Range", matching(".*")));
+        }
+    }
+
     @Test
     public void testServeFromCacheWithConnectionClose() throws Exception {
         stubFor(get(urlEqualTo("/index.html"))
@@ -0,0 +1,135 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+public class CollapsedFetchTest {
+
+    private static final ContentsCache.ContentKey KEY = new ContentsCache.ContentKey("GET", "http", "localhost", "/index.html");
+
+    private final Map<ContentsCache.ContentKey, CollapsedFetch> pendingFetches = new ConcurrentHashMap<>();
+
+    private CollapsedFetch lead(final long maxSize) {
+        final CollapsedFetch fetch = new CollapsedFetch(KEY, pendingFetches, maxSize);
+        pendingFetches.put(KEY, fetch);
+        return fetch;
+    }
+
+    private static ByteBuf chunk(final String text) {
+        return Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testReplayToFollowers() {
+        final CollapsedFetch fetch = lead(0);
+        final CollapsedFetch.Follower follower = fetch.join();
+        fetch.responseReceived(KEY, HttpResponseStatus.OK, new DefaultHttpHeaders());
+        final ByteBuf first = chunk("it <b>");
+        final ByteBuf second = chunk("works</b> !!");
+        fetch.chunkReceived(first);
+        fetch.chunkReceived(second);
+        fetch.complete();
+        assertThat(pendingFetches.isEmpty(), is(true));
+
+        assertThat(follower.response().block(Duration.ofSeconds(10)), is(notNullValue()));
+        final List<ByteBuf> body = follower.body().collectList().block(Duration.ofSeconds(10));
+        final StringBuilder text = new StringBuilder();
+        body.forEach(chunk -> {
+            text.append(chunk.toString(StandardCharsets.US_ASCII));
+            chunk.release();
+        });
+        assertThat(text.toString(), is("it <b>works</b> !!"));
+        follower.leave();
+        // only the leader keeps the chunks
+        assertThat(first.refCnt(), is(1));
+        assertThat(second.refCnt(), is(1));
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testNotKeptWithoutFollowers() {
+        final CollapsedFetch fetch = lead(0);
+        fetch.responseReceived(KEY, HttpResponseStatus.OK, new DefaultHttpHeaders());
+        final ByteBuf data = chunk("it <b>works</b> !!");
+        fetch.chunkReceived(data);
+        // cannot be replayed from the start anymore
+        assertThat(fetch.join(), is(nullValue()));
+        assertThat(pendingFetches.isEmpty(), is(true));
+        assertThat(data.refCnt(), is(1));
+        data.release();
+        fetch.complete();
+    }
+
+    @Test
+    public void testTooBigToShare() {
+        final CollapsedFetch fetch = lead(10);
+        final CollapsedFetch.Follower follower = fetch.join();
+        // unknown length
+        final HttpHeaders headers = new DefaultHttpHeaders().add(HttpHeaderNames.CONTENT_TYPE, "text/html");
+        fetch.responseReceived(KEY, HttpResponseStatus.OK, headers);
+        final ByteBuf first = chunk("it <b>");
+        final ByteBuf second = chunk("works</b> !!");
+        fetch.chunkReceived(first);
+        fetch.chunkReceived(second);
+        assertThat(pendingFetches.isEmpty(), is(true));
+        // the follower falls through
+        assertThat(follower.response().block(Duration.ofSeconds(10)), is(nullValue()));
+        follower.leave();
+        assertThat(first.refCnt(), is(1));
+        first.release();
+        second.release();
+        fetch.complete();
+    }
+
+    @Test
+    public void testUnknownLengthSharedOnceComplete() {
+        final CollapsedFetch fetch = lead(100);
+        final CollapsedFetch.Follower follower = fetch.join();
+        fetch.responseReceived(KEY, HttpResponseStatus.OK, new DefaultHttpHeaders());
+        final ByteBuf data = chunk("it <b>works</b> !!");
+        fetch.chunkReceived(data);
+        // not yet
+        assertThat(follower.response().timeout(Duration.ofMillis(100), Mono.empty()).block(), is(nullValue()));
+        fetch.complete();
+        assertThat(follower.response().block(Duration.ofSeconds(10)).status(), is(HttpResponseStatus.OK));
+        follower.body().doOnNext(ByteBuf::release).blockLast(Duration.ofSeconds(10));
+        follower.leave();
+        assertThat(data.refCnt(), is(1));
+        data.release();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.carapaceproxy.server.cache.ContentsCache.CachedContent;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskStoreTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static ContentKey key(final String uri) {
+        return new ContentKey("GET", "http", "localhost", uri);
+    }
+
+    private static CachedContent content(final String body) {
+        final CachedContent content = new CachedContent();
+        content.status = HttpResponseStatus.OK;
+        content.headers = new DefaultHttpHeaders().add(HttpHeaderNames.CONTENT_TYPE, "text/html");
+        content.expiresTs = System.currentTimeMillis() + 60_000;
+        content.lastModified = 1_000;
+        final ByteBuf chunk = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+        content.addChunk(chunk, ByteBufAllocator.DEFAULT);
+        chunk.release();
+        return content;
+    }
+
+    private static void write(final DiskStore store, final String uri, final String body) {
+        final CachedContent content = content(body);
+        store.write(key(uri), content);
+        content.clear();
+    }
+
+    private static String readBody(final CachedContent content) throws IOException {
+        final ContentsCache.DiskBody body = content.getDiskBody();
+        try (FileChannel channel = FileChannel.open(body.file(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) body.length());
+            channel.read(buffer, body.position());
+            return new String(buffer.array(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testWriteAndReload() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024)) {
+            write(store, "/index.html", "it <b>works</b> !!");
+            write(store, "/other.html", "other");
+            store.flush();
+
+            final CachedContent stored = store.get(key("/index.html"));
+            assertThat(stored.isOnDisk(), is(true));
+            assertThat(stored.getStatus(), is(HttpResponseStatus.OK));
+            assertThat(stored.getHeaders().get(HttpHeaderNames.CONTENT_TYPE), is("text/html"));
+            assertThat(stored.getLastModified(), is(1_000L));
+            assertThat(readBody(stored), is("it <b>works</b> !!"));
+            assertThat(store.get(key("/missing.html")), is(nullValue()));
+
+            store.remove(key("/other.html"));
+            assertThat(store.get(key("/other.html")), is(nullValue()));
+        }
+
+        // the index is rebuilt, removals included
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024)) {
+            assertThat(store.getSize(), is(1));
+            assertThat(readBody(store.get(key("/index.html"))), is("it <b>works</b> !!"));
+            assertThat(store.get(key("/other.html")), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void testStaleContents() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024)) {
+            // expired, but still to be served while revalidating
+            final CachedContent stale = content("stale");
+            stale.expiresTs = System.currentTimeMillis() - 1_000;
+            stale.staleWhileRevalidate = 60_000;
+            stale.staleIfError = 120_000;
+            assertTrue(store.write(key("/stale.html"), stale));
+            stale.clear();
+            final CachedContent expired = content("expired");
+            expired.expiresTs = System.currentTimeMillis() - 1_000;
+            assertThat(store.write(key("/expired.html"), expired), is(false));
+            expired.clear();
+            store.flush();
+
+            final CachedContent stored = store.get(key("/stale.html"));
+            assertThat(stored, is(notNullValue()));
+            assertThat(stored.isExpired(System.currentTimeMillis()), is(true));
+            assertThat(stored.staleWhileRevalidate, is(60_000L));
+            assertThat(stored.staleIfError, is(120_000L));
+            store.evictExpired();
+            assertThat(store.getSize(), is(1));
+        }
+
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024)) {
+            assertThat(store.getSize(), is(1));
+            assertThat(readBody(store.get(key("/stale.html"))), is("stale"));
+        }
+    }
+
+    @Test
+    public void testRemoveWhileWriting() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024 * 1024)) {
+            // keep the writer busy on a content, until released
+            final CachedContent blocker = content("blocker");
+            blocker.headers = new DefaultHttpHeaders() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException err) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.iterator();
+                }
+            };
+            store.write(key("/blocker.html"), blocker);
+            blocker.clear();
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            write(store, "/purged.html", "purged");
+            write(store, "/cleared.html", "cleared");
+
+            // purged while being written, and while still waiting for the writer
+            store.remove(key("/blocker.html"));
+            store.remove(key("/purged.html"));
+            release.countDown();
+            store.flush();
+            assertThat(store.get(key("/blocker.html")), is(nullValue()));
+            assertThat(store.get(key("/purged.html")), is(nullValue()));
+            assertThat(readBody(store.get(key("/cleared.html"))), is("cleared"));
+
+            write(store, "/written.html", "written");
+            store.clear();
+            store.flush();
+            assertThat(store.get(key("/written.html")), is(nullValue()));
+            assertThat(store.getSize(), is(0));
+        }
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024 * 1024)) {
+            assertThat(store.getSize(), is(0));
+        }
+    }
+
+    @Test
+    public void testTruncatedSegment() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024 * 1024)) {
+            write(store, "/first.html", "first");
+            write(store, "/second.html", "second");
+            store.flush();
+        }
+        // a crash while writing the second content
+        final Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024 * 1024)) {
+            assertThat(readBody(store.get(key("/first.html"))), is("first"));
+            assertThat(store.get(key("/second.html")), is(nullValue()));
+            // appended after the last complete content
+            write(store, "/third.html", "third");
+            store.flush();
+        }
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024 * 1024)) {
+            assertThat(store.getSize(), is(2));
+            assertThat(readBody(store.get(key("/third.html"))), is("third"));
+        }
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        final String body = "x".repeat(200);
+        try (DiskStore store = new DiskStore(directory, 1024, 256)) {
+            for (int i = 0; i < 10; i++) {
+                write(store, "/" + i + ".html", body);
+                store.flush();
+            }
+            assertThat(store.getDiskUsage() <= 1024, is(true));
+            // the oldest contents are deleted with their segments
+            assertThat(store.get(key("/0.html")), is(nullValue()));
+            assertThat(store.get(key("/9.html")), is(notNullValue()));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertThat(files.count() <= 4, is(true));
+            }
+
+            final int size = store.getSize();
+            assertThat(store.clear(), is(size));
+            store.flush();
+            assertThat(store.getDiskUsage(), is(0L));
+        }
+    }
+
+    @Test
+    public void testWriteAll() throws Exception {
+        final Path directory = tmpDir.newFolder().toPath();
+        try (DiskStore store = new DiskStore(directory, 1024 * 1024, 1024)) {
+            final CachedContent index = content("index");
+            final CachedContent expired = content("expired");
+            expired.expiresTs = System.currentTimeMillis() - 1;
+            store.writeAll(Map.of(key("/index.html"), index, key("/expired.html"), expired));
+            index.clear();
+            expired.clear();
+            // written in background
+            store.flush();
+            assertThat(readBody(store.get(key("/index.html"))), is("index"));
+            assertThat(store.get(key("/expired.html")), is(nullValue()));
+        }
+    }
+}
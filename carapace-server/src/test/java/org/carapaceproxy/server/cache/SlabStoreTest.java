@@ -0,0 +1,283 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class SlabStoreTest {
+
+    @Test
+    public void testSizeClasses() {
+        final SlabStore store = new SlabStore(0, 1024);
+        assertThat(store.sizeClassOf(1).getSlotSize(), is(SlabStore.MIN_SLOT_SIZE));
+        assertThat(store.sizeClassOf(64).getSlotSize(), is(64));
+        assertThat(store.sizeClassOf(65).getSlotSize(), is(80));
+        assertThat(store.sizeClassOf(1024).getSlotSize(), is(1024));
+        int previous = 0;
+        for (int size = 1; size <= 1024; size++) {
+            final int slotSize = store.sizeClassOf(size).getSlotSize();
+            assertTrue(slotSize >= size);
+            assertTrue(slotSize >= previous);
+            previous = slotSize;
+        }
+    }
+
+    @Test
+    public void testSlotsAreReused() {
+        final SlabStore store = new SlabStore(0, 1024);
+        final int slotSize = store.sizeClassOf(100).getSlotSize();
+        // a slab holds a whole number of slots
+        final long slabSize = (1024 / slotSize) * slotSize;
+        final ByteBuf first = store.allocate(100);
+        assertThat(first.capacity(), is(slotSize));
+        assertThat(store.getAllocatedBytes(), is(slabSize));
+        final ByteBuf second = store.allocate(100);
+        assertThat(store.getAllocatedBytes(), is(slabSize));
+        assertThat(store.getUsedBytes(), is(2L * slotSize));
+
+        first.release();
+        assertThat(store.getAllocatedBytes(), is(slabSize));
+        second.release();
+        // empty slabs are freed
+        assertThat(store.getAllocatedBytes(), is(0L));
+        assertThat(store.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    public void testCapacity() {
+        final SlabStore store = new SlabStore(2048, 1024);
+        final ByteBuf first = store.allocate(1000);
+        final ByteBuf second = store.allocate(1000);
+        assertThat(store.getAllocatedBytes(), is(2048L));
+        // no room for another slab, nor for a dedicated one
+        assertThat(store.allocate(100), is(nullValue()));
+        assertThat(store.allocate(4096), is(nullValue()));
+
+        first.release();
+        final ByteBuf other = store.allocate(100);
+        assertThat(other, is(notNullValue()));
+        other.release();
+        second.release();
+        assertThat(store.getAllocatedBytes(), is(0L));
+
+        final ByteBuf large = store.allocate(1500);
+        assertThat(large.capacity(), is(1500));
+        assertThat(store.getAllocatedBytes(), is(1500L));
+        large.release();
+        assertThat(store.getAllocatedBytes(), is(0L));
+    }
+
+    @Test
+    public void testSlicesKeepTheSlot() {
+        final SlabStore store = new SlabStore(0, 1024);
+        final ByteBuf slot = store.allocate(5);
+        slot.writeBytes("hello".getBytes(StandardCharsets.US_ASCII));
+        final ByteBuf slice = slot.retainedSlice();
+        slot.release();
+        assertThat(store.getUsedBytes(), is((long) SlabStore.MIN_SLOT_SIZE));
+        assertThat(slice.toString(StandardCharsets.US_ASCII), is("hello"));
+        slice.release();
+        assertThat(store.getAllocatedBytes(), is(0L));
+    }
+
+    @Test
+    public void testCompactContent() {
+        final SlabStore store = new SlabStore(0, 1024);
+        final ContentsCache.CachedContent content = new ContentsCache.CachedContent();
+        final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        addChunk(content, "it <b>", allocator);
+        addChunk(content, "works</b> !!", allocator);
+        assertThat(content.chunks.size(), is(2));
+
+        assertTrue(content.compact(store));
+        assertThat(content.chunks.size(), is(0));
+        assertThat(content.getBodySize(), is(18L));
+        assertThat(content.getDirectSize(), is((long) store.sizeClassOf(18).getSlotSize()));
+        assertThat(content.getHeapSize(), is(0L));
+
+        final List<ByteBuf> chunks = content.getChunks();
+        assertThat(chunks.size(), is(1));
+        assertThat(chunks.get(0).toString(StandardCharsets.US_ASCII), is("it <b>works</b> !!"));
+        content.clear();
+        // still referenced by the reader
+        assertThat(store.getUsedBytes(), is(content.getDirectSize()));
+        chunks.get(0).release();
+        assertThat(store.getAllocatedBytes(), is(0L));
+    }
+
+    @Test
+    public void testEvictionMakesRoom() {
+        final int slabSize = 1024;
+        // a slab for every size class, and no more
+        final SlabStore store = new SlabStore(SlabStore.minCapacity(slabSize), slabSize);
+        final CaffeineCacheImpl cache = new CaffeineCacheImpl(new CacheStats(), 0, LoggerFactory.getLogger(SlabStoreTest.class));
+        final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        int count = 0;
+        long admitted = 0;
+        ContentsCache.ContentKey last = null;
+        final List<Integer> slotSizes = new ArrayList<>();
+        for (int size = SlabStore.MIN_SLOT_SIZE; size < slabSize; size = store.sizeClassOf(size + 1).getSlotSize()) {
+            slotSizes.add(size);
+        }
+        slotSizes.add(slabSize);
+        assertThat(slotSizes.size(), is(store.getSizeClassesCount()));
+        // fill every size class many times over the capacity
+        for (int round = 0; round < 20; round++) {
+            for (int size : slotSizes) {
+                final ContentsCache.CachedContent content = new ContentsCache.CachedContent();
+                content.status = HttpResponseStatus.OK;
+                content.headers = new DefaultHttpHeaders();
+                content.expiresTs = System.currentTimeMillis() + 60_000;
+                addChunk(content, "x".repeat(size), allocator);
+                assertTrue("content of " + size + " bytes not admitted", content.compact(store, sizeClass -> evict(cache, store, sizeClass)));
+                last = new ContentsCache.ContentKey("GET", "http", "localhost", "/" + count++);
+                cache.put(last, content);
+                admitted += size;
+                assertTrue(store.getAllocatedBytes() <= SlabStore.minCapacity(slabSize));
+            }
+        }
+        assertTrue(admitted > 5 * SlabStore.minCapacity(slabSize));
+        // the least recently used contents made room for the new ones
+        assertTrue(cache.getSize() < count);
+        assertThat(cache.peek(last), is(notNullValue()));
+        cache.close();
+    }
+
+    @Test
+    public void testEvictionWithinSizeClass() {
+        final int slabSize = 1024;
+        final SlabStore store = new SlabStore(SlabStore.minCapacity(slabSize), slabSize);
+        final CaffeineCacheImpl cache = new CaffeineCacheImpl(new CacheStats(), 0, LoggerFactory.getLogger(SlabStoreTest.class));
+        final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        final int small = SlabStore.MIN_SLOT_SIZE;
+        final int slots = slabSize / small;
+        // the least recently used contents are of another size class
+        final List<ContentsCache.ContentKey> others = new ArrayList<>();
+        for (int i = 0; i < store.getSizeClassesCount() - 1; i++) {
+            final ContentsCache.CachedContent content = newContent("y".repeat(slabSize), allocator);
+            assertTrue(content.compact(store));
+            final ContentsCache.ContentKey key = new ContentsCache.ContentKey("GET", "http", "localhost", "/other/" + i);
+            cache.put(key, content);
+            others.add(key);
+        }
+        final SlabStore.SizeClass sizeClass = store.sizeClassOf(small);
+        for (int i = 0; i < slots; i++) {
+            final ContentsCache.CachedContent content = newContent("x".repeat(small), allocator);
+            assertTrue(content.compact(store));
+            cache.put(new ContentsCache.ContentKey("GET", "http", "localhost", "/" + i), content);
+        }
+        assertThat(store.allocate(small), is(nullValue()));
+
+        final int[] evictions = {0};
+        final ContentsCache.CachedContent content = newContent("x".repeat(small), allocator);
+        assertTrue(content.compact(store, evicted -> {
+            evictions[0]++;
+            return evict(cache, store, evicted);
+        }));
+        assertTrue(content.hasSlotIn(store, sizeClass));
+        // a single content of the same size class made room
+        assertThat(evictions[0], is(1));
+        for (ContentsCache.ContentKey key : others) {
+            assertThat(cache.peek(key), is(notNullValue()));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testEvictionsAreCapped() {
+        final SlabStore store = new SlabStore(1024, 1024);
+        final ByteBuf full = store.allocate(1000);
+        final int[] evictions = {0};
+        // nothing gets freed
+        assertThat(store.allocate(100, sizeClass -> {
+            evictions[0]++;
+            return true;
+        }), is(nullValue()));
+        assertThat(evictions[0], is(SlabStore.MAX_EVICTIONS_PER_ALLOCATION));
+        full.release();
+    }
+
+    @Test
+    public void testCompactOnHeap() {
+        final SlabStore store = new SlabStore(1024, 1024);
+        final ByteBuf full = store.allocate(1000);
+        final ContentsCache.CachedContent content = new ContentsCache.CachedContent();
+        final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        addChunk(content, "it <b>", allocator);
+        addChunk(content, "works</b> !!", allocator);
+        assertThat(content.compact(store), is(false));
+
+        content.compactOnHeap();
+        assertThat(content.chunks.size(), is(1));
+        assertThat(content.getDirectSize(), is(0L));
+        assertThat(content.getHeapSize(), is(18L));
+        assertThat(content.hasSlotIn(store, null), is(false));
+        final List<ByteBuf> chunks = content.getChunks();
+        assertThat(chunks.get(0).toString(StandardCharsets.US_ASCII), is("it <b>works</b> !!"));
+        chunks.forEach(ByteBuf::release);
+        content.clear();
+        full.release();
+    }
+
+    @Test
+    public void testMinCapacity() {
+        final SlabStore store = new SlabStore(0, 1024);
+        assertThat(SlabStore.minCapacity(1024), is(1024L * store.getSizeClassesCount()));
+        // the default slabs fit the default size of the cache
+        assertTrue(SlabStore.minCapacity(1024 * 1024) <= 100 * 1024 * 1024);
+    }
+
+    /**
+     * As the cache does, the contents of the same size class first.
+     */
+    private static boolean evict(final CaffeineCacheImpl cache, final SlabStore store, final SlabStore.SizeClass sizeClass) {
+        return sizeClass != null && cache.evictColdest(content -> content.hasSlotIn(store, sizeClass), 32)
+                || cache.evictColdest(content -> content.hasSlotIn(store, null), 32);
+    }
+
+    private static ContentsCache.CachedContent newContent(final String text, final ByteBufAllocator allocator) {
+        final ContentsCache.CachedContent content = new ContentsCache.CachedContent();
+        content.status = HttpResponseStatus.OK;
+        content.headers = new DefaultHttpHeaders();
+        content.expiresTs = System.currentTimeMillis() + 60_000;
+        addChunk(content, text, allocator);
+        return content;
+    }
+
+    private static void addChunk(final ContentsCache.CachedContent content, final String text, final ByteBufAllocator allocator) {
+        final ByteBuf chunk = Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII);
+        content.addChunk(chunk, allocator);
+        chunk.release();
+    }
+}
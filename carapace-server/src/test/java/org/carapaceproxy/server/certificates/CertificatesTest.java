@@ -80,6 +80,7 @@ import org.carapaceproxy.api.UseAdminServer;
 import org.carapaceproxy.api.response.FormValidationResponse;
 import org.carapaceproxy.configstore.CertificateData;
 import org.carapaceproxy.configstore.ConfigurationStore;
+import org.carapaceproxy.core.ListeningChannel;
 import org.carapaceproxy.server.certificates.ocsp.OcspStaplingManager;
 import org.carapaceproxy.server.config.SSLCertificateConfiguration;
 import org.carapaceproxy.utils.CertificatesUtils;
@@ -520,6 +521,11 @@ public class CertificatesTest extends UseAdminServer {
         store.saveCertificate(cert);
         assertEquals(DynamicCertificateState.ORDERING, dcMan.getStateOfCertificate("localhost"));
 
+        // a connection established before the renewal has to survive it
+        final ListeningChannel listeningChannel = server.getListeners().getListeningChannels().values().iterator().next();
+        final RawHttpClient keptAlive = new RawHttpClient("localhost", port, true, "localhost");
+        assertEquals("it <b>works</b> !!", keptAlive.get("/index.html", credentials).getBodyString());
+
         // ACME mocking
         ACMEClient ac = mock(ACMEClient.class);
         when(ac.getLogin()).thenReturn(mock(Login.class));
@@ -546,6 +552,13 @@ public class CertificatesTest extends UseAdminServer {
             assertNotNull(obtainedChain);
             assertEquals(renewed.get(0), obtainedChain[0]);
         }
+
+        // the listener has not been rebound
+        assertSame(listeningChannel, server.getListeners().getListeningChannels().values().iterator().next());
+        try (keptAlive) {
+            assertEquals("it <b>works</b> !!", keptAlive.get("/index.html", credentials).getBodyString());
+            assertEquals(chain1[0], keptAlive.getServerCertificate()[0]);
+        }
     }
 
     @Test
@@ -0,0 +1,100 @@
+package org.carapaceproxy.server.mapper;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConsistentHashBackendSelectorTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testStickySessions() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, ConsistentHashBackendSelector::build);
+            mapper.addBackend(new BackendConfiguration("a", "localhost", 8081, "/", -1));
+            mapper.addBackend(new BackendConfiguration("b", "localhost", 8082, "/", -1));
+            mapper.addBackend(new BackendConfiguration("c", "localhost", 8083, "/", -1));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("a").addBackend("b").addBackend("c"));
+            mapper.addDirector(new DirectorConfiguration("director-all").addBackend(DirectorConfiguration.ALL_BACKENDS));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            ConsistentHashBackendSelector selector = ConsistentHashBackendSelector.build(server.getMapper());
+            Map<String, Integer> spread = new HashMap<>();
+            for (int i = 0; i < 3_000; i++) {
+                List<String> backends = selector.selectBackends("user" + i, "session" + i, "director");
+                assertThat(backends, containsInAnyOrder("a", "b", "c"));
+                assertEquals(backends, selector.selectBackends(null, "session" + i, "director"));
+                assertEquals(backends, selector.selectBackends("other", "session" + i, "director-all"));
+                // the user id is used when there is no session
+                assertEquals(List.copyOf(backends), selector.selectBackends("session" + i, null, "director"));
+                spread.merge(backends.get(0), 1, Integer::sum);
+            }
+            assertThat(spread.size(), is(3));
+            spread.values().forEach(count -> assertThat(count, greaterThan(600)));
+
+            assertThat(selector.selectBackends(null, null, "director"), containsInAnyOrder("a", "b", "c"));
+            assertThat(selector.selectBackends(null, null, "missing"), is(List.of()));
+        }
+    }
+
+    @Test
+    public void testMinimalDisruption() {
+        final ConsistentHashBackendSelector.Ring ring = new ConsistentHashBackendSelector.Ring(List.of("a", "b", "c", "d"));
+        final ConsistentHashBackendSelector.Ring larger = new ConsistentHashBackendSelector.Ring(List.of("a", "b", "c", "d", "e"));
+        final ConsistentHashBackendSelector.Ring smaller = new ConsistentHashBackendSelector.Ring(List.of("a", "c", "d"));
+        final Random random = new Random(42);
+        int moved = 0;
+        final int keys = 10_000;
+        for (int i = 0; i < keys; i++) {
+            final long hash = random.nextLong();
+            final List<String> before = ring.walk(hash);
+            final String added = larger.walk(hash).get(0);
+            if (!added.equals(before.get(0))) {
+                // only the keys taken by the new backend move
+                assertEquals("e", added);
+                moved++;
+            }
+            // when a backend is removed its keys move to its follower on the ring, the others stay
+            final String removed = smaller.walk(hash).get(0);
+            assertEquals(before.get(0).equals("b") ? before.get(1) : before.get(0), removed);
+        }
+        assertThat(moved, greaterThan(keys / 10));
+        assertThat(moved, lessThan(keys * 3 / 10));
+    }
+}
@@ -23,6 +23,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.hamcrest.CoreMatchers.allOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -31,8 +32,15 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SequencedMap;
 import org.carapaceproxy.core.EndpointKey;
 import org.carapaceproxy.core.RuntimeServerConfiguration;
 import org.carapaceproxy.server.backends.BackendHealthCheck;
@@ -40,6 +48,7 @@ import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
 import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -225,4 +234,71 @@ public class HealthCheckTest {
             assertThat(lastProbe.httpBody(), is("Ok..."));
         }
     }
+
+    @Test
+    public void testParallelProbes() throws Exception {
+        final int count = 6;
+        final SequencedMap<String, BackendConfiguration> backends = new LinkedHashMap<>();
+        // each backend on its own port, not to share the probe connection
+        final List<WireMockServer> servers = new ArrayList<>();
+        try {
+            for (int i = 1; i <= count; i++) {
+                final WireMockServer server = new WireMockServer(options().dynamicPort());
+                servers.add(server);
+                server.start();
+                server.stubFor(get(urlEqualTo("/slow" + i + ".html"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withFixedDelay(1_000)
+                                .withBody("Ok..."))
+                );
+                final BackendConfiguration backend = new BackendConfiguration("slow" + i, "127.0.0.1", server.port(), "/slow" + i + ".html", -1);
+                backends.put(backend.id(), backend);
+            }
+            final EndpointMapper mapper = mock(EndpointMapper.class);
+            when(mapper.getBackends()).thenReturn(backends);
+            final RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+            final BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+
+            final long startTs = System.currentTimeMillis();
+            hman.run();
+            final long elapsed = System.currentTimeMillis() - startTs;
+
+            final Map<EndpointKey, BackendHealthStatus> status = hman.getBackendsSnapshot();
+            assertThat(status.size(), is(count));
+            for (final BackendConfiguration backend : backends.values()) {
+                final BackendHealthCheck lastProbe = status.get(backend.hostPort()).getLastProbe();
+                assertThat(lastProbe.ok(), is(true));
+                assertThat(lastProbe.httpBody(), is("Ok..."));
+            }
+            // probing one after the other would take a second per backend
+            assertThat(elapsed, lessThan(count * 1_000L / 2));
+            hman.stop();
+        } finally {
+            servers.forEach(WireMockServer::stop);
+        }
+    }
+
+    @Test
+    public void testStopCancelsAllRounds() throws Exception {
+        stubFor(get(urlEqualTo("/slow.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(3_000)
+                        .withBody("Ok..."))
+        );
+        final BackendConfiguration backend = new BackendConfiguration("slow", "localhost", wireMockRule.port(), "/slow.html", -1);
+        final EndpointMapper mapper = new TestEndpointMapper(backend, false);
+        final RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+        final BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+        hman.setPeriod(1);
+        hman.start();
+        // the probe of the first round is still running while the next rounds start
+        TestUtils.waitForCondition(() -> !wireMockRule.getAllServeEvents().isEmpty(), 10);
+        Thread.sleep(1_500);
+        hman.stop();
+
+        Thread.sleep(3_000);
+        assertThat(hman.getBackendStatus(backend.hostPort()).getLastProbe(), is(nullValue()));
+    }
 }
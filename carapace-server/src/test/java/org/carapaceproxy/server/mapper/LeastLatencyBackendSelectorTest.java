@@ -0,0 +1,88 @@
+package org.carapaceproxy.server.mapper;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LeastLatencyBackendSelectorTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testPreferFasterAndLessLoadedBackends() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, LeastLatencyBackendSelector::build);
+            mapper.addBackend(new BackendConfiguration("slow", "localhost", 8081, "/", -1));
+            mapper.addBackend(new BackendConfiguration("fast", "localhost", 8082, "/", -1));
+            mapper.addBackend(new BackendConfiguration("busy", "localhost", 8083, "/", -1));
+            mapper.addBackend(new BackendConfiguration("down", "localhost", 8084, "/", -1));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("slow").addBackend("fast").addBackend("busy"));
+            mapper.addDirector(new DirectorConfiguration("director-all").addBackend(DirectorConfiguration.ALL_BACKENDS));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            EndpointMapper mapper = server.getMapper();
+            BackendHealthManager health = mapper.getBackendHealthManager();
+            for (int i = 0; i < 10; i++) {
+                health.getBackendStatus("slow").recordLatency(100);
+                health.getBackendStatus("fast").recordLatency(5);
+                health.getBackendStatus("busy").recordLatency(5);
+                health.getBackendStatus("down").recordLatency(1);
+                health.getBackendStatus("busy").incrementConnections();
+            }
+            health.getBackendStatus("down").reportAsUnreachable(System.currentTimeMillis(), "test");
+            assertEquals(30, health.getBackendStatus("slow").getLatencyEwma(), 70);
+
+            LeastLatencyBackendSelector selector = LeastLatencyBackendSelector.build(mapper);
+            Map<String, Integer> preferred = new HashMap<>();
+            for (int i = 0; i < 1_000; i++) {
+                List<String> backends = selector.selectBackends(null, null, "director");
+                assertThat(backends, containsInAnyOrder("slow", "fast", "busy"));
+                preferred.merge(backends.get(0), 1, Integer::sum);
+            }
+            // the slow one loses against both, the busy one against the fast one
+            assertThat(preferred.containsKey("slow"), is(false));
+            assertThat(preferred.get("fast"), greaterThan(preferred.get("busy")));
+
+            for (int i = 0; i < 1_000; i++) {
+                List<String> backends = selector.selectBackends(null, null, "director-all");
+                assertThat(backends, containsInAnyOrder("slow", "fast", "busy", "down"));
+                assertThat(backends.get(0).equals("down"), is(false));
+            }
+            assertThat(selector.selectBackends(null, null, "missing"), is(List.of()));
+        }
+    }
+}
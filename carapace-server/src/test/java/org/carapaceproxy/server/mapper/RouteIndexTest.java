@@ -0,0 +1,148 @@
+/*
+ * Licensed to Diennea S.r.l. under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Diennea S.r.l. licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.carapaceproxy.server.mapper;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.carapaceproxy.core.ProxyRequest;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import org.junit.Test;
+
+public class RouteIndexTest {
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/api/", RouteIndex.literalPrefix("/api/.*"));
+        assertEquals("/api/", RouteIndex.literalPrefix("^/api/.*"));
+        assertEquals("/static/img.", RouteIndex.literalPrefix("/static/img\\..*"));
+        assertEquals("/ap", RouteIndex.literalPrefix("/api?/.*"));
+        assertEquals("/api", RouteIndex.literalPrefix("/api+/.*"));
+        assertEquals("/ap", RouteIndex.literalPrefix("/api{0,2}"));
+        assertEquals("/", RouteIndex.literalPrefix("/\\d+"));
+        assertEquals("", RouteIndex.literalPrefix(".*index.html.*"));
+        assertEquals("", RouteIndex.literalPrefix("/a.*|/b.*"));
+        assertEquals("", RouteIndex.literalPrefix("(?i)/api/.*"));
+    }
+
+    @Test
+    public void testRequiredConstraints() throws Exception {
+        assertEquals(
+                Set.of("a.example.com"),
+                RouteIndex.requiredHosts(parse("request.headers.host = \"a.example.com\" and request.uri ~ \"/x.*\""))
+        );
+        assertEquals(
+                Set.of("a.example.com", "b.example.com"),
+                RouteIndex.requiredHosts(parse("request.headers.host = \"a.example.com\" or request.headers.host = \"b.example.com\""))
+        );
+        assertNull(RouteIndex.requiredHosts(parse("request.headers.host = \"a.example.com\" or secure")));
+        assertNull(RouteIndex.requiredHosts(parse("not request.headers.host = \"a.example.com\"")));
+        assertEquals("/api/", RouteIndex.requiredUriPrefix(parse("request.uri ~ \"/api/.*\" and secure")));
+        assertEquals("/api/v", RouteIndex.requiredUriPrefix(parse("request.uri ~ \"/api/v1/.*\" or request.uri ~ \"/api/v2/.*\"")));
+        assertNull(RouteIndex.requiredUriPrefix(parse("request.uri ~ \"/api/.*\" or secure")));
+        assertNull(RouteIndex.requiredUriPrefix(parse("all")));
+    }
+
+    @Test
+    public void testFirstMatchWins() throws Exception {
+        final List<RouteConfiguration> routes = new ArrayList<>();
+        routes.add(route("catch-images", "request.uri ~ \".*\\.png\""));
+        routes.add(route("host-a-api", "request.headers.host = \"a.example.com\" and request.uri ~ \"/api/.*\""));
+        routes.add(route("api", "request.uri ~ \"/api/.*\""));
+        routes.add(route("host-a", "request.headers.host = \"a.example.com\""));
+        routes.add(new RouteConfiguration("disabled", "proxy-all", false, parse("request.headers.host = \"b.example.com\"")));
+        routes.add(route("host-b", "request.headers.host = \"b.example.com\""));
+        routes.add(route("all", "all"));
+        final RouteIndex index = RouteIndex.build(routes);
+
+        assertEquals("catch-images", firstMatch(index, "a.example.com", "/api/logo.png"));
+        assertEquals("host-a-api", firstMatch(index, "a.example.com", "/api/users"));
+        assertEquals("api", firstMatch(index, "b.example.com", "/api/users"));
+        assertEquals("host-a", firstMatch(index, "a.example.com", "/index.html"));
+        assertEquals("host-b", firstMatch(index, "b.example.com", "/index.html"));
+        assertEquals("all", firstMatch(index, "c.example.com", "/index.html"));
+
+        assertEquals(
+                List.of("catch-images", "host-a-api", "api", "host-a", "all"),
+                index.candidates(context("a.example.com", "/api/users")).stream().map(RouteConfiguration::getId).toList()
+        );
+    }
+
+    @Test
+    public void testCandidatesDoNotGrowWithRoutes() throws Exception {
+        for (final int size : new int[]{10, 100, 1_000, 5_000}) {
+            final List<RouteConfiguration> routes = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                routes.add(route("route-" + i, "request.headers.host = \"host" + i + ".example.com\" and request.uri ~ \"/app" + i + "/.*\""));
+                routes.add(route("path-" + i, "request.uri ~ \"/path" + i + "/.*\""));
+            }
+            routes.add(route("all", "all"));
+            final RouteIndex index = RouteIndex.build(routes);
+
+            final int target = size / 2;
+            final List<RouteConfiguration> candidates = index.candidates(context("host" + target + ".example.com", "/path" + target + "/index.html"));
+            assertThat(candidates.size(), lessThanOrEqualTo(3));
+            assertEquals("path-" + target, firstMatch(index, "host" + target + ".example.com", "/path" + target + "/index.html"));
+            assertEquals("route-" + target, firstMatch(index, "host" + target + ".example.com", "/app" + target + "/index.html"));
+            assertEquals("all", firstMatch(index, "unknown.example.com", "/index.html"));
+        }
+    }
+
+    private static String firstMatch(final RouteIndex index, final String host, final String uri) {
+        final MatchingContext context = context(host, uri);
+        for (final RouteConfiguration route : index.candidates(context)) {
+            if (route.isEnabled() && route.getMatcher().matches(context)) {
+                return route.getId();
+            }
+        }
+        return null;
+    }
+
+    private static RouteConfiguration route(final String id, final String condition) throws Exception {
+        return new RouteConfiguration(id, "proxy-all", true, parse(condition));
+    }
+
+    private static RequestMatcher parse(final String condition) throws Exception {
+        return new RequestMatchParser(condition).parse();
+    }
+
+    private static MatchingContext context(final String host, final String uri) {
+        final Map<String, String> properties = Map.of(RouteIndex.PROPERTY_HOST, host, ProxyRequest.PROPERTY_URI, uri);
+        return new MatchingContext() {
+            @Override
+            public String getProperty(final String name) {
+                return properties.getOrDefault(name, "");
+            }
+
+            @Override
+            public boolean isSecure() {
+                return false;
+            }
+        };
+    }
+}
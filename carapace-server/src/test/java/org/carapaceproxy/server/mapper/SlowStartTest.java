@@ -0,0 +1,120 @@
+package org.carapaceproxy.server.mapper;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import java.util.HashMap;
+import java.util.Map;
+import org.carapaceproxy.core.EndpointKey;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.SafeBackendSelector;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SlowStartTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testRamp() {
+        final long warmup = 60_000;
+        final BackendHealthStatus status = new BackendHealthStatus(new EndpointKey("localhost", 8080), warmup);
+        // disabled by default
+        assertThat(status.getWeight(), is(1.0));
+
+        status.setSlowStart(0.1, false);
+        final long now = System.currentTimeMillis();
+        status.reportAsUnreachable(now - warmup / 2, "test");
+        status.reportAsReachable(now);
+        assertThat(status.getStatus(), is(BackendHealthStatus.Status.COLD));
+        assertThat(status.getWeight(), closeTo(0.55, 0.01));
+
+        status.setSlowStart(0.1, true);
+        assertThat(status.getWeight(), closeTo(Math.sqrt(0.1), 0.01));
+
+        // at the end of the warmup it gets the full share
+        status.reportAsReachable(now + warmup);
+        assertThat(status.getStatus(), is(BackendHealthStatus.Status.STABLE));
+        assertThat(status.getWeight(), is(1.0));
+
+        status.reportAsUnreachable(now, "test");
+        assertThat(status.getWeight(), is(1.0));
+        status.reportAsReachable(now);
+        assertThat(status.getWeight(), closeTo(0.1, 0.01));
+    }
+
+    @Test
+    public void testSelectorsApplyWeights() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, SafeBackendSelector::new);
+            mapper.addBackend(new BackendConfiguration("cold", "localhost", 8081, "/", -1));
+            mapper.addBackend(new BackendConfiguration("stable", "localhost", 8082, "/", -1));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("cold").addBackend("stable"));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            final EndpointMapper mapper = server.getMapper();
+            final BackendHealthManager health = mapper.getBackendHealthManager();
+            final BackendHealthStatus cold = health.getBackendStatus("cold");
+            final BackendHealthStatus stable = health.getBackendStatus("stable");
+            final long now = System.currentTimeMillis();
+            cold.setWarmupPeriod(600_000);
+            cold.setSlowStart(0.1, false);
+            cold.reportAsUnreachable(now, "test");
+            cold.reportAsReachable(now);
+            stable.reportAsReachable(now + 600_000);
+
+            // the cold one counts as if handling 9 more connections
+            final SafeBackendSelector safe = new SafeBackendSelector(mapper);
+            assertThat(safe.selectBackends(null, null, "director"), contains("stable", "cold"));
+            for (int i = 0; i < 8; i++) {
+                stable.incrementConnections();
+            }
+            assertThat(safe.selectBackends(null, null, "director"), contains("stable", "cold"));
+            stable.incrementConnections();
+            stable.incrementConnections();
+            assertThat(safe.selectBackends(null, null, "director"), contains("cold", "stable"));
+            for (int i = 0; i < 10; i++) {
+                stable.decrementConnections();
+            }
+
+            // about one time out of eleven the cold one comes first
+            final RandomBackendSelector random = RandomBackendSelector.build(mapper);
+            final Map<String, Integer> first = new HashMap<>();
+            for (int i = 0; i < 10_000; i++) {
+                first.merge(random.selectBackends(null, null, "director").get(0), 1, Integer::sum);
+            }
+            assertThat(first.get("cold"), greaterThan(500));
+            assertThat(first.get("cold"), lessThan(1_500));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.carapaceproxy.server.mapper;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+
+import static org.carapaceproxy.core.ProxyRequest.PROPERTY_URI;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.carapaceproxy.core.EndpointKey;
+import org.carapaceproxy.core.HttpProxyServer;
+import org.carapaceproxy.server.backends.BackendHealthStatus;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WeightedRoundRobinBackendSelectorTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testSmoothSequence() {
+        // the example of nginx
+        assertArrayEquals(new int[]{0, 0, 1, 0, 2, 0, 0}, WeightedRoundRobinBackendSelector.sequence(new int[]{5, 1, 1}));
+        // reduced by the greatest common divisor
+        assertArrayEquals(new int[]{0, 1, 0}, WeightedRoundRobinBackendSelector.sequence(new int[]{200, 100}));
+        // too long rounds are scaled down
+        int[] sequence = WeightedRoundRobinBackendSelector.sequence(new int[]{1_000_000, 999_999, 1});
+        assertThat(sequence.length, lessThanOrEqualTo(WeightedRoundRobinBackendSelector.MAX_SCHEDULE_LENGTH));
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, WeightedRoundRobinBackendSelector::build);
+            mapper.addBackend(backend("big", 8081, 3));
+            mapper.addBackend(backend("small", 8082, 1));
+            mapper.addBackend(backend("drained", 8083, 0));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("big").addBackend("small").addBackend("drained"));
+            mapper.addDirector(new DirectorConfiguration("director-all").addBackend(DirectorConfiguration.ALL_BACKENDS));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            final EndpointMapper mapper = server.getMapper();
+            final WeightedRoundRobinBackendSelector selector = WeightedRoundRobinBackendSelector.build(mapper);
+            Map<String, Integer> spread = new HashMap<>();
+            int run = 0;
+            String previous = null;
+            for (int i = 0; i < 4_000; i++) {
+                List<String> backends = selector.selectBackends(null, null, "director");
+                // the others follow as fallbacks, the drained one never gets requests
+                assertThat(backends, containsInAnyOrder("big", "small"));
+                spread.merge(backends.get(0), 1, Integer::sum);
+                run = backends.get(0).equals(previous) ? run + 1 : 1;
+                previous = backends.get(0);
+                assertThat(run, lessThanOrEqualTo(3));
+            }
+            assertThat(spread, is(Map.of("big", 3_000, "small", 1_000)));
+            assertThat(selector.selectBackends(null, null, "director-all"), containsInAnyOrder("big", "small"));
+            assertThat(selector.selectBackends(null, null, "missing"), is(List.of()));
+
+            // applied on the next pick, without rebuilding the mapper
+            mapper.setBackendWeight("drained", 2);
+            mapper.setBackendWeight("small", 0);
+            assertThat(mapper.getBackendWeight("drained"), is(2));
+            spread.clear();
+            for (int i = 0; i < 500; i++) {
+                spread.merge(selector.selectBackends(null, null, "director").get(0), 1, Integer::sum);
+            }
+            assertThat(spread, is(Map.of("big", 300, "drained", 200)));
+
+            mapper.setBackendWeight("big", 0);
+            mapper.setBackendWeight("drained", 0);
+            assertThat(selector.selectBackends(null, null, "director"), is(List.of()));
+            mapper.setBackendWeight("small", 1);
+            assertThat(selector.selectBackends(null, null, "director"), contains("small"));
+
+            assertThrows(IllegalArgumentException.class, () -> mapper.setBackendWeight("missing", 1));
+            assertThrows(IllegalArgumentException.class, () -> mapper.setBackendWeight("big", -1));
+        }
+    }
+
+    @Test
+    public void testSlowStart() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, WeightedRoundRobinBackendSelector::build);
+            mapper.addBackend(backend("cold", 8081, 1));
+            mapper.addBackend(backend("stable", 8082, 1));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("cold").addBackend("stable"));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            final EndpointMapper mapper = server.getMapper();
+            final BackendHealthStatus cold = mapper.getBackendHealthManager().getBackendStatus("cold");
+            final long now = System.currentTimeMillis();
+            cold.setWarmupPeriod(600_000);
+            cold.setSlowStart(0.1, false);
+            cold.reportAsUnreachable(now, "test");
+            cold.reportAsReachable(now);
+
+            // the cold one gets about one tenth of the share of the stable one
+            final WeightedRoundRobinBackendSelector selector = WeightedRoundRobinBackendSelector.build(mapper);
+            Map<String, Integer> spread = new HashMap<>();
+            for (int i = 0; i < 1_100; i++) {
+                spread.merge(selector.selectBackends(null, null, "director").get(0), 1, Integer::sum);
+            }
+            assertThat(spread.get("cold"), allOf(greaterThan(80), lessThan(120)));
+
+            // at the end of the warmup, on the next refresh, it gets its full share
+            cold.reportAsReachable(now + 600_001);
+            assertThat(cold.getStatus(), is(BackendHealthStatus.Status.STABLE));
+            Thread.sleep(WeightedRoundRobinBackendSelector.REFRESH_PERIOD);
+            spread.clear();
+            for (int i = 0; i < 1_000; i++) {
+                spread.merge(selector.selectBackends(null, null, "director").get(0), 1, Integer::sum);
+            }
+            assertThat(spread, is(Map.of("cold", 500, "stable", 500)));
+
+            // no one is warming up anymore, yet a backend that starts is noticed on the next check
+            final BackendHealthStatus stable = mapper.getBackendHealthManager().getBackendStatus("stable");
+            final long restart = System.currentTimeMillis();
+            stable.setWarmupPeriod(600_000);
+            stable.setSlowStart(0.1, false);
+            stable.reportAsUnreachable(restart, "test");
+            stable.reportAsReachable(restart);
+            Thread.sleep(WeightedRoundRobinBackendSelector.REFRESH_PERIOD);
+            spread.clear();
+            for (int i = 0; i < 1_100; i++) {
+                spread.merge(selector.selectBackends(null, null, "director").get(0), 1, Integer::sum);
+            }
+            assertThat(spread.get("stable"), allOf(greaterThan(80), lessThan(120)));
+        }
+    }
+
+    @Test
+    public void testAllDrained() throws Exception {
+        final EndpointMapper.Factory mapperFactory = parent -> {
+            StandardEndpointMapper mapper = new StandardEndpointMapper(parent, WeightedRoundRobinBackendSelector::build);
+            mapper.addBackend(backend("drained", 8081, 0));
+            mapper.addDirector(new DirectorConfiguration("director").addBackend("drained"));
+            mapper.addAction(new ActionConfiguration("proxy", ActionConfiguration.TYPE_PROXY, "director", null, -1));
+            mapper.addRoute(new RouteConfiguration("route", "proxy", true, new RegexpRequestMatcher(PROPERTY_URI, ".*index.html.*")));
+            return mapper;
+        };
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapperFactory, tmpDir.newFolder())) {
+            server.start();
+            // the route is matched, but none of the backends can take the request
+            HttpURLConnection connection = (HttpURLConnection) URI.create("http://localhost:" + server.getLocalPort() + "/index.html").toURL().openConnection();
+            assertThat(connection.getResponseCode(), is(503));
+            connection.disconnect();
+        }
+    }
+
+    private static BackendConfiguration backend(final String id, final int port, final int weight) {
+        return new BackendConfiguration(id, new EndpointKey("localhost", port), "/", -1, false, null, null, "http", weight);
+    }
+}
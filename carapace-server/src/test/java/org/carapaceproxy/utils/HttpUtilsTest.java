@@ -104,4 +104,16 @@ public class HttpUtilsTest {
         HttpUtils.stripHopByHopHeaders(headers);
         assertThat(headers.isEmpty(), is(true));
     }
+
+    @Test
+    public void testAcceptsEncoding() {
+        assertThat(HttpUtils.acceptsEncoding("gzip, deflate, br", "gzip"), is(true));
+        assertThat(HttpUtils.acceptsEncoding("GZIP;q=0.5", "gzip"), is(true));
+        assertThat(HttpUtils.acceptsEncoding("br, gzip;q=0", "gzip"), is(false));
+        assertThat(HttpUtils.acceptsEncoding("*", "gzip"), is(true));
+        assertThat(HttpUtils.acceptsEncoding("*;q=0, br", "gzip"), is(false));
+        assertThat(HttpUtils.acceptsEncoding("deflate, br", "gzip"), is(false));
+        assertThat(HttpUtils.acceptsEncoding("identity", "gzip"), is(false));
+        assertThat(HttpUtils.acceptsEncoding(null, "gzip"), is(false));
+    }
 }